@@ -0,0 +1,33 @@
+package com.rs4m.benchmark;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.annotation.RateLimiter.KeyResolver;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Handlers with one rate limiter per key resolver strategy. They are never invoked, the benchmarks stop at the filter.
+ */
+@RestController
+public class BenchmarkController {
+    static final String PROFILE = "bench";
+    static final String CLIENT_HEADER = "X-Client";
+
+    @GetMapping("/bench/ip")
+    @RateLimiter(PROFILE)
+    public String ip() {
+        return "ok";
+    }
+
+    @GetMapping("/bench/header")
+    @RateLimiter(value = PROFILE, keyResolver = KeyResolver.HEADER, headerName = CLIENT_HEADER)
+    public String header() {
+        return "ok";
+    }
+
+    @GetMapping("/bench/expression")
+    @RateLimiter(value = PROFILE, keyResolver = KeyResolver.EXPRESSION, keyExpression = "#request.getHeader('" + CLIENT_HEADER + "')")
+    public String expression() {
+        return "ok";
+    }
+}
@@ -0,0 +1,64 @@
+package com.rs4m.benchmark;
+
+import com.rs4m.metrics.HeavyHitters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost added to every decision by {@link HeavyHitters#record}, with one hot client key or many clients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class HeavyHittersBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Tracker {
+        @Param({"1", "100000"})
+        public int clients;
+
+        HeavyHitters heavyHitters;
+        String[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            heavyHitters = new HeavyHitters(true, 10, 1024, 60_000, false);
+            keys = new String[clients];
+            for (int i = 0; i < clients; i++) {
+                keys[i] = "rs4m_rl_{client-" + i + "}:" + BenchmarkController.PROFILE + ":/bench/header";
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            heavyHitters.shutdown();
+        }
+
+        String nextKey() {
+            return clients == 1 ? keys[0] : keys[ThreadLocalRandom.current().nextInt(clients)];
+        }
+    }
+
+    @Benchmark
+    public void record(Tracker tracker) {
+        tracker.heavyHitters.record(BenchmarkController.PROFILE, tracker.nextKey(), true);
+    }
+}
@@ -0,0 +1,96 @@
+package com.rs4m.benchmark;
+
+import com.rs4m.proxy.BucketStateCodec;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AbstractCompareAndSwapBasedProxyManager;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AsyncCompareAndSwapOperation;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.CompareAndSwapOperation;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.serialization.InternalSerializationHelper;
+import io.github.bucket4j.distributed.versioning.Versions;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local stand-in for the Redis backend: the read and compare-and-swap protocol of the Redisson proxy managers, with the
+ * same state encoding, over a map instead of the network. With {@link BucketStateCodec#BUCKET4J} bytes pass through
+ * untouched like in {@link io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager}, any other codec translates
+ * them like {@link com.rs4m.proxy.CodecRedissonProxyManager}. Keys never expire.
+ */
+public class MapCasProxyManager extends AbstractCompareAndSwapBasedProxyManager<String> {
+    private final ConcurrentHashMap<String, byte[]> store = new ConcurrentHashMap<>();
+    private final BucketStateCodec codec;
+
+    public MapCasProxyManager(BucketStateCodec codec) {
+        super(ClientSideConfig.getDefault());
+        this.codec = codec;
+    }
+
+    @Override
+    protected CompareAndSwapOperation beginCompareAndSwapOperation(String key) {
+        return new CompareAndSwapOperation() {
+            private byte[] stored;
+
+            @Override
+            public Optional<byte[]> getStateData(Optional<Long> timeoutNanos) {
+                stored = store.get(key);
+                return Optional.ofNullable(toBucket4jFormat(stored));
+            }
+
+            @Override
+            public boolean compareAndSwap(byte[] originalData, byte[] newData, RemoteBucketState newState, Optional<Long> timeoutNanos) {
+                return swap(key, stored, newData, newState);
+            }
+        };
+    }
+
+    @Override
+    protected AsyncCompareAndSwapOperation beginAsyncCompareAndSwapOperation(String key) {
+        CompareAndSwapOperation operation = beginCompareAndSwapOperation(key);
+        return new AsyncCompareAndSwapOperation() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getStateData(Optional<Long> timeoutNanos) {
+                return CompletableFuture.completedFuture(operation.getStateData(timeoutNanos));
+            }
+
+            @Override
+            public CompletableFuture<Boolean> compareAndSwap(byte[] originalData, byte[] newData, RemoteBucketState newState, Optional<Long> timeoutNanos) {
+                return CompletableFuture.completedFuture(operation.compareAndSwap(originalData, newData, newState, timeoutNanos));
+            }
+        };
+    }
+
+    @Override
+    public void removeProxy(String key) {
+        store.remove(key);
+    }
+
+    @Override
+    protected CompletableFuture<Void> removeAsync(String key) {
+        store.remove(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean isAsyncModeSupported() {
+        return true;
+    }
+
+    private byte[] toBucket4jFormat(byte[] stored) {
+        if (stored == null || codec == BucketStateCodec.BUCKET4J) {
+            return stored;
+        }
+        return InternalSerializationHelper.serializeState(codec.decode(stored), Versions.getLatest());
+    }
+
+    private boolean swap(String key, byte[] stored, byte[] newData, RemoteBucketState newState) {
+        byte[] data = codec == BucketStateCodec.BUCKET4J ? newData : codec.encode(newState);
+        if (stored == null) {
+            return store.putIfAbsent(key, data) == null;
+        }
+        // arrays compare by identity: the swap succeeds only if the key still holds the array that was read
+        return store.replace(key, stored, data);
+    }
+}
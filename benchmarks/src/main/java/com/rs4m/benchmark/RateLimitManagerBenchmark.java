@@ -0,0 +1,52 @@
+package com.rs4m.benchmark;
+
+import com.rs4m.annotation.RateLimiter;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link com.rs4m.observer.DefaultRateLimitManager} without the servlet layer: building the bucket proxy of a client key,
+ * and a full decision through it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimitManagerBenchmark {
+    private static final RateLimiter RATE_LIMITER = rateLimiter();
+
+    private static RateLimiter rateLimiter() {
+        try {
+            return BenchmarkController.class.getMethod("ip").getAnnotation(RateLimiter.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public Bucket getBucket(Workload workload) {
+        return workload.stack.rateLimitManager.getBucket(workload.names[workload.nextClient()], RATE_LIMITER);
+    }
+
+    @Benchmark
+    public boolean getBucketAndConsume(Workload workload) {
+        return workload.stack.rateLimitManager.getBucket(workload.names[workload.nextClient()], RATE_LIMITER).tryConsume(1);
+    }
+
+    @Benchmark
+    public ConsumptionProbe tryConsume(Workload workload) {
+        return workload.stack.rateLimitManager.tryConsume(workload.names[workload.nextClient()], RATE_LIMITER, 1);
+    }
+}
@@ -0,0 +1,102 @@
+package com.rs4m.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link com.rs4m.filter.RateLimiterFilter} from plan lookup to the decision, for each key resolver strategy:
+ * handler lookup, client key resolution, bucket key building and token consumption.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimiterFilterBenchmark {
+    private static final FilterChain CHAIN = (request, response) -> {
+    };
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        final MockHttpServletRequest mock = new MockHttpServletRequest("GET", "/");
+        final ClientRequest request = new ClientRequest(mock);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        @Setup
+        public void setUp() {
+            mock.setAsyncSupported(false);
+        }
+
+        ClientRequest prepare(String uri) {
+            mock.setRequestURI(uri);
+            response.reset();
+            return request;
+        }
+    }
+
+    /**
+     * Request whose client header can be replaced between calls, the mock request only appends header values.
+     */
+    static final class ClientRequest extends HttpServletRequestWrapper {
+        private String client;
+
+        ClientRequest(MockHttpServletRequest request) {
+            super(request);
+        }
+
+        void setRemoteAddr(String remoteAddr) {
+            ((MockHttpServletRequest) getRequest()).setRemoteAddr(remoteAddr);
+        }
+
+        void setClient(String client) {
+            this.client = client;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return BenchmarkController.CLIENT_HEADER.equals(name) ? client : super.getHeader(name);
+        }
+    }
+
+    @Benchmark
+    public int ip(Workload workload, Exchange exchange) throws IOException, ServletException {
+        ClientRequest request = exchange.prepare("/bench/ip");
+        request.setRemoteAddr(workload.ips[workload.nextClient()]);
+        workload.stack.filter.doFilter(request, exchange.response, CHAIN);
+        return exchange.response.getStatus();
+    }
+
+    @Benchmark
+    public int header(Workload workload, Exchange exchange) throws IOException, ServletException {
+        ClientRequest request = exchange.prepare("/bench/header");
+        request.setClient(workload.names[workload.nextClient()]);
+        workload.stack.filter.doFilter(request, exchange.response, CHAIN);
+        return exchange.response.getStatus();
+    }
+
+    @Benchmark
+    public int expression(Workload workload, Exchange exchange) throws IOException, ServletException {
+        ClientRequest request = exchange.prepare("/bench/expression");
+        request.setClient(workload.names[workload.nextClient()]);
+        workload.stack.filter.doFilter(request, exchange.response, CHAIN);
+        return exchange.response.getStatus();
+    }
+}
@@ -0,0 +1,187 @@
+package com.rs4m.benchmark;
+
+import com.rs4m.config.RateLimitProfileProperties;
+import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.filter.RateLimitPlanRegistry;
+import com.rs4m.filter.RateLimiterFilter;
+import com.rs4m.filter.TrafficShaper;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.net.ClientIpResolver;
+import com.rs4m.observer.AdaptiveLimitTuner;
+import com.rs4m.observer.DefaultRateLimitManager;
+import com.rs4m.observer.EventManager;
+import com.rs4m.proxy.BucketStateCodec;
+import com.rs4m.proxy.CompactBucketStateCodec;
+import com.rs4m.proxy.InMemoryProxyManager;
+import com.rs4m.proxy.ProfileExpirationStrategy;
+import com.rs4m.proxy.RedisPermitStore;
+import com.rs4m.proxy.RedisScriptBucketStore;
+import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.util.Collections;
+
+/**
+ * The servlet rate limiting stack as wired by the auto-configuration, without a web server: handler mapping,
+ * plan registry, filter and default rate limit manager over the selected backend.
+ */
+final class RateLimiterStack implements AutoCloseable {
+    /**
+     * In-memory backend
+     */
+    static final String MEMORY = "memory";
+
+    /**
+     * Redis stand-in storing the bucket4j format
+     */
+    static final String CAS = "cas";
+
+    /**
+     * Redis stand-in storing the compact format
+     */
+    static final String CAS_COMPACT = "cas-compact";
+
+    private final AnnotationConfigApplicationContext context;
+    final RateLimiterFilter filter;
+    final DefaultRateLimitManager rateLimitManager;
+
+    private RateLimiterStack(AnnotationConfigApplicationContext context) {
+        this.context = context;
+        this.filter = context.getBean(RateLimiterFilter.class);
+        this.rateLimitManager = context.getBean(DefaultRateLimitManager.class);
+    }
+
+    static RateLimiterStack start(String backend) {
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean("proxyManagerMaster", ProxyManager.class, () -> proxyManager(backend));
+        context.register(StackConfig.class);
+        context.refresh();
+        return new RateLimiterStack(context);
+    }
+
+    private static ProxyManager<String> proxyManager(String backend) {
+        switch (backend) {
+            case MEMORY:
+                return new InMemoryProxyManager(1_000_000, 3_600_000);
+            case CAS:
+                return new MapCasProxyManager(BucketStateCodec.BUCKET4J);
+            case CAS_COMPACT:
+                return new MapCasProxyManager(new CompactBucketStateCodec());
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+    }
+
+    @Override
+    public void close() {
+        filter.destroy();
+        context.close();
+    }
+
+    /**
+     * Registered as a plain class, so beans are created without a configuration class proxy.
+     */
+    static class StackConfig {
+        @Bean
+        public BenchmarkController benchmarkController() {
+            return new BenchmarkController();
+        }
+
+        @Bean
+        public RequestMappingHandlerMapping requestMappingHandlerMapping() {
+            return new RequestMappingHandlerMapping();
+        }
+
+        @Bean
+        public RateLimiterProperties rateLimiterProperties() {
+            return new RateLimiterProperties();
+        }
+
+        /**
+         * A limit high enough that every request is allowed: the benchmarks measure the full decision path.
+         */
+        @Bean
+        public RateLimitProfileProperties rateLimitProfileProperties() {
+            Bandwidth bandwidth = new Bandwidth();
+            bandwidth.setLimit(1_000_000_000);
+            bandwidth.setDuration(1);
+            bandwidth.setTimeUnit(RateLimitProfileProperties.TimeUnit.SECONDS);
+            BucketProfile profile = new BucketProfile();
+            profile.setEnable(true);
+            profile.setVersion("1");
+            profile.setBandwidths(Collections.singletonMap("b1", bandwidth));
+            RateLimitProfileProperties properties = new RateLimitProfileProperties();
+            properties.setBuckets(Collections.singletonMap(BenchmarkController.PROFILE, profile));
+            return properties;
+        }
+
+        @Bean
+        public ProfileExpirationStrategy profileExpirationStrategy() {
+            return new ProfileExpirationStrategy();
+        }
+
+        /**
+         * Meters are recorded as in an application with actuator, so their cost is part of the measurements.
+         */
+        @Bean
+        public RateLimitMetrics rateLimitMetrics() {
+            return new RateLimitMetrics(new SimpleMeterRegistry());
+        }
+
+        @Bean(destroyMethod = "shutdown")
+        public HeavyHitters heavyHitters(RateLimiterProperties properties) {
+            RateLimiterProperties.HeavyHitters settings = properties.getHeavyHitters();
+            return new HeavyHitters(settings.isEnable(), settings.getTopK(), settings.getSketchWidth(), settings.getWindowMillis(),
+                settings.isExposeKeys());
+        }
+
+        @Bean
+        public ClientIpResolver clientIpResolver(RateLimiterProperties properties) {
+            return new ClientIpResolver(properties.getClientIp().getTrustedProxies());
+        }
+
+        @Bean
+        public DefaultRateLimitManager defaultRateLimitManager(ProxyManager<String> proxyManager, RateLimitProfileProperties profiles,
+                                                               RateLimiterProperties properties, ObjectProvider<RedisScriptBucketStore> scriptBucketStore,
+                                                               ObjectProvider<RedisPermitStore> permitStore, ProfileExpirationStrategy expirationStrategy,
+                                                               RateLimitMetrics metrics) {
+            return new DefaultRateLimitManager(proxyManager, profiles, properties, scriptBucketStore, permitStore, expirationStrategy, metrics);
+        }
+
+        @Bean
+        public EventManager eventManager(DefaultRateLimitManager defaultRateLimitManager) {
+            return new EventManager(defaultRateLimitManager);
+        }
+
+        @Bean(destroyMethod = "shutdown")
+        public TrafficShaper trafficShaper(RateLimiterProperties properties, RateLimitMetrics metrics) {
+            return new TrafficShaper(properties.getShaping().getMaxQueued(), metrics);
+        }
+
+        @Bean(destroyMethod = "shutdown")
+        public AdaptiveLimitTuner adaptiveLimitTuner(EventManager eventManager, RateLimitProfileProperties profiles,
+                                                      DefaultRateLimitManager defaultRateLimitManager) {
+            return new AdaptiveLimitTuner(eventManager, profiles, defaultRateLimitManager.getTunedLimits());
+        }
+
+        @Bean
+        public RateLimitPlanRegistry rateLimitPlanRegistry(RequestMappingHandlerMapping handlerMapping, ApplicationContext applicationContext) {
+            return new RateLimitPlanRegistry(handlerMapping, applicationContext);
+        }
+
+        @Bean
+        public RateLimiterFilter rateLimiterFilter(RateLimitPlanRegistry planRegistry, RateLimiterProperties properties, RateLimitMetrics metrics,
+                                                   HeavyHitters heavyHitters, ClientIpResolver clientIpResolver,
+                                                   AdaptiveLimitTuner adaptiveLimitTuner, TrafficShaper trafficShaper) {
+            return new RateLimiterFilter(planRegistry, properties, metrics, heavyHitters, clientIpResolver, adaptiveLimitTuner, trafficShaper);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.rs4m.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Rate limiting stack and client population shared by all benchmark threads.
+ * With one client every thread hits the same bucket (single-key contention), with many clients
+ * every call picks a random one (high cardinality).
+ */
+@State(Scope.Benchmark)
+public class Workload {
+    @Param({RateLimiterStack.MEMORY, RateLimiterStack.CAS, RateLimiterStack.CAS_COMPACT})
+    public String backend;
+
+    @Param({"1", "100000"})
+    public int clients;
+
+    RateLimiterStack stack;
+    String[] ips;
+    String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stack = RateLimiterStack.start(backend);
+        ips = new String[clients];
+        names = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            ips[i] = "10." + (i >>> 16 & 0xFF) + '.' + (i >>> 8 & 0xFF) + '.' + (i & 0xFF);
+            names[i] = "client-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stack.close();
+    }
+
+    int nextClient() {
+        return clients == 1 ? 0 : ThreadLocalRandom.current().nextInt(clients);
+    }
+}
@@ -1,6 +1,7 @@
 package com.rs4m.annotation;
 
 import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
@@ -10,9 +11,15 @@ import java.time.temporal.ChronoUnit;
  * Annotation for rate limiting controller methods or entire controllers.
  * When applied to a controller class, all handler methods will be rate limited.
  * When applied to a method, only that method will be rate limited.
+ * The annotation is repeatable: a request is allowed only if every rate limiter allows it. With the default manager,
+ * the buckets of EXACT profiles are consumed by one atomic Lua script, all or nothing, on a single Redis node and in a
+ * Redis cluster when the keys share a slot. Keys of different clients usually do not in a cluster; those buckets, and
+ * those of other profiles, are consumed in parallel and the tokens taken are given back on rejection, so concurrent
+ * requests may briefly see them taken.
  */
 @Target({ElementType.METHOD, ElementType.TYPE})
 @Retention(RetentionPolicy.RUNTIME)
+@Repeatable(RateLimiters.class)
 public @interface RateLimiter {
 
     /**
@@ -50,6 +57,7 @@ public @interface RateLimiter {
      * - IP: Uses the client's IP address
      * - HEADER: Uses a specified HTTP header value
      * - EXPRESSION: Uses a SpEL expression
+     * - SUBNET: Uses the network of the client's IP address
      *
      * @return the key resolver strategy
      */
@@ -70,6 +78,55 @@ public @interface RateLimiter {
      */
     String keyExpression() default "";
 
+    /**
+     * The prefix length IPv4 client addresses are aggregated to when keyResolver is set to SUBNET.
+     *
+     * @return the IPv4 prefix length, 0 to 32
+     */
+    int ipv4Prefix() default 24;
+
+    /**
+     * The prefix length IPv6 client addresses are aggregated to when keyResolver is set to SUBNET.
+     *
+     * @return the IPv6 prefix length, 0 to 128
+     */
+    int ipv6Prefix() default 64;
+
+    /**
+     * The number of tokens a request consumes, e.g. more for an expensive endpoint.
+     * Used when costExpression is empty, or evaluates to null or fails.
+     *
+     * @return the cost of a request, at least 1
+     */
+    long cost() default 1;
+
+    /**
+     * SpEL expression evaluating to the number of tokens a request consumes, e.g. from its Content-Length
+     * or the item count of a batch. The expression has access to 'request' (HttpServletRequest or ServerHttpRequest)
+     * and 'pathVariables' (Map of the URI template variables) variables. Results below 1 consume 1 token.
+     * All rate limiters of a handler must use the same cost and costExpression.
+     *
+     * @return the SpEL expression, empty to use the constant cost
+     */
+    String costExpression() default "";
+
+    /**
+     * Maximum number of requests of a client in flight at once across the cluster, in addition to the rate limit
+     * of the bucket profile: a request is rejected while the client has as many requests being served.
+     *
+     * @return the maximum number of concurrent requests, 0 for no concurrency limit
+     */
+    int maxConcurrent() default 0;
+
+    /**
+     * Traffic shaping: a request the bucket rejects is delayed instead, if the tokens it needs are refilled within
+     * this time. The tokens are reserved ahead of the refill and the request is resumed once they are available,
+     * without holding a thread while it waits. All rate limiters of a handler must use the same maxWaitMillis.
+     *
+     * @return the longest delay of a request in milliseconds, 0 to reject right away
+     */
+    long maxWaitMillis() default 0;
+
     /**
      * The rate limit manager to use for handling rate limit events.
      * This should be a bean that implements the RateLimitManager interface.
@@ -79,13 +136,21 @@ public @interface RateLimiter {
     String rateLimitManager() default "defaultRateLimitManager";
 
     /**
-     * The name of the rate limit profile to use for this rate limiter.
-     * This should match a profile defined in the application properties.
+     * The rule engine manager providing the rule engine that resolves client keys, e.g. "defaultRuleEngineManager".
+     * This should be a bean that implements the RuleEngineManager interface. Empty to use the key resolver.
      *
-     * @return the name of the rate limit profile
+     * @return the rule engine manager
      */
     String ruleEngineManager() default "";
 
+    /**
+     * The name of the rule engine to get from the rule engine manager.
+     * Defaults to the name of the rule engine manager.
+     *
+     * @return the rule engine name
+     */
+    String ruleEngine() default "";
+
     /**
      * Enumeration of key resolver strategies.
      */
@@ -103,6 +168,11 @@ public @interface RateLimiter {
         /**
          * Use a SpEL expression to determine the key
          */
-        EXPRESSION
+        EXPRESSION,
+
+        /**
+         * Use the network of the client's IP address as the key, see {@link #ipv4Prefix()} and {@link #ipv6Prefix()}
+         */
+        SUBNET
     }
 }
@@ -0,0 +1,20 @@
+package com.rs4m.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Container of repeated {@link RateLimiter} annotations, e.g. to limit per IP, per API key and per tenant at the same time.
+ * All rate limiters of a handler must use the same rate limit manager.
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimiters {
+
+    /**
+     * @return the rate limiters, all of them must allow the request
+     */
+    RateLimiter[] value();
+}
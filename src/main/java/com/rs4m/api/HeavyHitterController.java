@@ -0,0 +1,23 @@
+package com.rs4m.api;
+
+import com.rs4m.metrics.HeavyHitters;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@ConditionalOnProperty(prefix = "rs4m.rate.heavy-hitters", name = "enable", havingValue = "true")
+@RequestMapping("/rs4m/actuator/rate-limit")
+public class HeavyHitterController {
+    private final HeavyHitters heavyHitters;
+
+    @Autowired
+    public HeavyHitterController(HeavyHitters heavyHitters) {
+        this.heavyHitters = heavyHitters;
+    }
+
+    @GetMapping("/heavy-hitters")
+    public HeavyHitters.Report getHeavyHitters(@RequestParam(value = "limiter", required = false) String limiter) {
+        return heavyHitters.report(limiter);
+    }
+}
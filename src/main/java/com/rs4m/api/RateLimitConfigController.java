@@ -2,25 +2,36 @@ package com.rs4m.api;
 
 import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
 import com.rs4m.observer.EventManager;
+import com.rs4m.observer.RedisProfileSync;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
 import java.util.Map;
 
 @RestController
 @RequestMapping("/rs4m/actuator/rate-limit")
 public class RateLimitConfigController {
     private final EventManager eventManager;
+    private final RedisProfileSync profileSync;
 
     @Autowired
-    public RateLimitConfigController(EventManager eventManager) {
+    public RateLimitConfigController(EventManager eventManager, ObjectProvider<RedisProfileSync> profileSync) {
         this.eventManager = eventManager;
+        this.profileSync = profileSync.getIfAvailable();
     }
 
     @PostMapping("/buckets")
     public String updateBucketProfiles(@RequestBody Map<String, BucketProfile> newProfiles) {
+        if (profileSync == null) {
+            eventManager.notify(newProfiles);
+            return "Bucket profiles updated successfully";
+        }
+        // applied here right away, the announcement coming back from Redis is then a no-op
+        List<String> stale = profileSync.publish(newProfiles);
         eventManager.notify(newProfiles);
-        return "Bucket profiles updated successfully";
+        return stale.isEmpty() ? "Bucket profiles updated successfully on all nodes"
+                : "Bucket profiles updated on all nodes, except for versions not newer than the stored ones: " + String.join(", ", stale);
     }
 }
-
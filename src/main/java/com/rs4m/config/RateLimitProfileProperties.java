@@ -17,6 +17,10 @@ public class RateLimitProfileProperties {
         private boolean enable;
         private String version;
         private Map<String, Bandwidth> bandwidths;
+        private Strategy strategy = Strategy.EXACT;
+        private Lease lease = new Lease();
+        private Expiration expiration = new Expiration();
+        private Adaptive adaptive = new Adaptive();
     }
 
     @Data
@@ -27,6 +31,128 @@ public class RateLimitProfileProperties {
         private TimeUnit timeUnit = TimeUnit.MINUTES;
     }
 
+    @Data
+    public static class Lease {
+        /**
+         * Maximum number of tokens a node leases from the shared bucket at once
+         */
+        private int size = 20;
+
+        /**
+         * How long a lease is served locally before its unused tokens are returned to the shared bucket
+         */
+        private long ttlMillis = 1000;
+
+        /**
+         * Size each lease from the rate observed by this node, up to {@link #size}
+         */
+        private boolean adaptive = false;
+    }
+
+    @Data
+    public static class Expiration {
+        /**
+         * When the bucket keys of the profile expire in the store
+         */
+        private ExpirationPolicy policy = ExpirationPolicy.REFILL;
+
+        /**
+         * Time to live of the bucket keys with the FIXED policy
+         */
+        private long ttlMillis = 3_600_000;
+
+        /**
+         * How long the bucket keys are kept after being refilled up to capacity with the REFILL policy
+         */
+        private long keepAfterRefillMillis = 0;
+    }
+
+    @Data
+    public static class Adaptive {
+        /**
+         * Tune the limits of the profile from the latency and error rate of the requests it admits, the configured limits
+         * being the ceiling
+         */
+        private boolean enable = false;
+
+        /**
+         * Average latency of the admitted requests above which the limits are cut
+         */
+        private long targetLatencyMillis = 200;
+
+        /**
+         * Share of failed (5xx) admitted requests above which the limits are cut
+         */
+        private double maxErrorRate = 0.05;
+
+        /**
+         * Ratio the limits are multiplied by when cut
+         */
+        private double backoffRatio = 0.9;
+
+        /**
+         * Share of the configured limits added back after an interval within the targets
+         */
+        private double increaseStep = 0.05;
+
+        /**
+         * Lowest share of the configured limits the limits are cut to
+         */
+        private double minRatio = 0.1;
+
+        /**
+         * Requests needed in an interval to tune the limits, fewer leaves them as they are
+         */
+        private int minSamples = 20;
+
+        /**
+         * Interval between two adjustments
+         */
+        private long intervalMillis = 1000;
+    }
+
+    /**
+     * How long bucket keys live in the store.
+     */
+    public enum ExpirationPolicy {
+        /**
+         * Expire once the bucket would be refilled up to its capacity, which is the same as a missing bucket
+         */
+        REFILL,
+
+        /**
+         * Expire a fixed time after the last write
+         */
+        FIXED,
+
+        /**
+         * Never expire
+         */
+        NONE
+    }
+
+    /**
+     * How tokens of a bucket profile are consumed.
+     */
+    public enum Strategy {
+        /**
+         * Every decision is a remote operation on the shared bucket
+         */
+        EXACT,
+
+        /**
+         * Concurrent consumptions of the same client key on a node are merged into a single remote operation
+         * that consumes the sum of their tokens; results stay exact
+         */
+        COALESCED,
+
+        /**
+         * Each node leases chunks of tokens from the shared bucket and serves decisions locally.
+         * Trades a bounded admission error (at most lease size per node) for local decisions.
+         */
+        LEASED
+    }
+
     @AllArgsConstructor
     @Getter
     public enum TimeUnit {
@@ -4,6 +4,11 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Data
 @ConfigurationProperties(prefix = "rs4m.rate")
@@ -27,4 +32,364 @@ public class RateLimiterProperties {
      * Default time unit for the rate limit window if not specified in annotation
      */
     private ChronoUnit defaultTimeUnit = ChronoUnit.HOURS;
+
+    /**
+     * How bucket keys are built
+     */
+    private Key key = new Key();
+
+    /**
+     * Where bucket state is stored
+     */
+    private Backend backend = Backend.REDIS;
+
+    /**
+     * Format of the bucket state stored in Redis by the REDIS backend
+     */
+    private StateCodec stateCodec = StateCodec.BUCKET4J;
+
+    /**
+     * Settings of the MEMORY backend
+     */
+    private Memory memory = new Memory();
+
+    /**
+     * Lua script evaluation of EXACT bucket profiles on the REDIS backend
+     */
+    private Script script = new Script();
+
+    /**
+     * Local buckets used while the REDIS backend is unavailable
+     */
+    private Fallback fallback = new Fallback();
+
+    /**
+     * Settings of the per-key bucket proxies used by COALESCED bucket profiles
+     */
+    private Coalescing coalescing = new Coalescing();
+
+    /**
+     * Non-blocking rate limit decisions on the servlet path
+     */
+    private Async async = new Async();
+
+    /**
+     * Local cache of rejected client keys, answering their retries without a Redis round trip
+     */
+    private DenyCache denyCache = new DenyCache();
+
+    /**
+     * Micrometer meters of the rate limiters
+     */
+    private Metrics metrics = new Metrics();
+
+    /**
+     * Streaming top-K of the client keys of each rate limiter
+     */
+    private HeavyHitters heavyHitters = new HeavyHitters();
+
+    /**
+     * Decision table rule engines of the defaultRuleEngineManager, by name
+     */
+    private Map<String, RuleEngineSource> ruleEngines = new HashMap<>();
+
+    /**
+     * Memoized rule engine results, by the request attributes the rules read
+     */
+    private RuleCache ruleCache = new RuleCache();
+
+    /**
+     * Rate limit plans of the handlers already resolved, by HTTP method and matched pattern
+     */
+    private PlanCache planCache = new PlanCache();
+
+    /**
+     * Propagation of bucket profile updates to every node through Redis
+     */
+    private Cluster cluster = new Cluster();
+
+    /**
+     * Resolution of the client address behind reverse proxies
+     */
+    private ClientIp clientIp = new ClientIp();
+
+    /**
+     * Permits of the rate limiters with a maximum number of concurrent requests
+     */
+    private Concurrency concurrency = new Concurrency();
+
+    /**
+     * Traffic shaping of the rate limiters with a max wait, see {@link com.rs4m.annotation.RateLimiter#maxWaitMillis()}
+     */
+    private Shaping shaping = new Shaping();
+
+    @Data
+    public static class Key {
+        /**
+         * Replace bucket keys by a fixed size 16 byte hash (base64url encoded), whatever the length of the route and the client
+         */
+        private boolean hashed = false;
+    }
+
+    @Data
+    public static class Memory {
+        /**
+         * Maximum number of buckets kept in memory, least recently used ones are evicted first
+         */
+        private long maxBuckets = 100_000;
+
+        /**
+         * Buckets not used for this long are evicted
+         */
+        private long idleMillis = 3_600_000;
+    }
+
+    @Data
+    public static class Script {
+        /**
+         * Refill and consume all bandwidths of EXACT profiles in one EVALSHA instead of a read and compare-and-swap.
+         * Also makes the composite limits of EXACT profiles atomic, see {@link com.rs4m.annotation.RateLimiter}
+         */
+        private boolean enable = true;
+    }
+
+    @Data
+    public static class Fallback {
+        /**
+         * Switch to local buckets when the backend keeps failing, instead of letting requests through unlimited
+         */
+        private boolean enable = false;
+
+        /**
+         * Number of nodes sharing the buckets, each node admits its share of every limit while in fallback
+         */
+        private int expectedNodes = 1;
+
+        /**
+         * Consecutive backend failures that trigger the fallback
+         */
+        private int failureThreshold = 5;
+
+        /**
+         * Interval between two health probes of the backend while in fallback
+         */
+        private long probeIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class Coalescing {
+        /**
+         * Maximum number of client keys whose bucket proxy is kept for coalescing
+         */
+        private long maxBuckets = 10_000;
+
+        /**
+         * Bucket proxies not used for this long are dropped
+         */
+        private long idleMillis = 60_000;
+    }
+
+    @Data
+    public static class Async {
+        /**
+         * Release the container thread while the decision is pending (Servlet 3 async processing)
+         */
+        private boolean enable = false;
+
+        /**
+         * Maximum time to wait for a decision
+         */
+        private long timeoutMillis = 500;
+
+        /**
+         * What to do when a decision fails or times out
+         */
+        private FailurePolicy failurePolicy = FailurePolicy.FAIL_OPEN;
+    }
+
+    @Data
+    public static class DenyCache {
+        /**
+         * Reject requests of a throttled client key locally until its refill deadline
+         */
+        private boolean enable = false;
+
+        /**
+         * Maximum number of throttled client keys kept
+         */
+        private long maxKeys = 100_000;
+
+        /**
+         * Upper bound of a local rejection, for tokens given back to the bucket before the refill deadline
+         */
+        private long maxDenyMillis = 60_000;
+    }
+
+    @Data
+    public static class Metrics {
+        /**
+         * Publish decision, latency and error meters to the MeterRegistry of the application, if any
+         */
+        private boolean enable = true;
+    }
+
+    @Data
+    public static class HeavyHitters {
+        /**
+         * Track the most admitted and rejected client keys of each rate limiter
+         */
+        private boolean enable = false;
+
+        /**
+         * Number of client keys reported per rate limiter and outcome
+         */
+        private int topK = 10;
+
+        /**
+         * Counters per row of the Count-Min sketches, counts are overestimated by at most 2.7 * requests / width
+         */
+        private int sketchWidth = 1024;
+
+        /**
+         * Length of a counting window, counts start again from zero in each window
+         */
+        private long windowMillis = 60_000;
+
+        /**
+         * Report the client keys themselves, e.g. API keys and IP addresses, instead of hashes only meaningful to this node.
+         * Only enable it with the heavy hitters endpoint secured
+         */
+        private boolean exposeKeys = false;
+    }
+
+    @Data
+    public static class RuleCache {
+        /**
+         * Reuse the result of a rule engine for requests agreeing on the attributes its rules read
+         */
+        private boolean enable = false;
+
+        /**
+         * Maximum number of results kept per rule engine, least recently used ones are evicted first
+         */
+        private long maxEntries = 10_000;
+
+        /**
+         * Results older than this are evaluated again
+         */
+        private long ttlMillis = 60_000;
+    }
+
+    @Data
+    public static class PlanCache {
+        /**
+         * Maximum number of method and matched pattern pairs whose plans are kept, least used ones are evicted first
+         */
+        private long maxEntries = 10_000;
+    }
+
+    @Data
+    public static class ClientIp {
+        /**
+         * CIDR ranges of the reverse proxies whose X-Forwarded-For entries are trusted, empty to ignore X-Forwarded-For.
+         * Defaults to the private and loopback ranges
+         */
+        private List<String> trustedProxies = new ArrayList<>(Arrays.asList(
+                "10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "127.0.0.0/8", "169.254.0.0/16", "::1/128", "fc00::/7", "fe80::/10"));
+    }
+
+    @Data
+    public static class Cluster {
+        /**
+         * Store bucket profile updates in Redis and apply them on every node, instead of the node receiving the update only
+         */
+        private boolean enable = false;
+
+        /**
+         * Pub/sub channel of the updates, and hash tag of the keys the profiles are stored under
+         */
+        private String keyPrefix = "rs4m_profiles";
+    }
+
+    @Data
+    public static class Concurrency {
+        /**
+         * Lease of a permit in Redis, after which the permit of a crashed node is reclaimed; longer than the slowest request
+         */
+        private long leaseMillis = 60_000;
+
+        /**
+         * Maximum number of released permits a node keeps per client key to serve the next requests without Redis, 0 for none
+         */
+        private int sparePermits = 1;
+
+        /**
+         * How long a spare permit is kept unused before it is given back
+         */
+        private long spareMillis = 100;
+    }
+
+    @Data
+    public static class Shaping {
+        /**
+         * Maximum number of requests of this node waiting for their reserved tokens at once; further requests are rejected right away
+         */
+        private int maxQueued = 10_000;
+
+        /**
+         * Maximum time to wait for the decision of a delayed request, on top of its max wait; applies whether async
+         * decisions are enabled or not
+         */
+        private long timeoutMillis = 500;
+    }
+
+    @Data
+    public static class RuleEngineSource {
+        /**
+         * Where the rules are read from: string, file or resource
+         */
+        private String sourceType = "resource";
+
+        /**
+         * The rules, or the path of the file or classpath resource holding them
+         */
+        private String content;
+    }
+
+    public enum Backend {
+        /**
+         * Buckets shared by all nodes through the Redis cluster
+         */
+        REDIS,
+
+        /**
+         * Buckets local to this node, Redis is not needed
+         */
+        MEMORY
+    }
+
+    public enum StateCodec {
+        /**
+         * Generic bucket4j format, readable by every node
+         */
+        BUCKET4J,
+
+        /**
+         * Varint packed format, less than half the size; also reads keys in the bucket4j format.
+         * Switch only once no node in the cluster runs a version without it
+         */
+        COMPACT
+    }
+
+    public enum FailurePolicy {
+        /**
+         * Let the request through without rate limiting
+         */
+        FAIL_OPEN,
+
+        /**
+         * Reject the request with 503 Service Unavailable
+         */
+        FAIL_CLOSED
+    }
 }
@@ -1,24 +1,47 @@
 package com.rs4m.config;
 
 import com.rs4m.filter.RateLimiterFilter;
+import com.rs4m.filter.TrafficShaper;
+import com.rs4m.filter.reactive.ReactiveRateLimitPlanRegistry;
+import com.rs4m.filter.reactive.ReactiveRateLimiterWebFilter;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.net.ClientIpResolver;
+import com.rs4m.observer.AdaptiveLimitTuner;
+import com.rs4m.observer.DefaultRateLimitManager;
+import com.rs4m.observer.EventManager;
+import com.rs4m.observer.RedisProfileSync;
+import com.rs4m.proxy.BucketStateCodec;
+import com.rs4m.proxy.CodecRedissonProxyManager;
+import com.rs4m.proxy.CompactBucketStateCodec;
+import com.rs4m.proxy.InMemoryProxyManager;
+import com.rs4m.proxy.ProfileExpirationStrategy;
+import com.rs4m.proxy.RedisPermitStore;
+import com.rs4m.proxy.RedisScriptBucketStore;
 import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
 import io.github.bucket4j.distributed.proxy.ProxyManager;
 import io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.command.CommandAsyncExecutor;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.expression.ExpressionParser;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.web.reactive.result.method.annotation.RequestMappingHandlerMapping;
 
 import java.time.Duration;
 import java.util.Arrays;
@@ -32,20 +55,90 @@ import java.util.Arrays;
 @ConditionalOnProperty(prefix = "rs4m.rate", name = "enable", havingValue = "true", matchIfMissing = true)
 @EnableConfigurationProperties({RateLimiterProperties.class, RateLimitProfileProperties.class, Rs4mRedissonProperties.class})
 @ComponentScan(basePackages = {
-        "com.rs4m.filter",
         "com.rs4m.observer",
+        "com.rs4m.rule",
         "com.rs4m.api"
 })
 @EnableCaching
 public class Rs4mAutoConfig {
     @Bean("proxyManagerMaster")
-    @ConditionalOnProperty(prefix = "rs4m.rate", name = "enable", havingValue = "true", matchIfMissing = true)
-    public ProxyManager<String> proxyManager(@Qualifier("redissonRs4m") RedissonClient redissonClient) {
+    @ConditionalOnProperty(prefix = "rs4m.rate", name = "backend", havingValue = "redis", matchIfMissing = true)
+    public ProxyManager<String> proxyManager(@Qualifier("redissonRs4m") RedissonClient redissonClient, ProfileExpirationStrategy profileExpirationStrategy,
+                                             RateLimiterProperties properties, ObjectProvider<BucketStateCodec> stateCodec) {
         if (redissonClient == null) {
             throw new IllegalStateException("RedissonClient must be configured for rate limiting to work");
         }
         CommandAsyncExecutor commandExecutor = ((Redisson) redissonClient).getCommandExecutor();
-        return RedissonBasedProxyManager.builderFor(commandExecutor).build();
+        // a BucketStateCodec bean replaces the configured format
+        BucketStateCodec codec = stateCodec.getIfAvailable(() -> properties.getStateCodec() == RateLimiterProperties.StateCodec.COMPACT
+                ? new CompactBucketStateCodec() : null);
+        ClientSideConfig clientSideConfig = ClientSideConfig.getDefault().withExpirationAfterWriteStrategy(profileExpirationStrategy);
+        if (codec != null) {
+            return new CodecRedissonProxyManager(commandExecutor, codec, clientSideConfig);
+        }
+        return RedissonBasedProxyManager.builderFor(commandExecutor)
+                .withClientSideConfig(clientSideConfig)
+                .build();
+    }
+
+    @Bean
+    public ProfileExpirationStrategy profileExpirationStrategy() {
+        return new ProfileExpirationStrategy();
+    }
+
+    @Bean("proxyManagerMaster")
+    @ConditionalOnProperty(prefix = "rs4m.rate", name = "backend", havingValue = "memory")
+    public ProxyManager<String> inMemoryProxyManager(RateLimiterProperties properties) {
+        return new InMemoryProxyManager(properties.getMemory().getMaxBuckets(), properties.getMemory().getIdleMillis());
+    }
+
+    @Bean
+    @ConditionalOnExpression("${rs4m.rate.script.enable:true} and '${rs4m.rate.backend:redis}'.equalsIgnoreCase('redis')")
+    public RedisScriptBucketStore redisScriptBucketStore(@Qualifier("redissonRs4m") RedissonClient redissonClient,
+                                                         ProfileExpirationStrategy profileExpirationStrategy) {
+        return new RedisScriptBucketStore(redissonClient, profileExpirationStrategy);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "rs4m.rate", name = "backend", havingValue = "redis", matchIfMissing = true)
+    public RedisPermitStore redisPermitStore(@Qualifier("redissonRs4m") RedissonClient redissonClient) {
+        return new RedisPermitStore(redissonClient);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    @ConditionalOnExpression("${rs4m.rate.cluster.enable:false} and '${rs4m.rate.backend:redis}'.equalsIgnoreCase('redis')")
+    public RedisProfileSync redisProfileSync(@Qualifier("redissonRs4m") RedissonClient redissonClient, EventManager eventManager,
+                                             RateLimiterProperties properties) {
+        return new RedisProfileSync(redissonClient, eventManager, properties.getCluster().getKeyPrefix());
+    }
+
+    @Bean
+    public RateLimitMetrics rateLimitMetrics(ObjectProvider<MeterRegistry> meterRegistry, RateLimiterProperties properties) {
+        MeterRegistry registry = properties.getMetrics().isEnable() ? meterRegistry.getIfAvailable() : null;
+        return registry != null ? new RateLimitMetrics(registry) : RateLimitMetrics.noop();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public HeavyHitters heavyHitters(RateLimiterProperties properties) {
+        RateLimiterProperties.HeavyHitters settings = properties.getHeavyHitters();
+        return new HeavyHitters(settings.isEnable(), settings.getTopK(), settings.getSketchWidth(), settings.getWindowMillis(),
+                settings.isExposeKeys());
+    }
+
+    @Bean
+    public ClientIpResolver clientIpResolver(RateLimiterProperties properties) {
+        return new ClientIpResolver(properties.getClientIp().getTrustedProxies());
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public TrafficShaper trafficShaper(RateLimiterProperties properties, RateLimitMetrics metrics) {
+        return new TrafficShaper(properties.getShaping().getMaxQueued(), metrics);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public AdaptiveLimitTuner adaptiveLimitTuner(EventManager eventManager, RateLimitProfileProperties profiles,
+                                                  DefaultRateLimitManager defaultRateLimitManager) {
+        return new AdaptiveLimitTuner(eventManager, profiles, defaultRateLimitManager.getTunedLimits());
     }
 
     @Bean
@@ -59,21 +152,8 @@ public class Rs4mAutoConfig {
         return BucketConfiguration.builder().addLimit(limit -> limit.capacity(properties.getDefaultLimit()).refillGreedy(properties.getDefaultLimit(), Duration.of(properties.getDefaultDuration(), properties.getDefaultTimeUnit()))).build();
     }
 
-    /**
-     * Register the RateLimiterFilter with high priority to ensure it runs early in the filter chain.
-     */
-    @Bean
-    public FilterRegistrationBean<RateLimiterFilter> rateLimiterFilterRegistration(RateLimiterFilter rateLimiterFilter) {
-        FilterRegistrationBean<RateLimiterFilter> registration = new FilterRegistrationBean<>();
-        registration.setFilter(rateLimiterFilter);
-        registration.addUrlPatterns("/*");
-        registration.setOrder(0); // High priority
-        registration.setName("rateLimiterFilter");
-        return registration;
-    }
-
     @Bean(name = "redissonRs4m", destroyMethod = "shutdown")
-    @ConditionalOnProperty(prefix = "rs4m.rate", name = "enable", havingValue = "true", matchIfMissing = true)
+    @ConditionalOnProperty(prefix = "rs4m.rate", name = "backend", havingValue = "redis", matchIfMissing = true)
     public RedissonClient redisson(Rs4mRedissonProperties prop) {
         if (prop.getNodeAddresses() == null || prop.getNodeAddresses().trim().isEmpty()) {
             throw new IllegalStateException("Redis node addresses must be configured. Please set 'rs4m.redisson.nodeAddresses' property.");
@@ -111,4 +191,50 @@ public class Rs4mAutoConfig {
 
         return Redisson.create(config);
     }
+
+    /**
+     * Servlet stack: rate limiting through the {@link RateLimiterFilter}.
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ComponentScan(basePackages = "com.rs4m.filter")
+    static class ServletRateLimiterConfig {
+        /**
+         * Register the RateLimiterFilter with high priority to ensure it runs early in the filter chain.
+         */
+        @Bean
+        public FilterRegistrationBean<RateLimiterFilter> rateLimiterFilterRegistration(RateLimiterFilter rateLimiterFilter) {
+            FilterRegistrationBean<RateLimiterFilter> registration = new FilterRegistrationBean<>();
+            registration.setFilter(rateLimiterFilter);
+            registration.addUrlPatterns("/*");
+            registration.setOrder(0); // High priority
+            registration.setName("rateLimiterFilter");
+            return registration;
+        }
+    }
+
+    /**
+     * Reactive stack: rate limiting through the {@link ReactiveRateLimiterWebFilter}.
+     */
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+    static class ReactiveRateLimiterConfig {
+        @Bean
+        public ReactiveRateLimitPlanRegistry reactiveRateLimitPlanRegistry(RequestMappingHandlerMapping requestMappingHandlerMapping,
+                                                                           ApplicationContext applicationContext) {
+            return new ReactiveRateLimitPlanRegistry(requestMappingHandlerMapping, applicationContext);
+        }
+
+        @Bean
+        public ReactiveRateLimiterWebFilter reactiveRateLimiterWebFilter(ReactiveRateLimitPlanRegistry reactiveRateLimitPlanRegistry,
+                                                                         RateLimiterProperties properties,
+                                                                         RateLimitMetrics metrics,
+                                                                         HeavyHitters heavyHitters,
+                                                                         ClientIpResolver clientIpResolver,
+                                                                         AdaptiveLimitTuner adaptiveLimitTuner,
+                                                                         TrafficShaper trafficShaper) {
+            return new ReactiveRateLimiterWebFilter(reactiveRateLimitPlanRegistry, properties, metrics, heavyHitters,
+                    clientIpResolver, adaptiveLimitTuner, trafficShaper);
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.metrics.RateLimitMetrics.LimiterMeters;
+import com.rs4m.net.SubnetKey;
+import com.rs4m.rule.RuleEngine;
+import com.rs4m.rule.RuleEngineManager;
+import com.rs4m.rule.RuleResult;
+import io.github.bucket4j.ConsumptionProbe;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * Resolves the {@link ClientKeys} of a request and records the decisions taken on them. Shared by the servlet and
+ * the reactive rate limiter filters, which only read their request through a {@link RequestAccess} and write the response.
+ *
+ * @param <R> the request type of the filter
+ */
+@Slf4j
+public final class ClientKeyResolver<R> {
+    /**
+     * Response header of an allowed request: the tokens left in its bucket
+     */
+    public static final String REMAINING_HEADER = "X-Rate-Limit-Remaining";
+
+    /**
+     * Response header of a rate limited request: the seconds until its bucket is refilled
+     */
+    public static final String RETRY_AFTER_HEADER = "X-Rate-Limit-Retry-After-Seconds";
+
+    /**
+     * Reads the parts of a request that client keys are made of.
+     *
+     * @param <R> the request type of the filter
+     */
+    public interface RequestAccess<R> {
+        /**
+         * @return the first value of the header, null if the request does not have it
+         */
+        String header(R request, String name);
+
+        /**
+         * @return the client address behind trusted proxies, empty if unknown, which leaves the client key unresolved
+         */
+        String clientIp(R request);
+
+        /**
+         * @return the pattern of the handler matched while looking up the plans, the request path if none
+         */
+        String pattern(R request);
+
+        /**
+         * @return the fact handed to rule engines, also the #request variable of key expressions
+         */
+        Object fact(R request);
+    }
+
+    private final RateLimiterProperties properties;
+    private final RateLimitMetrics metrics;
+    private final HeavyHitters heavyHitters;
+    private final RequestAccess<R> access;
+
+    public ClientKeyResolver(RateLimiterProperties properties, RateLimitMetrics metrics, HeavyHitters heavyHitters, RequestAccess<R> access) {
+        this.properties = properties;
+        this.metrics = metrics;
+        this.heavyHitters = heavyHitters;
+        this.access = access;
+    }
+
+    /**
+     * @return the client key of each plan, or null if a key cannot be resolved
+     */
+    public ClientKeys resolveClientKeys(R request, List<RateLimitPlan> plans) {
+        ClientKeys clientKeys = new ClientKeys(plans);
+        for (int i = 0; i < plans.size(); i++) {
+            if (!resolveTimedClientKey(request, plans.get(i), clientKeys, i)) {
+                return null;
+            }
+        }
+        return clientKeys;
+    }
+
+    /**
+     * Record the decision on a request in the metrics and heavy hitters of each of its plans.
+     *
+     * @param request  the request
+     * @param resolved the client keys of the request
+     * @param probe    the probe of the consumption, null if a concurrency limit rejected the request
+     * @return the message of the rejected request, null if the request is allowed
+     */
+    public String decide(R request, ClientKeys resolved, ConsumptionProbe probe) {
+        boolean allowed = probe != null && probe.isConsumed();
+        List<RateLimitPlan> plans = resolved.getPlans();
+        for (int i = 0; i < plans.size(); i++) {
+            String limiter = plans.get(i).getProfile();
+            metrics.limiter(limiter).decided(allowed);
+            heavyHitters.record(limiter, resolved.getKey(i), allowed);
+        }
+        if (allowed) {
+            return null;
+        }
+        if (probe == null) {
+            return "Too many concurrent requests. Try again later " + access.clientIp(request);
+        }
+        return "Rate limit exceeded. Try again in " + retryAfterSeconds(probe) + " seconds " + access.clientIp(request);
+    }
+
+    public void recordDecisionError(List<RateLimitPlan> plans) {
+        for (RateLimitPlan plan : plans) {
+            metrics.limiter(plan.getProfile()).decisionError();
+        }
+    }
+
+    /**
+     * @return the value of the {@link #RETRY_AFTER_HEADER} of a rejected probe
+     */
+    public static long retryAfterSeconds(ConsumptionProbe probe) {
+        return probe.getNanosToWaitForRefill() / 1_000_000_000;
+    }
+
+    /**
+     * @return whether the client key was resolved
+     */
+    private boolean resolveTimedClientKey(R request, RateLimitPlan plan, ClientKeys clientKeys, int index) {
+        LimiterMeters meters = metrics.limiter(plan.getProfile());
+        long start = System.nanoTime();
+        try {
+            resolveClientKey(request, plan, clientKeys, index);
+        } catch (RuntimeException e) {
+            meters.keyError();
+            throw e;
+        } finally {
+            meters.keyResolved(start);
+        }
+        if (clientKeys.getKey(index).isEmpty()) {
+            meters.keyError();
+            return false;
+        }
+        return true;
+    }
+
+    private void resolveClientKey(R request, RateLimitPlan plan, ClientKeys clientKeys, int index) {
+        RuleEngineManager ruleEngineManager = plan.getRuleEngineManager();
+
+        // base by rule engine, which may also pick the profile
+        if (ruleEngineManager != null) {
+            RuleEngine ruleEngine = ruleEngineManager.getEngine(plan.getRuleEngine());
+            if (ruleEngine != null) {
+                try {
+                    RuleResult result = ruleEngine.evaluate(access.fact(request));
+                    if (result != null) {
+                        RateLimitPlan rulePlan = plan.forProfile(result.getProfile());
+                        clientKeys.set(index, rulePlan, clientKey(request, rulePlan, result.getKey()));
+                        return;
+                    }
+                } catch (Exception e) {
+                    log.error("Error evaluating rules of RuleEngine: {}", plan.getRuleEngine(), e);
+                    clientKeys.set(index, plan, "");
+                    return;
+                }
+            }
+        }
+        clientKeys.set(index, plan, resolveClientKey(request, plan));
+    }
+
+    private String resolveClientKey(R request, RateLimitPlan plan) {
+        RateLimiter rateLimiter = plan.getRateLimiter();
+
+        // base by annotation configuration
+        switch (rateLimiter.keyResolver()) {
+            case HEADER:
+                String headerValue = access.header(request, rateLimiter.headerName());
+                if (headerValue == null || headerValue.isEmpty()) {
+                    // Fallback to IP if header is not present
+                    return clientKey(request, plan, access.clientIp(request));
+                }
+                return clientKey(request, plan, headerValue);
+            case EXPRESSION:
+                if (plan.getKeyExpression() == null) {
+                    return clientKey(request, plan, access.clientIp(request));
+                }
+                String value = plan.getKeyExpression().getValue(RequestExpressions.context(access.fact(request)), String.class);
+                return clientKey(request, plan, value != null ? value : access.clientIp(request));
+            case SUBNET:
+                String clientIp = access.clientIp(request);
+                String subnet = SubnetKey.encode(clientIp, rateLimiter.ipv4Prefix(), rateLimiter.ipv6Prefix());
+                return clientKey(request, plan, subnet != null ? subnet : clientIp);
+            default:
+                return clientKey(request, plan, access.clientIp(request));
+        }
+    }
+
+    /**
+     * @return the key of the client, empty if the client is unknown: clients whose address is unknown never share one key
+     */
+    private String clientKey(R request, RateLimitPlan plan, String client) {
+        if (client == null || client.isEmpty()) {
+            return "";
+        }
+        return RateLimitKeys.build(plan, access.pattern(request), client, properties.getKey().isHashed());
+    }
+}
@@ -0,0 +1,214 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.observer.ConcurrencyPermit;
+import com.rs4m.proxy.Reservation;
+import io.github.bucket4j.ConsumptionProbe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The client keys of a request, one per plan of its handler. A rule engine may move a plan to another bucket profile,
+ * the plans to consume from are then the derived ones. The same cost is consumed from every bucket, and a permit is
+ * held for every plan with a concurrency limit until the request is complete.
+ */
+public final class ClientKeys {
+    private static final CompletableFuture<Boolean> ACQUIRED = CompletableFuture.completedFuture(Boolean.TRUE);
+
+    private final List<RateLimitPlan> plans;
+    private final String[] keys;
+    private RateLimitPlan[] rulePlans;
+    private long cost = 1;
+    private ConcurrencyPermit[] permits;
+    private boolean released;
+
+    public ClientKeys(List<RateLimitPlan> plans) {
+        this.plans = plans;
+        this.keys = new String[plans.size()];
+    }
+
+    /**
+     * @param index   index of the plan in the plans of the handler
+     * @param plan    the plan to consume from
+     * @param key     the client key
+     */
+    public void set(int index, RateLimitPlan plan, String key) {
+        if (plan != plans.get(index)) {
+            if (rulePlans == null) {
+                rulePlans = plans.toArray(new RateLimitPlan[0]);
+            }
+            rulePlans[index] = plan;
+        }
+        keys[index] = key;
+    }
+
+    public String getKey(int index) {
+        return keys[index];
+    }
+
+    public List<String> getKeys() {
+        return Arrays.asList(keys);
+    }
+
+    public List<RateLimitPlan> getPlans() {
+        return rulePlans == null ? plans : Arrays.asList(rulePlans);
+    }
+
+    /**
+     * @return the number of tokens to consume from each bucket
+     */
+    public long getCost() {
+        return cost;
+    }
+
+    /**
+     * Resolve the cost of the request from its plans, see {@link RateLimitCost}.
+     *
+     * @param request       the request, the #request variable of the cost expression
+     * @param pathVariables the URI template variables of the request, the #pathVariables variable of the cost expression
+     */
+    public void resolveCost(Object request, Object pathVariables) {
+        cost = RateLimitCost.resolve(plans.get(0), request, pathVariables);
+    }
+
+    /**
+     * Give back or charge the difference between the actual cost of the served request and its cost.
+     *
+     * @param actualCost the value of the {@link RateLimitCost#ACTUAL_COST_ATTRIBUTE} attribute, null if not set
+     */
+    public void settleCost(Object actualCost) {
+        RateLimitCost.settle(this, actualCost);
+    }
+
+    /**
+     * Consume the cost of the request from the bucket of this client, from all buckets at once for several plans.
+     *
+     * @return the probe of the consumption
+     */
+    public ConsumptionProbe tryConsume() {
+        List<RateLimitPlan> plans = getPlans();
+        RateLimitPlan plan = plans.get(0);
+        return plans.size() == 1
+                ? plan.getRateLimitManager().tryConsume(keys[0], plan.getRateLimiter(), cost)
+                : plan.getRateLimitManager().tryConsumeAll(getKeys(), rateLimiters(plans), cost);
+    }
+
+    /**
+     * Asynchronous {@link #tryConsume()}.
+     *
+     * @return a future completed with the probe of the consumption
+     */
+    public CompletableFuture<ConsumptionProbe> tryConsumeAsync() {
+        List<RateLimitPlan> plans = getPlans();
+        RateLimitPlan plan = plans.get(0);
+        return plans.size() == 1
+                ? plan.getRateLimitManager().tryConsumeAsync(keys[0], plan.getRateLimiter(), cost)
+                : plan.getRateLimitManager().tryConsumeAllAsync(getKeys(), rateLimiters(plans), cost);
+    }
+
+    /**
+     * Consume the cost of the request from every bucket, or reserve it ahead of the refill, see {@link TrafficShaper}.
+     *
+     * @param maxWaitNanos the longest time to wait for the tokens to be refilled, 0 to only consume available tokens
+     * @return a future completed with the reservation, with the rejected probe if nothing was reserved
+     */
+    CompletableFuture<Reservation> tryConsumeOrReserve(long maxWaitNanos) {
+        List<RateLimitPlan> plans = getPlans();
+        RateLimitPlan plan = plans.get(0);
+        if (plans.size() == 1) {
+            return plan.getRateLimitManager().tryConsumeOrReserveAsync(keys[0], plan.getRateLimiter(), cost, maxWaitNanos);
+        }
+        return plan.getRateLimitManager().tryConsumeAllOrReserveAsync(getKeys(), rateLimiters(plans), cost, maxWaitNanos);
+    }
+
+    private static List<RateLimiter> rateLimiters(List<RateLimitPlan> plans) {
+        List<RateLimiter> rateLimiters = new ArrayList<>(plans.size());
+        for (RateLimitPlan plan : plans) {
+            rateLimiters.add(plan.getRateLimiter());
+        }
+        return rateLimiters;
+    }
+
+    /**
+     * Take a permit for every plan with a {@link RateLimiter#maxConcurrent()} limit, all or nothing:
+     * if one of the limits is reached, the permits already taken are released.
+     *
+     * @return a future completed with true if the request may be served, false if a concurrency limit is reached
+     */
+    public CompletableFuture<Boolean> tryAcquirePermits() {
+        List<RateLimitPlan> plans = getPlans();
+        CompletableFuture<Boolean> result = ACQUIRED;
+        for (int i = 0; i < plans.size(); i++) {
+            RateLimiter rateLimiter = plans.get(i).getRateLimiter();
+            if (rateLimiter.maxConcurrent() <= 0) {
+                continue;
+            }
+            int index = i;
+            CompletableFuture<Boolean> acquired = plans.get(0).getRateLimitManager().tryAcquirePermitAsync(keys[i], rateLimiter)
+                    .thenApply(permit -> hold(index, permit));
+            result = result.thenCombine(acquired, (all, one) -> all && one);
+        }
+        if (result == ACQUIRED) {
+            return result;
+        }
+        return result.whenComplete((acquired, error) -> {
+            if (error != null || !acquired) {
+                releasePermits();
+            }
+        });
+    }
+
+    private synchronized boolean hold(int index, ConcurrencyPermit permit) {
+        if (permit == null) {
+            return false;
+        }
+        if (released) {
+            // taken after the request was rejected or timed out
+            permit.release();
+            return false;
+        }
+        if (permits == null) {
+            permits = new ConcurrencyPermit[keys.length];
+        }
+        permits[index] = permit;
+        return true;
+    }
+
+    /**
+     * Release the permits held by the request, and the ones still being taken once they are.
+     */
+    public void releasePermits() {
+        ConcurrencyPermit[] held;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            held = permits;
+            permits = null;
+        }
+        if (held != null) {
+            for (ConcurrencyPermit permit : held) {
+                if (permit != null) {
+                    permit.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Settle the cost of the served request and release its permits.
+     *
+     * @param actualCost the value of the {@link RateLimitCost#ACTUAL_COST_ATTRIBUTE} attribute, null if not set
+     */
+    public void complete(Object actualCost) {
+        try {
+            settleCost(actualCost);
+        } finally {
+            releasePermits();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+
+import java.lang.annotation.Annotation;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * A @RateLimiter applying another bucket profile, for profiles picked by a rule engine.
+ */
+final class ProfileRateLimiter implements RateLimiter {
+    private final RateLimiter rateLimiter;
+    private final String profile;
+
+    ProfileRateLimiter(RateLimiter rateLimiter, String profile) {
+        this.rateLimiter = rateLimiter;
+        this.profile = profile;
+    }
+
+    @Override
+    public String value() {
+        return profile;
+    }
+
+    @Override
+    public int limit() {
+        return rateLimiter.limit();
+    }
+
+    @Override
+    public long duration() {
+        return rateLimiter.duration();
+    }
+
+    @Override
+    public ChronoUnit unit() {
+        return rateLimiter.unit();
+    }
+
+    @Override
+    public KeyResolver keyResolver() {
+        return rateLimiter.keyResolver();
+    }
+
+    @Override
+    public String headerName() {
+        return rateLimiter.headerName();
+    }
+
+    @Override
+    public String keyExpression() {
+        return rateLimiter.keyExpression();
+    }
+
+    @Override
+    public int ipv4Prefix() {
+        return rateLimiter.ipv4Prefix();
+    }
+
+    @Override
+    public int ipv6Prefix() {
+        return rateLimiter.ipv6Prefix();
+    }
+
+    @Override
+    public long cost() {
+        return rateLimiter.cost();
+    }
+
+    @Override
+    public String costExpression() {
+        return rateLimiter.costExpression();
+    }
+
+    @Override
+    public int maxConcurrent() {
+        return rateLimiter.maxConcurrent();
+    }
+
+    @Override
+    public long maxWaitMillis() {
+        return rateLimiter.maxWaitMillis();
+    }
+
+    @Override
+    public String rateLimitManager() {
+        return rateLimiter.rateLimitManager();
+    }
+
+    @Override
+    public String ruleEngineManager() {
+        return rateLimiter.ruleEngineManager();
+    }
+
+    @Override
+    public String ruleEngine() {
+        return rateLimiter.ruleEngine();
+    }
+
+    @Override
+    public Class<? extends Annotation> annotationType() {
+        return RateLimiter.class;
+    }
+
+    @Override
+    public String toString() {
+        return "@RateLimiter(" + profile + ") from " + rateLimiter;
+    }
+}
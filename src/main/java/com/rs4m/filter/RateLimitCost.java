@@ -0,0 +1,83 @@
+package com.rs4m.filter;
+
+import com.rs4m.observer.RateLimitManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Weighted request cost: the number of tokens a request consumes from its buckets, and its settlement once served.
+ * <p>
+ * A request is charged up front, from the cost or the cost expression of its @RateLimiter. A handler that only knows
+ * the actual cost afterwards, e.g. the number of rows a query returned, sets it as the {@link #ACTUAL_COST_ATTRIBUTE}
+ * request (or exchange) attribute: the difference is given back to, or charged to, the buckets of the client once the
+ * response is complete. A charge may leave the buckets negative, which delays the next requests of the client.
+ */
+@Slf4j
+public final class RateLimitCost {
+    /**
+     * Request or exchange attribute holding the actual cost of a request, a {@link Number} of tokens
+     */
+    public static final String ACTUAL_COST_ATTRIBUTE = RateLimitCost.class.getName() + ".ACTUAL_COST";
+
+    private RateLimitCost() {
+    }
+
+    /**
+     * @param plan          a plan of the handler, all plans of a handler have the same cost
+     * @param request       the request, the #request variable of the cost expression
+     * @param pathVariables the URI template variables of the request, the #pathVariables variable of the cost expression
+     * @return the number of tokens to consume, at least 1
+     */
+    static long resolve(RateLimitPlan plan, Object request, Object pathVariables) {
+        Expression expression = plan.getCostExpression();
+        if (expression == null) {
+            return plan.getCost();
+        }
+        try {
+            EvaluationContext context = RequestExpressions.context(request);
+            context.setVariable("pathVariables", pathVariables != null ? pathVariables : Collections.emptyMap());
+            Long cost = expression.getValue(context, Long.class);
+            return cost != null ? Math.max(1, cost) : plan.getCost();
+        } catch (RuntimeException e) {
+            log.warn("Failed to evaluate the cost expression of rate limiter '{}', consuming {} token(s)", plan.getProfile(), plan.getCost(), e);
+            return plan.getCost();
+        }
+    }
+
+    /**
+     * Give back or charge the difference between the actual cost of a served request and the tokens it consumed.
+     *
+     * @param charged    the client keys the request consumed from, with the number of tokens consumed
+     * @param actualCost the value of the {@link #ACTUAL_COST_ATTRIBUTE} attribute, null if the handler did not set it
+     */
+    static void settle(ClientKeys charged, Object actualCost) {
+        if (actualCost == null) {
+            return;
+        }
+        if (!(actualCost instanceof Number)) {
+            log.warn("Ignoring actual request cost of type {}, expected a number", actualCost.getClass().getName());
+            return;
+        }
+        long difference = Math.max(0, ((Number) actualCost).longValue()) - charged.getCost();
+        if (difference == 0) {
+            return;
+        }
+        List<RateLimitPlan> plans = charged.getPlans();
+        RateLimitManager rateLimitManager = plans.get(0).getRateLimitManager();
+        for (int i = 0; i < plans.size(); i++) {
+            try {
+                if (difference < 0) {
+                    rateLimitManager.addTokens(charged.getKey(i), plans.get(i).getRateLimiter(), -difference);
+                } else {
+                    rateLimitManager.chargeTokens(charged.getKey(i), plans.get(i).getRateLimiter(), difference);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to settle the cost of a request with rate limiter '{}'", plans.get(i).getProfile(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.rs4m.filter;
+
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Builds bucket keys from the matched handler pattern rather than the raw URI, so path variables neither multiply
+ * the buckets nor let clients bypass their limit.
+ * <p>
+ * The client part is a Redis cluster hash tag, so the buckets of a client live in the same slot and clients are spread
+ * over the cluster. The plans of a handler with several limits are consumed by a single script, which only reaches the
+ * keys of one slot, so their keys take the handler pattern as hash tag instead: the limits of different clients,
+ * e.g. per IP and per API key, then share a slot, at the cost of putting every client of the handler on one node.
+ */
+public final class RateLimitKeys {
+    private static final int TAG_BYTES = 6;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private RateLimitKeys() {
+    }
+
+    /**
+     * @param plan    the rate limit plan
+     * @param pattern the handler pattern matched by the request
+     * @param client  the client identity, e.g. its IP address or API key
+     * @param hashed  replace the key by a fixed size hash, whatever the length of the pattern and the client
+     * @return {@code <prefix>{<client>}:<profile>:<pattern>}, or {@code <prefix>{<client hash>}<key hash>} if hashed;
+     * the pattern replaces the client in the braces of a {@link RateLimitPlan#isComposite() composite} plan
+     */
+    public static String build(RateLimitPlan plan, String pattern, String client, boolean hashed) {
+        if (!hashed) {
+            if (plan.isComposite()) {
+                return plan.getKeyPrefix() + '{' + pattern + "}:" + plan.getProfile() + ':' + client;
+            }
+            return plan.getKeyPrefix() + '{' + client + "}:" + plan.getProfile() + ':' + pattern;
+        }
+        byte[] tag = DigestUtils.md5Digest(String.valueOf(plan.isComposite() ? pattern : client).getBytes(StandardCharsets.UTF_8));
+        byte[] key = DigestUtils.md5Digest((plan.getProfile() + ':' + pattern + ':' + client).getBytes(StandardCharsets.UTF_8));
+        return plan.getKeyPrefix() + '{' + ENCODER.encodeToString(Arrays.copyOf(tag, TAG_BYTES)) + '}' + ENCODER.encodeToString(key);
+    }
+}
@@ -0,0 +1,99 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.observer.RateLimitManager;
+import com.rs4m.rule.RuleEngineManager;
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import org.springframework.expression.Expression;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Precompiled rate limit plan of a single handler method.
+ * Everything the filter needs to take a decision is resolved once at startup,
+ * so the request path does no reflection, bean lookups or SpEL parsing.
+ * <p>
+ * The settings of a plan never change. The only mutable state is the thread-safe cache of the plans derived by
+ * {@link #forProfile}: the profiles a rule engine picks are only known once its rules are loaded, and may change
+ * when they are reloaded, so each derived plan is built on first use and then shared.
+ */
+@Getter
+@Builder(toBuilder = true)
+public class RateLimitPlan {
+    /**
+     * The resolved @RateLimiter annotation (method level first, then controller level)
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * The rate limit manager bean referenced by {@link RateLimiter#rateLimitManager()}
+     */
+    private final RateLimitManager rateLimitManager;
+
+    /**
+     * The rule engine manager bean referenced by {@link RateLimiter#ruleEngineManager()}, null if none
+     */
+    private final RuleEngineManager ruleEngineManager;
+
+    /**
+     * Name of the rule engine to get from the rule engine manager
+     */
+    private final String ruleEngine;
+
+    /**
+     * The parsed {@link RateLimiter#keyExpression()}, null if the expression is empty
+     */
+    private final Expression keyExpression;
+
+    /**
+     * Tokens consumed by a request, {@link RateLimiter#cost()}
+     */
+    private final long cost;
+
+    /**
+     * The parsed {@link RateLimiter#costExpression()}, null if the expression is empty
+     */
+    private final Expression costExpression;
+
+    /**
+     * Static part of the client key
+     */
+    private final String keyPrefix;
+
+    /**
+     * Name of the bucket profile to apply
+     */
+    private final String profile;
+
+    /**
+     * Whether the handler has several plans, consumed all or nothing: their keys then share the hash tag of the handler
+     * pattern, see {@link RateLimitKeys}
+     */
+    private final boolean composite;
+
+    /**
+     * Plans derived for the profiles picked by the rule engine
+     */
+    @Getter(AccessLevel.NONE)
+    @Builder.Default
+    private final ConcurrentMap<String, RateLimitPlan> profilePlans = new ConcurrentHashMap<>();
+
+    /**
+     * @param profile a bucket profile picked by the rule engine, null to keep the profile of the @RateLimiter
+     * @return this plan, with its rate limiter and bucket keys moved to the profile
+     */
+    public RateLimitPlan forProfile(String profile) {
+        if (profile == null || profile.equals(this.profile)) {
+            return this;
+        }
+        RateLimitPlan plan = profilePlans.get(profile);
+        return plan != null ? plan : profilePlans.computeIfAbsent(profile, name -> toBuilder()
+                .rateLimiter(new ProfileRateLimiter(rateLimiter, name))
+                .profile(name)
+                .profilePlans(new ConcurrentHashMap<>())
+                .build());
+    }
+}
@@ -0,0 +1,124 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.net.ClientIpResolver;
+import com.rs4m.observer.RateLimitManager;
+import com.rs4m.rule.CachingRuleEngineManager;
+import com.rs4m.rule.RuleEngineManager;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.web.method.HandlerMethod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles the @RateLimiter configuration of a handler method into {@link RateLimitPlan}s.
+ * Shared by the servlet and the reactive rate limiter filters.
+ */
+public class RateLimitPlanFactory {
+    private static final String KEY_PREFIX = "rs4m_rl_";
+
+    private final ApplicationContext applicationContext;
+    private final ExpressionParser expressionParser = new SpelExpressionParser();
+    private final Map<RuleEngineManager, RuleEngineManager> cachingManagers = new IdentityHashMap<>();
+
+    public RateLimitPlanFactory(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @param handlerMethod the handler method
+     * @return one plan per @RateLimiter of the handler method, empty if the handler method is not rate limited
+     */
+    public List<RateLimitPlan> compile(HandlerMethod handlerMethod) {
+        // Check for @RateLimiter annotations on method, then on the controller class
+        Set<RateLimiter> rateLimiters = AnnotatedElementUtils.findMergedRepeatableAnnotations(handlerMethod.getMethod(), RateLimiter.class);
+        if (rateLimiters.isEmpty()) {
+            rateLimiters = AnnotatedElementUtils.findMergedRepeatableAnnotations(handlerMethod.getBeanType(), RateLimiter.class);
+        }
+        if (rateLimiters.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        RateLimiter first = rateLimiters.iterator().next();
+        List<RateLimitPlan> plans = new ArrayList<>(rateLimiters.size());
+        for (RateLimiter rateLimiter : rateLimiters) {
+            if (!rateLimiter.rateLimitManager().equals(first.rateLimitManager())) {
+                throw new IllegalStateException("All @RateLimiter on " + handlerMethod + " must use the same rate limit manager");
+            }
+            // a request is charged once, the same number of tokens from every bucket
+            if (rateLimiter.cost() != first.cost() || !rateLimiter.costExpression().equals(first.costExpression())) {
+                throw new IllegalStateException("All @RateLimiter on " + handlerMethod + " must use the same cost and cost expression");
+            }
+            if (rateLimiter.cost() < 1) {
+                throw new IllegalStateException("@RateLimiter '" + rateLimiter.value() + "' on " + handlerMethod + " must cost at least 1 token");
+            }
+            // a request is delayed once, for the longest wait of its buckets
+            if (rateLimiter.maxWaitMillis() != first.maxWaitMillis()) {
+                throw new IllegalStateException("All @RateLimiter on " + handlerMethod + " must use the same max wait");
+            }
+            if (rateLimiter.maxWaitMillis() < 0) {
+                throw new IllegalStateException("@RateLimiter '" + rateLimiter.value() + "' on " + handlerMethod + " must not have a negative max wait");
+            }
+            plans.add(compile(rateLimiter, handlerMethod, rateLimiters.size() > 1));
+        }
+        if (plans.size() > 1) {
+            List<RateLimiter> composite = new ArrayList<>(rateLimiters);
+            try {
+                plans.get(0).getRateLimitManager().checkConsumeAll(composite);
+            } catch (IllegalStateException e) {
+                throw new IllegalStateException("@RateLimiter on " + handlerMethod + " cannot be consumed all or nothing: " + e.getMessage(), e);
+            }
+        }
+        return Collections.unmodifiableList(plans);
+    }
+
+    private RateLimitPlan compile(RateLimiter rateLimiter, HandlerMethod handlerMethod, boolean composite) {
+        RuleEngineManager ruleEngineManager = null;
+        if (!rateLimiter.ruleEngineManager().isEmpty()) {
+            ruleEngineManager = cached(getBean(rateLimiter.ruleEngineManager(), RuleEngineManager.class, handlerMethod));
+        }
+        RateLimitManager rateLimitManager = getBean(rateLimiter.rateLimitManager(), RateLimitManager.class, handlerMethod);
+
+        return RateLimitPlan.builder()
+                .rateLimiter(rateLimiter)
+                .rateLimitManager(rateLimitManager)
+                .ruleEngineManager(ruleEngineManager)
+                .ruleEngine(rateLimiter.ruleEngine().isEmpty() ? rateLimiter.ruleEngineManager() : rateLimiter.ruleEngine())
+                .keyExpression(rateLimiter.keyExpression().isEmpty() ? null : expressionParser.parseExpression(rateLimiter.keyExpression()))
+                .cost(rateLimiter.cost())
+                .costExpression(rateLimiter.costExpression().isEmpty() ? null : expressionParser.parseExpression(rateLimiter.costExpression()))
+                .keyPrefix(KEY_PREFIX)
+                .profile(rateLimiter.value())
+                .composite(composite)
+                .build();
+    }
+
+    /**
+     * @return the manager, behind a cache of rule results if enabled; handlers sharing a manager share its cache
+     */
+    private RuleEngineManager cached(RuleEngineManager ruleEngineManager) {
+        RateLimiterProperties.RuleCache ruleCache = applicationContext.getBean(RateLimiterProperties.class).getRuleCache();
+        if (!ruleCache.isEnable()) {
+            return ruleEngineManager;
+        }
+        ClientIpResolver clientIpResolver = applicationContext.getBean(ClientIpResolver.class);
+        return cachingManagers.computeIfAbsent(ruleEngineManager,
+                manager -> new CachingRuleEngineManager(manager, clientIpResolver, ruleCache.getMaxEntries(), ruleCache.getTtlMillis()));
+    }
+
+    private <T> T getBean(String name, Class<T> type, HandlerMethod handlerMethod) {
+        if (!applicationContext.containsBean(name)) {
+            throw new IllegalStateException("Bean '" + name + "' referenced by @RateLimiter on " + handlerMethod + " does not exist");
+        }
+        return applicationContext.getBean(name, type);
+    }
+}
@@ -0,0 +1,179 @@
+package com.rs4m.filter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rs4m.config.RateLimiterProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerExecutionChain;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.condition.PatternsRequestCondition;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of precompiled {@link RateLimitPlan}s, built once at startup from every handler method
+ * known to the {@link RequestMappingHandlerMapping}.
+ * <p>
+ * The handler of a request is resolved once per method and matched pattern: the plans found are cached for the next
+ * requests of the same pattern, including the requests that are not rate limited, so the cache holds one entry per route
+ * however many paths, e.g. ids, a pattern matches. The URI template variables the filter reads are extracted from each
+ * request. Paths that a mapping with params, headers, consumes, produces or custom conditions matches, and paths that
+ * no mapping or several equally specific patterns match, are resolved on every request, since the method and path alone
+ * do not decide their handler.
+ */
+@Slf4j
+@Component
+public class RateLimitPlanRegistry implements SmartInitializingSingleton {
+
+    private final RequestMappingHandlerMapping handlerMapping;
+    private final ApplicationContext applicationContext;
+
+    private Map<Method, List<RateLimitPlan>> plans = Collections.emptyMap();
+    private List<PatternsRequestCondition> conditionalPatterns = Collections.emptyList();
+    private List<RequestMappingInfo> routes = Collections.emptyList();
+    private Cache<String, Lookup> lookups;
+
+    public RateLimitPlanRegistry(RequestMappingHandlerMapping handlerMapping, ApplicationContext applicationContext) {
+        this.handlerMapping = handlerMapping;
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        RateLimitPlanFactory planFactory = new RateLimitPlanFactory(applicationContext);
+        Map<Method, List<RateLimitPlan>> compiled = new HashMap<>();
+        List<PatternsRequestCondition> conditional = new ArrayList<>();
+        List<RequestMappingInfo> unconditional = new ArrayList<>();
+        for (Map.Entry<RequestMappingInfo, HandlerMethod> entry : handlerMapping.getHandlerMethods().entrySet()) {
+            HandlerMethod handlerMethod = entry.getValue();
+            List<RateLimitPlan> handlerPlans = planFactory.compile(handlerMethod);
+            if (!handlerPlans.isEmpty()) {
+                compiled.put(handlerMethod.getMethod(), handlerPlans);
+            }
+            if (isConditional(entry.getKey())) {
+                conditional.add(entry.getKey().getPatternsCondition());
+            } else {
+                unconditional.add(entry.getKey());
+            }
+        }
+        this.plans = Collections.unmodifiableMap(compiled);
+        this.conditionalPatterns = Collections.unmodifiableList(conditional);
+        this.routes = Collections.unmodifiableList(unconditional);
+        this.lookups = Caffeine.newBuilder()
+                .maximumSize(applicationContext.getBean(RateLimiterProperties.class).getPlanCache().getMaxEntries())
+                .build();
+        log.info("Compiled rate limit plans of {} handler(s)", compiled.size());
+    }
+
+    private static boolean isConditional(RequestMappingInfo info) {
+        return !info.getParamsCondition().isEmpty() || !info.getHeadersCondition().isEmpty() || !info.getConsumesCondition().isEmpty()
+                || !info.getProducesCondition().isEmpty() || info.getCustomCondition() != null;
+    }
+
+    /**
+     * Find the plans of the handler that will serve the request, one per @RateLimiter. The matched pattern and URI template
+     * variables of a rate limited request are set as the {@link HandlerMapping} request attributes.
+     *
+     * @param request The HTTP request
+     * @return the plans, or null if the request is not rate limited
+     * @throws Exception if the handler cannot be resolved
+     */
+    public List<RateLimitPlan> lookup(HttpServletRequest request) throws Exception {
+        if (plans.isEmpty()) {
+            return null;
+        }
+        String lookupPath = handlerMapping.getUrlPathHelper().getLookupPathForRequest(request);
+        String pattern = isConditional(request) ? null : bestMatchingPattern(request, lookupPath);
+        if (pattern == null) {
+            return resolve(request).plans;
+        }
+        String key = request.getMethod() + ' ' + pattern;
+        Lookup lookup = lookups.getIfPresent(key);
+        if (lookup != null) {
+            if (lookup.plans != null) {
+                Map<String, String> uriVariables = handlerMapping.getPathMatcher().extractUriTemplateVariables(pattern, lookupPath);
+                request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+                request.setAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE,
+                        handlerMapping.getUrlPathHelper().decodePathVariables(request, uriVariables));
+            }
+            return lookup.plans;
+        }
+        lookup = resolve(request);
+        // cached only if the handler mapping picked the same pattern
+        if (pattern.equals(lookup.pattern)) {
+            lookups.put(key, lookup);
+        }
+        return lookup.plans;
+    }
+
+    private Lookup resolve(HttpServletRequest request) throws Exception {
+        HandlerExecutionChain handler = handlerMapping.getHandler(request);
+        // set while looking up the handler of the request
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (handler == null || !(handler.getHandler() instanceof HandlerMethod)) {
+            return new Lookup(null, pattern != null ? pattern.toString() : null);
+        }
+        return new Lookup(plans.get(((HandlerMethod) handler.getHandler()).getMethod()), pattern != null ? pattern.toString() : null);
+    }
+
+    /**
+     * The pattern the handler mapping picks: the most specific of the patterns of the mappings of the request method.
+     *
+     * @return the pattern, or null if no mapping or several equally specific patterns match the path
+     */
+    private String bestMatchingPattern(HttpServletRequest request, String lookupPath) {
+        Comparator<String> comparator = handlerMapping.getPathMatcher().getPatternComparator(lookupPath);
+        String best = null;
+        boolean ambiguous = false;
+        for (RequestMappingInfo route : routes) {
+            if (route.getMethodsCondition().getMatchingCondition(request) == null) {
+                continue;
+            }
+            List<String> matches = route.getPatternsCondition().getMatchingPatterns(lookupPath);
+            if (matches.isEmpty()) {
+                continue;
+            }
+            String match = matches.get(0);
+            int order = best == null ? -1 : comparator.compare(match, best);
+            if (order < 0) {
+                best = match;
+                ambiguous = false;
+            } else if (order == 0 && !match.equals(best)) {
+                ambiguous = true;
+            }
+        }
+        return ambiguous ? null : best;
+    }
+
+    private boolean isConditional(HttpServletRequest request) {
+        for (PatternsRequestCondition condition : conditionalPatterns) {
+            if (condition.getMatchingCondition(request) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Lookup {
+        private final List<RateLimitPlan> plans;
+        private final String pattern;
+
+        private Lookup(List<RateLimitPlan> plans, String pattern) {
+            this.plans = plans;
+            this.pattern = pattern;
+        }
+    }
+}
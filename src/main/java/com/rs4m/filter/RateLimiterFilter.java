@@ -1,72 +1,112 @@
 package com.rs4m.filter;
 
-import com.rs4m.annotation.RateLimiter;
-import com.rs4m.observer.RateLimitManager;
-import com.rs4m.rule.RuleEngine;
-import com.rs4m.rule.RuleEngineManager;
-import io.github.bucket4j.Bucket;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.config.RateLimiterProperties.FailurePolicy;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.net.ClientIpResolver;
+import com.rs4m.observer.AdaptiveLimitTuner;
 import io.github.bucket4j.ConsumptionProbe;
-import lombok.AllArgsConstructor;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.ApplicationContext;
-import org.springframework.core.annotation.AnnotationUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
-import org.springframework.web.method.HandlerMethod;
-import org.springframework.web.servlet.HandlerExecutionChain;
-import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+import org.springframework.web.servlet.HandlerMapping;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Rate limiter filter for HTTP requests based on the @RateLimiter annotation.
  */
 @Slf4j
 @Component
-@AllArgsConstructor
 public class RateLimiterFilter extends OncePerRequestFilter {
-    private final RequestMappingHandlerMapping handlerMapping;
-    private final ExpressionParser expressionParser = new SpelExpressionParser();
-    private final ApplicationContext applicationContext;
+    private static final long ASYNC_TIMEOUT_GRACE_MILLIS = 1000;
 
+    private final RateLimitPlanRegistry planRegistry;
+    private final RateLimiterProperties properties;
+    private final ClientIpResolver clientIpResolver;
+    private final AdaptiveLimitTuner adaptiveLimits;
+    private final TrafficShaper trafficShaper;
+    private final ClientKeyResolver<HttpServletRequest> keyResolver;
+    private ScheduledExecutorService decisionTimer;
+
+    public RateLimiterFilter(RateLimitPlanRegistry planRegistry, RateLimiterProperties properties, RateLimitMetrics metrics, HeavyHitters heavyHitters,
+                             ClientIpResolver clientIpResolver, AdaptiveLimitTuner adaptiveLimits, TrafficShaper trafficShaper) {
+        this.planRegistry = planRegistry;
+        this.properties = properties;
+        this.clientIpResolver = clientIpResolver;
+        this.adaptiveLimits = adaptiveLimits;
+        this.trafficShaper = trafficShaper;
+        this.keyResolver = new ClientKeyResolver<>(properties, metrics, heavyHitters, new ServletRequestAccess());
+    }
+
+    @Override
+    protected void initFilterBean() {
+        if (properties.getAsync().isEnable()) {
+            decisionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rs4m-decision-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (decisionTimer != null) {
+            decisionTimer.shutdownNow();
+        }
+    }
 
     @Override
     protected void doFilterInternal(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response, @NonNull FilterChain filterChain) throws ServletException, IOException {
 
         try {
-            HandlerExecutionChain handler = handlerMapping.getHandler(request);
-            if (handler == null) {
+            List<RateLimitPlan> plans = planRegistry.lookup(request);
+
+            // If the handler is not rate limited, continue with the filter chain
+            if (plans == null) {
                 filterChain.doFilter(request, response);
                 return;
             }
-            HandlerMethod handlerMethod = (HandlerMethod) handler.getHandler();
-            // Check for @RateLimiter annotation on method
-            RateLimiter rateLimiterAnnotation = handlerMethod.getMethodAnnotation(RateLimiter.class);
-
-            // If not on method, check the controller class
-            if (rateLimiterAnnotation == null) {
-                rateLimiterAnnotation = AnnotationUtils.findAnnotation(handlerMethod.getBeanType(), RateLimiter.class);
-            }
 
-            // If no annotation is found, continue with the filter chain
-            if (rateLimiterAnnotation == null) {
-                filterChain.doFilter(request, response);
+            // Release the container thread while the decision is pending, or while a shaped request waits for its tokens;
+            // without async support, shaped requests are rejected right away
+            if ((decisionTimer != null || TrafficShaper.isShaping(plans)) && request.isAsyncSupported()) {
+                applyRateLimitAsync(request, response, plans);
                 return;
             }
 
             // Apply rate limiting
-            if (applyRateLimit(request, response, rateLimiterAnnotation)) {
+            ClientKeys charged = applyRateLimit(request, response, plans);
+            if (charged != null) {
                 // Rate limit not exceeded, continue with the filter chain
-                filterChain.doFilter(request, response);
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    filterChain.doFilter(request, response);
+                    failed = false;
+                } finally {
+                    complete(request, response, charged, start, failed);
+                }
             }
             // If rate limit exceeded, the response is already set by applyRateLimit method
 
@@ -82,95 +122,234 @@ public class RateLimiterFilter extends OncePerRequestFilter {
      *
      * @param request     The HTTP request
      * @param response    The HTTP response
-     * @param rateLimiter The RateLimiter annotation
-     * @return true if the request is allowed, false if rate limited
+     * @param plans       The precompiled rate limit plans of the handler, one per @RateLimiter
+     * @return the client keys the request was charged to if it is allowed, null if rate limited
      * @throws IOException if an I/O error occurs
      */
-    private boolean applyRateLimit(HttpServletRequest request, HttpServletResponse response, RateLimiter rateLimiter) throws IOException {
-        // get bean rule engine by bean name
-        RuleEngineManager ruleEngineManager = null;
-        if (!rateLimiter.ruleEngineManager().isEmpty()) {
-            ruleEngineManager = applicationContext.getBean(rateLimiter.ruleEngineManager(), RuleEngineManager.class);
+    private ClientKeys applyRateLimit(HttpServletRequest request, HttpServletResponse response, List<RateLimitPlan> plans) throws IOException {
+        // Resolve client keys based on the annotation's key resolver strategy
+        ClientKeys resolved = keyResolver.resolveClientKeys(request, plans);
+        if (resolved == null) {
+            log.warn("Client key is null or empty for request: {}", request.getRequestURI());
+            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            response.getWriter().append("Internal server error: Client key is null or empty");
+            return null;
         }
+        resolved.resolveCost(request, request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE));
 
-        // Resolve client key based on the annotation's key resolver strategy
-        String clientKey = resolveClientKey(request, rateLimiter, ruleEngineManager);
-        if (clientKey.isEmpty()) {
+        // Take a permit of each concurrency limit, then try to consume the cost of the request from the bucket of this client,
+        // from all buckets at once for several rate limiters
+        ConsumptionProbe probe;
+        try {
+            if (!resolved.tryAcquirePermits().join()) {
+                handleProbe(request, response, resolved, null);
+                return null;
+            }
+            probe = resolved.tryConsume();
+        } catch (RuntimeException e) {
+            resolved.releasePermits();
+            keyResolver.recordDecisionError(resolved.getPlans());
+            throw e;
+        }
+        if (handleProbe(request, response, resolved, probe)) {
+            return resolved;
+        }
+        resolved.releasePermits();
+        return null;
+    }
+
+    /**
+     * Record the latency of a served request, settle its actual cost and release its permits, once its async processing
+     * is complete if the handler started one.
+     */
+    private void complete(HttpServletRequest request, HttpServletResponse response, ClientKeys charged, long startNanos, boolean failed) {
+        if (request.isAsyncStarted()) {
+            request.getAsyncContext().addListener(new Completion(charged, startNanos));
+        } else {
+            recordLatency(charged, startNanos, failed || response.getStatus() >= 500);
+            charged.complete(request.getAttribute(RateLimitCost.ACTUAL_COST_ATTRIBUTE));
+        }
+    }
+
+    private void recordLatency(ClientKeys charged, long startNanos, boolean failed) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        for (RateLimitPlan plan : charged.getPlans()) {
+            adaptiveLimits.record(plan.getProfile(), latencyNanos, failed);
+        }
+    }
+
+    /**
+     * Apply rate limiting without holding the container thread: the request is put in async mode and,
+     * once the decision is known, either dispatched again through the filter chain or completed with an error.
+     * A request delayed by traffic shaping is decided once its reserved tokens are available.
+     * The async dispatch is not rate limited again since this filter skips async dispatches.
+     *
+     * @param request  The HTTP request
+     * @param response The HTTP response
+     * @param plans    The precompiled rate limit plans of the handler, one per @RateLimiter
+     * @throws IOException if an I/O error occurs
+     */
+    private void applyRateLimitAsync(HttpServletRequest request, HttpServletResponse response, List<RateLimitPlan> plans) throws IOException {
+        ClientKeys resolved = keyResolver.resolveClientKeys(request, plans);
+        if (resolved == null) {
             log.warn("Client key is null or empty for request: {}", request.getRequestURI());
             response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
             response.getWriter().append("Internal server error: Client key is null or empty");
-            return false;
+            return;
         }
+        resolved.resolveCost(request, request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE));
 
-        // get bean rate limit by bean name
-        RateLimitManager rateLimitManager = applicationContext.getBean(rateLimiter.rateLimitManager(), RateLimitManager.class);
+        List<RateLimitPlan> rulePlans = resolved.getPlans();
+        boolean shaping = TrafficShaper.isShaping(rulePlans);
+        // a shaped request may be put in async mode with async decisions disabled, it has its own timeout
+        long timeoutMillis = shaping
+                ? properties.getShaping().getTimeoutMillis() + TrafficShaper.maxWaitMillis(rulePlans)
+                : properties.getAsync().getTimeoutMillis();
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(timeoutMillis + ASYNC_TIMEOUT_GRACE_MILLIS);
 
-        // Get or create bucket for this client
-        Bucket bucket = rateLimitManager.getBucket(clientKey, rateLimiter);
+        CompletableFuture<ConsumptionProbe> decision = new CompletableFuture<>();
+        ScheduledExecutorService timer = decisionTimer != null ? decisionTimer : trafficShaper.getTimer();
+        ScheduledFuture<?> timeout = timer.schedule(() -> decision.completeExceptionally(new TimeoutException("No rate limit decision within " + timeoutMillis + " ms")), timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            // completed with null if a concurrency limit is reached
+            CompletableFuture<ConsumptionProbe> probeFuture = resolved.tryAcquirePermits().thenCompose(acquired -> {
+                if (!acquired) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                return shaping ? trafficShaper.shape(resolved) : resolved.tryConsumeAsync();
+            });
+            probeFuture.whenComplete((probe, error) -> {
+                if (error != null) {
+                    decision.completeExceptionally(error);
+                } else {
+                    decision.complete(probe);
+                }
+            });
+        } catch (Exception e) {
+            decision.completeExceptionally(e);
+        }
+        decision.whenComplete((probe, error) -> {
+            timeout.cancel(false);
+            resume(asyncContext, resolved, probe, error);
+        });
+    }
 
-        // Try to consume a token from the bucket
-        ConsumptionProbe probe = bucket.tryConsumeAndReturnRemaining(1);
+    private void resume(AsyncContext asyncContext, ClientKeys resolved, ConsumptionProbe probe, Throwable error) {
+        List<RateLimitPlan> plans = resolved.getPlans();
+        HttpServletRequest request = (HttpServletRequest) asyncContext.getRequest();
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        try {
+            if (error != null) {
+                resolved.releasePermits();
+                log.error("Error in async rate limit decision for request: {}", request.getRequestURI(), error);
+                keyResolver.recordDecisionError(plans);
+                if (properties.getAsync().getFailurePolicy() == FailurePolicy.FAIL_OPEN) {
+                    asyncContext.dispatch();
+                } else {
+                    response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                    response.getWriter().append("Service unavailable: rate limit decision failed");
+                    asyncContext.complete();
+                }
+                return;
+            }
+            if (handleProbe(request, response, resolved, probe)) {
+                asyncContext.addListener(new Completion(resolved, System.nanoTime()));
+                asyncContext.dispatch();
+            } else {
+                resolved.releasePermits();
+                asyncContext.complete();
+            }
+        } catch (Exception e) {
+            log.error("Error resuming request after rate limit decision", e);
+            asyncContext.complete();
+        }
+    }
 
-        if (probe.isConsumed()) {
+    /**
+     * @param probe the probe of the consumption, null if a concurrency limit rejected the request
+     * @return whether the request is allowed, the response of a rejected request is written
+     */
+    private boolean handleProbe(HttpServletRequest request, HttpServletResponse response, ClientKeys resolved, ConsumptionProbe probe) throws IOException {
+        String rejection = keyResolver.decide(request, resolved, probe);
+        if (rejection == null) {
             // Add rate limit headers
-            response.addHeader("X-Rate-Limit-Remaining", String.valueOf(probe.getRemainingTokens()));
+            response.addHeader(ClientKeyResolver.REMAINING_HEADER, String.valueOf(probe.getRemainingTokens()));
             return true;
-        } else {
-            // Rate limit exceeded, set error response
-            long waitForRefill = probe.getNanosToWaitForRefill() / 1_000_000_000;
-            response.addHeader("X-Rate-Limit-Retry-After-Seconds", String.valueOf(waitForRefill));
-            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
-            response.getWriter().append("Rate limit exceeded. Try again in ").append(String.valueOf(waitForRefill)).append(" seconds").append(" ").append(getClientIp(request));
-            return false;
         }
+        // Rate limit exceeded, set error response
+        if (probe != null) {
+            response.addHeader(ClientKeyResolver.RETRY_AFTER_HEADER, String.valueOf(ClientKeyResolver.retryAfterSeconds(probe)));
+        }
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.getWriter().append(rejection);
+        return false;
+    }
+
+    private static List<String> forwardedFor(HttpServletRequest request) {
+        Enumeration<String> values = request.getHeaders(ClientIpResolver.X_FORWARDED_FOR);
+        return values != null && values.hasMoreElements() ? Collections.list(values) : null;
     }
 
+    private final class ServletRequestAccess implements ClientKeyResolver.RequestAccess<HttpServletRequest> {
+        @Override
+        public String header(HttpServletRequest request, String name) {
+            return request.getHeader(name);
+        }
 
-    private String resolveClientKey(HttpServletRequest request, RateLimiter rateLimiter, RuleEngineManager ruleEngineManager) {
-        String prefix = "rs4m_rl_" + request.getRequestURI() + ":";
+        @Override
+        public String clientIp(HttpServletRequest request) {
+            return clientIpResolver.resolve(request.getRemoteAddr(), request, RateLimiterFilter::forwardedFor);
+        }
 
-        // base by rule engine
-        if (ruleEngineManager != null) {
-            RuleEngine ruleEngine = ruleEngineManager.getEngine(rateLimiter.ruleEngineManager());
-            if (ruleEngine != null) {
-                try {
-                    ruleEngine.fireRules(request);
-                    String abc = ruleEngine.getResult(String.class);
-                    return prefix + abc;
-                } catch (Exception e) {
-                    log.error("Error firing rules in RuleEngine: {}", rateLimiter.ruleEngineManager(), e);
-                    return "";
-                }
-            }
+        @Override
+        public String pattern(HttpServletRequest request) {
+            // set while looking up the handler of the request
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            return pattern != null ? pattern.toString() : request.getRequestURI();
         }
 
-        // base by annotation configuration
-        switch (rateLimiter.keyResolver()) {
-            case HEADER:
-                String headerValue = request.getHeader(rateLimiter.headerName());
-                if (headerValue == null || headerValue.isEmpty()) {
-                    // Fallback to IP if header is not present
-                    return prefix + getClientIp(request);
-                }
-                return prefix + headerValue;
-            case EXPRESSION:
-                if (rateLimiter.keyExpression().isEmpty()) {
-                    return prefix + getClientIp(request);
-                }
-                StandardEvaluationContext context = new StandardEvaluationContext();
-                context.setVariable("request", request);
-                String value = expressionParser.parseExpression(rateLimiter.keyExpression()).getValue(context, String.class);
-                return prefix + (value != null ? value : getClientIp(request));
-            default:
-                return prefix + getClientIp(request);
+        @Override
+        public Object fact(HttpServletRequest request) {
+            return request;
         }
     }
 
-    private String getClientIp(HttpServletRequest request) {
-        String xForwardedFor = request.getHeader("X-Forwarded-For");
-        if (xForwardedFor != null && !xForwardedFor.isEmpty()) {
-            return xForwardedFor.split(",")[0].trim();
+    /**
+     * Records the latency of a request served asynchronously, settles its actual cost and releases its permits
+     * once the response is complete.
+     */
+    private final class Completion implements AsyncListener {
+        private final ClientKeys charged;
+        private final long startNanos;
+        private boolean failed;
+
+        Completion(ClientKeys charged, long startNanos) {
+            this.charged = charged;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            AsyncContext asyncContext = event.getAsyncContext();
+            recordLatency(charged, startNanos, failed || ((HttpServletResponse) asyncContext.getResponse()).getStatus() >= 500);
+            charged.complete(asyncContext.getRequest().getAttribute(RateLimitCost.ACTUAL_COST_ATTRIBUTE));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            failed = true;
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            failed = true;
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // listeners are dropped when the handler starts async processing again after the dispatch
+            event.getAsyncContext().addListener(this);
         }
-        return request.getRemoteAddr();
     }
 }
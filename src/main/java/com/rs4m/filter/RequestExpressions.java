@@ -0,0 +1,43 @@
+package com.rs4m.filter;
+
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.MethodResolver;
+import org.springframework.expression.PropertyAccessor;
+import org.springframework.expression.TypeConverter;
+import org.springframework.expression.TypeLocator;
+import org.springframework.expression.spel.support.ReflectiveMethodResolver;
+import org.springframework.expression.spel.support.ReflectivePropertyAccessor;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.expression.spel.support.StandardTypeConverter;
+import org.springframework.expression.spel.support.StandardTypeLocator;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluation contexts of the key and cost expressions, with the full SpEL of a {@link StandardEvaluationContext}.
+ * The context of a request only holds its variables: the property accessor, method resolver, type locator and type
+ * converter, and the reflection caches they fill, are shared by all requests instead of being built for each one.
+ */
+final class RequestExpressions {
+    private static final List<PropertyAccessor> PROPERTIES = Collections.singletonList(new ReflectivePropertyAccessor());
+    private static final List<MethodResolver> METHODS = Collections.singletonList(new ReflectiveMethodResolver());
+    private static final TypeLocator TYPES = new StandardTypeLocator();
+    private static final TypeConverter CONVERTER = new StandardTypeConverter();
+
+    private RequestExpressions() {
+    }
+
+    /**
+     * @param request the request, the #request variable
+     */
+    static EvaluationContext context(Object request) {
+        StandardEvaluationContext context = new StandardEvaluationContext();
+        context.setPropertyAccessors(PROPERTIES);
+        context.setMethodResolvers(METHODS);
+        context.setTypeLocator(TYPES);
+        context.setTypeConverter(CONVERTER);
+        context.setVariable("request", request);
+        return context;
+    }
+}
@@ -0,0 +1,124 @@
+package com.rs4m.filter;
+
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.proxy.Reservation;
+import io.github.bucket4j.ConsumptionProbe;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delays requests briefly instead of rejecting them, for the rate limiters with a {@link com.rs4m.annotation.RateLimiter#maxWaitMillis()}.
+ * <p>
+ * A request whose tokens are refilled within the max wait reserves them ahead of the refill, in the same call to the
+ * buckets that would have rejected it, and is resumed by one timer shared by all requests once they are available;
+ * no thread is held while it waits. Buckets of custom rate limit managers may reserve in a second step, see
+ * {@link com.rs4m.observer.RateLimitManager#tryConsumeOrReserveAsync}.
+ * At most {@code maxQueued} requests of the node wait at once, further requests are rejected right away.
+ */
+public class TrafficShaper {
+    private final int maxQueued;
+    private final RateLimitMetrics metrics;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ScheduledExecutorService timer;
+
+    public TrafficShaper(int maxQueued, RateLimitMetrics metrics) {
+        this.maxQueued = maxQueued;
+        this.metrics = metrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rs4m-shaping-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.monitorShaping(queued);
+    }
+
+    /**
+     * @return whether requests of these plans may be delayed
+     */
+    public static boolean isShaping(List<RateLimitPlan> plans) {
+        return plans.get(0).getRateLimiter().maxWaitMillis() > 0;
+    }
+
+    /**
+     * @return the longest delay of requests of these plans, in milliseconds
+     */
+    public static long maxWaitMillis(List<RateLimitPlan> plans) {
+        return plans.get(0).getRateLimiter().maxWaitMillis();
+    }
+
+    /**
+     * Consume the cost of a request, or reserve it ahead of the refill and delay the request until the tokens are
+     * available, in one call to the buckets.
+     *
+     * @param resolved the client keys of the request
+     * @return a future completed with the probe of the buckets, once the reserved tokens are available if the request
+     * is delayed; a request is rejected right away if its wait is longer than the max wait or the queue is full
+     */
+    public CompletableFuture<ConsumptionProbe> shape(ClientKeys resolved) {
+        long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis(resolved.getPlans()));
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return resolved.tryConsumeOrReserve(0).thenApply(reservation -> {
+                ConsumptionProbe probe = reservation.getProbe();
+                if (!probe.isConsumed() && probe.getNanosToWaitForRefill() <= maxWaitNanos) {
+                    for (RateLimitPlan plan : resolved.getPlans()) {
+                        metrics.shapingOverflow(plan.getProfile());
+                    }
+                }
+                return probe;
+            });
+        }
+        // the slot is held while the buckets decide, so a burst of requests never reserves more than the queue holds
+        CompletableFuture<Reservation> reservation;
+        try {
+            reservation = resolved.tryConsumeOrReserve(maxWaitNanos);
+        } catch (RuntimeException e) {
+            reservation = new CompletableFuture<>();
+            reservation.completeExceptionally(e);
+        }
+        CompletableFuture<ConsumptionProbe> shaped = new CompletableFuture<>();
+        reservation.whenComplete((reserved, error) -> {
+            if (error != null) {
+                queued.decrementAndGet();
+                shaped.completeExceptionally(error);
+            } else if (reserved.getWaitNanos() <= 0) {
+                // available right away, or rejected
+                queued.decrementAndGet();
+                shaped.complete(reserved.getProbe());
+            } else {
+                resume(shaped, reserved);
+            }
+        });
+        return shaped;
+    }
+
+    private void resume(CompletableFuture<ConsumptionProbe> shaped, Reservation reserved) {
+        Runnable resume = () -> {
+            queued.decrementAndGet();
+            shaped.complete(reserved.getProbe());
+        };
+        try {
+            timer.schedule(resume, reserved.getWaitNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the tokens are reserved already
+            resume.run();
+        }
+    }
+
+    /**
+     * The timer resuming delayed requests, also used to time out the decisions of shaped requests.
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
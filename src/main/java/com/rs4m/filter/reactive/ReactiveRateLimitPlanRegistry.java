@@ -0,0 +1,188 @@
+package com.rs4m.filter.reactive;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.filter.RateLimitPlan;
+import com.rs4m.filter.RateLimitPlanFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.web.cors.reactive.CorsUtils;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.result.condition.PatternsRequestCondition;
+import org.springframework.web.reactive.result.method.RequestMappingInfo;
+import org.springframework.web.reactive.result.method.annotation.RequestMappingHandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.pattern.PathPattern;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reactive counterpart of {@link com.rs4m.filter.RateLimitPlanRegistry}: precompiled {@link RateLimitPlan}s of every
+ * handler method known to the reactive {@link RequestMappingHandlerMapping}.
+ * <p>
+ * The handler of a request is resolved once per method and matched pattern, the result is cached for the next requests
+ * of the same pattern, whatever their path variables, and the URI template variables are extracted from each request.
+ * Paths that a mapping with params, headers, consumes, produces or custom conditions matches, paths that no mapping or
+ * several equally specific patterns match, and CORS pre-flight requests, are resolved on every request.
+ */
+@Slf4j
+public class ReactiveRateLimitPlanRegistry implements SmartInitializingSingleton {
+    private static final Lookup NOT_LIMITED = new Lookup(null, null);
+
+    private final RequestMappingHandlerMapping handlerMapping;
+    private final ApplicationContext applicationContext;
+
+    private Map<Method, List<RateLimitPlan>> plans = Collections.emptyMap();
+    private List<PatternsRequestCondition> conditionalPatterns = Collections.emptyList();
+    private List<RequestMappingInfo> routes = Collections.emptyList();
+    private Cache<String, Lookup> lookups;
+
+    public ReactiveRateLimitPlanRegistry(RequestMappingHandlerMapping handlerMapping, ApplicationContext applicationContext) {
+        this.handlerMapping = handlerMapping;
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        RateLimitPlanFactory planFactory = new RateLimitPlanFactory(applicationContext);
+        Map<Method, List<RateLimitPlan>> compiled = new HashMap<>();
+        List<PatternsRequestCondition> conditional = new ArrayList<>();
+        List<RequestMappingInfo> unconditional = new ArrayList<>();
+        for (Map.Entry<RequestMappingInfo, HandlerMethod> entry : handlerMapping.getHandlerMethods().entrySet()) {
+            HandlerMethod handlerMethod = entry.getValue();
+            List<RateLimitPlan> handlerPlans = planFactory.compile(handlerMethod);
+            if (!handlerPlans.isEmpty()) {
+                compiled.put(handlerMethod.getMethod(), handlerPlans);
+            }
+            if (isConditional(entry.getKey())) {
+                conditional.add(entry.getKey().getPatternsCondition());
+            } else {
+                unconditional.add(entry.getKey());
+            }
+        }
+        this.plans = Collections.unmodifiableMap(compiled);
+        this.conditionalPatterns = Collections.unmodifiableList(conditional);
+        this.routes = Collections.unmodifiableList(unconditional);
+        this.lookups = Caffeine.newBuilder()
+                .maximumSize(applicationContext.getBean(RateLimiterProperties.class).getPlanCache().getMaxEntries())
+                .build();
+        log.info("Compiled reactive rate limit plans of {} handler(s)", compiled.size());
+    }
+
+    private static boolean isConditional(RequestMappingInfo info) {
+        return !info.getParamsCondition().isEmpty() || !info.getHeadersCondition().isEmpty() || !info.getConsumesCondition().isEmpty()
+                || !info.getProducesCondition().isEmpty() || info.getCustomCondition() != null;
+    }
+
+    /**
+     * @return whether no handler is rate limited
+     */
+    public boolean isEmpty() {
+        return plans.isEmpty();
+    }
+
+    /**
+     * Find the plans of the handler that will serve the request, one per @RateLimiter. The matched pattern and URI template
+     * variables of a rate limited request are set as the {@link HandlerMapping} exchange attributes.
+     *
+     * @param exchange The current exchange
+     * @return the plans, or empty if the request is not rate limited
+     */
+    public Mono<List<RateLimitPlan>> lookup(ServerWebExchange exchange) {
+        if (plans.isEmpty()) {
+            return Mono.empty();
+        }
+        PathPattern pattern = isConditional(exchange) ? null : bestMatchingPattern(exchange);
+        if (pattern == null) {
+            return resolve(exchange).flatMap(lookup -> Mono.justOrEmpty(lookup.plans));
+        }
+        String key = exchange.getRequest().getMethodValue() + ' ' + pattern.getPatternString();
+        Lookup cached = lookups.getIfPresent(key);
+        if (cached != null) {
+            if (cached.plans != null) {
+                PathPattern.PathMatchInfo matchInfo = pattern.matchAndExtract(exchange.getRequest().getPath().pathWithinApplication());
+                exchange.getAttributes().put(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+                exchange.getAttributes().put(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE,
+                        matchInfo != null ? matchInfo.getUriVariables() : Collections.emptyMap());
+            }
+            return Mono.justOrEmpty(cached.plans);
+        }
+        return resolve(exchange).flatMap(lookup -> {
+            // cached only if the handler mapping picked the same pattern
+            if (pattern.equals(lookup.pattern)) {
+                lookups.put(key, lookup);
+            }
+            return Mono.justOrEmpty(lookup.plans);
+        });
+    }
+
+    private Mono<Lookup> resolve(ServerWebExchange exchange) {
+        return handlerMapping.getHandler(exchange)
+                .map(handler -> {
+                    List<RateLimitPlan> handlerPlans = handler instanceof HandlerMethod ? plans.get(((HandlerMethod) handler).getMethod()) : null;
+                    // set while looking up the handler of the request
+                    return new Lookup(handlerPlans, exchange.getAttributes().get(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE));
+                })
+                .defaultIfEmpty(NOT_LIMITED);
+    }
+
+    /**
+     * The pattern the handler mapping picks: the most specific of the patterns of the mappings of the request method.
+     *
+     * @return the pattern, or null if no mapping or several equally specific patterns match the path
+     */
+    private PathPattern bestMatchingPattern(ServerWebExchange exchange) {
+        PathPattern best = null;
+        boolean ambiguous = false;
+        for (RequestMappingInfo route : routes) {
+            if (route.getMethodsCondition().getMatchingCondition(exchange) == null) {
+                continue;
+            }
+            PatternsRequestCondition matches = route.getPatternsCondition().getMatchingCondition(exchange);
+            if (matches == null || matches.getPatterns().isEmpty()) {
+                continue;
+            }
+            PathPattern match = matches.getPatterns().iterator().next();
+            int order = best == null ? -1 : PathPattern.SPECIFICITY_COMPARATOR.compare(match, best);
+            if (order < 0) {
+                best = match;
+                ambiguous = false;
+            } else if (order == 0 && !match.equals(best)) {
+                ambiguous = true;
+            }
+        }
+        return ambiguous ? null : best;
+    }
+
+    private boolean isConditional(ServerWebExchange exchange) {
+        if (CorsUtils.isPreFlightRequest(exchange.getRequest())) {
+            return true;
+        }
+        for (PatternsRequestCondition condition : conditionalPatterns) {
+            if (condition.getMatchingCondition(exchange) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Lookup {
+        private final List<RateLimitPlan> plans;
+        // the PathPattern the handler mapping picked
+        private final Object pattern;
+
+        private Lookup(List<RateLimitPlan> plans, Object pattern) {
+            this.plans = plans;
+            this.pattern = pattern;
+        }
+    }
+}
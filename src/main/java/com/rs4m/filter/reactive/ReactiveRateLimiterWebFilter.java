@@ -0,0 +1,229 @@
+package com.rs4m.filter.reactive;
+
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.config.RateLimiterProperties.FailurePolicy;
+import com.rs4m.filter.ClientKeyResolver;
+import com.rs4m.filter.ClientKeys;
+import com.rs4m.filter.RateLimitPlan;
+import com.rs4m.filter.RateLimitCost;
+import com.rs4m.filter.TrafficShaper;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.net.ClientIpResolver;
+import com.rs4m.observer.AdaptiveLimitTuner;
+import io.github.bucket4j.ConsumptionProbe;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Reactive counterpart of {@link com.rs4m.filter.RateLimiterFilter} based on the @RateLimiter annotation.
+ * Tokens are consumed through {@link com.rs4m.observer.RateLimitManager#tryConsumeAsync}, so the decision
+ * never blocks an event-loop thread. A rule engine referenced by the annotation receives the {@link ServerHttpRequest} as fact,
+ * and a key or cost expression sees it as the #request variable.
+ */
+@Slf4j
+public class ReactiveRateLimiterWebFilter implements WebFilter, Ordered {
+    /**
+     * Exchange attribute holding the client keys an allowed request was charged to
+     */
+    private static final String CHARGED_ATTRIBUTE = ReactiveRateLimiterWebFilter.class.getName() + ".CHARGED";
+
+    private final ReactiveRateLimitPlanRegistry planRegistry;
+    private final RateLimiterProperties properties;
+    private final ClientIpResolver clientIpResolver;
+    private final AdaptiveLimitTuner adaptiveLimits;
+    private final TrafficShaper trafficShaper;
+    private final ClientKeyResolver<ServerWebExchange> keyResolver;
+
+    public ReactiveRateLimiterWebFilter(ReactiveRateLimitPlanRegistry planRegistry, RateLimiterProperties properties, RateLimitMetrics metrics,
+                                        HeavyHitters heavyHitters, ClientIpResolver clientIpResolver, AdaptiveLimitTuner adaptiveLimits,
+                                        TrafficShaper trafficShaper) {
+        this.planRegistry = planRegistry;
+        this.properties = properties;
+        this.clientIpResolver = clientIpResolver;
+        this.adaptiveLimits = adaptiveLimits;
+        this.trafficShaper = trafficShaper;
+        this.keyResolver = new ClientKeyResolver<>(properties, metrics, heavyHitters, new ExchangeAccess());
+    }
+
+    @Override
+    public int getOrder() {
+        return 0; // High priority, same as the servlet filter
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (planRegistry.isEmpty()) {
+            return chain.filter(exchange);
+        }
+        return lookup(exchange)
+                .flatMap(handlerPlans -> applyRateLimit(exchange, handlerPlans))
+                .defaultIfEmpty(Boolean.TRUE)
+                .flatMap(allowed -> allowed
+                        ? Mono.defer(() -> {
+                    long start = System.nanoTime();
+                    return chain.filter(exchange).doFinally(signal -> complete(exchange, start, signal == SignalType.ON_ERROR));
+                })
+                        : exchange.getResponse().setComplete());
+    }
+
+    /**
+     * Record the latency of a served request, settle its actual cost, see {@link RateLimitCost}, and release its permits.
+     */
+    private void complete(ServerWebExchange exchange, long startNanos, boolean failed) {
+        ClientKeys charged = (ClientKeys) exchange.getAttributes().get(CHARGED_ATTRIBUTE);
+        if (charged == null) {
+            return;
+        }
+        HttpStatus status = exchange.getResponse().getStatusCode();
+        long latencyNanos = System.nanoTime() - startNanos;
+        for (RateLimitPlan plan : charged.getPlans()) {
+            adaptiveLimits.record(plan.getProfile(), latencyNanos, failed || (status != null && status.is5xxServerError()));
+        }
+        charged.complete(exchange.getAttributes().get(RateLimitCost.ACTUAL_COST_ATTRIBUTE));
+    }
+
+    /**
+     * Find the plans of the handler that will serve the request, one per @RateLimiter, see {@link ReactiveRateLimitPlanRegistry}.
+     *
+     * @param exchange The current exchange
+     * @return the plans, or empty if the request is not rate limited
+     */
+    private Mono<List<RateLimitPlan>> lookup(ServerWebExchange exchange) {
+        return Mono.defer(() -> planRegistry.lookup(exchange))
+                .onErrorResume(e -> {
+                    log.error("Error in rate limiter filter", e);
+                    // On error, continue with the filter chain
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Apply rate limiting based on the annotation parameters.
+     *
+     * @param exchange The current exchange
+     * @param plans    The precompiled rate limit plans of the handler, one per @RateLimiter
+     * @return true if the request is allowed, false if rate limited and the response is already written
+     */
+    private Mono<Boolean> applyRateLimit(ServerWebExchange exchange, List<RateLimitPlan> plans) {
+        ServerHttpRequest request = exchange.getRequest();
+        ServerHttpResponse response = exchange.getResponse();
+
+        ClientKeys resolved;
+        try {
+            resolved = keyResolver.resolveClientKeys(exchange, plans);
+        } catch (Exception e) {
+            log.error("Error in rate limiter filter", e);
+            return Mono.just(Boolean.TRUE);
+        }
+        if (resolved == null) {
+            log.warn("Client key is null or empty for request: {}", request.getPath());
+            return writeError(response, HttpStatus.INTERNAL_SERVER_ERROR, "Internal server error: Client key is null or empty");
+        }
+        resolved.resolveCost(request, exchange.getAttributes().get(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE));
+
+        List<RateLimitPlan> rulePlans = resolved.getPlans();
+        boolean shaping = TrafficShaper.isShaping(rulePlans);
+        long timeoutMillis = shaping
+                ? properties.getShaping().getTimeoutMillis() + TrafficShaper.maxWaitMillis(rulePlans)
+                : properties.getAsync().getTimeoutMillis();
+        // Take a permit of each concurrency limit first, they are released if the rate limit rejects the request;
+        // no probe if a concurrency limit is reached. A request delayed by traffic shaping is decided once its reserved tokens are available
+        return Mono.defer(() -> Mono.fromFuture(resolved.tryAcquirePermits()))
+                .flatMap(acquired -> acquired
+                        ? Mono.fromFuture(shaping ? trafficShaper.shape(resolved) : resolved.tryConsumeAsync())
+                        : Mono.<ConsumptionProbe>empty())
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .flatMap(probe -> {
+                    if (probe.isConsumed()) {
+                        exchange.getAttributes().put(CHARGED_ATTRIBUTE, resolved);
+                    } else {
+                        resolved.releasePermits();
+                    }
+                    return handleProbe(exchange, resolved, probe);
+                })
+                .switchIfEmpty(Mono.defer(() -> handleProbe(exchange, resolved, null)))
+                .onErrorResume(e -> {
+                    resolved.releasePermits();
+                    log.error("Error in async rate limit decision for request: {}", request.getPath(), e);
+                    keyResolver.recordDecisionError(rulePlans);
+                    if (properties.getAsync().getFailurePolicy() == FailurePolicy.FAIL_OPEN) {
+                        return Mono.just(Boolean.TRUE);
+                    }
+                    return writeError(response, HttpStatus.SERVICE_UNAVAILABLE, "Service unavailable: rate limit decision failed");
+                });
+    }
+
+    /**
+     * @param probe the probe of the consumption, null if a concurrency limit rejected the request
+     */
+    private Mono<Boolean> handleProbe(ServerWebExchange exchange, ClientKeys resolved, ConsumptionProbe probe) {
+        ServerHttpResponse response = exchange.getResponse();
+        String rejection = keyResolver.decide(exchange, resolved, probe);
+        if (rejection == null) {
+            // Add rate limit headers
+            response.getHeaders().add(ClientKeyResolver.REMAINING_HEADER, String.valueOf(probe.getRemainingTokens()));
+            return Mono.just(Boolean.TRUE);
+        }
+        // Rate limit exceeded, set error response
+        if (probe != null) {
+            response.getHeaders().add(ClientKeyResolver.RETRY_AFTER_HEADER, String.valueOf(ClientKeyResolver.retryAfterSeconds(probe)));
+        }
+        return writeError(response, HttpStatus.TOO_MANY_REQUESTS, rejection);
+    }
+
+    private Mono<Boolean> writeError(ServerHttpResponse response, HttpStatus status, String message) {
+        response.setStatusCode(status);
+        DataBuffer buffer = response.bufferFactory().wrap(message.getBytes(StandardCharsets.UTF_8));
+        return response.writeWith(Mono.just(buffer)).then(Mono.just(Boolean.FALSE));
+    }
+
+    private static List<String> forwardedFor(ServerHttpRequest request) {
+        return request.getHeaders().get(ClientIpResolver.X_FORWARDED_FOR);
+    }
+
+    private final class ExchangeAccess implements ClientKeyResolver.RequestAccess<ServerWebExchange> {
+        @Override
+        public String header(ServerWebExchange exchange, String name) {
+            return exchange.getRequest().getHeaders().getFirst(name);
+        }
+
+        @Override
+        public String clientIp(ServerWebExchange exchange) {
+            ServerHttpRequest request = exchange.getRequest();
+            InetSocketAddress remoteAddress = request.getRemoteAddress();
+            if (remoteAddress == null || remoteAddress.getAddress() == null) {
+                // unknown, e.g. behind some test or unix socket servers: the request is answered as an unresolved key
+                return "";
+            }
+            return clientIpResolver.resolve(remoteAddress.getAddress().getHostAddress(), request, ReactiveRateLimiterWebFilter::forwardedFor);
+        }
+
+        @Override
+        public String pattern(ServerWebExchange exchange) {
+            // set while looking up the handler of the request
+            Object pattern = exchange.getAttributes().get(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            return pattern != null ? pattern.toString() : exchange.getRequest().getPath().value();
+        }
+
+        @Override
+        public Object fact(ServerWebExchange exchange) {
+            return exchange.getRequest();
+        }
+    }
+}
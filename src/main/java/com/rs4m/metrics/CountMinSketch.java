@@ -0,0 +1,55 @@
+package com.rs4m.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min sketch of key frequencies over a fixed number of counters.
+ * Estimates never underestimate; they overestimate by at most {@code e * total / width} with probability {@code 1 - e^-depth}.
+ * Counters are incremented atomically, so updates never lock.
+ */
+final class CountMinSketch {
+    private static final int DEPTH = 4;
+
+    private final AtomicLongArray counters;
+    private final int width;
+    private final int mask;
+
+    /**
+     * @param width counters per row, rounded up to a power of two
+     */
+    CountMinSketch(int width) {
+        this.width = Integer.highestOneBit((Math.max(16, width) - 1) << 1);
+        this.mask = this.width - 1;
+        this.counters = new AtomicLongArray(DEPTH * this.width);
+    }
+
+    /**
+     * Count one occurrence of a key.
+     *
+     * @param hash 64-bit hash of the key
+     * @return the estimated count of the key, this occurrence included
+     */
+    long add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.incrementAndGet(row * width + ((h1 + row * h2) & mask)));
+        }
+        return min;
+    }
+
+    /**
+     * @param hash 64-bit hash of the key
+     * @return the estimated count of the key
+     */
+    long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(row * width + ((h1 + row * h2) & mask)));
+        }
+        return min;
+    }
+}
@@ -0,0 +1,307 @@
+package com.rs4m.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streaming top-K of the client keys of each rate limiter, admitted and rejected requests apart,
+ * with the number of distinct keys. Nothing is read from the backend.
+ * <p>
+ * Each limiter has a Count-Min sketch per outcome and a HyperLogLog. A key taking at least 1/{@code slots} of the
+ * traffic of its limiter competes for a slot of a small candidate table; the top-K is read from that table.
+ * Memory is bounded by the sketch width, and updates use atomic increments and compare-and-set only.
+ * Counts cover fixed windows: the current window and the last complete one are kept.
+ * <p>
+ * Client keys hold API keys and IP addresses, so unless {@code exposeKeys} is set they are reported as keyed hashes:
+ * the same key always has the same hash on a node, which is enough to follow it across windows, but the hash
+ * cannot be traced back to the key without the secret of the node.
+ */
+public class HeavyHitters {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MASK_BYTES = 12;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final boolean enabled;
+    private final boolean exposeKeys;
+    private final SecretKeySpec maskKey;
+    private final int topK;
+    private final int sketchWidth;
+    private final int slots;
+    private final ScheduledExecutorService rotation;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    /**
+     * @param enabled      whether decisions are tracked
+     * @param topK         number of keys reported per limiter and outcome
+     * @param sketchWidth  counters per row of the Count-Min sketches
+     * @param windowMillis length of a counting window
+     * @param exposeKeys   report the client keys as they are rather than their hashes
+     */
+    public HeavyHitters(boolean enabled, int topK, int sketchWidth, long windowMillis, boolean exposeKeys) {
+        this.enabled = enabled;
+        this.exposeKeys = exposeKeys;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.maskKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+        this.topK = Math.max(1, topK);
+        this.sketchWidth = sketchWidth;
+        this.slots = Integer.highestOneBit((this.topK * 16 - 1) << 1);
+        this.current = new Generation(System.currentTimeMillis());
+        if (enabled) {
+            this.rotation = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rs4m-heavy-hitters");
+                thread.setDaemon(true);
+                return thread;
+            });
+            rotation.scheduleAtFixedRate(this::rotate, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.rotation = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Count one decision.
+     *
+     * @param limiter name of the rate limiter
+     * @param key     client key the decision was taken for
+     * @param allowed whether the request was admitted
+     */
+    public void record(String limiter, String key, boolean allowed) {
+        if (!enabled) {
+            return;
+        }
+        LimiterSketch sketch = current.limiter(limiter);
+        long hash = hash(key);
+        sketch.distinct.add(hash);
+        (allowed ? sketch.allowed : sketch.rejected).add(key, hash);
+    }
+
+    /**
+     * @param limiter name of the rate limiter to report, null for all limiters
+     */
+    public Report report(String limiter) {
+        Generation last = previous;
+        Generation counting = current;
+        return new Report(counting.report(limiter, System.currentTimeMillis()),
+                last != null ? last.report(limiter, counting.startMillis) : null);
+    }
+
+    public void shutdown() {
+        if (rotation != null) {
+            rotation.shutdownNow();
+        }
+    }
+
+    private void rotate() {
+        Generation next = new Generation(System.currentTimeMillis());
+        previous = current;
+        current = next;
+    }
+
+    /**
+     * @return the key as reported: the key itself if keys are exposed, else its keyed hash
+     */
+    private String mask(String key) {
+        if (exposeKeys) {
+            return key;
+        }
+        try {
+            // reports are rare, a Mac per key is cheaper than keeping one per thread
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(maskKey);
+            return ENCODER.encodeToString(Arrays.copyOf(mac.doFinal(key.getBytes(StandardCharsets.UTF_8)), MASK_BYTES));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Spread the 32-bit {@link String#hashCode()}, cached by the string, to 64 bits (murmur3 finalizer).
+     */
+    private static long hash(String key) {
+        long hash = key.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53fe1a85ec9L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * The sketches of one counting window.
+     */
+    private final class Generation {
+        final long startMillis;
+        final ConcurrentMap<String, LimiterSketch> limiters = new ConcurrentHashMap<>();
+
+        Generation(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        LimiterSketch limiter(String limiter) {
+            LimiterSketch sketch = limiters.get(limiter);
+            return sketch != null ? sketch : limiters.computeIfAbsent(limiter, name -> new LimiterSketch());
+        }
+
+        Window report(String limiter, long endMillis) {
+            Map<String, LimiterReport> reports = new TreeMap<>();
+            limiters.forEach((name, sketch) -> {
+                if (limiter == null || limiter.equals(name)) {
+                    reports.put(name, sketch.report());
+                }
+            });
+            return new Window(startMillis, endMillis, reports);
+        }
+    }
+
+    private final class LimiterSketch {
+        final OutcomeSketch allowed = new OutcomeSketch();
+        final OutcomeSketch rejected = new OutcomeSketch();
+        final HyperLogLog distinct = new HyperLogLog();
+
+        LimiterReport report() {
+            return new LimiterReport(distinct.estimate(), allowed.total.sum(), rejected.total.sum(), allowed.top(), rejected.top());
+        }
+    }
+
+    private final class OutcomeSketch {
+        final CountMinSketch counts = new CountMinSketch(sketchWidth);
+        final AtomicReferenceArray<Candidate> candidates = new AtomicReferenceArray<>(slots);
+        final LongAdder total = new LongAdder();
+
+        void add(String key, long hash) {
+            total.increment();
+            long estimate = counts.add(hash);
+            int slot = (int) (hash >>> 48) & (slots - 1);
+            Candidate candidate = candidates.get(slot);
+            if (candidate != null && candidate.hash == hash && candidate.key.equals(key)) {
+                if (estimate > candidate.count) {
+                    candidate.count = estimate;
+                }
+                return;
+            }
+            // only keys with a significant share of the traffic take a slot, the long tail never allocates
+            if ((candidate == null || estimate > candidate.count) && estimate * slots >= total.sum()) {
+                candidates.compareAndSet(slot, candidate, new Candidate(key, hash, estimate));
+            }
+        }
+
+        List<KeyCount> top() {
+            long requests = total.sum();
+            List<KeyCount> keys = new ArrayList<>();
+            for (int i = 0; i < candidates.length(); i++) {
+                Candidate candidate = candidates.get(i);
+                if (candidate == null) {
+                    continue;
+                }
+                // keys admitted early in the window may have fallen back to the noise of the sketch since
+                long estimate = counts.estimate(candidate.hash);
+                if (estimate * slots >= requests) {
+                    keys.add(new KeyCount(mask(candidate.key), estimate));
+                }
+            }
+            keys.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+            return keys.size() > topK ? new ArrayList<>(keys.subList(0, topK)) : keys;
+        }
+    }
+
+    private static final class Candidate {
+        final String key;
+        final long hash;
+        volatile long count;
+
+        Candidate(String key, long hash, long count) {
+            this.key = key;
+            this.hash = hash;
+            this.count = count;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Report {
+        /**
+         * The window being counted
+         */
+        private final Window current;
+
+        /**
+         * The last complete window, null before the first rotation
+         */
+        private final Window previous;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Window {
+        private final long startMillis;
+        private final long endMillis;
+
+        /**
+         * Reports by limiter name
+         */
+        private final Map<String, LimiterReport> limiters;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class LimiterReport {
+        /**
+         * Estimated number of distinct client keys
+         */
+        private final long distinctKeys;
+
+        private final long allowed;
+        private final long rejected;
+
+        /**
+         * Most admitted client keys, by estimated count
+         */
+        private final List<KeyCount> topAllowed;
+
+        /**
+         * Most rejected client keys, by estimated count
+         */
+        private final List<KeyCount> topRejected;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class KeyCount {
+        /**
+         * The client key, or its keyed hash unless keys are exposed
+         */
+        private final String key;
+
+        /**
+         * Estimated count, never lower than the actual count
+         */
+        private final long count;
+    }
+}
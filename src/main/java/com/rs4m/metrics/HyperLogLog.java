@@ -0,0 +1,48 @@
+package com.rs4m.metrics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * HyperLogLog estimate of the number of distinct keys, with 2048 registers: about 2% standard error in 8 KB.
+ * A register only changes when it grows, so most updates are a single read.
+ */
+final class HyperLogLog {
+    private static final int PRECISION = 11;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+    /**
+     * @param hash 64-bit hash of the key
+     */
+    void add(long hash) {
+        int index = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        int current = registers.get(index);
+        while (rank > current) {
+            if (registers.compareAndSet(index, current, rank)) {
+                return;
+            }
+            current = registers.get(index);
+        }
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            int register = registers.get(i);
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // small range correction: linear counting
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,208 @@
+package com.rs4m.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micrometer meters of the rate limiters.
+ * Meters are tagged by limiter name ({@link com.rs4m.annotation.RateLimiter#value()}) and never by client key,
+ * so the number of time series is bounded by the number of profiles. The meters of a limiter are registered
+ * on first use and cached, the request path only looks them up.
+ */
+public class RateLimitMetrics {
+    public static final String DECISIONS = "rs4m.decisions";
+    public static final String KEY_RESOLUTION = "rs4m.key.resolution";
+    public static final String CONSUME = "rs4m.consume";
+    public static final String ERRORS = "rs4m.errors";
+    public static final String FALLBACKS = "rs4m.fallbacks";
+    public static final String CONFIG_CHANGES = "rs4m.config.changes";
+    public static final String PROFILES = "rs4m.profiles";
+    public static final String SHAPING_QUEUED = "rs4m.shaping.queued";
+    public static final String SHAPING_OVERFLOWS = "rs4m.shaping.overflows";
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, LimiterMeters> limiters = new ConcurrentHashMap<>();
+
+    public RateLimitMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Meters that record nothing, for applications without a {@link MeterRegistry} or with metrics disabled.
+     */
+    public static RateLimitMetrics noop() {
+        // a composite registry without registries hands out no-op meters
+        return new RateLimitMetrics(new CompositeMeterRegistry());
+    }
+
+    /**
+     * @param limiter name of the rate limiter, i.e. its bucket profile
+     * @return the meters of the limiter
+     */
+    public LimiterMeters limiter(String limiter) {
+        LimiterMeters meters = limiters.get(limiter);
+        return meters != null ? meters : limiters.computeIfAbsent(limiter, name -> new LimiterMeters(registry, name));
+    }
+
+    /**
+     * Publish the number of configured bucket profiles.
+     *
+     * @param profiles the profiles, by name; the gauge reads the size of this map
+     */
+    public void monitorProfiles(Map<String, ?> profiles) {
+        Gauge.builder(PROFILES, profiles, Map::size)
+                .description("Bucket profiles currently configured")
+                .register(registry);
+    }
+
+    /**
+     * Publish the number of requests delayed by traffic shaping.
+     *
+     * @param queued the requests waiting for their reserved tokens; the gauge reads this counter
+     */
+    public void monitorShaping(AtomicInteger queued) {
+        Gauge.builder(SHAPING_QUEUED, queued, AtomicInteger::get)
+                .description("Requests waiting for the tokens they reserved")
+                .register(registry);
+    }
+
+    /**
+     * Count a request rejected right away because as many requests as allowed were already waiting for their tokens.
+     */
+    public void shapingOverflow(String limiter) {
+        limiter(limiter).shapingOverflows.increment();
+    }
+
+    /**
+     * Count a change of bucket profile received from the configuration source.
+     */
+    public void configChanged(String limiter, ConfigChange change) {
+        limiter(limiter).configChanges.get(change).increment();
+    }
+
+    @AllArgsConstructor
+    @Getter
+    public enum ConfigChange {
+        CREATED("created"),
+        UPDATED("updated"),
+        STALE("stale"),
+        REMOVED("removed");
+
+        private final String tag;
+    }
+
+    /**
+     * The meters of one rate limiter.
+     */
+    public static final class LimiterMeters {
+        private final Counter allowed;
+        private final Counter rejected;
+        private final Timer keyResolution;
+        private final Timer consume;
+        private final Counter keyErrors;
+        private final Counter decisionErrors;
+        private final Counter backendErrors;
+        private final Counter fallbacks;
+        private final Counter shapingOverflows;
+        private final Map<ConfigChange, Counter> configChanges = new EnumMap<>(ConfigChange.class);
+
+        LimiterMeters(MeterRegistry registry, String limiter) {
+            this.allowed = decisions(registry, limiter, "allowed");
+            this.rejected = decisions(registry, limiter, "rejected");
+            this.keyResolution = Timer.builder(KEY_RESOLUTION)
+                    .tag("limiter", limiter)
+                    .description("Time to resolve the client key of a request")
+                    .register(registry);
+            this.consume = Timer.builder(CONSUME)
+                    .tag("limiter", limiter)
+                    .description("Time to consume tokens from the bucket backend")
+                    .register(registry);
+            this.keyErrors = errors(registry, limiter, "key");
+            this.decisionErrors = errors(registry, limiter, "decision");
+            this.backendErrors = errors(registry, limiter, "backend");
+            this.fallbacks = Counter.builder(FALLBACKS)
+                    .tag("limiter", limiter)
+                    .description("Decisions taken by local buckets while the backend is unavailable")
+                    .register(registry);
+            this.shapingOverflows = Counter.builder(SHAPING_OVERFLOWS)
+                    .tag("limiter", limiter)
+                    .description("Requests rejected because the traffic shaping queue was full")
+                    .register(registry);
+            for (ConfigChange change : ConfigChange.values()) {
+                configChanges.put(change, Counter.builder(CONFIG_CHANGES)
+                        .tags("limiter", limiter, "change", change.getTag())
+                        .description("Bucket profile changes received from the configuration source")
+                        .register(registry));
+            }
+        }
+
+        private static Counter decisions(MeterRegistry registry, String limiter, String outcome) {
+            return Counter.builder(DECISIONS)
+                    .tags("limiter", limiter, "outcome", outcome)
+                    .description("Rate limit decisions")
+                    .register(registry);
+        }
+
+        private static Counter errors(MeterRegistry registry, String limiter, String stage) {
+            return Counter.builder(ERRORS)
+                    .tags("limiter", limiter, "stage", stage)
+                    .description("Requests whose rate limit decision failed")
+                    .register(registry);
+        }
+
+        public void decided(boolean allowed) {
+            (allowed ? this.allowed : rejected).increment();
+        }
+
+        /**
+         * @param startNanos {@link System#nanoTime()} before the client key was resolved
+         */
+        public void keyResolved(long startNanos) {
+            keyResolution.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param startNanos {@link System#nanoTime()} before the tokens were consumed
+         */
+        public void consumed(long startNanos) {
+            consume.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * The client key could not be resolved.
+         */
+        public void keyError() {
+            keyErrors.increment();
+        }
+
+        /**
+         * The decision failed or timed out in the filter.
+         */
+        public void decisionError() {
+            decisionErrors.increment();
+        }
+
+        /**
+         * A bucket operation failed in the backend.
+         */
+        public void backendError() {
+            backendErrors.increment();
+        }
+
+        public void fallback() {
+            fallbacks.increment();
+        }
+    }
+}
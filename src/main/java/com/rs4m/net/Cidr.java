@@ -0,0 +1,245 @@
+package com.rs4m.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * An IPv4 or IPv6 address range in CIDR notation, e.g. {@code 10.0.0.0/8} or {@code 2001:db8::/32}.
+ * A single address is a range of one. IPv4 addresses are matched without allocation.
+ */
+public final class Cidr {
+    private final byte[] network;
+    private final int prefixLength;
+    private final int ipv4Network;
+    private final int ipv4Mask;
+
+    private Cidr(byte[] network, int prefixLength) {
+        this.network = network;
+        this.prefixLength = prefixLength;
+        if (network.length == 4) {
+            this.ipv4Mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+            this.ipv4Network = toInt(network) & ipv4Mask;
+        } else {
+            this.ipv4Mask = 0;
+            this.ipv4Network = 0;
+        }
+    }
+
+    /**
+     * @param cidr an address, optionally followed by {@code /<prefix length>}
+     * @throws IllegalArgumentException if the range is not valid
+     */
+    public static Cidr parse(String cidr) {
+        String value = cidr.trim();
+        int slash = value.indexOf('/');
+        String address = slash < 0 ? value : value.substring(0, slash);
+        byte[] network = toBytes(address);
+        if (network == null) {
+            throw new IllegalArgumentException("Invalid address in CIDR range '" + cidr + "'");
+        }
+        int prefixLength = network.length * 8;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(value.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid prefix length in CIDR range '" + cidr + "'", e);
+            }
+            if (prefixLength < 0 || prefixLength > network.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in CIDR range '" + cidr + "'");
+            }
+        }
+        return new Cidr(network, prefixLength);
+    }
+
+    /**
+     * @param address a textual IPv4 or IPv6 address, never resolved through DNS
+     * @return whether the address is in the range, false if it is not a valid address
+     */
+    public boolean contains(String address) {
+        return address != null && contains(address, 0, address.length());
+    }
+
+    /**
+     * @param text a text holding a textual IPv4 or IPv6 address, never resolved through DNS
+     * @param from index of the first character of the address
+     * @param to   index after the last character of the address
+     * @return whether the address is in the range, false if it is not a valid address
+     */
+    public boolean contains(String text, int from, int to) {
+        if (from >= to) {
+            return false;
+        }
+        if (network.length == 4) {
+            long ipv4 = parseIpv4(text, from, to);
+            if (ipv4 >= 0) {
+                return ((int) ipv4 & ipv4Mask) == ipv4Network;
+            }
+        }
+        return contains(parseIpv6(text, from, to));
+    }
+
+    public boolean contains(InetAddress address) {
+        return address != null && contains(address.getAddress());
+    }
+
+    private boolean contains(byte[] address) {
+        if (address == null || address.length != network.length) {
+            return false;
+        }
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (address[i] != network[i]) {
+                return false;
+            }
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = 0xFF << (8 - remainingBits);
+        return (address[fullBytes] & mask) == (network[fullBytes] & mask);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return InetAddress.getByAddress(network).getHostAddress() + '/' + prefixLength;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the address bytes, or null if the text is not an IPv4 or IPv6 literal
+     */
+    static byte[] toBytes(String address) {
+        long ipv4 = parseIpv4(address, 0, address.length());
+        if (ipv4 >= 0) {
+            return toBytes(ipv4);
+        }
+        return parseIpv6(address, 0, address.length());
+    }
+
+    private static byte[] toBytes(long ipv4) {
+        return new byte[]{(byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4};
+    }
+
+    /**
+     * Parse an IPv6 literal strictly, without {@link InetAddress#getByName(String)} which may resolve what is not
+     * a literal through DNS: up to eight groups of 1 to 4 hex digits, at most one {@code ::}, and optionally a dotted
+     * quad as the last 32 bits. Zone IDs and brackets are not accepted.
+     *
+     * @return the 16 address bytes, the 4 bytes of the IPv4 address for an IPv4-mapped address as {@link InetAddress} does,
+     * or null if the text between the two indexes is not an IPv6 literal
+     */
+    static byte[] parseIpv6(String address, int from, int to) {
+        if (to - from < 2) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        int groups = 0;
+        int compressed = -1;
+        int i = from;
+        if (address.charAt(i) == ':') {
+            if (address.charAt(i + 1) != ':') {
+                return null;
+            }
+            compressed = 0;
+            i += 2;
+        }
+        while (i < to) {
+            int start = i;
+            int group = 0;
+            while (i < to && i - start < 4) {
+                int digit = Character.digit(address.charAt(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                group = group << 4 | digit;
+                i++;
+            }
+            if (i < to && address.charAt(i) == '.') {
+                // embedded IPv4 address, the last 32 bits
+                long ipv4 = parseIpv4(address, start, to);
+                if (ipv4 < 0 || groups > 6) {
+                    return null;
+                }
+                System.arraycopy(toBytes(ipv4), 0, bytes, groups * 2, 4);
+                groups += 2;
+                break;
+            }
+            if (i == start || groups == 8) {
+                return null;
+            }
+            bytes[groups * 2] = (byte) (group >>> 8);
+            bytes[groups * 2 + 1] = (byte) group;
+            groups++;
+            if (i == to) {
+                break;
+            }
+            if (address.charAt(i) != ':' || ++i == to) {
+                return null;
+            }
+            if (address.charAt(i) == ':') {
+                if (compressed >= 0) {
+                    return null;
+                }
+                compressed = groups;
+                i++;
+            }
+        }
+        if (compressed < 0 ? groups != 8 : groups > 7) {
+            return null;
+        }
+        if (compressed >= 0) {
+            int tail = (groups - compressed) * 2;
+            System.arraycopy(bytes, compressed * 2, bytes, 16 - tail, tail);
+            Arrays.fill(bytes, compressed * 2, 16 - tail, (byte) 0);
+        }
+        return isIpv4Mapped(bytes) ? Arrays.copyOfRange(bytes, 12, 16) : bytes;
+    }
+
+    private static boolean isIpv4Mapped(byte[] bytes) {
+        for (int i = 0; i < 10; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return bytes[10] == (byte) 0xFF && bytes[11] == (byte) 0xFF;
+    }
+
+    /**
+     * @return the address between the two indexes as an unsigned 32-bit value, or -1 if it is not a dotted quad
+     */
+    static long parseIpv4(String address, int from, int to) {
+        long result = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = from; i < to; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                result = result << 8 | octet;
+                octet = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return result << 8 | octet;
+    }
+
+    private static int toInt(byte[] address) {
+        return (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+    }
+}
@@ -0,0 +1,86 @@
+package com.rs4m.net;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Resolves the address of the client behind trusted reverse proxies.
+ * <p>
+ * X-Forwarded-For is only read when the peer is a trusted proxy, and is walked from the right: every proxy appends
+ * the address it received the request from, so the first untrusted entry is the client. Entries on its left are
+ * supplied by the client itself and are never used, which a client can otherwise forge to get fresh buckets.
+ * If every entry is trusted, the leftmost one is the client. The walk does not allocate; only the returned entry does.
+ */
+public final class ClientIpResolver {
+    public static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private final Cidr[] trustedProxies;
+
+    /**
+     * @param trustedProxies CIDR ranges of the reverse proxies in front of the application, empty to ignore X-Forwarded-For
+     * @throws IllegalArgumentException if a range is not valid
+     */
+    public ClientIpResolver(List<String> trustedProxies) {
+        this.trustedProxies = new Cidr[trustedProxies.size()];
+        for (int i = 0; i < this.trustedProxies.length; i++) {
+            this.trustedProxies[i] = Cidr.parse(trustedProxies.get(i));
+        }
+    }
+
+    /**
+     * @param remoteAddress the address of the peer, i.e. the last proxy or the client itself
+     * @param request       the request, only passed to {@code forwardedFor}
+     * @param forwardedFor  reads the X-Forwarded-For header values of the request in the order received, null if absent;
+     *                      only called if the peer is a trusted proxy
+     * @return the client address, or {@code remoteAddress} if it is not a trusted proxy
+     */
+    public <T> String resolve(String remoteAddress, T request, Function<T, List<String>> forwardedFor) {
+        if (remoteAddress == null || !isTrusted(remoteAddress, 0, remoteAddress.length())) {
+            return remoteAddress;
+        }
+        List<String> values = forwardedFor.apply(request);
+        if (values == null) {
+            return remoteAddress;
+        }
+        String leftmost = null;
+        int leftmostFrom = 0;
+        int leftmostTo = 0;
+        for (int i = values.size() - 1; i >= 0; i--) {
+            String header = values.get(i);
+            int end = header.length();
+            while (end >= 0) {
+                int comma = header.lastIndexOf(',', end - 1);
+                int from = comma + 1;
+                int to = end;
+                while (from < to && Character.isWhitespace(header.charAt(from))) {
+                    from++;
+                }
+                while (to > from && Character.isWhitespace(header.charAt(to - 1))) {
+                    to--;
+                }
+                if (from < to) {
+                    if (!isTrusted(header, from, to)) {
+                        return from == 0 && to == header.length() ? header : header.substring(from, to);
+                    }
+                    leftmost = header;
+                    leftmostFrom = from;
+                    leftmostTo = to;
+                }
+                end = comma;
+            }
+        }
+        if (leftmost == null) {
+            return remoteAddress;
+        }
+        return leftmostFrom == 0 && leftmostTo == leftmost.length() ? leftmost : leftmost.substring(leftmostFrom, leftmostTo);
+    }
+
+    private boolean isTrusted(String text, int from, int to) {
+        for (Cidr trustedProxy : trustedProxies) {
+            if (trustedProxy.contains(text, from, to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,44 @@
+package com.rs4m.net;
+
+import java.util.Base64;
+
+/**
+ * Compact client keys of the network a client address belongs to, e.g. its IPv4 /24 or IPv6 /64.
+ * <p>
+ * The key is the prefix length, plus 64 for IPv6, followed by the bytes covered by the prefix, base64url
+ * encoded: 6 characters for an IPv4 /24, 12 for an IPv6 /64. All addresses of a network share one key, so a client
+ * rotating through the addresses of its network does not get fresh buckets.
+ */
+public final class SubnetKey {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final int IPV6_MARK = 64;
+
+    private SubnetKey() {
+    }
+
+    /**
+     * @param address    a textual IPv4 or IPv6 address, never resolved through DNS
+     * @param ipv4Prefix prefix length IPv4 addresses are aggregated to, 0 to 32
+     * @param ipv6Prefix prefix length IPv6 addresses are aggregated to, 0 to 128
+     * @return the key of the network of the address, null if it is not a valid address
+     */
+    public static String encode(String address, int ipv4Prefix, int ipv6Prefix) {
+        if (address == null || address.isEmpty()) {
+            return null;
+        }
+        byte[] bytes = Cidr.toBytes(address);
+        if (bytes == null) {
+            return null;
+        }
+        boolean ipv6 = bytes.length == 16;
+        int prefix = Math.max(0, Math.min(bytes.length * 8, ipv6 ? ipv6Prefix : ipv4Prefix));
+        int length = (prefix + 7) / 8;
+        byte[] key = new byte[1 + length];
+        key[0] = (byte) (ipv6 ? IPV6_MARK + prefix : prefix);
+        System.arraycopy(bytes, 0, key, 1, length);
+        if (prefix % 8 != 0) {
+            key[length] &= (byte) (0xFF << (8 - prefix % 8));
+        }
+        return ENCODER.encodeToString(key);
+    }
+}
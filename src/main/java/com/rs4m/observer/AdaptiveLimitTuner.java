@@ -0,0 +1,212 @@
+package com.rs4m.observer;
+
+import com.rs4m.config.RateLimitProfileProperties;
+import com.rs4m.config.RateLimitProfileProperties.Adaptive;
+import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunes the limits of adaptive bucket profiles from the latency and error rate of the requests they admit (AIMD).
+ * <p>
+ * Every interval, a profile whose admitted requests took longer than its target latency on average, or failed more
+ * often than allowed, has its ratio multiplied by the backoff ratio; otherwise it grows back by a step, up to 1.
+ * The tuning is local to the node: whenever the tuned limits change, the profile with its bandwidths scaled to the ratio
+ * is published to the tuned limits subscriber, which applies it as a new version of a node-local pack on top of the
+ * shared buckets, see {@link DefaultRateLimitManager#getTunedLimits()}. The profile is published disabled once the
+ * ratio is back to 1. Nothing is scheduled until a profile is adaptive.
+ */
+@Slf4j
+public class AdaptiveLimitTuner implements Subscriber<Map<String, BucketProfile>> {
+    private static final long TICK_MILLIS = 100;
+
+    private final ConcurrentMap<String, ProfileState> states = new ConcurrentHashMap<>();
+    private final Subscriber<Map<String, BucketProfile>> tunedLimits;
+    private ScheduledExecutorService scheduler;
+    private boolean shutdown;
+
+    /**
+     * @param eventManager publisher of the configured profiles
+     * @param profiles     the configured profiles
+     * @param tunedLimits  subscriber of the tuned profiles
+     */
+    public AdaptiveLimitTuner(Publisher<Map<String, BucketProfile>> eventManager, RateLimitProfileProperties profiles,
+                              Subscriber<Map<String, BucketProfile>> tunedLimits) {
+        this.tunedLimits = tunedLimits;
+        if (profiles.getBuckets() != null) {
+            profiles.getBuckets().forEach(this::configure);
+        }
+        eventManager.register(this);
+    }
+
+    /**
+     * Record an admitted request once it is served.
+     *
+     * @param profile      the bucket profile the request was admitted by
+     * @param latencyNanos time the handler took to serve the request
+     * @param failed       whether the request failed, i.e. threw or answered a 5xx status
+     */
+    public void record(String profile, long latencyNanos, boolean failed) {
+        if (states.isEmpty()) {
+            return;
+        }
+        ProfileState state = states.get(profile);
+        if (state != null) {
+            state.requests.increment();
+            state.latencyNanos.add(latencyNanos);
+            if (failed) {
+                state.failures.increment();
+            }
+        }
+    }
+
+    /**
+     * @param profile the bucket profile
+     * @return the share of the configured limits this node currently admits, 1 unless the profile is adaptive and cut
+     */
+    public double getRatio(String profile) {
+        if (states.isEmpty()) {
+            return 1.0;
+        }
+        ProfileState state = states.get(profile);
+        return state == null ? 1.0 : state.ratio;
+    }
+
+    /**
+     * Pick up new configurations of the profiles; the ratio is kept across them.
+     */
+    @Override
+    public synchronized void update(Map<String, BucketProfile> event) {
+        event.forEach(this::configure);
+    }
+
+    private synchronized void configure(String name, BucketProfile profile) {
+        ProfileState previous = states.get(name);
+        if (profile == null || !profile.isEnable() || profile.getBandwidths() == null || !profile.getAdaptive().isEnable()) {
+            if (states.remove(name) != null && previous.ratio < 1.0) {
+                publish(name, previous, 1.0);
+            }
+            return;
+        }
+        ProfileState state = new ProfileState(profile);
+        if (previous != null) {
+            // an incident does not end with a new configuration
+            state.ratio = Math.max(state.adaptive.getMinRatio(), previous.ratio);
+            state.nextTuneAtNanos = previous.nextTuneAtNanos;
+        }
+        states.put(name, state);
+        if (state.ratio < 1.0) {
+            // the tuned limits follow the new configured ones
+            publish(name, state, state.ratio);
+        }
+        if (scheduler == null && !shutdown) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rs4m-adaptive-tuner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::tune, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void tune() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, ProfileState> entry : states.entrySet()) {
+            ProfileState state = entry.getValue();
+            if (now - state.nextTuneAtNanos < 0) {
+                continue;
+            }
+            Adaptive adaptive = state.adaptive;
+            state.nextTuneAtNanos = now + TimeUnit.MILLISECONDS.toNanos(adaptive.getIntervalMillis());
+            long requests = state.requests.sumThenReset();
+            long latencyNanos = state.latencyNanos.sumThenReset();
+            long failures = state.failures.sumThenReset();
+            // too few requests to tell an overload: the limits grow back, which a profile cut down to few admitted
+            // requests also needs to recover
+            boolean overloaded = requests >= Math.max(1, adaptive.getMinSamples())
+                    && (latencyNanos / requests > TimeUnit.MILLISECONDS.toNanos(adaptive.getTargetLatencyMillis())
+                    || (double) failures / requests > adaptive.getMaxErrorRate());
+            double ratio = overloaded
+                    ? Math.max(adaptive.getMinRatio(), state.ratio * adaptive.getBackoffRatio())
+                    : Math.min(1.0, state.ratio + adaptive.getIncreaseStep());
+            if (ratio != state.ratio) {
+                log.debug("Tuning bucket profile '{}' to {}% of its limits", entry.getKey(), Math.round(ratio * 100));
+                state.ratio = ratio;
+                publish(entry.getKey(), state, ratio);
+            }
+        }
+    }
+
+    /**
+     * Publish the profile with its bandwidths scaled to the ratio, unless they are the ones published already.
+     */
+    private void publish(String name, ProfileState state, double ratio) {
+        BucketProfile configured = state.profile;
+        Map<String, Bandwidth> bandwidths = new LinkedHashMap<>();
+        for (Map.Entry<String, Bandwidth> entry : configured.getBandwidths().entrySet()) {
+            Bandwidth tuned = new Bandwidth();
+            tuned.setId(entry.getValue().getId());
+            tuned.setLimit((int) Math.max(1, Math.round(entry.getValue().getLimit() * ratio)));
+            tuned.setDuration(entry.getValue().getDuration());
+            tuned.setTimeUnit(entry.getValue().getTimeUnit());
+            bandwidths.put(entry.getKey(), tuned);
+        }
+        boolean enable = ratio < 1.0;
+        if (enable == state.published && bandwidths.equals(state.publishedBandwidths)) {
+            return;
+        }
+        BucketProfile tuned = new BucketProfile();
+        tuned.setEnable(enable);
+        tuned.setVersion(configured.getVersion());
+        tuned.setBandwidths(bandwidths);
+        tuned.setStrategy(configured.getStrategy());
+        tuned.setLease(configured.getLease());
+        tuned.setExpiration(configured.getExpiration());
+        tuned.setAdaptive(configured.getAdaptive());
+        state.published = enable;
+        state.publishedBandwidths = bandwidths;
+        try {
+            tunedLimits.update(Collections.singletonMap(name, tuned));
+        } catch (Exception e) {
+            log.error("Failed to apply tuned limits of bucket profile '{}'", name, e);
+        }
+    }
+
+    synchronized boolean isScheduled() {
+        return scheduler != null;
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static final class ProfileState {
+        private final BucketProfile profile;
+        private final Adaptive adaptive;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile double ratio = 1.0;
+        private long nextTuneAtNanos = System.nanoTime();
+        private boolean published;
+        private Map<String, Bandwidth> publishedBandwidths;
+
+        private ProfileState(BucketProfile profile) {
+            this.profile = profile;
+            this.adaptive = profile.getAdaptive();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.rs4m.observer;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circuit breaker around the remote bucket backend.
+ * <p>
+ * The circuit opens after a number of consecutive failures. While it is open no request is sent to the backend:
+ * a background probe checks the backend at a fixed interval, and the circuit closes again on the first
+ * successful probe, so requests never pay the remote timeout while the backend is down.
+ */
+@Slf4j
+public class BackendCircuitBreaker {
+    private final int failureThreshold;
+    private final long probeIntervalMillis;
+    private final Runnable probe;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean open = new AtomicBoolean();
+    private final ScheduledExecutorService prober;
+
+    /**
+     * @param failureThreshold    consecutive failures that open the circuit
+     * @param probeIntervalMillis interval between two probes while the circuit is open
+     * @param probe               remote call that throws if the backend is not healthy
+     */
+    public BackendCircuitBreaker(int failureThreshold, long probeIntervalMillis, Runnable probe) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.probe = probe;
+        this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rs4m-backend-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    public void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    public void onFailure(Throwable error) {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && open.compareAndSet(false, true)) {
+            log.warn("Rate limit backend failed {} times in a row, switching to local buckets", failureThreshold, error);
+            scheduleProbe();
+        }
+    }
+
+    private void scheduleProbe() {
+        prober.schedule(this::probe, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        try {
+            probe.run();
+        } catch (Exception e) {
+            log.debug("Rate limit backend is still unavailable", e);
+            if (!prober.isShutdown()) {
+                scheduleProbe();
+            }
+            return;
+        }
+        consecutiveFailures.set(0);
+        open.set(false);
+        log.info("Rate limit backend is available again, switching back to shared buckets");
+    }
+
+    public void shutdown() {
+        prober.shutdownNow();
+    }
+}
@@ -1,5 +1,7 @@
 package com.rs4m.observer;
 
+import com.rs4m.config.RateLimitProfileProperties.Lease;
+import com.rs4m.config.RateLimitProfileProperties.Strategy;
 import io.github.bucket4j.BucketConfiguration;
 import lombok.Builder;
 import lombok.Data;
@@ -10,5 +12,47 @@ public class BucketPack {
     private String name;
     private boolean enabled;
     private String version;
+    /**
+     * Numeric form of {@link #version}, stored along with the bucket state so stale buckets
+     * are migrated by the same remote operation that consumes from them
+     */
+    private long configurationVersion;
     private BucketConfiguration bucketConfiguration;
+    /**
+     * Share of {@link #bucketConfiguration} admitted by this node alone while the shared backend is unavailable
+     */
+    private BucketConfiguration localBucketConfiguration;
+    private Strategy strategy;
+    private Lease lease;
+
+    /**
+     * Convert a dotted profile version such as "0.1" or "1.2.3" to a number that grows with the version.
+     * Up to four components are supported, each in range 0..65535 (the first one up to 32767).
+     *
+     * @param version the profile version, null or empty is treated as 0
+     * @return the numeric configuration version
+     */
+    public static long toConfigurationVersion(String version) {
+        if (version == null || version.trim().isEmpty()) {
+            return 0;
+        }
+        String[] parts = version.trim().split("\\.");
+        if (parts.length > 4) {
+            throw new IllegalArgumentException("Bucket profile version has more than 4 components: " + version);
+        }
+        long result = 0;
+        for (int i = 0; i < 4; i++) {
+            long part;
+            try {
+                part = i < parts.length ? Long.parseLong(parts[i]) : 0;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bucket profile version must be numeric, e.g. 0.1: " + version, e);
+            }
+            if (part < 0 || part > (i == 0 ? 0x7FFF : 0xFFFF)) {
+                throw new IllegalArgumentException("Bucket profile version component out of range: " + version);
+            }
+            result = (result << 16) | part;
+        }
+        return result;
+    }
 }
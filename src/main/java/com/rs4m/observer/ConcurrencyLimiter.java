@@ -0,0 +1,253 @@
+package com.rs4m.observer;
+
+import com.rs4m.proxy.RedisPermitStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the requests of a client key in flight at once: across the cluster with a {@link RedisPermitStore},
+ * on this node alone otherwise.
+ * <p>
+ * Distributed permits are leases, so the permits of a node that crashed are reclaimed once their lease expires.
+ * A released permit is kept by the node for a short while instead of being given back, and the next request of the same
+ * key on this node takes it back without competing with the other nodes for a free permit: its lease is renewed before
+ * the request starts, so every request holds a full lease, and a permit reclaimed meanwhile is never used over the limit.
+ * Spare permits still count against the limit of the key, so there are at most a few per key, and they are given back
+ * once idle or once half of their lease is used.
+ */
+@Slf4j
+public class ConcurrencyLimiter {
+    /**
+     * Limits the requests in flight on this node, for rate limit managers without a limiter of their own
+     */
+    static final ConcurrencyLimiter LOCAL = new ConcurrencyLimiter(null, 0, 0, 0);
+
+    private final RedisPermitStore store;
+    private final long leaseMillis;
+    private final int maxSpare;
+    private final long spareMillis;
+    private final String nodeId = UUID.randomUUID().toString() + ":";
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SparePermits> spares = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param store       the distributed permits, null to limit the requests in flight on this node only
+     * @param leaseMillis lease of a distributed permit, longer than the slowest request
+     * @param maxSpare    maximum number of released permits kept by this node per key, 0 to give them back right away
+     * @param spareMillis how long a spare permit is kept unused before it is given back
+     */
+    public ConcurrencyLimiter(RedisPermitStore store, long leaseMillis, int maxSpare, long spareMillis) {
+        this.store = store;
+        this.leaseMillis = leaseMillis;
+        this.maxSpare = store != null ? maxSpare : 0;
+        this.spareMillis = spareMillis;
+        if (this.maxSpare > 0) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rs4m-permit-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(1, spareMillis);
+            this.sweeper.scheduleWithFixedDelay(this::releaseIdleSpares, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * @param key        the client key
+     * @param maxPermits maximum number of requests of the key in flight at once
+     * @return a future completed with the permit, or with null if all permits are in use
+     */
+    public CompletableFuture<ConcurrencyPermit> tryAcquireAsync(String key, int maxPermits) {
+        if (store == null) {
+            return CompletableFuture.completedFuture(tryAcquireLocal(key, maxPermits));
+        }
+        long now = System.currentTimeMillis();
+        RemotePermit spare = takeSpare(key, now);
+        if (spare != null) {
+            // a spare reclaimed meanwhile is replaced by a new permit, if one is free
+            return renew(spare, now).thenCompose(renewed -> renewed
+                    ? CompletableFuture.completedFuture(spare)
+                    : acquire(key, maxPermits, System.currentTimeMillis()));
+        }
+        return acquire(key, maxPermits, now);
+    }
+
+    private CompletableFuture<ConcurrencyPermit> acquire(String key, int maxPermits, long now) {
+        String permitId = nodeId + sequence.incrementAndGet();
+        long expiresAtMillis = now + leaseMillis;
+        return store.tryAcquireAsync(key, permitId, expiresAtMillis, maxPermits)
+                .thenApply(taken -> taken ? new RemotePermit(key, permitId, maxPermits, expiresAtMillis) : null);
+    }
+
+    private ConcurrencyPermit tryAcquireLocal(String key, int maxPermits) {
+        boolean[] taken = new boolean[1];
+        inFlight.compute(key, (k, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxPermits) {
+                return count;
+            }
+            taken[0] = true;
+            return current + 1;
+        });
+        if (!taken[0]) {
+            return null;
+        }
+        // the entry goes away with the last request in flight
+        return () -> inFlight.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private RemotePermit takeSpare(String key, long now) {
+        SparePermits pool = spares.get(key);
+        if (pool == null) {
+            return null;
+        }
+        RemotePermit permit;
+        synchronized (pool) {
+            while ((permit = pool.permits.pollLast()) != null) {
+                if (isReusable(permit, now)) {
+                    break;
+                }
+                giveBack(permit);
+            }
+        }
+        return permit;
+    }
+
+    /**
+     * Start the lease of a reused permit again. The request waits for the renewal: a permit reclaimed meanwhile, e.g. by a
+     * node whose clock runs ahead or after a failover, may already be taken by another request.
+     *
+     * @return a future completed with true if the permit is still held, with its lease renewed
+     */
+    private CompletableFuture<Boolean> renew(RemotePermit permit, long now) {
+        long expiresAtMillis = now + leaseMillis;
+        return store.tryAcquireAsync(permit.key, permit.permitId, expiresAtMillis, permit.maxPermits).whenComplete((renewed, error) -> {
+            if (error == null && renewed) {
+                permit.extend(expiresAtMillis);
+            } else {
+                // reclaimed meanwhile, or unknown and reclaimed when its lease expires: never reused again
+                permit.lost = true;
+            }
+        });
+    }
+
+    private boolean offerSpare(RemotePermit permit, long now) {
+        if (maxSpare == 0 || !isReusable(permit, now)) {
+            return false;
+        }
+        SparePermits pool = spares.computeIfAbsent(permit.key, key -> new SparePermits());
+        synchronized (pool) {
+            if (pool.retired || pool.permits.size() >= maxSpare) {
+                return false;
+            }
+            permit.idleSinceMillis = now;
+            pool.permits.addLast(permit);
+            return true;
+        }
+    }
+
+    /**
+     * A permit is reused only while half of its lease is left, so its lease is renewed before it may expire.
+     */
+    private boolean isReusable(RemotePermit permit, long now) {
+        return !permit.lost && permit.expiresAtMillis - now > leaseMillis / 2;
+    }
+
+    private void giveBack(RemotePermit permit) {
+        store.releaseAsync(permit.key, permit.permitId).exceptionally(error -> {
+            log.warn("Failed to release permit of '{}', it is reclaimed when its lease expires", permit.key, error);
+            return null;
+        });
+    }
+
+    private void releaseIdleSpares() {
+        long now = System.currentTimeMillis();
+        List<RemotePermit> idle = new ArrayList<>();
+        for (Map.Entry<String, SparePermits> entry : spares.entrySet()) {
+            SparePermits pool = entry.getValue();
+            synchronized (pool) {
+                Iterator<RemotePermit> permits = pool.permits.iterator();
+                while (permits.hasNext()) {
+                    RemotePermit permit = permits.next();
+                    if (now - permit.idleSinceMillis >= spareMillis || !isReusable(permit, now)) {
+                        permits.remove();
+                        idle.add(permit);
+                    }
+                }
+                // threads still holding this pool must not add to it once it left the map
+                pool.retired = pool.permits.isEmpty();
+            }
+            if (pool.retired) {
+                spares.remove(entry.getKey(), pool);
+            }
+        }
+        idle.forEach(this::giveBack);
+    }
+
+    public void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        for (SparePermits pool : spares.values()) {
+            synchronized (pool) {
+                pool.retired = true;
+                pool.permits.forEach(this::giveBack);
+                pool.permits.clear();
+            }
+        }
+    }
+
+    private static final class SparePermits {
+        private final ArrayDeque<RemotePermit> permits = new ArrayDeque<>();
+        private boolean retired;
+    }
+
+    private final class RemotePermit implements ConcurrencyPermit {
+        private final String key;
+        private final String permitId;
+        private final int maxPermits;
+        private volatile long expiresAtMillis;
+        private volatile boolean lost;
+        private long idleSinceMillis;
+
+        private RemotePermit(String key, String permitId, int maxPermits, long expiresAtMillis) {
+            this.key = key;
+            this.permitId = permitId;
+            this.maxPermits = maxPermits;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * Renewals may complete out of order, the lease only moves forward
+         */
+        private synchronized void extend(long expiresAtMillis) {
+            if (expiresAtMillis > this.expiresAtMillis) {
+                this.expiresAtMillis = expiresAtMillis;
+            }
+        }
+
+        @Override
+        public void release() {
+            if (!offerSpare(this, System.currentTimeMillis())) {
+                giveBack(this);
+            }
+        }
+    }
+}
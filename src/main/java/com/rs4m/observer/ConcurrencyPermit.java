@@ -0,0 +1,11 @@
+package com.rs4m.observer;
+
+/**
+ * A permit to serve one request of a client key with a concurrency limit, see {@link RateLimitManager#tryAcquirePermitAsync}.
+ */
+public interface ConcurrencyPermit {
+    /**
+     * Give the permit back once the request is complete. Must be called once.
+     */
+    void release();
+}
@@ -1,39 +1,145 @@
 package com.rs4m.observer;
 
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.rs4m.annotation.RateLimiter;
 import com.rs4m.config.RateLimitProfileProperties;
 import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
 import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import com.rs4m.config.RateLimitProfileProperties.Strategy;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.config.RateLimiterProperties.Concurrency;
+import com.rs4m.config.RateLimiterProperties.DenyCache;
+import com.rs4m.config.RateLimiterProperties.Fallback;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.metrics.RateLimitMetrics.ConfigChange;
+import com.rs4m.metrics.RateLimitMetrics.LimiterMeters;
+import com.rs4m.proxy.InMemoryProxyManager;
+import com.rs4m.proxy.ProfileExpirationStrategy;
+import com.rs4m.proxy.RedisPermitStore;
+import com.rs4m.proxy.RedisScriptBucketStore;
+import com.rs4m.proxy.Reservation;
 import io.github.bucket4j.Bucket;
 import io.github.bucket4j.BucketConfiguration;
 import io.github.bucket4j.ConfigurationBuilder;
+import io.github.bucket4j.ConsumptionProbe;
 import io.github.bucket4j.TokensInheritanceStrategy;
+import io.github.bucket4j.distributed.AsyncBucketProxy;
 import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.github.bucket4j.distributed.proxy.optimization.Optimizations;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component("defaultRateLimitManager")
 public class DefaultRateLimitManager implements RateLimitManager, Subscriber<Map<String, BucketProfile>> {
+    private static final String HEALTH_PROBE_KEY = "rs4m_health_probe";
 
     private final ProxyManager<String> proxyManager;
     private final ConcurrentMap<String, BucketPack> bucketConfigs;
     private final RateLimitProfileProperties rateLimitProfileProperties;
+    private final LeasingRateLimitManager leasingRateLimitManager = new LeasingRateLimitManager(this);
+    private final Cache<String, CoalescedBucket> coalescedBuckets;
+    private final Cache<String, Denial> denials;
+    private final int expectedNodes;
+    private final ProxyManager<String> localProxyManager;
+    private final BackendCircuitBreaker circuitBreaker;
+    private final RedisScriptBucketStore scriptBucketStore;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final ConcurrencyLimiter localConcurrencyLimiter;
+    private final ProfileExpirationStrategy expirationStrategy;
+    private final RateLimitMetrics metrics;
+    /**
+     * Node-local packs of the profiles whose limits this node tuned down, see {@link #getTunedLimits()}
+     */
+    private final ConcurrentMap<String, BucketPack> tunedConfigs = new ConcurrentHashMap<>();
+    private final AtomicLong tunedVersions = new AtomicLong();
+    private final ProxyManager<String> tunedProxyManager;
+    private final RateLimitManager sharedBuckets = new SharedBuckets();
 
     @Autowired
-    public DefaultRateLimitManager(ProxyManager<String> proxyManager, RateLimitProfileProperties rateLimitProfileProperties) {
+    public DefaultRateLimitManager(ProxyManager<String> proxyManager, RateLimitProfileProperties rateLimitProfileProperties, RateLimiterProperties rateLimiterProperties,
+                                   ObjectProvider<RedisScriptBucketStore> scriptBucketStore, ObjectProvider<RedisPermitStore> permitStore,
+                                   ProfileExpirationStrategy expirationStrategy, RateLimitMetrics metrics) {
         this.proxyManager = proxyManager;
+        this.expirationStrategy = expirationStrategy;
+        this.scriptBucketStore = scriptBucketStore.getIfAvailable();
         this.rateLimitProfileProperties = rateLimitProfileProperties;
         this.bucketConfigs = new ConcurrentHashMap<>();
+        this.metrics = metrics;
+        metrics.monitorProfiles(bucketConfigs);
+        this.coalescedBuckets = Caffeine.newBuilder()
+                .maximumSize(rateLimiterProperties.getCoalescing().getMaxBuckets())
+                .expireAfterAccess(rateLimiterProperties.getCoalescing().getIdleMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        this.denials = newDenialCache(rateLimiterProperties.getDenyCache());
+        Concurrency concurrency = rateLimiterProperties.getConcurrency();
+        this.concurrencyLimiter = new ConcurrencyLimiter(permitStore.getIfAvailable(), concurrency.getLeaseMillis(),
+                concurrency.getSparePermits(), concurrency.getSpareMillis());
+
+        this.tunedProxyManager = new InMemoryProxyManager(rateLimiterProperties.getMemory().getMaxBuckets(), rateLimiterProperties.getMemory().getIdleMillis());
+
+        Fallback fallback = rateLimiterProperties.getFallback();
+        this.expectedNodes = Math.max(1, fallback.getExpectedNodes());
+        if (fallback.isEnable() && !(proxyManager instanceof InMemoryProxyManager)) {
+            this.localProxyManager = new InMemoryProxyManager(rateLimiterProperties.getMemory().getMaxBuckets(), rateLimiterProperties.getMemory().getIdleMillis());
+            this.circuitBreaker = new BackendCircuitBreaker(fallback.getFailureThreshold(), fallback.getProbeIntervalMillis(),
+                    () -> proxyManager.getProxyConfiguration(HEALTH_PROBE_KEY));
+            this.localConcurrencyLimiter = new ConcurrencyLimiter(null, 0, 0, 0);
+        } else {
+            this.localProxyManager = null;
+            this.circuitBreaker = null;
+            this.localConcurrencyLimiter = null;
+        }
+    }
+
+    private static Cache<String, Denial> newDenialCache(DenyCache settings) {
+        if (!settings.isEnable()) {
+            return null;
+        }
+        long maxDenyNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxDenyMillis());
+        return Caffeine.newBuilder()
+                .maximumSize(settings.getMaxKeys())
+                .expireAfter(new Expiry<String, Denial>() {
+                    @Override
+                    public long expireAfterCreate(String key, Denial denial, long currentTime) {
+                        return Math.max(0, Math.min(maxDenyNanos, denial.waitNanos - (currentTime - denial.deniedAtNanos)));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Denial denial, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, denial, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Denial denial, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
     }
 
     @PostConstruct
@@ -41,17 +147,34 @@ public class DefaultRateLimitManager implements RateLimitManager, Subscriber<Map
         if (rateLimitProfileProperties.getBuckets() != null) {
             rateLimitProfileProperties.getBuckets().forEach((bucketCfgName, bucketProfile) -> {
                 if (bucketProfile != null && bucketProfile.getBandwidths() != null && bucketProfile.isEnable()) {
-                    BucketPack pack = BucketPack.builder().name(bucketCfgName).enabled(true).version(bucketProfile.getVersion()).bucketConfiguration(getBucketConfiguration(bucketProfile.getBandwidths())).build();
-                    bucketConfigs.put(bucketCfgName, pack);
+                    bucketConfigs.put(bucketCfgName, toBucketPack(bucketCfgName, bucketProfile));
                 }
             });
         }
     }
 
-    private BucketConfiguration getBucketConfiguration(Map<String, Bandwidth> bandwidths) {
+    private BucketPack toBucketPack(String bucketName, BucketProfile bucketProfile) {
+        BucketConfiguration bucketConfiguration = getBucketConfiguration(bucketProfile.getBandwidths(), 1);
+        expirationStrategy.register(bucketConfiguration, bucketProfile.getExpiration());
+        return BucketPack.builder()
+                .name(bucketName)
+                .enabled(true)
+                .version(bucketProfile.getVersion())
+                .configurationVersion(BucketPack.toConfigurationVersion(bucketProfile.getVersion()))
+                .bucketConfiguration(bucketConfiguration)
+                .localBucketConfiguration(getBucketConfiguration(bucketProfile.getBandwidths(), expectedNodes))
+                .strategy(bucketProfile.getStrategy())
+                .lease(bucketProfile.getLease())
+                .build();
+    }
+
+    /**
+     * @param nodes number of nodes sharing the limits, each limit is divided between them
+     */
+    private BucketConfiguration getBucketConfiguration(Map<String, Bandwidth> bandwidths, int nodes) {
         ConfigurationBuilder builder = BucketConfiguration.builder();
         for (RateLimitProfileProperties.Bandwidth bandwidth : bandwidths.values()) {
-            long tokens = bandwidth.getLimit();
+            long tokens = Math.max(1, (bandwidth.getLimit() + nodes - 1) / nodes);
             Duration period = Duration.of(bandwidth.getDuration(), ChronoUnit.valueOf(bandwidth.getTimeUnit().getValue()));
             builder.addLimit(limit -> limit.capacity(tokens).refillGreedy(tokens, period));
         }
@@ -60,51 +183,884 @@ public class DefaultRateLimitManager implements RateLimitManager, Subscriber<Map
 
     @Override
     public void update(Map<String, BucketProfile> event) {
-        for (Map.Entry<String, BucketProfile> bucketEntry : event.entrySet()) {
-            String bucketName = bucketEntry.getKey();
-            BucketProfile bucketProfile = bucketEntry.getValue();
+        event.forEach(this::update);
+    }
 
-            BucketPack pack = bucketConfigs.get(bucketName);
-            if (pack == null && bucketProfile.isEnable()) {
+    /**
+     * Apply one profile atomically, in version order: updates of the same profile from the API and from other nodes
+     * may race, and only a newer version replaces or removes the current one. Readers are never blocked.
+     */
+    private void update(String bucketName, BucketProfile bucketProfile) {
+        long configurationVersion = BucketPack.toConfigurationVersion(bucketProfile.getVersion());
+        bucketConfigs.compute(bucketName, (name, pack) -> {
+            if (pack == null) {
+                if (!bucketProfile.isEnable()) {
+                    return null;
+                }
                 log.warn("No existing bucket configuration found for '{}'. Creating new configuration.", bucketName);
-                BucketPack newPack = BucketPack.builder().name(bucketName).enabled(true).version(bucketProfile.getVersion()).bucketConfiguration(getBucketConfiguration(bucketProfile.getBandwidths())).build();
-                bucketConfigs.put(bucketName, newPack);
-            } else {
-                if (bucketProfile.isEnable()) {
-                    if (!pack.getVersion().equals(bucketProfile.getVersion())) {
-                        log.info("Updating existing bucket configuration for '{}'.", bucketName);
-                        log.info("Version changed from {} to {}. Updating configuration.", pack.getVersion(), bucketProfile.getVersion());
-                        pack.setVersion(bucketProfile.getVersion());
-                        pack.setBucketConfiguration(getBucketConfiguration(bucketProfile.getBandwidths()));
+                metrics.configChanged(bucketName, ConfigChange.CREATED);
+                return toBucketPack(bucketName, bucketProfile);
+            }
+            if (configurationVersion < pack.getConfigurationVersion()) {
+                log.warn("Ignoring configuration of '{}': version {} is older than current version {}.", bucketName, bucketProfile.getVersion(), pack.getVersion());
+                metrics.configChanged(bucketName, ConfigChange.STALE);
+                return pack;
+            }
+            if (!bucketProfile.isEnable()) {
+                metrics.configChanged(bucketName, ConfigChange.REMOVED);
+                return null;
+            }
+            if (configurationVersion > pack.getConfigurationVersion()) {
+                log.info("Updating existing bucket configuration for '{}'.", bucketName);
+                log.info("Version changed from {} to {}. Updating configuration.", pack.getVersion(), bucketProfile.getVersion());
+                // swap the whole pack so readers never see a version without its configuration
+                metrics.configChanged(bucketName, ConfigChange.UPDATED);
+                return toBucketPack(bucketName, bucketProfile);
+            }
+            return pack;
+        });
+    }
+
+
+    /**
+     * The bucket decisions are taken on: for {@code EXACT} profiles evaluated by the Lua script, the scripted bucket of the
+     * key, see {@link RedisScriptBucketStore#getBucket(String, BucketConfiguration)}, otherwise the bucket4j bucket.
+     */
+    public Bucket getBucket(String key, RateLimiter rateLimiter) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        if (isScripted(pack)) {
+            return scriptBucketStore.getBucket(key, pack.getBucketConfiguration());
+        }
+        return getBucket(key, pack);
+    }
+
+    private boolean isScripted(BucketPack pack) {
+        return pack.getStrategy() == Strategy.EXACT && scriptBucketStore != null;
+    }
+
+    @Override
+    public ConsumptionProbe tryConsume(String key, RateLimiter rateLimiter, long tokens) {
+        if (tunedConfigs.isEmpty()) {
+            return consumeShared(key, rateLimiter, tokens);
+        }
+        try {
+            return gateByTunedLimits(Collections.singletonList(key), Collections.singletonList(rateLimiter), tokens,
+                    () -> CompletableFuture.completedFuture(consumeShared(key, rateLimiter, tokens)), probe -> probe, ConsumptionProbe::isConsumed)
+                    .join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private ConsumptionProbe consumeShared(String key, RateLimiter rateLimiter, long tokens) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        ConsumptionProbe denied = findDenial(key, pack, tokens);
+        if (denied != null) {
+            return denied;
+        }
+        return rememberDenial(key, pack, tokens, consumeWithFallback(key, pack, tokens));
+    }
+
+    private ConsumptionProbe consumeWithFallback(String key, BucketPack pack, long tokens) {
+        LimiterMeters meters = metrics.limiter(pack.getName());
+        if (circuitBreaker == null) {
+            return timedConsume(key, pack, tokens, meters);
+        }
+        if (circuitBreaker.isOpen()) {
+            meters.fallback();
+            return getLocalBucket(key, pack).tryConsumeAndReturnRemaining(tokens);
+        }
+        try {
+            ConsumptionProbe probe = timedConsume(key, pack, tokens, meters);
+            circuitBreaker.onSuccess();
+            return probe;
+        } catch (RuntimeException e) {
+            circuitBreaker.onFailure(e);
+            log.warn("Failed to consume from shared bucket '{}', using local bucket", pack.getName(), e);
+            meters.fallback();
+            return getLocalBucket(key, pack).tryConsumeAndReturnRemaining(tokens);
+        }
+    }
+
+    private ConsumptionProbe timedConsume(String key, BucketPack pack, long tokens, LimiterMeters meters) {
+        long start = System.nanoTime();
+        try {
+            return consume(key, pack, tokens);
+        } catch (RuntimeException e) {
+            meters.backendError();
+            throw e;
+        } finally {
+            meters.consumed(start);
+        }
+    }
+
+    private ConsumptionProbe consume(String key, BucketPack pack, long tokens) {
+        if (pack.getStrategy() == Strategy.LEASED) {
+            return leasingRateLimitManager.tryConsume(key, pack, tokens);
+        }
+        if (pack.getStrategy() == Strategy.COALESCED) {
+            return getCoalescedBucket(key, pack).bucket.tryConsumeAndReturnRemaining(tokens);
+        }
+        if (scriptBucketStore != null) {
+            return scriptBucketStore.tryConsume(key, pack.getBucketConfiguration(), tokens);
+        }
+        return getBucket(key, pack).tryConsumeAndReturnRemaining(tokens);
+    }
+
+    @Override
+    public CompletableFuture<ConsumptionProbe> tryConsumeAsync(String key, RateLimiter rateLimiter, long tokens) {
+        if (!proxyManager.isAsyncModeSupported()) {
+            return RateLimitManager.super.tryConsumeAsync(key, rateLimiter, tokens);
+        }
+        return gateByTunedLimits(Collections.singletonList(key), Collections.singletonList(rateLimiter), tokens,
+                () -> consumeSharedAsync(key, rateLimiter, tokens), probe -> probe, ConsumptionProbe::isConsumed);
+    }
+
+    private CompletableFuture<ConsumptionProbe> consumeSharedAsync(String key, RateLimiter rateLimiter, long tokens) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        ConsumptionProbe denied = findDenial(key, pack, tokens);
+        if (denied != null) {
+            return CompletableFuture.completedFuture(denied);
+        }
+        return consumeAsyncWithFallback(key, pack, tokens).thenApply(probe -> rememberDenial(key, pack, tokens, probe));
+    }
+
+    private CompletableFuture<ConsumptionProbe> consumeAsyncWithFallback(String key, BucketPack pack, long tokens) {
+        LimiterMeters meters = metrics.limiter(pack.getName());
+        if (circuitBreaker == null) {
+            return timedConsumeAsync(key, pack, tokens, meters);
+        }
+        if (circuitBreaker.isOpen()) {
+            meters.fallback();
+            return CompletableFuture.completedFuture(getLocalBucket(key, pack).tryConsumeAndReturnRemaining(tokens));
+        }
+        return timedConsumeAsync(key, pack, tokens, meters).handle((probe, error) -> {
+            if (error == null) {
+                circuitBreaker.onSuccess();
+                return probe;
+            }
+            circuitBreaker.onFailure(error);
+            log.warn("Failed to consume from shared bucket '{}', using local bucket", pack.getName(), error);
+            meters.fallback();
+            return getLocalBucket(key, pack).tryConsumeAndReturnRemaining(tokens);
+        });
+    }
+
+    private CompletableFuture<ConsumptionProbe> timedConsumeAsync(String key, BucketPack pack, long tokens, LimiterMeters meters) {
+        long start = System.nanoTime();
+        CompletableFuture<ConsumptionProbe> remote;
+        try {
+            remote = consumeAsync(key, pack, tokens);
+        } catch (RuntimeException e) {
+            remote = new CompletableFuture<>();
+            remote.completeExceptionally(e);
+        }
+        return remote.whenComplete((probe, error) -> {
+            meters.consumed(start);
+            if (error != null) {
+                meters.backendError();
+            }
+        });
+    }
+
+    private CompletableFuture<ConsumptionProbe> consumeAsync(String key, BucketPack pack, long tokens) {
+        if (pack.getStrategy() == Strategy.LEASED) {
+            return leasingRateLimitManager.tryConsumeAsync(key, pack, tokens);
+        }
+        if (pack.getStrategy() == Strategy.COALESCED) {
+            return getCoalescedBucket(key, pack).asyncBucket.tryConsumeAndReturnRemaining(tokens);
+        }
+        if (scriptBucketStore != null) {
+            return scriptBucketStore.tryConsumeAsync(key, pack.getBucketConfiguration(), tokens);
+        }
+        return getAsyncBucket(key, pack).tryConsumeAndReturnRemaining(tokens);
+    }
+
+    @Override
+    public ConsumptionProbe tryConsumeAll(List<String> keys, List<RateLimiter> rateLimiters, long tokens) {
+        if (!proxyManager.isAsyncModeSupported()) {
+            return RateLimitManager.super.tryConsumeAll(keys, rateLimiters, tokens);
+        }
+        // the buckets are consumed in parallel, so the request waits for one round trip whatever the number of limits
+        try {
+            return tryConsumeAllAsync(keys, rateLimiters, tokens).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * All buckets are consumed by one atomic script when they can be, see {@link #isScriptAtomic(List, List)}: either every bucket
+     * is consumed or none is. Otherwise they are consumed in parallel and the tokens are given back on rejection.
+     */
+    @Override
+    public CompletableFuture<ConsumptionProbe> tryConsumeAllAsync(List<String> keys, List<RateLimiter> rateLimiters, long tokens) {
+        if (!proxyManager.isAsyncModeSupported()) {
+            return RateLimitManager.super.tryConsumeAllAsync(keys, rateLimiters, tokens);
+        }
+        return gateByTunedLimits(keys, rateLimiters, tokens, () -> consumeAllSharedAsync(keys, rateLimiters, tokens),
+                probe -> probe, ConsumptionProbe::isConsumed);
+    }
+
+    private CompletableFuture<ConsumptionProbe> consumeAllSharedAsync(List<String> keys, List<RateLimiter> rateLimiters, long tokens) {
+        List<BucketPack> packs = new ArrayList<>(rateLimiters.size());
+        for (int i = 0; i < rateLimiters.size(); i++) {
+            BucketPack pack = getBucketPack(rateLimiters.get(i).value());
+            ConsumptionProbe denied = findDenial(keys.get(i), pack, tokens);
+            if (denied != null) {
+                return CompletableFuture.completedFuture(denied);
+            }
+            packs.add(pack);
+        }
+        if (!isScriptAtomic(keys, packs)) {
+            return consumeAllAsync(keys, packs, tokens);
+        }
+        List<BucketConfiguration> configurations = new ArrayList<>(packs.size());
+        for (BucketPack pack : packs) {
+            configurations.add(pack.getBucketConfiguration());
+        }
+        long start = System.nanoTime();
+        return scriptBucketStore.tryConsumeAsync(keys, configurations, tokens)
+                .handle((probe, error) -> {
+                    // one round trip decided every limiter
+                    for (BucketPack pack : packs) {
+                        LimiterMeters meters = metrics.limiter(pack.getName());
+                        meters.consumed(start);
+                        if (error != null) {
+                            meters.backendError();
+                        }
+                    }
+                    if (error == null) {
+                        if (circuitBreaker != null) {
+                            circuitBreaker.onSuccess();
+                        }
+                        return CompletableFuture.completedFuture(probe);
+                    }
+                    if (circuitBreaker == null) {
+                        CompletableFuture<ConsumptionProbe> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(error);
+                        return failed;
+                    }
+                    circuitBreaker.onFailure(error);
+                    return consumeAllAsync(keys, packs, tokens);
+                })
+                .thenCompose(probe -> probe);
+    }
+
+    /**
+     * On the redis backend, the buckets of several limiters are only consumed by the script, see {@link #isScriptAtomic(List, List)}:
+     * the script must be enabled and every profile must be EXACT. Profiles not configured yet are checked when they are used.
+     * On the memory backend the buckets are consumed one after the other in this process, and the tokens taken are given back
+     * when one of them rejects.
+     */
+    @Override
+    public void checkConsumeAll(List<RateLimiter> rateLimiters) {
+        if (proxyManager instanceof InMemoryProxyManager) {
+            log.warn("Rate limiters {} are not consumed atomically on the memory backend, tokens are given back on rejection",
+                    rateLimiters.stream().map(RateLimiter::value).collect(Collectors.toList()));
+            return;
+        }
+        if (scriptBucketStore == null) {
+            throw new IllegalStateException("Several @RateLimiter on one handler are consumed atomically by the Lua script only, "
+                    + "but rs4m.rate.script.enable is false");
+        }
+        for (RateLimiter rateLimiter : rateLimiters) {
+            BucketPack pack = findBucketPack(rateLimiter.value());
+            if (pack != null && pack.getStrategy() != Strategy.EXACT) {
+                throw new IllegalStateException("Profile '" + rateLimiter.value() + "' is " + pack.getStrategy()
+                        + ", but several @RateLimiter on one handler are consumed atomically by the Lua script only, which needs EXACT profiles");
+            }
+        }
+    }
+
+    /**
+     * All buckets can be consumed by one atomic script if they are all evaluated by scripts, which EXACT profiles are by
+     * default, and live in the same slot. The keys of the limiters of one handler share the hash tag of the handler pattern,
+     * see {@code RateLimitKeys}, so they always do; the slot is still checked for keys built otherwise. Buckets are
+     * consumed in parallel and given back instead while the backend is down, or if a profile stopped being EXACT.
+     */
+    private boolean isScriptAtomic(List<String> keys, List<BucketPack> packs) {
+        if (scriptBucketStore == null || (circuitBreaker != null && circuitBreaker.isOpen())) {
+            return false;
+        }
+        for (BucketPack pack : packs) {
+            if (pack.getStrategy() != Strategy.EXACT) {
+                return false;
+            }
+        }
+        return scriptBucketStore.isSameSlot(keys);
+    }
+
+    /**
+     * Consume from all buckets in parallel and give the tokens back to the consumed ones if any bucket rejects.
+     * Other requests may briefly see the tokens taken before they are given back.
+     */
+    private CompletableFuture<ConsumptionProbe> consumeAllAsync(List<String> keys, List<BucketPack> packs, long tokens) {
+        List<CompletableFuture<ConsumptionProbe>> probes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            CompletableFuture<ConsumptionProbe> probe;
+            try {
+                probe = consumeAsyncWithFallback(keys.get(i), packs.get(i), tokens);
+            } catch (RuntimeException e) {
+                probe = new CompletableFuture<>();
+                probe.completeExceptionally(e);
+            }
+            probes.add(probe);
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            ConsumptionProbe consumed = null;
+            ConsumptionProbe rejected = null;
+            for (int i = 0; i < probes.size(); i++) {
+                if (probes.get(i).isCompletedExceptionally()) {
+                    continue;
+                }
+                ConsumptionProbe probe = rememberDenial(keys.get(i), packs.get(i), tokens, probes.get(i).join());
+                if (!probe.isConsumed()) {
+                    if (rejected == null || probe.getNanosToWaitForRefill() > rejected.getNanosToWaitForRefill()) {
+                        rejected = probe;
                     }
-                } else {
-                    bucketConfigs.remove(bucketName);
+                } else if (consumed == null || probe.getRemainingTokens() < consumed.getRemainingTokens()) {
+                    consumed = probe;
                 }
             }
+            if (error == null && rejected == null) {
+                return consumed;
+            }
+            for (int i = 0; i < probes.size(); i++) {
+                if (!probes.get(i).isCompletedExceptionally() && probes.get(i).join().isConsumed()) {
+                    addTokensAsync(keys.get(i), packs.get(i), tokens);
+                }
+            }
+            if (error != null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return rejected;
+        });
+    }
+
+    @Override
+    public void addTokens(String key, RateLimiter rateLimiter, long tokens) {
+        giveBackTuned(Collections.singletonList(key), Collections.singletonList(rateLimiter), tokens);
+        addSharedTokens(key, rateLimiter, tokens);
+    }
+
+    private void addSharedTokens(String key, RateLimiter rateLimiter, long tokens) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        if (!proxyManager.isAsyncModeSupported()) {
+            getBucket(key, rateLimiter).addTokens(tokens);
+            return;
         }
+        addTokensAsync(key, pack, tokens);
     }
 
+    /**
+     * Give tokens back to the bucket a consumption went to, without waiting for the remote operation.
+     */
+    private CompletableFuture<Void> addTokensAsync(String key, BucketPack pack, long tokens) {
+        CompletableFuture<Void> result;
+        if (circuitBreaker != null && circuitBreaker.isOpen()) {
+            getLocalBucket(key, pack).addTokens(tokens);
+            result = CompletableFuture.completedFuture(null);
+        } else if (isScripted(pack)) {
+            result = scriptBucketStore.addTokensAsync(key, pack.getBucketConfiguration(), tokens);
+        } else if (pack.getStrategy() == Strategy.COALESCED) {
+            result = getCoalescedBucket(key, pack).asyncBucket.addTokens(tokens);
+        } else {
+            result = getAsyncBucket(key, pack).addTokens(tokens);
+        }
+        return result.exceptionally(error -> {
+            log.warn("Failed to give {} token(s) back to bucket '{}'", tokens, pack.getName(), error);
+            return null;
+        });
+    }
 
-    public Bucket getBucket(String key, RateLimiter rateLimiter) {
-        // Create bucket configuration from annotation
-        BucketConfiguration bucketConfig = getBucketConfiguration(rateLimiter);
-        Bucket bucket = proxyManager.builder().build(key, () -> bucketConfig);
-        proxyManager.getProxyConfiguration(key).ifPresent(config -> {
-            // If the bucket already exists, we can update its configuration
-            if (!config.equals(bucketConfig)) {
-                log.info("Updating bucket configuration for key '{}'.", key);
-                // check if bucket configuration changed, call replace configuration
-                bucket.replaceConfiguration(bucketConfig, TokensInheritanceStrategy.AS_IS);
+    @Override
+    public void chargeTokens(String key, RateLimiter rateLimiter, long tokens) {
+        chargeTuned(key, rateLimiter, tokens);
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        if (!proxyManager.isAsyncModeSupported()) {
+            getBucket(key, rateLimiter).consumeIgnoringRateLimits(tokens);
+            return;
+        }
+        CompletableFuture<?> result;
+        if (circuitBreaker != null && circuitBreaker.isOpen()) {
+            getLocalBucket(key, pack).consumeIgnoringRateLimits(tokens);
+            result = CompletableFuture.completedFuture(null);
+        } else if (isScripted(pack)) {
+            result = scriptBucketStore.chargeTokensAsync(key, pack.getBucketConfiguration(), tokens);
+        } else if (pack.getStrategy() == Strategy.COALESCED) {
+            result = getCoalescedBucket(key, pack).asyncBucket.consumeIgnoringRateLimits(tokens);
+        } else {
+            result = getAsyncBucket(key, pack).consumeIgnoringRateLimits(tokens);
+        }
+        result.exceptionally(error -> {
+            log.warn("Failed to charge {} token(s) to bucket '{}'", tokens, pack.getName(), error);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> reserveAsync(String key, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+        return gateByTunedLimits(Collections.singletonList(key), Collections.singletonList(rateLimiter), tokens,
+                () -> reserveShared(key, rateLimiter, tokens, maxWaitNanos), probe -> -1L, waitNanos -> waitNanos >= 0);
+    }
+
+    private CompletableFuture<Long> reserveShared(String key, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        if (circuitBreaker != null && circuitBreaker.isOpen()) {
+            return CompletableFuture.completedFuture(reserve(getLocalBucket(key, pack), tokens, maxWaitNanos));
+        }
+        if (!proxyManager.isAsyncModeSupported()) {
+            return CompletableFuture.completedFuture(reserve(getBucket(key, rateLimiter), tokens, maxWaitNanos));
+        }
+        CompletableFuture<Long> result;
+        if (isScripted(pack)) {
+            // reserved atomically, never above the max wait
+            result = scriptBucketStore.reserveAsync(key, pack.getBucketConfiguration(), tokens, maxWaitNanos);
+        } else {
+            // leased buckets lease from the same shared bucket, so their next leases make up for the reservation
+            AsyncBucketProxy bucket = pack.getStrategy() == Strategy.COALESCED ? getCoalescedBucket(key, pack).asyncBucket : getAsyncBucket(key, pack);
+            result = bucket.consumeIgnoringRateLimits(tokens).thenApply(waitNanos -> {
+                if (waitNanos > maxWaitNanos) {
+                    bucket.addTokens(tokens);
+                    return -1L;
+                }
+                return waitNanos;
+            });
+        }
+        return result.whenComplete((waitNanos, error) -> {
+            if (error != null) {
+                metrics.limiter(pack.getName()).backendError();
             }
         });
-        return bucket;
     }
 
-    private BucketConfiguration getBucketConfiguration(RateLimiter rateLimiter) {
-        if (bucketConfigs.containsKey(rateLimiter.value())) {
-            return bucketConfigs.get(rateLimiter.value()).getBucketConfiguration();
+    /**
+     * All buckets are reserved by one atomic script when they could be consumed by one, see {@link #isScriptAtomic(List, List)}.
+     */
+    @Override
+    public CompletableFuture<Long> reserveAllAsync(List<String> keys, List<RateLimiter> rateLimiters, long tokens, long maxWaitNanos) {
+        List<BucketPack> packs = new ArrayList<>(rateLimiters.size());
+        for (RateLimiter rateLimiter : rateLimiters) {
+            packs.add(getBucketPack(rateLimiter.value()));
+        }
+        if (!proxyManager.isAsyncModeSupported() || !isScriptAtomic(keys, packs)) {
+            return RateLimitManager.super.reserveAllAsync(keys, rateLimiters, tokens, maxWaitNanos);
+        }
+        List<BucketConfiguration> configurations = new ArrayList<>(packs.size());
+        for (BucketPack pack : packs) {
+            configurations.add(pack.getBucketConfiguration());
+        }
+        return gateByTunedLimits(keys, rateLimiters, tokens, () -> scriptBucketStore.reserveAsync(keys, configurations, tokens, maxWaitNanos),
+                probe -> -1L, waitNanos -> waitNanos >= 0);
+    }
+
+    /**
+     * Scripted buckets are consumed or reserved by one script call, see {@link #isScriptAtomic(List, List)}, so the wait
+     * of a rejection and the reservation it allows are decided at once.
+     */
+    @Override
+    public CompletableFuture<Reservation> tryConsumeOrReserveAsync(String key, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+        BucketPack pack = getBucketPack(rateLimiter.value());
+        List<String> keys = Collections.singletonList(key);
+        List<BucketPack> packs = Collections.singletonList(pack);
+        if (!proxyManager.isAsyncModeSupported() || !isScriptAtomic(keys, packs)) {
+            return RateLimitManager.super.tryConsumeOrReserveAsync(key, rateLimiter, tokens, maxWaitNanos);
+        }
+        return gateByTunedLimits(keys, Collections.singletonList(rateLimiter), tokens,
+                () -> consumeOrReserveShared(key, rateLimiter, pack, tokens, maxWaitNanos),
+                probe -> new Reservation(probe, 0), reservation -> reservation.getProbe().isConsumed());
+    }
+
+    private CompletableFuture<Reservation> consumeOrReserveShared(String key, RateLimiter rateLimiter, BucketPack pack, long tokens, long maxWaitNanos) {
+        List<String> keys = Collections.singletonList(key);
+        List<BucketPack> packs = Collections.singletonList(pack);
+        ConsumptionProbe denied = findDenial(key, pack, tokens);
+        if (denied != null && denied.getNanosToWaitForRefill() > maxWaitNanos) {
+            return CompletableFuture.completedFuture(new Reservation(denied, 0));
+        }
+        return consumeOrReserveByScript(keys, packs, tokens, maxWaitNanos,
+                () -> sharedBuckets.tryConsumeOrReserveAsync(key, rateLimiter, tokens, maxWaitNanos))
+                .thenApply(reservation -> {
+                    rememberDenial(key, pack, tokens, reservation.getProbe());
+                    return reservation;
+                });
+    }
+
+    /**
+     * All buckets are consumed or reserved by one atomic script when they could be consumed by one, see {@link #isScriptAtomic(List, List)}.
+     */
+    @Override
+    public CompletableFuture<Reservation> tryConsumeAllOrReserveAsync(List<String> keys, List<RateLimiter> rateLimiters, long tokens, long maxWaitNanos) {
+        List<BucketPack> packs = new ArrayList<>(rateLimiters.size());
+        for (RateLimiter rateLimiter : rateLimiters) {
+            packs.add(getBucketPack(rateLimiter.value()));
+        }
+        if (!proxyManager.isAsyncModeSupported() || !isScriptAtomic(keys, packs)) {
+            return RateLimitManager.super.tryConsumeAllOrReserveAsync(keys, rateLimiters, tokens, maxWaitNanos);
+        }
+        return gateByTunedLimits(keys, rateLimiters, tokens, () -> consumeAllOrReserveShared(keys, rateLimiters, packs, tokens, maxWaitNanos),
+                probe -> new Reservation(probe, 0), reservation -> reservation.getProbe().isConsumed());
+    }
+
+    private CompletableFuture<Reservation> consumeAllOrReserveShared(List<String> keys, List<RateLimiter> rateLimiters, List<BucketPack> packs,
+                                                                     long tokens, long maxWaitNanos) {
+        for (int i = 0; i < keys.size(); i++) {
+            ConsumptionProbe denied = findDenial(keys.get(i), packs.get(i), tokens);
+            if (denied != null && denied.getNanosToWaitForRefill() > maxWaitNanos) {
+                return CompletableFuture.completedFuture(new Reservation(denied, 0));
+            }
+        }
+        return consumeOrReserveByScript(keys, packs, tokens, maxWaitNanos,
+                () -> sharedBuckets.tryConsumeAllOrReserveAsync(keys, rateLimiters, tokens, maxWaitNanos));
+    }
+
+    /**
+     * @param fallback consumes or reserves in two steps, once the script failed and the circuit breaker counted the failure
+     */
+    private CompletableFuture<Reservation> consumeOrReserveByScript(List<String> keys, List<BucketPack> packs, long tokens, long maxWaitNanos,
+                                                                    Supplier<CompletableFuture<Reservation>> fallback) {
+        List<BucketConfiguration> configurations = new ArrayList<>(packs.size());
+        for (BucketPack pack : packs) {
+            configurations.add(pack.getBucketConfiguration());
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Reservation> remote;
+        try {
+            remote = scriptBucketStore.tryConsumeOrReserveAsync(keys, configurations, tokens, maxWaitNanos);
+        } catch (RuntimeException e) {
+            remote = new CompletableFuture<>();
+            remote.completeExceptionally(e);
+        }
+        return remote.handle((reservation, error) -> {
+            // one round trip decided every limiter
+            for (BucketPack pack : packs) {
+                LimiterMeters meters = metrics.limiter(pack.getName());
+                meters.consumed(start);
+                if (error != null) {
+                    meters.backendError();
+                }
+            }
+            if (error == null) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return CompletableFuture.completedFuture(reservation);
+            }
+            if (circuitBreaker == null) {
+                CompletableFuture<Reservation> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error);
+                return failed;
+            }
+            circuitBreaker.onFailure(error);
+            return fallback.get();
+        }).thenCompose(reservation -> reservation);
+    }
+
+    private static long reserve(Bucket bucket, long tokens, long maxWaitNanos) {
+        long waitNanos = bucket.consumeIgnoringRateLimits(tokens);
+        if (waitNanos > maxWaitNanos) {
+            bucket.addTokens(tokens);
+            return -1;
+        }
+        return waitNanos;
+    }
+
+    /**
+     * While the backend is unavailable, each node admits its share of the concurrent requests on its own.
+     */
+    @Override
+    public CompletableFuture<ConcurrencyPermit> tryAcquirePermitAsync(String key, RateLimiter rateLimiter) {
+        if (circuitBreaker != null && circuitBreaker.isOpen()) {
+            return localConcurrencyLimiter.tryAcquireAsync(key, Math.max(1, (rateLimiter.maxConcurrent() + expectedNodes - 1) / expectedNodes));
+        }
+        return concurrencyLimiter.tryAcquireAsync(key, rateLimiter.maxConcurrent());
+    }
+
+    /**
+     * A rejected key cannot succeed again before its refill deadline, so its retries are answered locally
+     * instead of costing a Redis round trip each.
+     *
+     * @return the cached rejection, or null if the request must be decided by the bucket
+     */
+    private ConsumptionProbe findDenial(String key, BucketPack pack, long tokens) {
+        if (denials == null) {
+            return null;
+        }
+        Denial denial = denials.getIfPresent(key);
+        if (denial == null || denial.configurationVersion != pack.getConfigurationVersion() || tokens < denial.tokens) {
+            return null;
+        }
+        long elapsed = System.nanoTime() - denial.deniedAtNanos;
+        if (elapsed >= denial.waitNanos) {
+            return null;
+        }
+        return ConsumptionProbe.rejected(0, denial.waitNanos - elapsed, Math.max(0, denial.resetNanos - elapsed));
+    }
+
+    private ConsumptionProbe rememberDenial(String key, BucketPack pack, long tokens, ConsumptionProbe probe) {
+        if (denials == null) {
+            return probe;
+        }
+        if (probe.isConsumed()) {
+            denials.invalidate(key);
+        } else if (probe.getNanosToWaitForRefill() > 0) {
+            denials.put(key, new Denial(pack, tokens, probe));
+        }
+        return probe;
+    }
+
+    /**
+     * Threads consuming from the same client key share one bucket proxy with bucket4j's batching optimization:
+     * while a remote operation is in flight, the next requests are merged into a single operation
+     * consuming the sum of their tokens, and each request still gets its own exact result.
+     */
+    private CoalescedBucket getCoalescedBucket(String key, BucketPack pack) {
+        CoalescedBucket coalesced = coalescedBuckets.get(key, k -> newCoalescedBucket(k, pack));
+        if (coalesced.configurationVersion != pack.getConfigurationVersion()) {
+            coalesced = newCoalescedBucket(key, pack);
+            coalescedBuckets.put(key, coalesced);
+        }
+        return coalesced;
+    }
+
+    private CoalescedBucket newCoalescedBucket(String key, BucketPack pack) {
+        Bucket bucket = proxyManager.builder()
+                .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                .withOptimization(Optimizations.batching())
+                .build(key, pack::getBucketConfiguration);
+        AsyncBucketProxy asyncBucket = null;
+        if (proxyManager.isAsyncModeSupported()) {
+            asyncBucket = proxyManager.asAsync().builder()
+                    .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                    .withOptimization(Optimizations.batching())
+                    .build(key, () -> CompletableFuture.completedFuture(pack.getBucketConfiguration()));
+        }
+        return new CoalescedBucket(pack, bucket, asyncBucket);
+    }
+
+    Bucket getBucket(String key, BucketPack pack) {
+        // The configuration version travels with every command: a bucket stored with an older version
+        // is migrated by the same remote operation, so there is no extra round trip to detect changes
+        return proxyManager.builder()
+                .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                .build(key, pack::getBucketConfiguration);
+    }
+
+    private Bucket getLocalBucket(String key, BucketPack pack) {
+        return localProxyManager.builder()
+                .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                .build(key, pack::getLocalBucketConfiguration);
+    }
+
+    AsyncBucketProxy getAsyncBucket(String key, BucketPack pack) {
+        return proxyManager.asAsync().builder()
+                .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                .build(key, () -> CompletableFuture.completedFuture(pack.getBucketConfiguration()));
+    }
+
+    /**
+     * Subscriber of the limits an {@link AdaptiveLimitTuner} tuned on this node. Each tuned profile is applied as a new
+     * version of a node-local pack, holding this node's share of the tuned limits like the fallback buckets do, see
+     * {@link RateLimiterProperties.Fallback#getExpectedNodes()}. A request must be admitted by the node-local bucket before
+     * it consumes the shared one, so a node backing off only cuts its own traffic and never drains the tokens other nodes
+     * share with it. A disabled profile removes the pack.
+     *
+     * @return the subscriber of the tuned profiles
+     */
+    public Subscriber<Map<String, BucketProfile>> getTunedLimits() {
+        return event -> event.forEach((name, profile) -> {
+            if (profile == null || !profile.isEnable() || profile.getBandwidths() == null) {
+                tunedConfigs.remove(name);
+                return;
+            }
+            tunedConfigs.put(name, BucketPack.builder()
+                    .name(name)
+                    .enabled(true)
+                    .version(profile.getVersion())
+                    // a new version of the pack on every tuning, so the buckets migrate to the new limits keeping their tokens
+                    .configurationVersion(tunedVersions.incrementAndGet())
+                    .bucketConfiguration(getBucketConfiguration(profile.getBandwidths(), expectedNodes))
+                    .strategy(profile.getStrategy())
+                    .lease(profile.getLease())
+                    .build());
+        });
+    }
+
+    /**
+     * Admit a request by the tuned buckets of its limiters, then by the shared ones; the tuned tokens are given back
+     * if the shared buckets reject the request or fail.
+     *
+     * @param shared   consumes the shared buckets
+     * @param rejected the result of a request the tuned buckets rejected
+     * @param taken    whether the shared buckets took the tokens
+     */
+    private <T> CompletableFuture<T> gateByTunedLimits(List<String> keys, List<RateLimiter> rateLimiters, long tokens,
+                                                       Supplier<CompletableFuture<T>> shared, Function<ConsumptionProbe, T> rejected,
+                                                       Predicate<T> taken) {
+        if (tunedConfigs.isEmpty()) {
+            return shared.get();
+        }
+        ConsumptionProbe probe = consumeTuned(keys, rateLimiters, tokens);
+        if (probe != null) {
+            return CompletableFuture.completedFuture(rejected.apply(probe));
+        }
+        CompletableFuture<T> result;
+        try {
+            result = shared.get();
+        } catch (RuntimeException e) {
+            giveBackTuned(keys, rateLimiters, tokens);
+            throw e;
+        }
+        return result.whenComplete((value, error) -> {
+            if (error != null || !taken.test(value)) {
+                giveBackTuned(keys, rateLimiters, tokens);
+            }
+        });
+    }
+
+    /**
+     * @return the probe of the tuned bucket that rejected the request, or null if all of them admitted it
+     */
+    private ConsumptionProbe consumeTuned(List<String> keys, List<RateLimiter> rateLimiters, long tokens) {
+        for (int i = 0; i < keys.size(); i++) {
+            BucketPack pack = tunedConfigs.get(rateLimiters.get(i).value());
+            if (pack == null) {
+                continue;
+            }
+            ConsumptionProbe probe = getTunedBucket(keys.get(i), pack).tryConsumeAndReturnRemaining(tunedTokens(pack, tokens));
+            if (!probe.isConsumed()) {
+                giveBackTuned(keys.subList(0, i), rateLimiters.subList(0, i), tokens);
+                return probe;
+            }
+        }
+        return null;
+    }
+
+    private void giveBackTuned(List<String> keys, List<RateLimiter> rateLimiters, long tokens) {
+        if (tunedConfigs.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            BucketPack pack = tunedConfigs.get(rateLimiters.get(i).value());
+            if (pack != null) {
+                getTunedBucket(keys.get(i), pack).addTokens(tunedTokens(pack, tokens));
+            }
+        }
+    }
+
+    private void chargeTuned(String key, RateLimiter rateLimiter, long tokens) {
+        BucketPack pack = tunedConfigs.isEmpty() ? null : tunedConfigs.get(rateLimiter.value());
+        if (pack != null) {
+            getTunedBucket(key, pack).consumeIgnoringRateLimits(tunedTokens(pack, tokens));
+        }
+    }
+
+    /**
+     * A request costing more than a tuned bucket can ever hold takes the whole bucket instead of being rejected for good.
+     */
+    private static long tunedTokens(BucketPack pack, long tokens) {
+        long capacity = Long.MAX_VALUE;
+        for (io.github.bucket4j.Bandwidth bandwidth : pack.getBucketConfiguration().getBandwidths()) {
+            capacity = Math.min(capacity, bandwidth.getCapacity());
+        }
+        return Math.min(tokens, capacity);
+    }
+
+    private Bucket getTunedBucket(String key, BucketPack pack) {
+        return tunedProxyManager.builder()
+                .withImplicitConfigurationReplacement(pack.getConfigurationVersion(), TokensInheritanceStrategy.AS_IS)
+                .build(key, pack::getBucketConfiguration);
+    }
+
+    BucketPack getBucketPack(String bucketName) {
+        BucketPack pack = bucketConfigs.get(bucketName);
+        if (pack != null) {
+            return pack;
         }
         // no bucket exists because of no bucket configuration or bucket already disabled
-        throw new IllegalStateException("No bucket configuration found for key: " + rateLimiter.value());
+        throw new IllegalStateException("No bucket configuration found for key: " + bucketName);
+    }
+
+    BucketPack findBucketPack(String bucketName) {
+        return bucketConfigs.get(bucketName);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        leasingRateLimitManager.shutdown();
+        concurrencyLimiter.shutdown();
+        if (circuitBreaker != null) {
+            circuitBreaker.shutdown();
+        }
+    }
+
+    /**
+     * The shared buckets alone, for the fallbacks of the operations already admitted by the tuned buckets.
+     */
+    private final class SharedBuckets implements RateLimitManager {
+        @Override
+        public Bucket getBucket(String clientKey, RateLimiter rateLimiter) {
+            return DefaultRateLimitManager.this.getBucket(clientKey, rateLimiter);
+        }
+
+        @Override
+        public ConsumptionProbe tryConsume(String clientKey, RateLimiter rateLimiter, long tokens) {
+            return consumeShared(clientKey, rateLimiter, tokens);
+        }
+
+        @Override
+        public CompletableFuture<ConsumptionProbe> tryConsumeAsync(String clientKey, RateLimiter rateLimiter, long tokens) {
+            return consumeSharedAsync(clientKey, rateLimiter, tokens);
+        }
+
+        @Override
+        public CompletableFuture<ConsumptionProbe> tryConsumeAllAsync(List<String> clientKeys, List<RateLimiter> rateLimiters, long tokens) {
+            return consumeAllSharedAsync(clientKeys, rateLimiters, tokens);
+        }
+
+        @Override
+        public void addTokens(String clientKey, RateLimiter rateLimiter, long tokens) {
+            addSharedTokens(clientKey, rateLimiter, tokens);
+        }
+
+        @Override
+        public CompletableFuture<Long> reserveAsync(String clientKey, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+            return reserveShared(clientKey, rateLimiter, tokens, maxWaitNanos);
+        }
+    }
+
+    private static final class Denial {
+        private final long configurationVersion;
+        private final long tokens;
+        private final long deniedAtNanos;
+        private final long waitNanos;
+        private final long resetNanos;
+
+        private Denial(BucketPack pack, long tokens, ConsumptionProbe probe) {
+            this.configurationVersion = pack.getConfigurationVersion();
+            this.tokens = tokens;
+            this.deniedAtNanos = System.nanoTime();
+            this.waitNanos = probe.getNanosToWaitForRefill();
+            this.resetNanos = probe.getNanosToWaitForReset();
+        }
+    }
+
+    private static final class CoalescedBucket {
+        private final long configurationVersion;
+        private final Bucket bucket;
+        private final AsyncBucketProxy asyncBucket;
+
+        private CoalescedBucket(BucketPack pack, Bucket bucket, AsyncBucketProxy asyncBucket) {
+            this.configurationVersion = pack.getConfigurationVersion();
+            this.bucket = bucket;
+            this.asyncBucket = asyncBucket;
+        }
     }
 }
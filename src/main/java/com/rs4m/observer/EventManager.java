@@ -36,7 +36,7 @@ public class EventManager implements Publisher<Map<String, BucketProfile>> {
         for (Subscriber<Map<String, BucketProfile>> subscriber : subscribers) {
             try {
                 subscriber.update(event);
-                log.info("Notified subscriber: {}", subscriber.getClass().getSimpleName());
+                log.debug("Notified subscriber: {}", subscriber.getClass().getSimpleName());
             } catch (Exception e) {
                 log.error("Error notifying subscriber {}: {}", subscriber.getClass().getSimpleName(), e.getMessage(), e);
             }
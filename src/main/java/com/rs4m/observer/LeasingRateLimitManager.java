@@ -0,0 +1,239 @@
+package com.rs4m.observer;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimitProfileProperties.Lease;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.distributed.AsyncBucketProxy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit manager that leases chunks of tokens from the shared bucket and serves decisions
+ * from a local lock-free counter until the lease runs out or expires.
+ * <p>
+ * Leased tokens are consumed from the shared bucket up front, so the cluster never admits more than the
+ * bucket allows over time; the error is bounded by the lease size per node: tokens leased by one node
+ * are not available to the others until they are used or returned on expiry.
+ */
+@Slf4j
+public class LeasingRateLimitManager implements RateLimitManager {
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final DefaultRateLimitManager remote;
+    private final ConcurrentMap<String, TokenLease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public LeasingRateLimitManager(DefaultRateLimitManager remote) {
+        this.remote = remote;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rs4m-lease-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(this::returnExpiredLeases, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Bucket getBucket(String clientKey, RateLimiter rateLimiter) {
+        return remote.getBucket(clientKey, rateLimiter);
+    }
+
+    @Override
+    public ConsumptionProbe tryConsume(String clientKey, RateLimiter rateLimiter, long tokens) {
+        return tryConsume(clientKey, remote.getBucketPack(rateLimiter.value()), tokens);
+    }
+
+    ConsumptionProbe tryConsume(String clientKey, BucketPack pack, long tokens) {
+        long now = System.nanoTime();
+        TokenLease lease = leases.computeIfAbsent(clientKey, key -> new TokenLease(pack.getName()));
+
+        // fast path: serve from the local lease
+        if (lease.isValid(pack, now)) {
+            long remaining = lease.tryTake(tokens);
+            if (remaining >= 0) {
+                return ConsumptionProbe.consumed(remaining, 0);
+            }
+        }
+
+        // only one thread renews a lease, the others go straight to the shared bucket meanwhile
+        if (!lease.renewing.compareAndSet(false, true)) {
+            return remote.getBucket(clientKey, pack).tryConsumeAndReturnRemaining(tokens);
+        }
+        try {
+            if (lease.retired) {
+                return remote.getBucket(clientKey, pack).tryConsumeAndReturnRemaining(tokens);
+            }
+            return renew(clientKey, lease, pack, tokens, now);
+        } finally {
+            lease.renewing.set(false);
+        }
+    }
+
+    @Override
+    public CompletableFuture<ConsumptionProbe> tryConsumeAsync(String clientKey, RateLimiter rateLimiter, long tokens) {
+        return tryConsumeAsync(clientKey, remote.getBucketPack(rateLimiter.value()), tokens);
+    }
+
+    CompletableFuture<ConsumptionProbe> tryConsumeAsync(String clientKey, BucketPack pack, long tokens) {
+        long now = System.nanoTime();
+        TokenLease lease = leases.computeIfAbsent(clientKey, key -> new TokenLease(pack.getName()));
+
+        if (lease.isValid(pack, now)) {
+            long remaining = lease.tryTake(tokens);
+            if (remaining >= 0) {
+                return CompletableFuture.completedFuture(ConsumptionProbe.consumed(remaining, 0));
+            }
+        }
+
+        if (!lease.renewing.compareAndSet(false, true)) {
+            return remote.getAsyncBucket(clientKey, pack).tryConsumeAndReturnRemaining(tokens);
+        }
+        CompletableFuture<ConsumptionProbe> result;
+        try {
+            result = lease.retired
+                    ? remote.getAsyncBucket(clientKey, pack).tryConsumeAndReturnRemaining(tokens)
+                    : renewAsync(clientKey, lease, pack, tokens, now);
+        } catch (RuntimeException e) {
+            lease.renewing.set(false);
+            throw e;
+        }
+        return result.whenComplete((probe, error) -> lease.renewing.set(false));
+    }
+
+    private ConsumptionProbe renew(String clientKey, TokenLease lease, BucketPack pack, long tokens, long now) {
+        Bucket bucket = remote.getBucket(clientKey, pack);
+        long leftover = lease.available.getAndSet(0);
+        if (leftover > 0) {
+            // the previous lease expired or was issued for an older configuration
+            bucket.addTokens(leftover);
+        }
+
+        long granted = bucket.tryConsumeAsMuchAsPossible(nextLeaseSize(lease, pack.getLease(), leftover, now) + tokens);
+        if (granted >= tokens) {
+            lease.install(granted - tokens, pack, now + TimeUnit.MILLISECONDS.toNanos(pack.getLease().getTtlMillis()), now);
+            return ConsumptionProbe.consumed(granted - tokens, 0);
+        }
+
+        // not enough tokens for this request, give back the partial grant and let the bucket answer
+        lease.expire();
+        if (granted > 0) {
+            bucket.addTokens(granted);
+        }
+        return bucket.tryConsumeAndReturnRemaining(tokens);
+    }
+
+    private CompletableFuture<ConsumptionProbe> renewAsync(String clientKey, TokenLease lease, BucketPack pack, long tokens, long now) {
+        AsyncBucketProxy bucket = remote.getAsyncBucket(clientKey, pack);
+        long leftover = lease.available.getAndSet(0);
+        long size = nextLeaseSize(lease, pack.getLease(), leftover, now);
+        CompletableFuture<Void> returned = leftover > 0 ? bucket.addTokens(leftover) : CompletableFuture.completedFuture(null);
+
+        return returned
+                .thenCompose(ignored -> bucket.tryConsumeAsMuchAsPossible(size + tokens))
+                .thenCompose(granted -> {
+                    if (granted >= tokens) {
+                        lease.install(granted - tokens, pack, now + TimeUnit.MILLISECONDS.toNanos(pack.getLease().getTtlMillis()), now);
+                        return CompletableFuture.completedFuture(ConsumptionProbe.consumed(granted - tokens, 0));
+                    }
+                    lease.expire();
+                    CompletableFuture<Void> givenBack = granted > 0 ? bucket.addTokens(granted) : CompletableFuture.completedFuture(null);
+                    return givenBack.thenCompose(ignored -> bucket.tryConsumeAndReturnRemaining(tokens));
+                });
+    }
+
+    private long nextLeaseSize(TokenLease lease, Lease settings, long leftover, long now) {
+        long maxSize = Math.max(1, settings.getSize());
+        long elapsed = now - lease.grantedAtNanos;
+        if (!settings.isAdaptive() || lease.granted == 0 || elapsed <= 0) {
+            return maxSize;
+        }
+        // lease what this node is expected to use during one lease period
+        double rate = (double) (lease.granted - leftover) / elapsed;
+        long expected = (long) Math.ceil(rate * TimeUnit.MILLISECONDS.toNanos(settings.getTtlMillis()));
+        return Math.max(1, Math.min(maxSize, expected));
+    }
+
+    private void returnExpiredLeases() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, TokenLease> entry : leases.entrySet()) {
+            TokenLease lease = entry.getValue();
+            if (now < lease.expiresAtNanos || !lease.renewing.compareAndSet(false, true)) {
+                continue;
+            }
+            try {
+                long leftover = lease.available.getAndSet(0);
+                BucketPack pack = remote.findBucketPack(lease.profile);
+                if (leftover > 0 && pack != null) {
+                    remote.getBucket(entry.getKey(), pack).addTokens(leftover);
+                }
+                // threads still holding this lease must not renew it once it left the map
+                lease.retired = true;
+                leases.remove(entry.getKey(), lease);
+            } catch (Exception e) {
+                log.warn("Failed to return leased tokens of '{}' to bucket '{}'", entry.getKey(), lease.profile, e);
+            } finally {
+                lease.renewing.set(false);
+            }
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private static final class TokenLease {
+        private final String profile;
+        private final AtomicLong available = new AtomicLong();
+        private final AtomicBoolean renewing = new AtomicBoolean();
+        private volatile long expiresAtNanos = Long.MIN_VALUE;
+        private volatile long configurationVersion;
+        private volatile long grantedAtNanos;
+        private volatile long granted;
+        private volatile boolean retired;
+
+        private TokenLease(String profile) {
+            this.profile = profile;
+        }
+
+        private boolean isValid(BucketPack pack, long now) {
+            return now < expiresAtNanos && configurationVersion == pack.getConfigurationVersion();
+        }
+
+        /**
+         * @return the tokens left in the lease, or -1 if the lease does not hold enough tokens
+         */
+        private long tryTake(long tokens) {
+            while (true) {
+                long current = available.get();
+                if (current < tokens) {
+                    return -1;
+                }
+                if (available.compareAndSet(current, current - tokens)) {
+                    return current - tokens;
+                }
+            }
+        }
+
+        private void install(long tokens, BucketPack pack, long expiresAtNanos, long now) {
+            this.granted = tokens;
+            this.grantedAtNanos = now;
+            this.configurationVersion = pack.getConfigurationVersion();
+            this.available.set(tokens);
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        private void expire() {
+            this.expiresAtNanos = Long.MIN_VALUE;
+        }
+    }
+}
@@ -1,8 +1,282 @@
 package com.rs4m.observer;
 
 import com.rs4m.annotation.RateLimiter;
+import com.rs4m.proxy.Reservation;
 import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public interface RateLimitManager {
     Bucket getBucket(String clientKey, RateLimiter rateLimiter);
+
+    /**
+     * Try to consume tokens on behalf of a client.
+     * Implementations may answer without touching the bucket returned by {@link #getBucket(String, RateLimiter)}.
+     *
+     * @param clientKey   the client key
+     * @param rateLimiter the rate limiter annotation
+     * @param tokens      the number of tokens to consume
+     * @return the consumption probe
+     */
+    default ConsumptionProbe tryConsume(String clientKey, RateLimiter rateLimiter, long tokens) {
+        return getBucket(clientKey, rateLimiter).tryConsumeAndReturnRemaining(tokens);
+    }
+
+    /**
+     * Non-blocking variant of {@link #tryConsume(String, RateLimiter, long)}.
+     * The default implementation blocks the calling thread; implementations backed by a remote store should override it.
+     *
+     * @param clientKey   the client key
+     * @param rateLimiter the rate limiter annotation
+     * @param tokens      the number of tokens to consume
+     * @return a future completed with the consumption probe
+     */
+    default CompletableFuture<ConsumptionProbe> tryConsumeAsync(String clientKey, RateLimiter rateLimiter, long tokens) {
+        return CompletableFuture.completedFuture(tryConsume(clientKey, rateLimiter, tokens));
+    }
+
+    /**
+     * Try to consume tokens from the buckets of several rate limiters: the request is allowed only if every bucket allows it,
+     * and the tokens taken from the others are given back if one of them rejects. This is not atomic unless an implementation
+     * says otherwise: concurrent requests may briefly see the tokens taken before they are given back, and may be rejected for it.
+     * The default implementation consumes one bucket after the other.
+     *
+     * @param clientKeys   the client key of each rate limiter
+     * @param rateLimiters the rate limiter annotations
+     * @param tokens       the number of tokens to consume from each bucket
+     * @return the probe of the rejecting rate limiter, or the consumed probe with the fewest remaining tokens
+     */
+    default ConsumptionProbe tryConsumeAll(List<String> clientKeys, List<RateLimiter> rateLimiters, long tokens) {
+        ConsumptionProbe result = null;
+        for (int i = 0; i < clientKeys.size(); i++) {
+            ConsumptionProbe probe = tryConsume(clientKeys.get(i), rateLimiters.get(i), tokens);
+            if (!probe.isConsumed()) {
+                for (int j = 0; j < i; j++) {
+                    addTokens(clientKeys.get(j), rateLimiters.get(j), tokens);
+                }
+                return probe;
+            }
+            if (result == null || probe.getRemainingTokens() < result.getRemainingTokens()) {
+                result = probe;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Non-blocking variant of {@link #tryConsumeAll(List, List, long)}, with the same guarantee.
+     * The default implementation consumes from every bucket in parallel with {@link #tryConsumeAsync(String, RateLimiter, long)}.
+     *
+     * @param clientKeys   the client key of each rate limiter
+     * @param rateLimiters the rate limiter annotations
+     * @param tokens       the number of tokens to consume from each bucket
+     * @return a future completed with the probe of the rejecting rate limiter that waits the longest,
+     * or the consumed probe with the fewest remaining tokens
+     */
+    default CompletableFuture<ConsumptionProbe> tryConsumeAllAsync(List<String> clientKeys, List<RateLimiter> rateLimiters, long tokens) {
+        List<CompletableFuture<ConsumptionProbe>> probes = new ArrayList<>(clientKeys.size());
+        for (int i = 0; i < clientKeys.size(); i++) {
+            CompletableFuture<ConsumptionProbe> probe;
+            try {
+                probe = tryConsumeAsync(clientKeys.get(i), rateLimiters.get(i), tokens);
+            } catch (RuntimeException e) {
+                probe = new CompletableFuture<>();
+                probe.completeExceptionally(e);
+            }
+            probes.add(probe);
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            ConsumptionProbe consumed = null;
+            ConsumptionProbe rejected = null;
+            for (CompletableFuture<ConsumptionProbe> probe : probes) {
+                if (probe.isCompletedExceptionally()) {
+                    continue;
+                }
+                if (!probe.join().isConsumed()) {
+                    if (rejected == null || probe.join().getNanosToWaitForRefill() > rejected.getNanosToWaitForRefill()) {
+                        rejected = probe.join();
+                    }
+                } else if (consumed == null || probe.join().getRemainingTokens() < consumed.getRemainingTokens()) {
+                    consumed = probe.join();
+                }
+            }
+            if (error == null && rejected == null) {
+                return consumed;
+            }
+            for (int i = 0; i < probes.size(); i++) {
+                if (!probes.get(i).isCompletedExceptionally() && probes.get(i).join().isConsumed()) {
+                    addTokens(clientKeys.get(i), rateLimiters.get(i), tokens);
+                }
+            }
+            if (error != null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return rejected;
+        });
+    }
+
+    /**
+     * Check, once at startup, that the buckets of the rate limiters of one handler can be consumed together by
+     * {@link #tryConsumeAll(List, List, long)}. An implementation that consumes them atomically rejects the combinations
+     * it cannot consume atomically, rather than silently falling back to giving tokens back.
+     * The default implementation accepts every combination.
+     *
+     * @param rateLimiters the rate limiter annotations of the handler
+     * @throws IllegalStateException if the buckets cannot be consumed together
+     */
+    default void checkConsumeAll(List<RateLimiter> rateLimiters) {
+    }
+
+    /**
+     * Give tokens back to the bucket of a client, e.g. when another rate limiter of the same request rejected it.
+     *
+     * @param clientKey   the client key
+     * @param rateLimiter the rate limiter annotation
+     * @param tokens      the number of tokens to give back
+     */
+    default void addTokens(String clientKey, RateLimiter rateLimiter, long tokens) {
+        getBucket(clientKey, rateLimiter).addTokens(tokens);
+    }
+
+    /**
+     * Consume tokens from the bucket of a client even if it does not have enough, e.g. when a request turned out
+     * to cost more than was charged up front. The bucket may go negative, delaying the next requests of the client.
+     *
+     * @param clientKey   the client key
+     * @param rateLimiter the rate limiter annotation
+     * @param tokens      the number of tokens to consume
+     */
+    default void chargeTokens(String clientKey, RateLimiter rateLimiter, long tokens) {
+        getBucket(clientKey, rateLimiter).consumeIgnoringRateLimits(tokens);
+    }
+
+    /**
+     * Reserve tokens ahead of the refill of the bucket of a client: they are consumed even if the bucket does not have enough,
+     * leaving it negative, unless the client would wait longer than {@code maxWaitNanos} for them to be refilled.
+     * The default implementation charges the tokens and gives them back if the wait is too long.
+     *
+     * @param clientKey    the client key
+     * @param rateLimiter  the rate limiter annotation
+     * @param tokens       the number of tokens to reserve
+     * @param maxWaitNanos the longest time to wait for the tokens to be refilled
+     * @return a future completed with the nanoseconds until the reserved tokens are available, 0 if they were,
+     * or -1 if nothing was reserved
+     */
+    default CompletableFuture<Long> reserveAsync(String clientKey, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+        Bucket bucket = getBucket(clientKey, rateLimiter);
+        long waitNanos = bucket.consumeIgnoringRateLimits(tokens);
+        if (waitNanos > maxWaitNanos) {
+            bucket.addTokens(tokens);
+            return CompletableFuture.completedFuture(-1L);
+        }
+        return CompletableFuture.completedFuture(waitNanos);
+    }
+
+    /**
+     * Reserve tokens from the buckets of several rate limiters: if one of them would wait too long, the tokens reserved
+     * from the others are given back, with the same guarantee as {@link #tryConsumeAll(List, List, long)}.
+     * The default implementation reserves from every bucket in parallel.
+     *
+     * @param clientKeys   the client key of each rate limiter
+     * @param rateLimiters the rate limiter annotations
+     * @param tokens       the number of tokens to reserve from each bucket
+     * @param maxWaitNanos the longest time to wait for the tokens to be refilled
+     * @return a future completed with the longest wait of all buckets, or -1 if nothing was reserved
+     */
+    default CompletableFuture<Long> reserveAllAsync(List<String> clientKeys, List<RateLimiter> rateLimiters, long tokens, long maxWaitNanos) {
+        List<CompletableFuture<Long>> waits = new ArrayList<>(clientKeys.size());
+        for (int i = 0; i < clientKeys.size(); i++) {
+            CompletableFuture<Long> wait;
+            try {
+                wait = reserveAsync(clientKeys.get(i), rateLimiters.get(i), tokens, maxWaitNanos);
+            } catch (RuntimeException e) {
+                wait = new CompletableFuture<>();
+                wait.completeExceptionally(e);
+            }
+            waits.add(wait);
+        }
+        return CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            long longest = 0;
+            boolean reserved = error == null;
+            for (CompletableFuture<Long> wait : waits) {
+                if (!wait.isCompletedExceptionally()) {
+                    reserved &= wait.join() >= 0;
+                    longest = Math.max(longest, wait.join());
+                }
+            }
+            if (reserved) {
+                return longest;
+            }
+            for (int i = 0; i < waits.size(); i++) {
+                if (!waits.get(i).isCompletedExceptionally() && waits.get(i).join() >= 0) {
+                    addTokens(clientKeys.get(i), rateLimiters.get(i), tokens);
+                }
+            }
+            if (error != null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            return -1L;
+        });
+    }
+
+    /**
+     * Consume tokens from the bucket of a client, or reserve them ahead of the refill if the client would wait at most
+     * {@code maxWaitNanos} for them, see {@link #reserveAsync(String, RateLimiter, long, long)}.
+     * The default implementation reserves the tokens in a second step once {@link #tryConsumeAsync(String, RateLimiter, long)}
+     * rejected them; another request may reserve them first in between, and the request is rejected.
+     *
+     * @param clientKey    the client key
+     * @param rateLimiter  the rate limiter annotation
+     * @param tokens       the number of tokens to consume
+     * @param maxWaitNanos the longest time to wait for the tokens to be refilled
+     * @return a future completed with the reservation, with the rejected probe if the tokens are neither available nor reserved
+     */
+    default CompletableFuture<Reservation> tryConsumeOrReserveAsync(String clientKey, RateLimiter rateLimiter, long tokens, long maxWaitNanos) {
+        return tryConsumeAsync(clientKey, rateLimiter, tokens).thenCompose(probe -> {
+            if (probe.isConsumed() || probe.getNanosToWaitForRefill() > maxWaitNanos) {
+                return CompletableFuture.completedFuture(new Reservation(probe, 0));
+            }
+            return reserveAsync(clientKey, rateLimiter, tokens, maxWaitNanos).thenApply(waitNanos -> waitNanos < 0
+                    ? new Reservation(probe, 0)
+                    : new Reservation(ConsumptionProbe.consumed(0, waitNanos), waitNanos));
+        });
+    }
+
+    /**
+     * Consume tokens from the buckets of several rate limiters, or reserve them ahead of the refill, with the same
+     * guarantee as {@link #tryConsumeAll(List, List, long)}. The default implementation reserves the tokens in a second
+     * step, see {@link #tryConsumeOrReserveAsync(String, RateLimiter, long, long)}.
+     *
+     * @param clientKeys   the client key of each rate limiter
+     * @param rateLimiters the rate limiter annotations
+     * @param tokens       the number of tokens to consume from each bucket
+     * @param maxWaitNanos the longest time to wait for the tokens to be refilled
+     * @return a future completed with the reservation of all buckets, with the rejected probe if nothing is reserved
+     */
+    default CompletableFuture<Reservation> tryConsumeAllOrReserveAsync(List<String> clientKeys, List<RateLimiter> rateLimiters, long tokens, long maxWaitNanos) {
+        return tryConsumeAllAsync(clientKeys, rateLimiters, tokens).thenCompose(probe -> {
+            if (probe.isConsumed() || probe.getNanosToWaitForRefill() > maxWaitNanos) {
+                return CompletableFuture.completedFuture(new Reservation(probe, 0));
+            }
+            return reserveAllAsync(clientKeys, rateLimiters, tokens, maxWaitNanos).thenApply(waitNanos -> waitNanos < 0
+                    ? new Reservation(probe, 0)
+                    : new Reservation(ConsumptionProbe.consumed(0, waitNanos), waitNanos));
+        });
+    }
+
+    /**
+     * Try to take one of the {@link RateLimiter#maxConcurrent()} permits of a client, to be released once its request is complete.
+     * The default implementation limits the requests in flight on this node only.
+     *
+     * @param clientKey   the client key
+     * @param rateLimiter the rate limiter annotation
+     * @return a future completed with the permit, or with null if the client has the maximum number of requests in flight
+     */
+    default CompletableFuture<ConcurrencyPermit> tryAcquirePermitAsync(String clientKey, RateLimiter rateLimiter) {
+        return ConcurrencyLimiter.LOCAL.tryAcquireAsync(clientKey, rateLimiter.maxConcurrent());
+    }
 }
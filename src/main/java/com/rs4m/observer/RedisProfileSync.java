@@ -0,0 +1,156 @@
+package com.rs4m.observer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RScript.Mode;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.BaseStatusListener;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Propagates bucket profile updates to every node through Redis.
+ * <p>
+ * A published profile is stored in Redis and announced on a pub/sub channel by one atomic script, only if its version
+ * is newer than the stored one. Every node applies the announcements it receives through the {@link EventManager},
+ * and reads the stored profiles when it starts or resubscribes, so new nodes get the latest profiles instead of the
+ * ones of their YAML. The request path is not involved: profiles are swapped one by one in the rate limit manager.
+ */
+@Slf4j
+public class RedisProfileSync {
+    private static final String SCRIPT_LOCATION = "rs4m/scripts/publish_profile.lua";
+    private static final TypeReference<Map<String, BucketProfile>> ANNOUNCEMENT = new TypeReference<Map<String, BucketProfile>>() {
+    };
+
+    private final RedissonClient redissonClient;
+    private final Publisher<Map<String, BucketProfile>> eventManager;
+    private final RScript script;
+    private final String source;
+    private final String profilesKey;
+    private final String versionsKey;
+    private final String channel;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private RTopic topic;
+    private int messageListener;
+    private int statusListener;
+
+    /**
+     * @param keyPrefix name of the channel, and hash tag of the keys the profiles are stored under
+     */
+    public RedisProfileSync(RedissonClient redissonClient, Publisher<Map<String, BucketProfile>> eventManager, String keyPrefix) {
+        this.redissonClient = redissonClient;
+        this.eventManager = eventManager;
+        this.script = redissonClient.getScript(StringCodec.INSTANCE);
+        this.source = loadScript(SCRIPT_LOCATION);
+        this.profilesKey = "{" + keyPrefix + "}:profiles";
+        this.versionsKey = "{" + keyPrefix + "}:versions";
+        this.channel = keyPrefix;
+    }
+
+    public void start() {
+        topic = redissonClient.getTopic(channel, StringCodec.INSTANCE);
+        messageListener = topic.addListener(String.class, (channel, message) -> apply(message));
+        // announcements are lost while unsubscribed, catch up from the store on every (re)subscription
+        statusListener = topic.addListener(new BaseStatusListener() {
+            @Override
+            public void onSubscribe(String channel) {
+                reload();
+            }
+        });
+        reload();
+    }
+
+    public void shutdown() {
+        if (topic != null) {
+            topic.removeListener(messageListener, statusListener);
+        }
+    }
+
+    /**
+     * Store the profiles and announce them to every node, this one included.
+     *
+     * @param profiles the profiles by name
+     * @return the names of the profiles not published because the stored version is the same or newer
+     * @throws IllegalArgumentException if a profile version is not valid
+     */
+    public List<String> publish(Map<String, BucketProfile> profiles) {
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, BucketProfile> entry : profiles.entrySet()) {
+            String version = String.format("%016x", BucketPack.toConfigurationVersion(entry.getValue().getVersion()));
+            String profile = toJson(entry.getValue());
+            String announcement = toJson(Collections.singletonMap(entry.getKey(), entry.getValue()));
+            Long stored = script.eval(profilesKey, Mode.READ_WRITE, source, ReturnType.INTEGER,
+                    Arrays.asList(profilesKey, versionsKey), entry.getKey(), version, profile, channel, announcement);
+            if (stored == null || stored == 0) {
+                stale.add(entry.getKey());
+            }
+        }
+        return stale;
+    }
+
+    private void apply(String message) {
+        try {
+            eventManager.notify(objectMapper.readValue(message, ANNOUNCEMENT));
+        } catch (IOException e) {
+            log.error("Ignoring unreadable bucket profile announcement on {}: {}", channel, message, e);
+        }
+    }
+
+    private void reload() {
+        Map<String, String> stored;
+        try {
+            stored = redissonClient.<String, String>getMap(profilesKey, StringCodec.INSTANCE).readAllMap();
+        } catch (Exception e) {
+            log.warn("Failed to read bucket profiles from {}, keeping the current ones", profilesKey, e);
+            return;
+        }
+        Map<String, BucketProfile> profiles = new LinkedHashMap<>();
+        stored.forEach((name, profile) -> {
+            try {
+                profiles.put(name, objectMapper.readValue(profile, BucketProfile.class));
+            } catch (IOException e) {
+                log.error("Ignoring unreadable stored bucket profile '{}'", name, e);
+            }
+        });
+        if (!profiles.isEmpty()) {
+            log.info("Applying {} bucket profile(s) stored in {}", profiles.size(), profilesKey);
+            eventManager.notify(profiles);
+        }
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Bucket profile cannot be serialized", e);
+        }
+    }
+
+    private static String loadScript(String location) {
+        try (InputStream in = new ClassPathResource(location).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load script " + location, e);
+        }
+    }
+}
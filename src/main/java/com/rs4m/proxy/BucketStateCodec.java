@@ -0,0 +1,32 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.serialization.InternalSerializationHelper;
+import io.github.bucket4j.distributed.versioning.Versions;
+
+/**
+ * Binary format of the bucket state stored under each client key by {@link CodecRedissonProxyManager}.
+ */
+public interface BucketStateCodec {
+    /**
+     * The generic format of bucket4j, as written by {@link io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager}.
+     */
+    BucketStateCodec BUCKET4J = new BucketStateCodec() {
+        @Override
+        public byte[] encode(RemoteBucketState state) {
+            return InternalSerializationHelper.serializeState(state, Versions.getLatest());
+        }
+
+        @Override
+        public RemoteBucketState decode(byte[] data) {
+            return InternalSerializationHelper.deserializeState(data);
+        }
+    };
+
+    byte[] encode(RemoteBucketState state);
+
+    /**
+     * @throws IllegalStateException if the data is not in a format known by this codec
+     */
+    RemoteBucketState decode(byte[] data);
+}
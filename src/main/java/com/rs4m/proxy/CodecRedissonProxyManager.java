@@ -0,0 +1,173 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.TimeoutException;
+import io.github.bucket4j.distributed.ExpirationAfterWriteStrategy;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AbstractCompareAndSwapBasedProxyManager;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.AsyncCompareAndSwapOperation;
+import io.github.bucket4j.distributed.proxy.generic.compare_and_swap.CompareAndSwapOperation;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.serialization.InternalSerializationHelper;
+import io.github.bucket4j.distributed.versioning.Versions;
+import org.redisson.api.RFuture;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.protocol.RedisCommand;
+import org.redisson.client.protocol.RedisCommands;
+import org.redisson.client.protocol.convertor.BooleanNotNullReplayConvertor;
+import org.redisson.command.CommandAsyncExecutor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare-and-swap {@link io.github.bucket4j.distributed.proxy.ProxyManager} over Redisson, like
+ * {@link io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager}, that stores bucket state in the format
+ * of a {@link BucketStateCodec}.
+ * <p>
+ * Bucket4j commands still see their own format: state read from Redis is translated before the command runs, and the
+ * compare-and-swap compares against the bytes actually read, so the translation never causes a spurious retry.
+ * Asynchronous calls are bounded by the Redisson response timeout only.
+ */
+public class CodecRedissonProxyManager extends AbstractCompareAndSwapBasedProxyManager<String> {
+    private static final RedisCommand<Boolean> SET = new RedisCommand<>("SET", new BooleanNotNullReplayConvertor());
+    private static final String SWAP_WITH_TTL_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then redis.call('psetex', KEYS[1], ARGV[3], ARGV[2]); return 1; else return 0; end";
+    private static final String SWAP_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then redis.call('set', KEYS[1], ARGV[2]); return 1; else return 0; end";
+
+    private final CommandAsyncExecutor commandExecutor;
+    private final BucketStateCodec codec;
+    private final ExpirationAfterWriteStrategy expirationStrategy;
+
+    public CodecRedissonProxyManager(CommandAsyncExecutor commandExecutor, BucketStateCodec codec, ExpirationAfterWriteStrategy expirationStrategy) {
+        this(commandExecutor, codec, ClientSideConfig.getDefault().withExpirationAfterWriteStrategy(expirationStrategy));
+    }
+
+    /**
+     * @param clientSideConfig the client side config, keys never expire unless it sets an expiration strategy
+     */
+    public CodecRedissonProxyManager(CommandAsyncExecutor commandExecutor, BucketStateCodec codec, ClientSideConfig clientSideConfig) {
+        super(clientSideConfig);
+        this.commandExecutor = commandExecutor;
+        this.codec = codec;
+        this.expirationStrategy = clientSideConfig.getExpirationAfterWriteStrategy().orElseGet(ExpirationAfterWriteStrategy::none);
+    }
+
+    @Override
+    public boolean isExpireAfterWriteSupported() {
+        return true;
+    }
+
+    @Override
+    protected CompareAndSwapOperation beginCompareAndSwapOperation(String key) {
+        return new CompareAndSwapOperation() {
+            private byte[] stored;
+
+            @Override
+            public Optional<byte[]> getStateData(Optional<Long> timeoutNanos) {
+                stored = getWithTimeout(read(key), timeoutNanos);
+                return Optional.ofNullable(toBucket4jFormat(stored));
+            }
+
+            @Override
+            public boolean compareAndSwap(byte[] originalData, byte[] newData, RemoteBucketState newState, Optional<Long> timeoutNanos) {
+                return getWithTimeout(swap(key, stored, newState), timeoutNanos);
+            }
+        };
+    }
+
+    @Override
+    protected AsyncCompareAndSwapOperation beginAsyncCompareAndSwapOperation(String key) {
+        return new AsyncCompareAndSwapOperation() {
+            private byte[] stored;
+
+            @Override
+            public CompletableFuture<Optional<byte[]>> getStateData(Optional<Long> timeoutNanos) {
+                return read(key).toCompletableFuture().thenApply(data -> {
+                    stored = data;
+                    return Optional.ofNullable(toBucket4jFormat(data));
+                });
+            }
+
+            @Override
+            public CompletableFuture<Boolean> compareAndSwap(byte[] originalData, byte[] newData, RemoteBucketState newState, Optional<Long> timeoutNanos) {
+                return swap(key, stored, newState).toCompletableFuture();
+            }
+        };
+    }
+
+    @Override
+    public void removeProxy(String key) {
+        commandExecutor.get(commandExecutor.writeAsync(key, RedisCommands.DEL_VOID, key));
+    }
+
+    @Override
+    protected CompletableFuture<Void> removeAsync(String key) {
+        return commandExecutor.writeAsync(key, RedisCommands.DEL_VOID, key).toCompletableFuture().thenApply(result -> null);
+    }
+
+    @Override
+    public boolean isAsyncModeSupported() {
+        return true;
+    }
+
+    private RFuture<byte[]> read(String key) {
+        return commandExecutor.readAsync(key, ByteArrayCodec.INSTANCE, RedisCommands.GET, key);
+    }
+
+    /**
+     * Write the new state if the key still holds the bytes that were read, or is still absent if nothing was read.
+     */
+    private RFuture<Boolean> swap(String key, byte[] stored, RemoteBucketState newState) {
+        byte[] newData = codec.encode(newState);
+        long ttlMillis = calculateTtlMillis(newState);
+        List<Object> keys = Collections.singletonList(key);
+        if (ttlMillis > 0) {
+            if (stored == null) {
+                return commandExecutor.writeAsync(key, ByteArrayCodec.INSTANCE, SET, key, newData, "PX", ttlMillis, "NX");
+            }
+            return commandExecutor.evalWriteAsync(key, ByteArrayCodec.INSTANCE, RedisCommands.EVAL_BOOLEAN, SWAP_WITH_TTL_SCRIPT, keys, stored, newData, ttlMillis);
+        }
+        if (stored == null) {
+            return commandExecutor.writeAsync(key, ByteArrayCodec.INSTANCE, SET, key, newData, "NX");
+        }
+        return commandExecutor.evalWriteAsync(key, ByteArrayCodec.INSTANCE, RedisCommands.EVAL_BOOLEAN, SWAP_SCRIPT, keys, stored, newData);
+    }
+
+    private byte[] toBucket4jFormat(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        return InternalSerializationHelper.serializeState(codec.decode(stored), Versions.getLatest());
+    }
+
+    private long calculateTtlMillis(RemoteBucketState state) {
+        long currentTimeNanos = getClientSideConfig().getClientSideClock()
+                .map(clock -> clock.currentTimeNanos())
+                .orElseGet(() -> System.currentTimeMillis() * 1_000_000);
+        return expirationStrategy.calculateTimeToLiveMillis(state, currentTimeNanos);
+    }
+
+    private <T> T getWithTimeout(RFuture<T> future, Optional<Long> timeoutNanos) {
+        if (!timeoutNanos.isPresent()) {
+            return commandExecutor.get(future);
+        }
+        try {
+            return future.get(timeoutNanos.get(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RedisException("Interrupted while waiting for Redis", e);
+        } catch (java.util.concurrent.TimeoutException e) {
+            throw new TimeoutException("Violated timeout while waiting for Redis for " + timeoutNanos.get() + "ns", timeoutNanos.get(), timeoutNanos.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RedisException("Redis command failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.serialization.DeserializationAdapter;
+import io.github.bucket4j.distributed.serialization.InternalSerializationHelper;
+import io.github.bucket4j.distributed.serialization.Scope;
+import io.github.bucket4j.distributed.serialization.SerializationAdapter;
+import io.github.bucket4j.distributed.versioning.Versions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact bucket state format: a format version byte, then the fields of the bucket4j state packed as varints.
+ * <p>
+ * Bucket4j writes every int and long with a fixed width, although most of them are small: format versions,
+ * bandwidth counts, capacities, refill tokens and bucket sizes. They are written here as zigzag varints, in the
+ * order of the bucket4j serialization handles, so the format follows new bucket4j fields without changes to this class.
+ * <p>
+ * Data written by bucket4j always starts with a zero byte, the high byte of its own format version, and is still read:
+ * keys written before the switch to this codec stay valid until they are rewritten in the compact format.
+ */
+public class CompactBucketStateCodec implements BucketStateCodec {
+    private static final byte BUCKET4J_FORMAT = 0;
+    private static final byte FORMAT_V1 = 1;
+    private static final VarIntAdapter ADAPTER = new VarIntAdapter();
+
+    @Override
+    public byte[] encode(RemoteBucketState state) {
+        Output out = new Output();
+        out.write(FORMAT_V1);
+        try {
+            RemoteBucketState.SERIALIZATION_HANDLE.serialize(ADAPTER, out, state, Versions.getLatest(), Scope.PERSISTED_STATE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public RemoteBucketState decode(byte[] data) {
+        if (data.length == 0) {
+            throw new IllegalStateException("Empty bucket state");
+        }
+        switch (data[0]) {
+            case BUCKET4J_FORMAT:
+                return InternalSerializationHelper.deserializeState(data);
+            case FORMAT_V1:
+                try {
+                    return RemoteBucketState.SERIALIZATION_HANDLE.deserialize(ADAPTER, new Input(data, 1));
+                } catch (IOException | RuntimeException e) {
+                    throw new IllegalStateException("Corrupted bucket state", e);
+                }
+            default:
+                throw new IllegalStateException("Unknown bucket state format " + data[0]);
+        }
+    }
+
+    private static final class Output {
+        private byte[] buffer = new byte[64];
+        private int size;
+
+        void write(int b) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                write((int) (zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            write((int) zigzag);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] data;
+        private int position;
+
+        Input(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int read() throws IOException {
+            if (position == data.length) {
+                throw new IOException("Unexpected end of bucket state");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new IOException("Malformed varint in bucket state");
+        }
+    }
+
+    private static final class VarIntAdapter implements SerializationAdapter<Output>, DeserializationAdapter<Input> {
+        @Override
+        public void writeBoolean(Output out, boolean value) {
+            out.write(value ? 1 : 0);
+        }
+
+        @Override
+        public void writeByte(Output out, byte value) {
+            out.write(value);
+        }
+
+        @Override
+        public void writeInt(Output out, int value) {
+            out.writeVarLong(value);
+        }
+
+        @Override
+        public void writeLong(Output out, long value) {
+            out.writeVarLong(value);
+        }
+
+        @Override
+        public void writeLongArray(Output out, long[] values) {
+            out.writeVarLong(values.length);
+            for (long value : values) {
+                out.writeVarLong(value);
+            }
+        }
+
+        @Override
+        public void writeDoubleArray(Output out, double[] values) {
+            out.writeVarLong(values.length);
+            for (double value : values) {
+                long bits = Double.doubleToRawLongBits(value);
+                for (int i = 0; i < 8; i++) {
+                    out.write((int) (bits >>> (i * 8)));
+                }
+            }
+        }
+
+        @Override
+        public void writeString(Output out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeVarLong(bytes.length);
+            for (byte b : bytes) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public boolean readBoolean(Input in) throws IOException {
+            return in.read() != 0;
+        }
+
+        @Override
+        public byte readByte(Input in) throws IOException {
+            return (byte) in.read();
+        }
+
+        @Override
+        public int readInt(Input in) throws IOException {
+            return (int) in.readVarLong();
+        }
+
+        @Override
+        public long readLong(Input in) throws IOException {
+            return in.readVarLong();
+        }
+
+        @Override
+        public long[] readLongArray(Input in) throws IOException {
+            long[] values = new long[readLength(in)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readVarLong();
+            }
+            return values;
+        }
+
+        @Override
+        public double[] readDoubleArray(Input in) throws IOException {
+            double[] values = new double[readLength(in)];
+            for (int i = 0; i < values.length; i++) {
+                long bits = 0;
+                for (int j = 0; j < 8; j++) {
+                    bits |= (long) in.read() << (j * 8);
+                }
+                values[i] = Double.longBitsToDouble(bits);
+            }
+            return values;
+        }
+
+        @Override
+        public String readString(Input in) throws IOException {
+            byte[] bytes = new byte[readLength(in)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) in.read();
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static int readLength(Input in) throws IOException {
+            long length = in.readVarLong();
+            if (length < 0 || length > in.data.length - in.position) {
+                throw new IOException("Invalid length " + length + " in bucket state");
+            }
+            return (int) length;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.rs4m.proxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.bucket4j.TimeMeter;
+import io.github.bucket4j.distributed.proxy.AbstractProxyManager;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.distributed.remote.CommandResult;
+import io.github.bucket4j.distributed.remote.MutableBucketEntry;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.remote.Request;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process local {@link io.github.bucket4j.distributed.proxy.ProxyManager} for single-node services and tests.
+ * <p>
+ * Bucket state is kept as live bucket4j state objects, whose bandwidths are one array of primitive longs, and is never
+ * serialized: remote commands mutate it in place under the monitor of its slot, which is uncontended unless the same
+ * key is hit concurrently. The slot is itself the entry the commands read and write, so a decision allocates nothing
+ * beyond what the bucket4j command returns. The state is guarded by a lock rather than updated by compare-and-set:
+ * the commands mutate it in place, and a compare-and-set would copy it on every decision.
+ * <p>
+ * Slots live in a bounded Caffeine map, so idle keys are evicted and memory stays capped; an evicted key starts again
+ * with a full bucket.
+ */
+public class InMemoryProxyManager extends AbstractProxyManager<String> {
+    private final Cache<String, BucketSlot> buckets;
+    private final TimeMeter clock;
+
+    public InMemoryProxyManager(long maxBuckets, long idleMillis) {
+        this(ClientSideConfig.getDefault(), maxBuckets, idleMillis);
+    }
+
+    public InMemoryProxyManager(ClientSideConfig clientSideConfig, long maxBuckets, long idleMillis) {
+        super(clientSideConfig);
+        this.clock = clientSideConfig.getClientSideClock().orElse(TimeMeter.SYSTEM_MILLISECONDS);
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxBuckets)
+                .expireAfterAccess(idleMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    protected <T> CommandResult<T> execute(String key, Request<T> request) {
+        BucketSlot slot = buckets.get(key, k -> new BucketSlot());
+        Long clientSideTime = request.getClientSideTime();
+        long now = clientSideTime != null ? clientSideTime : clock.currentTimeNanos();
+        synchronized (slot) {
+            return request.getCommand().execute(slot, now);
+        }
+    }
+
+    @Override
+    protected <T> CompletableFuture<CommandResult<T>> executeAsync(String key, Request<T> request) {
+        // decisions take nanoseconds, there is nothing to gain from another thread
+        try {
+            return CompletableFuture.completedFuture(execute(key, request));
+        } catch (Throwable e) {
+            CompletableFuture<CommandResult<T>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public void removeProxy(String key) {
+        buckets.invalidate(key);
+    }
+
+    @Override
+    protected CompletableFuture<Void> removeAsync(String key) {
+        removeProxy(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean isAsyncModeSupported() {
+        return true;
+    }
+
+    /**
+     * @return the number of buckets currently held
+     */
+    public long size() {
+        return buckets.estimatedSize();
+    }
+
+    /**
+     * The state of one bucket, empty until the first command creates it
+     */
+    private static final class BucketSlot extends MutableBucketEntry {
+        private BucketSlot() {
+            super((RemoteBucketState) null);
+        }
+    }
+}
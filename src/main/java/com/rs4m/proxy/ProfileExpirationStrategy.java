@@ -0,0 +1,62 @@
+package com.rs4m.proxy;
+
+import com.rs4m.config.RateLimitProfileProperties.Expiration;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.distributed.ExpirationAfterWriteStrategy;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.serialization.SerializationHandle;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Expiration of bucket keys chosen per bucket profile. The profile of a bucket is recognized by the configuration
+ * stored in its state, buckets of an unknown configuration expire once they would be refilled up to their capacity.
+ * <p>
+ * Evaluated on the client side by compare-and-swap based proxy managers, it cannot be sent to a remote grid.
+ */
+public class ProfileExpirationStrategy implements ExpirationAfterWriteStrategy {
+    private static final ExpirationAfterWriteStrategy DEFAULT = ExpirationAfterWriteStrategy.basedOnTimeForRefillingBucketUpToMax(Duration.ZERO);
+    private static final Expiration DEFAULT_EXPIRATION = new Expiration();
+
+    private final ConcurrentMap<BucketConfiguration, ExpirationAfterWriteStrategy> strategies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<BucketConfiguration, Expiration> expirations = new ConcurrentHashMap<>();
+
+    /**
+     * Apply the expiration of a profile to the buckets of its configuration.
+     * Profiles with equal configurations share the expiration registered last.
+     */
+    public void register(BucketConfiguration configuration, Expiration expiration) {
+        expirations.put(configuration, expiration);
+        strategies.put(configuration, toStrategy(expiration));
+    }
+
+    /**
+     * @return the expiration of the buckets of a configuration, for stores applying it themselves such as the Lua script buckets
+     */
+    public Expiration getExpiration(BucketConfiguration configuration) {
+        return expirations.getOrDefault(configuration, DEFAULT_EXPIRATION);
+    }
+
+    @Override
+    public long calculateTimeToLiveMillis(RemoteBucketState state, long currentTimeNanos) {
+        return strategies.getOrDefault(state.getConfiguration(), DEFAULT).calculateTimeToLiveMillis(state, currentTimeNanos);
+    }
+
+    @Override
+    public SerializationHandle<ExpirationAfterWriteStrategy> getSerializationHandle() {
+        throw new UnsupportedOperationException("Profile expiration is only evaluated on the client side");
+    }
+
+    private static ExpirationAfterWriteStrategy toStrategy(Expiration expiration) {
+        switch (expiration.getPolicy()) {
+            case NONE:
+                return ExpirationAfterWriteStrategy.none();
+            case FIXED:
+                return ExpirationAfterWriteStrategy.fixedTimeToLive(Duration.ofMillis(expiration.getTtlMillis()));
+            default:
+                return ExpirationAfterWriteStrategy.basedOnTimeForRefillingBucketUpToMax(Duration.ofMillis(expiration.getKeepAfterRefillMillis()));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.rs4m.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RScript;
+import org.redisson.api.RScript.Mode;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lease-based distributed semaphores evaluated inside Redis by a Lua script, one per client key.
+ * <p>
+ * The permits in use are stored as a sorted set of permit ids scored by the expiry of their lease, under the client key
+ * with the {@code :p} suffix. Taking a permit first drops the expired ones, so permits held by a crashed node are
+ * reclaimed after their lease, and the set itself expires with its last lease. The maximum is passed on every call:
+ * there is nothing to initialize, and a new maximum applies right away.
+ */
+@Slf4j
+public class RedisPermitStore {
+    private static final String SCRIPT_LOCATION = "rs4m/scripts/acquire_permit.lua";
+    private static final String KEY_SUFFIX = ":p";
+
+    private final RedissonClient redissonClient;
+    private final RScript script;
+    private final String source;
+    private final String sha;
+
+    public RedisPermitStore(RedissonClient redissonClient) {
+        this.redissonClient = redissonClient;
+        this.script = redissonClient.getScript(StringCodec.INSTANCE);
+        this.source = RedisScriptBucketStore.loadScript(SCRIPT_LOCATION);
+        this.sha = RedisScriptBucketStore.sha1(source);
+        try {
+            script.scriptLoad(source);
+        } catch (Exception e) {
+            log.warn("Failed to preload the permit script, it will be loaded on first use", e);
+        }
+    }
+
+    /**
+     * Take a permit, or renew its lease if it is still held: a held permit is not counted twice.
+     *
+     * @param key             the client key
+     * @param permitId        id of the permit, unique across the cluster
+     * @param expiresAtMillis time the lease of the permit expires
+     * @param maxPermits      maximum number of permits of the key in use at once
+     * @return a future completed with true if the permit was taken or renewed, false if all permits are in use
+     */
+    public CompletableFuture<Boolean> tryAcquireAsync(String key, String permitId, long expiresAtMillis, int maxPermits) {
+        String permitsKey = key + KEY_SUFFIX;
+        List<Object> keys = Collections.singletonList(permitsKey);
+        Object[] args = {System.currentTimeMillis(), permitId, expiresAtMillis, maxPermits};
+        return script.<Long>evalShaAsync(permitsKey, Mode.READ_WRITE, sha, ReturnType.INTEGER, keys, args)
+                .handle((result, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (!RedisScriptBucketStore.isNoScript(error)) {
+                        CompletableFuture<Long> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(error);
+                        return failed;
+                    }
+                    return script.<Long>evalAsync(permitsKey, Mode.READ_WRITE, source, ReturnType.INTEGER, keys, args).toCompletableFuture();
+                })
+                .thenCompose(result -> result)
+                .thenApply(result -> result != null && result == 1)
+                .toCompletableFuture();
+    }
+
+    /**
+     * Give a permit back before its lease expires.
+     */
+    public CompletableFuture<Void> releaseAsync(String key, String permitId) {
+        return redissonClient.<String>getScoredSortedSet(key + KEY_SUFFIX, StringCodec.INSTANCE).removeAsync(permitId)
+                .thenApply(removed -> (Void) null)
+                .toCompletableFuture();
+    }
+}
@@ -0,0 +1,417 @@
+package com.rs4m.proxy;
+
+import com.rs4m.config.RateLimitProfileProperties.Expiration;
+import com.rs4m.config.RateLimitProfileProperties.ExpirationPolicy;
+import io.github.bucket4j.AbstractBucket;
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.BucketListener;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.EstimationProbe;
+import io.github.bucket4j.Nothing;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import io.github.bucket4j.VerboseResult;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.Redisson;
+import org.redisson.api.RScript;
+import org.redisson.api.RScript.Mode;
+import org.redisson.api.RScript.ReturnType;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.connection.ConnectionManager;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets evaluated inside Redis by a Lua script: all bandwidths of a bucket are refilled and consumed
+ * in one EVALSHA, so every decision is exactly one round trip, without the read and compare-and-swap retries
+ * of {@link io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager}.
+ * <p>
+ * Buckets are stored as small hashes under their own keys, separate from the bucket4j state of the same client key.
+ * Only greedy refill is supported, which is what bucket profiles are built with. Keys expire as set by the profile,
+ * see {@link ProfileExpirationStrategy}. Buckets are refilled by the clock of Redis, never by the clocks of the nodes,
+ * and the time of the last refill of a bucket never moves backwards.
+ */
+@Slf4j
+public class RedisScriptBucketStore {
+    private static final String SCRIPT_LOCATION = "rs4m/scripts/token_bucket.lua";
+    private static final String KEY_SUFFIX = ":h";
+
+    private final RScript script;
+    private final String source;
+    private final String sha;
+    private final ConnectionManager connectionManager;
+    private final ProfileExpirationStrategy expirationStrategy;
+    private final RedissonClient redissonClient;
+
+    public RedisScriptBucketStore(RedissonClient redissonClient, ProfileExpirationStrategy expirationStrategy) {
+        this.redissonClient = redissonClient;
+        this.script = redissonClient.getScript(StringCodec.INSTANCE);
+        this.expirationStrategy = expirationStrategy;
+        this.connectionManager = ((Redisson) redissonClient).getConnectionManager();
+        this.source = loadScript(SCRIPT_LOCATION);
+        this.sha = sha1(source);
+        try {
+            // the script is also loaded by the first EVAL after a NOSCRIPT reply, e.g. after a failover
+            script.scriptLoad(source);
+        } catch (Exception e) {
+            log.warn("Failed to preload the token bucket script, it will be loaded on first use", e);
+        }
+    }
+
+    public ConsumptionProbe tryConsume(String key, BucketConfiguration configuration, long tokens) {
+        return tryConsume(Collections.singletonList(key), Collections.singletonList(configuration), tokens);
+    }
+
+    /**
+     * Consume tokens from several buckets in one atomic script: either every bucket has enough tokens and all are consumed,
+     * or nothing is consumed. In a Redis cluster all keys must map to the same slot, see {@link #isSameSlot(List)}.
+     *
+     * @param keys           the client keys
+     * @param configurations the configuration of each bucket
+     * @param tokens         the number of tokens to consume from each bucket
+     * @return the probe, with the smallest remaining tokens and the longest wait of all buckets
+     */
+    public ConsumptionProbe tryConsume(List<String> keys, List<BucketConfiguration> configurations, long tokens) {
+        return toProbe(eval(toBucketKeys(keys), toArguments(configurations, tokens, 0)));
+    }
+
+    private List<Long> eval(List<Object> bucketKeys, Object[] args) {
+        String routingKey = (String) bucketKeys.get(0);
+        try {
+            return script.evalSha(routingKey, Mode.READ_WRITE, sha, ReturnType.MULTI, bucketKeys, args);
+        } catch (RedisException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return script.eval(routingKey, Mode.READ_WRITE, source, ReturnType.MULTI, bucketKeys, args);
+        }
+    }
+
+    public CompletableFuture<ConsumptionProbe> tryConsumeAsync(String key, BucketConfiguration configuration, long tokens) {
+        return tryConsumeAsync(Collections.singletonList(key), Collections.singletonList(configuration), tokens);
+    }
+
+    public CompletableFuture<ConsumptionProbe> tryConsumeAsync(List<String> keys, List<BucketConfiguration> configurations, long tokens) {
+        return evalAsync(toBucketKeys(keys), toArguments(configurations, tokens, 0)).thenApply(RedisScriptBucketStore::toProbe);
+    }
+
+    public CompletableFuture<Long> reserveAsync(String key, BucketConfiguration configuration, long tokens, long maxWaitNanos) {
+        return reserveAsync(Collections.singletonList(key), Collections.singletonList(configuration), tokens, maxWaitNanos);
+    }
+
+    /**
+     * Consume tokens from several buckets in one atomic script, or reserve them ahead of the refill if every bucket
+     * refills them within {@code maxWaitNanos}, leaving the buckets negative.
+     *
+     * @param keys           the client keys
+     * @param configurations the configuration of each bucket
+     * @param tokens         the number of tokens to reserve from each bucket
+     * @param maxWaitNanos   the longest time to wait for the tokens to be refilled
+     * @return the nanoseconds until the reserved tokens are available, 0 if they were, or -1 if nothing was reserved
+     */
+    public CompletableFuture<Long> reserveAsync(List<String> keys, List<BucketConfiguration> configurations, long tokens, long maxWaitNanos) {
+        return tryConsumeOrReserveAsync(keys, configurations, tokens, maxWaitNanos)
+                .thenApply(reservation -> reservation.getProbe().isConsumed() ? reservation.getWaitNanos() : -1L);
+    }
+
+    public CompletableFuture<Reservation> tryConsumeOrReserveAsync(String key, BucketConfiguration configuration, long tokens, long maxWaitNanos) {
+        return tryConsumeOrReserveAsync(Collections.singletonList(key), Collections.singletonList(configuration), tokens, maxWaitNanos);
+    }
+
+    /**
+     * Same as {@link #reserveAsync(List, List, long, long)}, with the probe of the buckets: the wait of a rejection is
+     * known without another round trip.
+     *
+     * @return the reservation, with a rejected probe if nothing was reserved
+     */
+    public CompletableFuture<Reservation> tryConsumeOrReserveAsync(List<String> keys, List<BucketConfiguration> configurations, long tokens, long maxWaitNanos) {
+        // rounded down, a reservation never waits longer than allowed
+        return evalAsync(toBucketKeys(keys), toArguments(configurations, tokens, TimeUnit.NANOSECONDS.toMicros(maxWaitNanos)))
+                .thenApply(result -> new Reservation(toProbe(result), result.get(0) == 1 ? TimeUnit.MICROSECONDS.toNanos(Math.max(0, result.get(2))) : 0));
+    }
+
+    private CompletableFuture<List<Long>> evalAsync(List<Object> bucketKeys, Object[] args) {
+        String routingKey = (String) bucketKeys.get(0);
+        return script.<List<Long>>evalShaAsync(routingKey, Mode.READ_WRITE, sha, ReturnType.MULTI, bucketKeys, args)
+                .handle((result, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (!isNoScript(error)) {
+                        CompletableFuture<List<Long>> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(error);
+                        return failed;
+                    }
+                    return script.<List<Long>>evalAsync(routingKey, Mode.READ_WRITE, source, ReturnType.MULTI, bucketKeys, args).toCompletableFuture();
+                })
+                .thenCompose(result -> result)
+                .toCompletableFuture();
+    }
+
+    /**
+     * Give tokens back to a bucket, up to its capacity.
+     */
+    public CompletableFuture<Void> addTokensAsync(String key, BucketConfiguration configuration, long tokens) {
+        return tryConsumeAsync(key, configuration, -tokens).thenApply(probe -> null);
+    }
+
+    /**
+     * Consume tokens from a bucket whatever it holds, e.g. to charge for work already done; the bucket may go negative.
+     */
+    public CompletableFuture<Void> chargeTokensAsync(String key, BucketConfiguration configuration, long tokens) {
+        return evalAsync(toBucketKeys(Collections.singletonList(key)), toArguments(Collections.singletonList(configuration), tokens, -1))
+                .thenApply(result -> null);
+    }
+
+    /**
+     * The bucket of a client key as a bucket4j {@link Bucket}, for callers that read or change the bucket the script
+     * decides on, e.g. to look at its tokens or to reset it. Only the operations the script supports are available:
+     * estimating a consumption, forcing tokens above the capacity, replacing the configuration, which comes from the
+     * bucket profile, and the verbose API throw {@link UnsupportedOperationException}.
+     *
+     * @param key           the client key
+     * @param configuration the configuration of the bucket
+     * @return the bucket, each operation is one script call
+     */
+    public Bucket getBucket(String key, BucketConfiguration configuration) {
+        return new ScriptedBucket(key, configuration, BucketListener.NOPE);
+    }
+
+    /**
+     * @return true if the buckets of all keys live in the same cluster slot and can be consumed by one script
+     */
+    public boolean isSameSlot(List<String> keys) {
+        int slot = connectionManager.calcSlot(keys.get(0) + KEY_SUFFIX);
+        for (int i = 1; i < keys.size(); i++) {
+            if (connectionManager.calcSlot(keys.get(i) + KEY_SUFFIX) != slot) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Object> toBucketKeys(List<String> keys) {
+        List<Object> bucketKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            bucketKeys.add(key + KEY_SUFFIX);
+        }
+        return bucketKeys;
+    }
+
+    /**
+     * @param maxWaitMicros how long tokens may be reserved ahead of the refill, -1 to consume them whatever the buckets hold
+     */
+    private Object[] toArguments(List<BucketConfiguration> configurations, long tokens, long maxWaitMicros) {
+        int size = 2;
+        for (BucketConfiguration configuration : configurations) {
+            size += 3 + configuration.getBandwidths().length * 3;
+        }
+        Object[] args = new Object[size];
+        args[0] = tokens;
+        args[1] = maxWaitMicros;
+        int offset = 2;
+        for (BucketConfiguration configuration : configurations) {
+            Expiration expiration = expirationStrategy.getExpiration(configuration);
+            args[offset++] = expiration.getPolicy().name();
+            args[offset++] = expiration.getPolicy() == ExpirationPolicy.FIXED ? expiration.getTtlMillis() : expiration.getKeepAfterRefillMillis();
+            Bandwidth[] bandwidths = configuration.getBandwidths();
+            args[offset++] = bandwidths.length;
+            for (Bandwidth bandwidth : bandwidths) {
+                args[offset++] = bandwidth.getCapacity();
+                args[offset++] = bandwidth.getRefillTokens();
+                args[offset++] = TimeUnit.NANOSECONDS.toMicros(bandwidth.getRefillPeriodNanos());
+            }
+        }
+        return args;
+    }
+
+    private static ConsumptionProbe toProbe(List<Long> result) {
+        long remaining = result.get(1);
+        long nanosToWaitForRefill = result.get(2) < 0 ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(result.get(2));
+        long nanosToWaitForReset = TimeUnit.MICROSECONDS.toNanos(result.get(3));
+        if (result.get(0) == 1) {
+            return ConsumptionProbe.consumed(remaining, nanosToWaitForReset);
+        }
+        return ConsumptionProbe.rejected(remaining, nanosToWaitForRefill, nanosToWaitForReset);
+    }
+
+    private final class ScriptedBucket extends AbstractBucket {
+        private final String key;
+        private final BucketConfiguration configuration;
+
+        private ScriptedBucket(String key, BucketConfiguration configuration, BucketListener listener) {
+            super(listener);
+            this.key = key;
+            this.configuration = configuration;
+        }
+
+        private List<Long> eval(long tokens, long maxWaitMicros) {
+            return RedisScriptBucketStore.this.eval(toBucketKeys(Collections.singletonList(key)),
+                    toArguments(Collections.singletonList(configuration), tokens, maxWaitMicros));
+        }
+
+        @Override
+        protected long consumeAsMuchAsPossibleImpl(long limit) {
+            long available = Math.min(limit, getAvailableTokens());
+            return available > 0 && tryConsumeImpl(available) ? available : 0;
+        }
+
+        @Override
+        protected boolean tryConsumeImpl(long tokens) {
+            return tryConsumeAndReturnRemainingTokensImpl(tokens).isConsumed();
+        }
+
+        @Override
+        protected ConsumptionProbe tryConsumeAndReturnRemainingTokensImpl(long tokens) {
+            return toProbe(eval(tokens, 0));
+        }
+
+        @Override
+        protected long reserveAndCalculateTimeToSleepImpl(long tokens, long waitIfBusyNanos) {
+            List<Long> result = eval(tokens, TimeUnit.NANOSECONDS.toMicros(waitIfBusyNanos));
+            return result.get(0) == 1 ? TimeUnit.MICROSECONDS.toNanos(Math.max(0, result.get(2))) : Long.MAX_VALUE;
+        }
+
+        @Override
+        protected void addTokensImpl(long tokens) {
+            eval(-tokens, 0);
+        }
+
+        @Override
+        protected long consumeIgnoringRateLimitsImpl(long tokens) {
+            List<Long> result = eval(tokens, -1);
+            return result.get(2) < 0 ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(result.get(2));
+        }
+
+        @Override
+        public long getAvailableTokens() {
+            return toProbe(eval(0, 0)).getRemainingTokens();
+        }
+
+        @Override
+        public void reset() {
+            // a missing bucket is a full one
+            redissonClient.getKeys().delete(key + KEY_SUFFIX);
+        }
+
+        @Override
+        public Bucket toListenable(BucketListener listener) {
+            return new ScriptedBucket(key, configuration, listener);
+        }
+
+        @Override
+        protected EstimationProbe estimateAbilityToConsumeImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected void forceAddTokensImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected void replaceConfigurationImpl(BucketConfiguration newConfiguration, TokensInheritanceStrategy tokensInheritanceStrategy) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Long> consumeAsMuchAsPossibleVerboseImpl(long limit) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Boolean> tryConsumeVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<ConsumptionProbe> tryConsumeAndReturnRemainingTokensVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<EstimationProbe> estimateAbilityToConsumeVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Long> getAvailableTokensVerboseImpl() {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Nothing> addTokensVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Nothing> forceAddTokensVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Nothing> resetVerboseImpl() {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Nothing> replaceConfigurationVerboseImpl(BucketConfiguration newConfiguration,
+                                                                        TokensInheritanceStrategy tokensInheritanceStrategy) {
+            throw unsupported();
+        }
+
+        @Override
+        protected VerboseResult<Long> consumeIgnoringRateLimitsVerboseImpl(long tokens) {
+            throw unsupported();
+        }
+
+        private UnsupportedOperationException unsupported() {
+            return new UnsupportedOperationException("Not supported by the Lua script bucket of " + key);
+        }
+    }
+
+    static boolean isNoScript(Throwable error) {
+        while (error != null) {
+            if (error instanceof RedisException && error.getMessage() != null && error.getMessage().startsWith("NOSCRIPT")) {
+                return true;
+            }
+            error = error.getCause();
+        }
+        return false;
+    }
+
+    static String loadScript(String location) {
+        try (InputStream in = new ClassPathResource(location).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load script " + location, e);
+        }
+    }
+
+    static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.ConsumptionProbe;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of consuming tokens that may be reserved ahead of the refill: the tokens were available, are reserved until
+ * {@link #getWaitNanos()}, or are rejected.
+ */
+@Getter
+@AllArgsConstructor
+public class Reservation {
+    /**
+     * The probe the buckets answered, consumed if the tokens were available or are reserved
+     */
+    private final ConsumptionProbe probe;
+
+    /**
+     * Nanoseconds until the reserved tokens are available, 0 if they were available or are rejected
+     */
+    private final long waitNanos;
+}
@@ -0,0 +1,164 @@
+package com.rs4m.rule;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rs4m.net.ClientIpResolver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memoizes the results of a {@link RuleEngine} by the request attributes its rules read ({@link RuleEngine#getFactAttributes()}),
+ * so expensive rules run once per client and not once per request.
+ * <p>
+ * Results are bounded in number and age, and dropped as soon as the engine loads other rules. Engines that do not
+ * declare their attributes, and facts that are not requests, are evaluated every time. The two-step
+ * {@link #fireRules}/{@link #getResult} API is never cached.
+ */
+@Slf4j
+public class CachingRuleEngine implements RuleEngine {
+    // cached marker of "no rule matched", Caffeine does not keep nulls
+    private static final RuleResult NO_MATCH = new RuleResult(null, null);
+
+    private final RuleEngine delegate;
+    private final FactReaders readers;
+    private final long maxEntries;
+    private final long ttlMillis;
+
+    private volatile Memo memo;
+
+    /**
+     * @param delegate         the engine to memoize
+     * @param clientIpResolver resolves the client address of the {@code ip} attribute, as the engine does
+     * @param maxEntries       maximum number of results kept
+     * @param ttlMillis        age after which a result is evaluated again
+     */
+    public CachingRuleEngine(RuleEngine delegate, ClientIpResolver clientIpResolver, long maxEntries, long ttlMillis) {
+        this.delegate = delegate;
+        this.readers = new FactReaders(clientIpResolver);
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public RuleEngine getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void loadRules(RuleSource ruleSource) throws RuleEngineException {
+        delegate.loadRules(ruleSource);
+        // also covers engines returning the same attributes for the new rules
+        this.memo = new Memo(delegate.getFactAttributes());
+    }
+
+    @Override
+    public RuleResult evaluate(Object fact) throws RuleEngineException {
+        Memo current = memo();
+        FactReader reader = current.attributes != null ? readers.find(fact) : null;
+        if (reader == null) {
+            return delegate.evaluate(fact);
+        }
+        String key = current.key(reader, fact);
+        RuleResult result = current.results.getIfPresent(key);
+        if (result == null) {
+            result = delegate.evaluate(fact);
+            current.results.put(key, result != null ? result : NO_MATCH);
+            return result;
+        }
+        return result != NO_MATCH ? result : null;
+    }
+
+    @Override
+    public void fireRules(Object fact) throws RuleEngineException {
+        delegate.fireRules(fact);
+    }
+
+    @Override
+    public <T> T getResult(Class<T> resultType) throws RuleEngineException {
+        return delegate.getResult(resultType);
+    }
+
+    @Override
+    public Set<String> getFactAttributes() {
+        return delegate.getFactAttributes();
+    }
+
+    /**
+     * @return the memo of the rules currently loaded by the engine, a new one if the engine loaded other rules since
+     */
+    private Memo memo() {
+        Set<String> attributes = delegate.getFactAttributes();
+        Memo current = memo;
+        if (current == null || current.declared != attributes) {
+            current = new Memo(attributes);
+            memo = current;
+        }
+        return current;
+    }
+
+    private interface Attribute {
+        String read(FactReader reader, Object fact);
+    }
+
+    /**
+     * Results of one set of rules
+     */
+    private final class Memo {
+        final Set<String> declared;
+
+        /**
+         * Readers of the declared attributes, null if the results cannot be cached
+         */
+        final Attribute[] attributes;
+
+        final Cache<String, RuleResult> results;
+
+        Memo(Set<String> declared) {
+            this.declared = declared;
+            this.attributes = declared != null ? compile(declared) : null;
+            this.results = attributes != null ? Caffeine.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                    .build() : null;
+        }
+
+        /**
+         * @return the projection of the request on the declared attributes
+         */
+        String key(FactReader reader, Object fact) {
+            if (attributes.length == 1) {
+                String value = attributes[0].read(reader, fact);
+                return value != null ? value : "\u0001";
+            }
+            StringBuilder key = new StringBuilder(64);
+            for (Attribute attribute : attributes) {
+                String value = attribute.read(reader, fact);
+                // separators and absent values use control characters, which request attributes do not contain
+                key.append(value != null ? value : "\u0001").append('\u0000');
+            }
+            return key.toString();
+        }
+
+        private Attribute[] compile(Set<String> declared) {
+            Attribute[] compiled = new Attribute[declared.size()];
+            int i = 0;
+            for (String attribute : declared) {
+                if (attribute.equals("method")) {
+                    compiled[i++] = FactReader::method;
+                } else if (attribute.equals("path")) {
+                    compiled[i++] = FactReader::path;
+                } else if (attribute.equals("ip")) {
+                    compiled[i++] = FactReader::clientIp;
+                } else if (attribute.startsWith("header:") && attribute.length() > "header:".length()) {
+                    String name = attribute.substring("header:".length());
+                    compiled[i++] = (reader, fact) -> reader.header(fact, name);
+                } else {
+                    log.warn("Results of rule engine {} are not cached, unknown fact attribute '{}'", delegate.getClass().getName(), attribute);
+                    return null;
+                }
+            }
+            return compiled;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Puts a {@link CachingRuleEngine} in front of every engine of a {@link RuleEngineManager}.
+ * An engine replaced in the manager gets a new, empty cache.
+ */
+public class CachingRuleEngineManager implements RuleEngineManager {
+    private final RuleEngineManager delegate;
+    private final ClientIpResolver clientIpResolver;
+    private final long maxEntries;
+    private final long ttlMillis;
+    private final ConcurrentMap<String, CachingRuleEngine> engines = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate         the manager providing the engines
+     * @param clientIpResolver resolves the client address of the {@code ip} attribute, as the engines do
+     * @param maxEntries       maximum number of results kept per engine
+     * @param ttlMillis        age after which a result is evaluated again
+     */
+    public CachingRuleEngineManager(RuleEngineManager delegate, ClientIpResolver clientIpResolver, long maxEntries, long ttlMillis) {
+        this.delegate = delegate;
+        this.clientIpResolver = clientIpResolver;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public RuleEngine getEngine(String engineName) {
+        RuleEngine engine = delegate.getEngine(engineName);
+        if (engine == null) {
+            return null;
+        }
+        CachingRuleEngine cachingEngine = engines.get(engineName);
+        if (cachingEngine == null || cachingEngine.getDelegate() != engine) {
+            cachingEngine = new CachingRuleEngine(engine, clientIpResolver, maxEntries, ttlMillis);
+            engines.put(engineName, cachingEngine);
+        }
+        return cachingEngine;
+    }
+}
@@ -0,0 +1,321 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.Cidr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable, compiled decision table: an ordered list of rules, the first matching rule gives the result.
+ * <p>
+ * One rule per line, {@code #} at the start of a line or after a space starts a comment:
+ * <pre>
+ * # conditions                           =&gt; key                [profile]
+ * method=POST path=/api/orders/**        =&gt; header:X-Api-Key   profile=orders
+ * header:X-Tenant=gold|platinum          =&gt; header:X-Tenant
+ * ip=10.0.0.0/8|192.168.0.0/16           =&gt; const:internal     profile=internal
+ * !header:X-Api-Key                      =&gt; ip
+ * *                                      =&gt; header:X-Api-Key
+ * </pre>
+ * All conditions of a rule must match, {@code *} always matches and {@code !} negates a condition:
+ * <ul>
+ * <li>{@code method=GET|POST}: one of the request methods</li>
+ * <li>{@code path=/exact|/prefix/**}: an exact path, or a path under a prefix</li>
+ * <li>{@code header:Name=a|b}: one of the header values; {@code header:Name} alone requires the header</li>
+ * <li>{@code ip=CIDR|CIDR}: a client address in one of the ranges</li>
+ * </ul>
+ * The key is the client address ({@code ip}), the path ({@code path}), a header value ({@code header:Name})
+ * or a constant ({@code const:value}). A rule whose key is absent from the request does not match.
+ */
+final class DecisionTable {
+    static final DecisionTable EMPTY = new DecisionTable(new Rule[0], Collections.emptySet());
+
+    private static final String ARROW = "=>";
+    private static final String PROFILE = "profile=";
+
+    private final Rule[] rules;
+    private final Set<String> attributes;
+
+    private DecisionTable(Rule[] rules, Set<String> attributes) {
+        this.rules = rules;
+        this.attributes = attributes;
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * @return the request attributes read by the rules: {@code method}, {@code path}, {@code ip} or {@code header:<name>}
+     */
+    Set<String> attributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the result of the first matching rule, null if no rule matched
+     */
+    RuleResult evaluate(FactReader reader, Object fact) {
+        for (Rule rule : rules) {
+            if (rule.matches(reader, fact)) {
+                RuleResult result = rule.result(reader, fact);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws IllegalArgumentException with the line number if a rule is not valid
+     */
+    static DecisionTable parse(String text) {
+        List<Rule> rules = new ArrayList<>();
+        Set<String> attributes = new LinkedHashSet<>();
+        String[] lines = text.split("\r?\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = stripComment(lines[i]).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                rules.add(parseRule(line, attributes));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid rule at line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return new DecisionTable(rules.toArray(new Rule[0]), Collections.unmodifiableSet(attributes));
+    }
+
+    /**
+     * A {@code #} inside a term, e.g. {@code header:X=a#b}, is part of the term
+     */
+    private static String stripComment(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '#' && (i == 0 || Character.isWhitespace(line.charAt(i - 1)))) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    private static Rule parseRule(String line, Set<String> attributes) {
+        int arrow = line.indexOf(ARROW);
+        if (arrow < 0) {
+            throw new IllegalArgumentException("missing '" + ARROW + "' between conditions and key");
+        }
+        List<Condition> conditions = new ArrayList<>();
+        for (String term : line.substring(0, arrow).trim().split("\\s+")) {
+            if (term.isEmpty()) {
+                throw new IllegalArgumentException("missing conditions, use '*' to match every request");
+            }
+            if (!term.equals("*")) {
+                conditions.add(parseCondition(term, attributes));
+            }
+        }
+        String[] action = line.substring(arrow + ARROW.length()).trim().split("\\s+");
+        if (action[0].isEmpty()) {
+            throw new IllegalArgumentException("missing key");
+        }
+        KeySource key = parseKey(action[0], attributes);
+        String profile = null;
+        for (int i = 1; i < action.length; i++) {
+            if (!action[i].startsWith(PROFILE) || action[i].length() == PROFILE.length() || profile != null) {
+                throw new IllegalArgumentException("unexpected '" + action[i] + "' after the key");
+            }
+            profile = action[i].substring(PROFILE.length());
+        }
+        return new Rule(conditions.toArray(new Condition[0]), key, profile);
+    }
+
+    private static Condition parseCondition(String term, Set<String> attributes) {
+        if (term.startsWith("!")) {
+            Condition condition = parseCondition(term.substring(1), attributes);
+            return (reader, fact) -> !condition.matches(reader, fact);
+        }
+        if (term.startsWith("method=")) {
+            String[] methods = values(term, "method=");
+            attributes.add("method");
+            return (reader, fact) -> contains(methods, reader.method(fact));
+        }
+        if (term.startsWith("path=")) {
+            attributes.add("path");
+            return new PathCondition(values(term, "path="));
+        }
+        if (term.startsWith("header:")) {
+            int equals = term.indexOf('=');
+            String name = term.substring("header:".length(), equals < 0 ? term.length() : equals);
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("missing header name in '" + term + "'");
+            }
+            attributes.add("header:" + name);
+            if (equals < 0) {
+                return (reader, fact) -> reader.header(fact, name) != null;
+            }
+            String[] headerValues = values(term, term.substring(0, equals + 1));
+            return (reader, fact) -> contains(headerValues, reader.header(fact, name));
+        }
+        if (term.startsWith("ip=")) {
+            String[] ranges = values(term, "ip=");
+            Cidr[] cidrs = new Cidr[ranges.length];
+            for (int i = 0; i < ranges.length; i++) {
+                cidrs[i] = Cidr.parse(ranges[i]);
+            }
+            attributes.add("ip");
+            return (reader, fact) -> {
+                String ip = reader.clientIp(fact);
+                for (Cidr cidr : cidrs) {
+                    if (cidr.contains(ip)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        throw new IllegalArgumentException("unknown condition '" + term + "'");
+    }
+
+    private static String[] values(String term, String prefix) {
+        String[] values = term.substring(prefix.length()).split("\\|", -1);
+        for (String value : values) {
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("empty value in '" + term + "'");
+            }
+        }
+        return values;
+    }
+
+    private static boolean contains(String[] values, String value) {
+        if (value == null) {
+            return false;
+        }
+        for (String candidate : values) {
+            if (candidate.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static KeySource parseKey(String key, Set<String> attributes) {
+        if (key.equals("ip")) {
+            attributes.add(key);
+            return FactReader::clientIp;
+        }
+        if (key.equals("path")) {
+            attributes.add(key);
+            return FactReader::path;
+        }
+        if (key.startsWith("header:") && key.length() > "header:".length()) {
+            String name = key.substring("header:".length());
+            attributes.add(key);
+            return (reader, fact) -> reader.header(fact, name);
+        }
+        if (key.startsWith("const:") && key.length() > "const:".length()) {
+            return new ConstantKey(key.substring("const:".length()));
+        }
+        throw new IllegalArgumentException("unknown key '" + key + "', expected ip, path, header:<name> or const:<value>");
+    }
+
+    private interface Condition {
+        boolean matches(FactReader reader, Object fact);
+    }
+
+    private interface KeySource {
+        /**
+         * @return the key, null if the request does not have it
+         */
+        String resolve(FactReader reader, Object fact);
+    }
+
+    private static final class ConstantKey implements KeySource {
+        final String key;
+
+        ConstantKey(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String resolve(FactReader reader, Object fact) {
+            return key;
+        }
+    }
+
+    private static final class PathCondition implements Condition {
+        private final String[] exact;
+        private final String[] prefixes;
+
+        PathCondition(String[] patterns) {
+            List<String> exact = new ArrayList<>();
+            List<String> prefixes = new ArrayList<>();
+            for (String pattern : patterns) {
+                if (pattern.endsWith("/**")) {
+                    prefixes.add(pattern.substring(0, pattern.length() - 3));
+                } else if (pattern.contains("*")) {
+                    throw new IllegalArgumentException("path patterns are exact paths or end with '/**': '" + pattern + "'");
+                } else {
+                    exact.add(pattern);
+                }
+            }
+            this.exact = exact.toArray(new String[0]);
+            this.prefixes = prefixes.toArray(new String[0]);
+        }
+
+        @Override
+        public boolean matches(FactReader reader, Object fact) {
+            String path = reader.path(fact);
+            if (path == null) {
+                return false;
+            }
+            if (contains(exact, path)) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                // "/api/**" matches "/api" and everything under "/api/", but not "/apis"
+                if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Rule {
+        private final Condition[] conditions;
+        private final KeySource key;
+        private final String profile;
+
+        /**
+         * Shared result of a rule with a constant key
+         */
+        private final RuleResult constant;
+
+        Rule(Condition[] conditions, KeySource key, String profile) {
+            this.conditions = conditions;
+            this.key = key;
+            this.profile = profile;
+            this.constant = key instanceof ConstantKey ? new RuleResult(((ConstantKey) key).key, profile) : null;
+        }
+
+        boolean matches(FactReader reader, Object fact) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(reader, fact)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        RuleResult result(FactReader reader, Object fact) {
+            if (constant != null) {
+                return constant;
+            }
+            String value = key.resolve(reader, fact);
+            return value == null || value.isEmpty() ? null : new RuleResult(value, profile);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Built-in rule engine evaluating a {@link DecisionTable} over request attributes: method, path, headers and client address.
+ * <p>
+ * The rules are compiled once by {@link #loadRules}, and reloading swaps the whole table. {@link #evaluate} keeps no
+ * state between calls, so one engine serves all request threads; it does not allocate unless the key comes from the request.
+ * Facts are {@code HttpServletRequest}s or reactive {@code ServerHttpRequest}s.
+ */
+@Slf4j
+public class DecisionTableRuleEngine implements RuleEngine {
+    private final FactReaders readers;
+
+    private volatile DecisionTable table = DecisionTable.EMPTY;
+
+    // result of fireRules, for callers of the two-step API; removed by getResult so container threads keep nothing
+    private final ThreadLocal<RuleResult> lastResult = new ThreadLocal<>();
+
+    /**
+     * An engine reading the client address from the connection only, X-Forwarded-For is ignored
+     */
+    public DecisionTableRuleEngine() {
+        this(new ClientIpResolver(Collections.emptyList()));
+    }
+
+    /**
+     * @param clientIpResolver resolves the client address behind trusted proxies, for {@code ip} conditions and keys
+     */
+    public DecisionTableRuleEngine(ClientIpResolver clientIpResolver) {
+        this.readers = new FactReaders(clientIpResolver);
+    }
+
+    /**
+     * @param ruleSource the rules: {@code string} for the rules themselves, {@code file} for a file path,
+     *                   {@code resource} for a classpath resource
+     */
+    @Override
+    public void loadRules(RuleSource ruleSource) throws RuleEngineException {
+        String text = read(ruleSource);
+        try {
+            this.table = DecisionTable.parse(text);
+        } catch (IllegalArgumentException e) {
+            throw new RuleEngineException(e.getMessage(), e);
+        }
+        log.info("Loaded {} rule(s) from {} source", table.size(), ruleSource.getSourceType());
+    }
+
+    @Override
+    public RuleResult evaluate(Object fact) throws RuleEngineException {
+        return table.evaluate(readerOf(fact), fact);
+    }
+
+    @Override
+    public Set<String> getFactAttributes() {
+        return table.attributes();
+    }
+
+    @Override
+    public void fireRules(Object fact) throws RuleEngineException {
+        lastResult.set(evaluate(fact));
+    }
+
+    @Override
+    public <T> T getResult(Class<T> resultType) throws RuleEngineException {
+        RuleResult result = lastResult.get();
+        lastResult.remove();
+        if (resultType == RuleResult.class) {
+            return resultType.cast(result);
+        }
+        if (resultType == String.class) {
+            return resultType.cast(result != null ? result.getKey() : null);
+        }
+        throw new RuleEngineException("Unsupported result type " + resultType.getName());
+    }
+
+    private FactReader readerOf(Object fact) throws RuleEngineException {
+        FactReader reader = readers.find(fact);
+        if (reader == null) {
+            throw new RuleEngineException("Unsupported fact " + (fact != null ? fact.getClass().getName() : null));
+        }
+        return reader;
+    }
+
+    private static String read(RuleSource ruleSource) throws RuleEngineException {
+        if (ruleSource == null || ruleSource.getSourceType() == null || ruleSource.getContent() == null) {
+            throw new RuleEngineException("Rule source type and content are required");
+        }
+        try {
+            switch (ruleSource.getSourceType().toLowerCase()) {
+                case "string":
+                    return ruleSource.getContent();
+                case "file":
+                    return new String(Files.readAllBytes(Paths.get(ruleSource.getContent())), StandardCharsets.UTF_8);
+                case "resource":
+                    try (InputStream in = new ClassPathResource(ruleSource.getContent()).getInputStream()) {
+                        return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+                    }
+                default:
+                    throw new RuleEngineException("Unknown rule source type '" + ruleSource.getSourceType() + "', expected string, file or resource");
+            }
+        } catch (IOException e) {
+            throw new RuleEngineException("Cannot read rules from " + ruleSource.getSourceType() + " '" + ruleSource.getContent() + "'", e);
+        }
+    }
+}
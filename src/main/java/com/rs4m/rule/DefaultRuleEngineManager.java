@@ -1,20 +1,43 @@
 package com.rs4m.rule;
 
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.net.ClientIpResolver;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provides the {@link DecisionTableRuleEngine}s configured under {@code rs4m.rate.rule-engines}, by name.
+ */
 @Slf4j
 @Component("defaultRuleEngineManager")
 public class DefaultRuleEngineManager implements RuleEngineManager {
+    private final Map<String, RuleEngine> engines;
 
-    private final DummyRuleEngine dummy = DummyRuleEngine.builder().build();
-
-    public DefaultRuleEngineManager() throws RuleEngineException {
-        dummy.loadRules(null); // Assuming null is acceptable for the rule source
+    @Autowired
+    public DefaultRuleEngineManager(RateLimiterProperties properties, ClientIpResolver clientIpResolver) throws RuleEngineException {
+        Map<String, RuleEngine> engines = new HashMap<>();
+        for (Map.Entry<String, RateLimiterProperties.RuleEngineSource> entry : properties.getRuleEngines().entrySet()) {
+            DecisionTableRuleEngine engine = new DecisionTableRuleEngine(clientIpResolver);
+            try {
+                engine.loadRules(new RuleSource(entry.getValue().getSourceType(), entry.getValue().getContent()));
+            } catch (RuleEngineException e) {
+                throw new RuleEngineException("Cannot load rule engine '" + entry.getKey() + "': " + e.getMessage(), e);
+            }
+            engines.put(entry.getKey(), engine);
+        }
+        this.engines = Collections.unmodifiableMap(engines);
     }
 
+    /**
+     * @return the engine, or null if no engine has this name
+     */
     @Override
     public RuleEngine getEngine(String engineName) {
-        return this.dummy;
+        return engines.get(engineName);
     }
 }
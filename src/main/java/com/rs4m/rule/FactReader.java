@@ -0,0 +1,25 @@
+package com.rs4m.rule;
+
+/**
+ * Reads the request attributes rules are evaluated against, for one type of request.
+ */
+interface FactReader {
+    boolean supports(Object fact);
+
+    String method(Object fact);
+
+    /**
+     * @return the request path, context path included
+     */
+    String path(Object fact);
+
+    /**
+     * @return the first value of the header, null if absent
+     */
+    String header(Object fact, String name);
+
+    /**
+     * @return the client address behind the trusted proxies, null if unknown
+     */
+    String clientIp(Object fact);
+}
@@ -0,0 +1,36 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Readers of the requests rules are evaluated against: servlet and reactive, whichever are on the classpath.
+ */
+final class FactReaders {
+    private static final boolean SERVLET_PRESENT = ClassUtils.isPresent("javax.servlet.http.HttpServletRequest", null);
+    private static final boolean REACTIVE_PRESENT = ClassUtils.isPresent("org.springframework.http.server.reactive.ServerHttpRequest", null);
+
+    private final FactReader servlet;
+    private final FactReader reactive;
+
+    /**
+     * @param clientIpResolver resolves the client address behind trusted proxies, as the rate limiter filters do
+     */
+    FactReaders(ClientIpResolver clientIpResolver) {
+        this.servlet = SERVLET_PRESENT ? new ServletFactReader(clientIpResolver) : null;
+        this.reactive = REACTIVE_PRESENT ? new ReactiveFactReader(clientIpResolver) : null;
+    }
+
+    /**
+     * @return the reader of the fact, null if it is neither a servlet nor a reactive request
+     */
+    FactReader find(Object fact) {
+        if (servlet != null && servlet.supports(fact)) {
+            return servlet;
+        }
+        if (reactive != null && reactive.supports(fact)) {
+            return reactive;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Reads a reactive {@link ServerHttpRequest}.
+ */
+final class ReactiveFactReader implements FactReader {
+    private final ClientIpResolver clientIpResolver;
+
+    ReactiveFactReader(ClientIpResolver clientIpResolver) {
+        this.clientIpResolver = clientIpResolver;
+    }
+
+    @Override
+    public boolean supports(Object fact) {
+        return fact instanceof ServerHttpRequest;
+    }
+
+    @Override
+    public String method(Object fact) {
+        return ((ServerHttpRequest) fact).getMethodValue();
+    }
+
+    @Override
+    public String path(Object fact) {
+        return ((ServerHttpRequest) fact).getPath().value();
+    }
+
+    @Override
+    public String header(Object fact, String name) {
+        return ((ServerHttpRequest) fact).getHeaders().getFirst(name);
+    }
+
+    @Override
+    public String clientIp(Object fact) {
+        ServerHttpRequest request = (ServerHttpRequest) fact;
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        if (remoteAddress == null || remoteAddress.getAddress() == null) {
+            return null;
+        }
+        return clientIpResolver.resolve(remoteAddress.getAddress().getHostAddress(), request, ReactiveFactReader::forwardedFor);
+    }
+
+    private static List<String> forwardedFor(ServerHttpRequest request) {
+        return request.getHeaders().get(ClientIpResolver.X_FORWARDED_FOR);
+    }
+}
@@ -1,10 +1,41 @@
 package com.rs4m.rule;
 
+import java.util.Set;
+
+/**
+ * A rule engine resolving the client key of a request, and optionally the bucket profile to apply.
+ */
 public interface RuleEngine {
     void loadRules(RuleSource ruleSource) throws RuleEngineException;
 
     void fireRules(Object fact) throws RuleEngineException;
 
     <T> T getResult(Class<T> resultType) throws RuleEngineException;
-}
 
+    /**
+     * Evaluate the rules against a fact in a single call. Unlike {@link #fireRules} followed by {@link #getResult},
+     * this is safe on an engine shared by all request threads.
+     * The default implementation serializes both calls on the engine; engines without per-call state should override it.
+     *
+     * @param fact the request
+     * @return the client key and the profile to apply, or null if no rule matched
+     */
+    default RuleResult evaluate(Object fact) throws RuleEngineException {
+        synchronized (this) {
+            fireRules(fact);
+            String key = getResult(String.class);
+            return key != null ? new RuleResult(key, null) : null;
+        }
+    }
+
+    /**
+     * The request attributes the loaded rules read: {@code method}, {@code path}, {@code ip} or {@code header:<name>}.
+     * Rules reading nothing else give the same result for requests that agree on these attributes, which lets
+     * {@link CachingRuleEngine} reuse results. Engines return a new set whenever they load rules.
+     *
+     * @return the attributes, or null if the rules may read anything else, in which case results are never cached
+     */
+    default Set<String> getFactAttributes() {
+        return null;
+    }
+}
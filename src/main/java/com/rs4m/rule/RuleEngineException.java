@@ -1,6 +1,10 @@
 package com.rs4m.rule;
 
 public class RuleEngineException extends Exception {
+    public RuleEngineException(String message) {
+        super(message);
+    }
+
     public RuleEngineException(String message, Throwable cause) {
         super(message, cause);
     }
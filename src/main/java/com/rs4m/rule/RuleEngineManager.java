@@ -1,5 +1,9 @@
 package com.rs4m.rule;
 
 public interface RuleEngineManager {
-    RuleEngine getEngine(String engineName) ;
+    /**
+     * @param engineName the {@link com.rs4m.annotation.RateLimiter#ruleEngine()} of the rate limiter
+     * @return the engine, or null to resolve the key with the key resolver of the rate limiter
+     */
+    RuleEngine getEngine(String engineName);
 }
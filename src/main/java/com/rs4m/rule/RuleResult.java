@@ -0,0 +1,21 @@
+package com.rs4m.rule;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of a rule evaluation.
+ */
+@Getter
+@AllArgsConstructor
+public class RuleResult {
+    /**
+     * The client identity, e.g. an API key or a tenant
+     */
+    private final String key;
+
+    /**
+     * The bucket profile to apply instead of the one of the @RateLimiter, null to keep it
+     */
+    private final String profile;
+}
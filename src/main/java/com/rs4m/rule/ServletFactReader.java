@@ -0,0 +1,50 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Reads an {@link HttpServletRequest}.
+ */
+final class ServletFactReader implements FactReader {
+    private final ClientIpResolver clientIpResolver;
+
+    ServletFactReader(ClientIpResolver clientIpResolver) {
+        this.clientIpResolver = clientIpResolver;
+    }
+
+    @Override
+    public boolean supports(Object fact) {
+        return fact instanceof HttpServletRequest;
+    }
+
+    @Override
+    public String method(Object fact) {
+        return ((HttpServletRequest) fact).getMethod();
+    }
+
+    @Override
+    public String path(Object fact) {
+        return ((HttpServletRequest) fact).getRequestURI();
+    }
+
+    @Override
+    public String header(Object fact, String name) {
+        return ((HttpServletRequest) fact).getHeader(name);
+    }
+
+    @Override
+    public String clientIp(Object fact) {
+        HttpServletRequest request = (HttpServletRequest) fact;
+        return clientIpResolver.resolve(request.getRemoteAddr(), request, ServletFactReader::forwardedFor);
+    }
+
+    private static List<String> forwardedFor(HttpServletRequest request) {
+        Enumeration<String> values = request.getHeaders(ClientIpResolver.X_FORWARDED_FOR);
+        return values != null && values.hasMoreElements() ? Collections.list(values) : null;
+    }
+}
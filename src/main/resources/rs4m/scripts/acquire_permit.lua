@@ -0,0 +1,24 @@
+-- Take a permit of a lease-based semaphore in one atomic step. The permits in use are a sorted set of permit ids
+-- scored by the time their lease expires, so the permits of a crashed holder are reclaimed once their lease expires.
+-- Taking a permit that is still held renews its lease instead, e.g. a spare permit reused by its node.
+--
+-- KEYS[1]  sorted set of the permits in use
+-- ARGV[1]  current time in milliseconds
+-- ARGV[2]  permit id
+-- ARGV[3]  time the lease of the permit expires, in milliseconds
+-- ARGV[4]  maximum number of permits in use
+--
+-- Returns 1 if the permit was taken or renewed, 0 if all permits are in use
+redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', ARGV[1])
+if redis.call('ZSCORE', KEYS[1], ARGV[2]) then
+    -- already counted, only its lease starts again
+    redis.call('ZADD', KEYS[1], 'XX', ARGV[3], ARGV[2])
+elseif redis.call('ZCARD', KEYS[1]) >= tonumber(ARGV[4]) then
+    return 0
+else
+    redis.call('ZADD', KEYS[1], ARGV[3], ARGV[2])
+end
+-- the set goes away with the last lease
+local last = redis.call('ZRANGE', KEYS[1], -1, -1, 'WITHSCORES')
+redis.call('PEXPIREAT', KEYS[1], last[2])
+return 1
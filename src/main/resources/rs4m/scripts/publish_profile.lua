@@ -0,0 +1,20 @@
+-- Store a bucket profile if it is newer than the stored one, and announce it to every node, in one atomic step.
+-- Stores and announcements are therefore ordered by version on every node.
+--
+-- KEYS[1]  hash of the stored profiles (JSON) by profile name
+-- KEYS[2]  hash of the stored profile versions by profile name, in the same slot as KEYS[1]
+-- ARGV[1]  profile name
+-- ARGV[2]  profile version, as 16 hex digits so versions compare as strings
+-- ARGV[3]  profile (JSON)
+-- ARGV[4]  channel the profile is announced on
+-- ARGV[5]  announcement (JSON)
+--
+-- Returns 1 if the profile was stored and announced, 0 if the stored version is the same or newer
+local current = redis.call('HGET', KEYS[2], ARGV[1])
+if current and current >= ARGV[2] then
+    return 0
+end
+redis.call('HSET', KEYS[1], ARGV[1], ARGV[3])
+redis.call('HSET', KEYS[2], ARGV[1], ARGV[2])
+redis.call('PUBLISH', ARGV[4], ARGV[5])
+return 1
@@ -0,0 +1,107 @@
+-- Refill and consume all bandwidths of one or more token buckets in one atomic step (greedy refill).
+-- Tokens are consumed from every bucket or from none of them.
+--
+-- The current time is the clock of Redis, so the clocks of the nodes never skew the refill. A time behind the last refill
+-- of a bucket, e.g. of a replica promoted by a failover, refills nothing and keeps its ts, so the same interval is never
+-- refilled twice.
+--
+-- KEYS[k]  bucket hash, fields: ts = time of the last refill in microseconds, t1..tn = available tokens of each bandwidth
+-- ARGV[1]  tokens to consume, a negative number gives tokens back
+-- ARGV[2]  microseconds the tokens may be reserved ahead of the refill, which leaves the buckets negative: 0 to only
+--          consume available tokens, -1 to consume them whatever the buckets hold
+-- then for each key: the expiration policy of the key (REFILL, FIXED or NONE) and its milliseconds (kept after the refill
+-- with REFILL, time to live with FIXED), the number of bandwidths n, followed by capacity, refill tokens and refill period
+-- in microseconds of each bandwidth
+--
+-- Returns {consumed (1 or 0), remaining tokens, microseconds to wait for refill (-1 if never), microseconds to wait for reset};
+-- the wait for refill of reserved tokens is the time until they are available
+-- a script reading TIME must replicate its effects rather than itself; the default from Redis 5, a no-op from Redis 7
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+local requested = tonumber(ARGV[1])
+local maxWait = tonumber(ARGV[2])
+
+local buckets = {}
+local offset = 3
+for k = 1, #KEYS do
+    local policy = ARGV[offset]
+    local expiration = tonumber(ARGV[offset + 1])
+    offset = offset + 2
+    local n = tonumber(ARGV[offset])
+    local fields = {'ts'}
+    for i = 1, n do
+        fields[i + 1] = 't' .. i
+    end
+    local state = redis.call('HMGET', KEYS[k], unpack(fields))
+    local last = tonumber(state[1]) or now
+    local elapsed = math.max(0, now - last)
+
+    local bucket = {policy = policy, expiration = expiration, n = n, ts = math.max(last, now),
+                    capacity = {}, refill = {}, period = {}, tokens = {}}
+    for i = 1, n do
+        local base = offset + (i - 1) * 3
+        bucket.capacity[i] = tonumber(ARGV[base + 1])
+        bucket.refill[i] = tonumber(ARGV[base + 2])
+        bucket.period[i] = tonumber(ARGV[base + 3])
+        local available = tonumber(state[i + 1])
+        if available == nil then
+            bucket.tokens[i] = bucket.capacity[i]
+        else
+            -- also caps the tokens kept from a previous configuration to the new capacity
+            bucket.tokens[i] = math.min(bucket.capacity[i], available + elapsed * bucket.refill[i] / bucket.period[i])
+        end
+    end
+    buckets[k] = bucket
+    offset = offset + 1 + n * 3
+end
+
+local consumed = 1
+local wait = 0
+for k = 1, #KEYS do
+    local bucket = buckets[k]
+    for i = 1, bucket.n do
+        if bucket.tokens[i] < requested then
+            consumed = 0
+            if requested > bucket.capacity[i] then
+                wait = -1
+            elseif wait >= 0 then
+                wait = math.max(wait, math.ceil((requested - bucket.tokens[i]) * bucket.period[i] / bucket.refill[i]))
+            end
+        end
+    end
+end
+if consumed == 0 and (maxWait < 0 or (wait >= 0 and wait <= maxWait)) then
+    consumed = 1
+end
+
+local remaining = nil
+local reset = 0
+for k = 1, #KEYS do
+    local bucket = buckets[k]
+    local bucketReset = 0
+    local update = {'ts', bucket.ts}
+    for i = 1, bucket.n do
+        if consumed == 1 then
+            bucket.tokens[i] = math.min(bucket.capacity[i], bucket.tokens[i] - requested)
+        end
+        remaining = math.min(remaining or bucket.tokens[i], bucket.tokens[i])
+        bucketReset = math.max(bucketReset, math.ceil((bucket.capacity[i] - bucket.tokens[i]) * bucket.period[i] / bucket.refill[i]))
+        update[#update + 1] = 't' .. i
+        update[#update + 1] = bucket.tokens[i]
+    end
+    redis.call('HMSET', KEYS[k], unpack(update))
+    if bucket.policy == 'FIXED' then
+        redis.call('PEXPIRE', KEYS[k], bucket.expiration)
+    elseif bucket.policy == 'NONE' then
+        redis.call('PERSIST', KEYS[k])
+    else
+        -- a bucket refilled up to its capacity is the same as a missing one
+        redis.call('PEXPIRE', KEYS[k], math.ceil(bucketReset / 1000) + bucket.expiration + 1)
+    end
+    reset = math.max(reset, bucketReset)
+end
+
+return {consumed, math.floor(remaining or 0), wait, reset}
@@ -0,0 +1,92 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.metrics.HeavyHitters;
+import com.rs4m.metrics.RateLimitMetrics;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientKeyResolverTest {
+    @RateLimiter("api")
+    private void byIp() {
+    }
+
+    @RateLimiter(value = "api", keyResolver = RateLimiter.KeyResolver.HEADER)
+    private void byHeader() {
+    }
+
+    @RateLimiter(value = "api", keyResolver = RateLimiter.KeyResolver.SUBNET)
+    private void bySubnet() {
+    }
+
+    /**
+     * A request made of its client address and headers only
+     */
+    private static final class Request {
+        final String clientIp;
+        final Map<String, String> headers;
+
+        Request(String clientIp, Map<String, String> headers) {
+            this.clientIp = clientIp;
+            this.headers = headers;
+        }
+    }
+
+    private static final class Access implements ClientKeyResolver.RequestAccess<Request> {
+        @Override
+        public String header(Request request, String name) {
+            return request.headers.get(name);
+        }
+
+        @Override
+        public String clientIp(Request request) {
+            return request.clientIp;
+        }
+
+        @Override
+        public String pattern(Request request) {
+            return "/orders";
+        }
+
+        @Override
+        public Object fact(Request request) {
+            return request;
+        }
+    }
+
+    private final ClientKeyResolver<Request> resolver = new ClientKeyResolver<>(new RateLimiterProperties(), RateLimitMetrics.noop(),
+            new HeavyHitters(false, 1, 1, 1, false), new Access());
+
+    private static RateLimitPlan plan(String method) throws NoSuchMethodException {
+        return RateLimitPlan.builder()
+                .rateLimiter(ClientKeyResolverTest.class.getDeclaredMethod(method).getAnnotation(RateLimiter.class))
+                .keyPrefix("rs4m_rl_")
+                .profile("api")
+                .build();
+    }
+
+    private ClientKeys resolve(String method, Request request) throws NoSuchMethodException {
+        return resolver.resolveClientKeys(request, Collections.singletonList(plan(method)));
+    }
+
+    @Test
+    public void clientsOfUnknownAddressAreNotKeyedTogether() throws Exception {
+        Request unknown = new Request("", Collections.emptyMap());
+        assertThat(resolve("byIp", unknown)).isNull();
+        // the fallbacks to the address as well
+        assertThat(resolve("byHeader", unknown)).isNull();
+        assertThat(resolve("bySubnet", unknown)).isNull();
+    }
+
+    @Test
+    public void keyOfAKnownClientIsResolvedWithoutItsAddress() throws Exception {
+        Request withApiKey = new Request("", Collections.singletonMap("X-API-KEY", "key-1"));
+        assertThat(resolve("byHeader", withApiKey).getKey(0)).isEqualTo("rs4m_rl_{key-1}:api:/orders");
+        assertThat(resolve("byIp", new Request("10.0.0.1", Collections.emptyMap())).getKey(0)).isEqualTo("rs4m_rl_{10.0.0.1}:api:/orders");
+    }
+}
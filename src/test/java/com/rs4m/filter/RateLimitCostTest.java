@@ -0,0 +1,115 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.observer.RateLimitManager;
+import io.github.bucket4j.Bucket;
+import org.junit.Test;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitCostTest {
+    @RateLimiter("api")
+    private void limited() {
+    }
+
+    /**
+     * One local bucket of ten tokens, refilled once an hour
+     */
+    private static final class LocalRateLimitManager implements RateLimitManager {
+        final Bucket bucket = Bucket.builder()
+                .addLimit(limit -> limit.capacity(10).refillGreedy(10, Duration.ofHours(1)))
+                .build();
+
+        @Override
+        public Bucket getBucket(String clientKey, RateLimiter rateLimiter) {
+            return bucket;
+        }
+    }
+
+    private static RateLimitPlan plan(long cost, String costExpression, RateLimitManager rateLimitManager) throws NoSuchMethodException {
+        return RateLimitPlan.builder()
+                .rateLimiter(RateLimitCostTest.class.getDeclaredMethod("limited").getAnnotation(RateLimiter.class))
+                .rateLimitManager(rateLimitManager)
+                .cost(cost)
+                .costExpression(costExpression != null ? new SpelExpressionParser().parseExpression(costExpression) : null)
+                .profile("api")
+                .build();
+    }
+
+    private static long cost(String costExpression, Object request, String size) throws NoSuchMethodException {
+        Map<String, String> pathVariables = size != null ? Collections.singletonMap("size", size) : null;
+        return RateLimitCost.resolve(plan(2, costExpression, null), request, pathVariables);
+    }
+
+    @Test
+    public void constantCostWithoutExpression() throws Exception {
+        assertThat(RateLimitCost.resolve(plan(3, null, null), new MockHttpServletRequest(), null)).isEqualTo(3);
+    }
+
+    @Test
+    public void expressionComputesTheCostOfEachRequest() throws Exception {
+        assertThat(cost("#pathVariables['size']", new MockHttpServletRequest(), "5")).isEqualTo(5);
+        assertThat(cost("#pathVariables['size']", new MockHttpServletRequest(), "7")).isEqualTo(7);
+
+        MockHttpServletRequest upload = new MockHttpServletRequest("POST", "/uploads");
+        upload.setContent(new byte[4096]);
+        assertThat(cost("#request.contentLengthLong / 1024", upload, null)).isEqualTo(4);
+        assertThat(cost("#request.getContentLengthLong() / 1024", upload, null)).isEqualTo(4);
+        assertThat(cost("T(java.lang.Math).max(#request.contentLength / 1024, 2)", upload, null)).isEqualTo(4);
+    }
+
+    @Test
+    public void expressionCostIsAtLeastOneToken() throws Exception {
+        assertThat(cost("#pathVariables['size']", new MockHttpServletRequest(), "0")).isEqualTo(1);
+        assertThat(cost("#pathVariables['size']", new MockHttpServletRequest(), "-3")).isEqualTo(1);
+    }
+
+    @Test
+    public void fallsBackToTheConstantCost() throws Exception {
+        // null, failing, and not a number
+        assertThat(cost("#pathVariables['size']", new MockHttpServletRequest(), null)).isEqualTo(2);
+        assertThat(cost("#request.noSuchProperty", new MockHttpServletRequest(), null)).isEqualTo(2);
+        assertThat(cost("#request.method", new MockHttpServletRequest(), null)).isEqualTo(2);
+    }
+
+    @Test
+    public void settlingGivesBackOrChargesTheDifference() throws Exception {
+        LocalRateLimitManager rateLimitManager = new LocalRateLimitManager();
+        RateLimitPlan plan = plan(3, null, rateLimitManager);
+
+        ClientKeys refunded = charge(plan);
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(7);
+        refunded.settleCost(1);
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(9);
+
+        ClientKeys charged = charge(plan);
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(6);
+        charged.settleCost(12L);
+        // charged even below zero, the next requests wait for the refill
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(-3);
+    }
+
+    @Test
+    public void settlingWithoutAnActualCostChangesNothing() throws Exception {
+        LocalRateLimitManager rateLimitManager = new LocalRateLimitManager();
+        ClientKeys resolved = charge(plan(3, null, rateLimitManager));
+        resolved.settleCost(null);
+        resolved.settleCost("5");
+        resolved.settleCost(3);
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(7);
+    }
+
+    private static ClientKeys charge(RateLimitPlan plan) {
+        ClientKeys resolved = new ClientKeys(Collections.singletonList(plan));
+        resolved.set(0, plan, "client");
+        resolved.resolveCost(new MockHttpServletRequest(), null);
+        assertThat(resolved.tryConsume().isConsumed()).isTrue();
+        return resolved;
+    }
+}
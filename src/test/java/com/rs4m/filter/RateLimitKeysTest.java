@@ -0,0 +1,93 @@
+package com.rs4m.filter;
+
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitKeysTest {
+    private static final RateLimitPlan ORDERS = plan("orders");
+    private static final RateLimitPlan BURST = plan("burst");
+
+    private static RateLimitPlan plan(String profile) {
+        return RateLimitPlan.builder().keyPrefix("rs4m_rl_").profile(profile).build();
+    }
+
+    private static String tag(String key) {
+        return key.substring(key.indexOf('{'), key.indexOf('}') + 1);
+    }
+
+    @Test
+    public void requestsOfOnePatternShareTheirKey() throws Exception {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.registerBean(OrdersController.class);
+        context.refresh();
+        RequestMappingHandlerMapping handlerMapping = new RequestMappingHandlerMapping();
+        handlerMapping.setApplicationContext(context);
+        handlerMapping.afterPropertiesSet();
+
+        MockHttpServletRequest first = new MockHttpServletRequest("GET", "/orders/7");
+        MockHttpServletRequest second = new MockHttpServletRequest("GET", "/orders/8");
+        handlerMapping.getHandler(first);
+        handlerMapping.getHandler(second);
+        // the pattern the filter keys requests by, set while looking up the handler
+        String pattern = (String) first.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        assertThat(pattern).isEqualTo("/orders/{id}").isEqualTo(second.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE));
+
+        for (boolean hashed : new boolean[]{false, true}) {
+            assertThat(RateLimitKeys.build(ORDERS, pattern, "10.0.0.1", hashed))
+                    .isEqualTo(RateLimitKeys.build(ORDERS, pattern, "10.0.0.1", hashed))
+                    .isNotEqualTo(RateLimitKeys.build(ORDERS, first.getRequestURI(), "10.0.0.1", hashed));
+        }
+        context.close();
+    }
+
+    @Test
+    public void profileIsPartOfTheKey() {
+        assertThat(RateLimitKeys.build(ORDERS, "/orders/{id}", "10.0.0.1", false)).isEqualTo("rs4m_rl_{10.0.0.1}:orders:/orders/{id}");
+        assertThat(RateLimitKeys.build(BURST, "/orders/{id}", "10.0.0.1", false)).isEqualTo("rs4m_rl_{10.0.0.1}:burst:/orders/{id}");
+        assertThat(RateLimitKeys.build(ORDERS, "/orders/{id}", "10.0.0.1", true))
+                .isNotEqualTo(RateLimitKeys.build(BURST, "/orders/{id}", "10.0.0.1", true));
+        // a profile picked by a rule engine keys its own buckets
+        assertThat(RateLimitKeys.build(ORDERS.forProfile("gold"), "/orders/{id}", "10.0.0.1", false))
+                .isEqualTo("rs4m_rl_{10.0.0.1}:gold:/orders/{id}");
+    }
+
+    @Test
+    public void hashedKeysHaveAFixedLength() {
+        String shortKey = RateLimitKeys.build(ORDERS, "/a", "k", true);
+        String longPattern = String.join("/", Collections.nCopies(500, "segment"));
+        String longClient = String.join("", Collections.nCopies(8_000, "x"));
+        assertThat(RateLimitKeys.build(ORDERS, longPattern, "k", true)).hasSameSizeAs(shortKey);
+        assertThat(RateLimitKeys.build(ORDERS, "/a", longClient, true)).hasSameSizeAs(shortKey);
+        assertThat(RateLimitKeys.build(ORDERS, "/a", null, true)).hasSameSizeAs(shortKey);
+        assertThat(shortKey).startsWith("rs4m_rl_{").doesNotContain("/a").doesNotContain(":orders");
+    }
+
+    @Test
+    public void keysOfOneClientShareTheirHashTag() {
+        for (boolean hashed : new boolean[]{false, true}) {
+            String orders = RateLimitKeys.build(ORDERS, "/orders/{id}", "key-1", hashed);
+            String burst = RateLimitKeys.build(BURST, "/invoices", "key-1", hashed);
+            String other = RateLimitKeys.build(ORDERS, "/orders/{id}", "key-2", hashed);
+            assertThat(orders).isNotEqualTo(burst);
+            assertThat(tag(orders)).isEqualTo(tag(burst)).isNotEqualTo(tag(other));
+        }
+    }
+
+    @RestController
+    static class OrdersController {
+        @GetMapping("/orders/{id}")
+        public String order(@PathVariable String id) {
+            return id;
+        }
+    }
+}
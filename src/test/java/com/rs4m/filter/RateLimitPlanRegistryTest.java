@@ -0,0 +1,160 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.observer.RateLimitManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitPlanRegistryTest {
+    private GenericApplicationContext context;
+    private CountingHandlerMapping handlerMapping;
+    private RateLimitPlanRegistry registry;
+
+    @Before
+    public void setUp() {
+        context = new GenericApplicationContext();
+        context.registerBean(RateLimiterProperties.class);
+        // the plans are only looked up, no token is consumed
+        context.registerBean("defaultRateLimitManager", RateLimitManager.class, () -> (clientKey, rateLimiter) -> {
+            throw new UnsupportedOperationException();
+        });
+        context.registerBean(OrdersController.class);
+        context.refresh();
+        handlerMapping = new CountingHandlerMapping();
+        handlerMapping.setApplicationContext(context);
+        handlerMapping.afterPropertiesSet();
+        registry = new RateLimitPlanRegistry(handlerMapping, context);
+        registry.afterSingletonsInstantiated();
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    private static MockHttpServletRequest get(String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            request.setRequestURI(path.substring(0, query));
+            String[] param = path.substring(query + 1).split("=");
+            request.addParameter(param[0], param[1]);
+        }
+        return request;
+    }
+
+    @Test
+    public void resolvesTheHandlerOfAPatternOnce() throws Exception {
+        List<RateLimitPlan> plans = registry.lookup(get("/orders/7"));
+        assertThat(plans).extracting(RateLimitPlan::getProfile).containsExactly("orders");
+
+        MockHttpServletRequest next = get("/orders/7");
+        assertThat(registry.lookup(next)).isSameAs(plans);
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // the attributes the filter and the handler read are set from the cache
+        assertThat(next.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).isEqualTo("/orders/{id}");
+        assertThat(next.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).isEqualTo(Collections.singletonMap("id", "7"));
+    }
+
+    @Test
+    public void cachesPatternsThatAreNotRateLimited() throws Exception {
+        assertThat(registry.lookup(get("/health"))).isNull();
+        assertThat(registry.lookup(get("/health"))).isNull();
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // no mapping matches: nothing to key the cache by
+        assertThat(registry.lookup(get("/unknown"))).isNull();
+        assertThat(registry.lookup(get("/unknown"))).isNull();
+        assertThat(handlerMapping.lookups).isEqualTo(3);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void keysTheCacheByPattern() throws Exception {
+        MockHttpServletRequest first = get("/orders/7");
+        List<RateLimitPlan> plans = registry.lookup(first);
+        MockHttpServletRequest other = get("/orders/8");
+        assertThat(registry.lookup(other)).isSameAs(plans);
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // the path variables are those of the request, not of the cached one
+        assertThat(other.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).isEqualTo(Collections.singletonMap("id", "8"));
+        ((Map<String, String>) other.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).put("id", "9");
+        assertThat(first.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).isEqualTo(Collections.singletonMap("id", "7"));
+    }
+
+    @Test
+    public void literalPathsAreNotTakenForACachedPattern() throws Exception {
+        registry.lookup(get("/orders/7"));
+        MockHttpServletRequest drafts = get("/orders/drafts");
+        assertThat(registry.lookup(drafts)).extracting(RateLimitPlan::getProfile).containsExactly("drafts");
+        assertThat(drafts.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).isEqualTo("/orders/drafts");
+        assertThat(registry.lookup(get("/orders/drafts"))).extracting(RateLimitPlan::getProfile).containsExactly("drafts");
+        assertThat(handlerMapping.lookups).isEqualTo(2);
+    }
+
+    @Test
+    public void resolvesConditionalMappingsOnEveryRequest() throws Exception {
+        // the handler of /search depends on the query
+        assertThat(registry.lookup(get("/search?q=rs4m"))).extracting(RateLimitPlan::getProfile).containsExactly("search");
+        assertThat(registry.lookup(get("/search"))).isNull();
+        assertThat(registry.lookup(get("/search?q=rs4m"))).extracting(RateLimitPlan::getProfile).containsExactly("search");
+        assertThat(handlerMapping.lookups).isEqualTo(3);
+    }
+
+    private static final class CountingHandlerMapping extends RequestMappingHandlerMapping {
+        private int lookups;
+
+        @Override
+        protected HandlerMethod getHandlerInternal(HttpServletRequest request) throws Exception {
+            lookups++;
+            return super.getHandlerInternal(request);
+        }
+    }
+
+    @RestController
+    static class OrdersController {
+        @RateLimiter("orders")
+        @GetMapping("/orders/{id}")
+        public String order(@PathVariable String id) {
+            return id;
+        }
+
+        @RateLimiter("drafts")
+        @GetMapping("/orders/drafts")
+        public String drafts() {
+            return "";
+        }
+
+        @GetMapping("/health")
+        public String health() {
+            return "UP";
+        }
+
+        @RateLimiter("search")
+        @GetMapping(path = "/search", params = "q")
+        public String search() {
+            return "";
+        }
+
+        @GetMapping("/search")
+        public String searchAll() {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.rs4m.filter;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.observer.RateLimitManager;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.ConsumptionProbe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TrafficShaperTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private TrafficShaper trafficShaper;
+
+    @After
+    public void tearDown() {
+        if (trafficShaper != null) {
+            trafficShaper.shutdown();
+        }
+    }
+
+    @RateLimiter(value = "api", maxWaitMillis = 250)
+    private void shaped() {
+    }
+
+    /**
+     * Ten tokens per second in one local bucket, reserved by the default two-step implementation.
+     */
+    private static final class LocalRateLimitManager implements RateLimitManager {
+        final Bucket bucket = Bucket.builder()
+                .addLimit(limit -> limit.capacity(10).refillGreedy(10, Duration.ofSeconds(1)))
+                .build();
+
+        @Override
+        public Bucket getBucket(String clientKey, RateLimiter rateLimiter) {
+            return bucket;
+        }
+    }
+
+    private static ClientKeys request(RateLimitManager rateLimitManager) throws NoSuchMethodException {
+        RateLimitPlan plan = RateLimitPlan.builder()
+                .rateLimiter(TrafficShaperTest.class.getDeclaredMethod("shaped").getAnnotation(RateLimiter.class))
+                .rateLimitManager(rateLimitManager)
+                .cost(1)
+                .profile("api")
+                .build();
+        ClientKeys resolved = new ClientKeys(Collections.singletonList(plan));
+        resolved.set(0, plan, "client");
+        return resolved;
+    }
+
+    @Test
+    public void availableTokensAreConsumedRightAway() throws Exception {
+        trafficShaper = new TrafficShaper(10, new RateLimitMetrics(registry));
+        ConsumptionProbe probe = trafficShaper.shape(request(new LocalRateLimitManager())).get(50, TimeUnit.MILLISECONDS);
+        assertThat(probe.isConsumed()).isTrue();
+        assertThat(probe.getRemainingTokens()).isEqualTo(9);
+    }
+
+    @Test
+    public void requestIsDelayedUntilItsReservedTokensAreAvailable() throws Exception {
+        trafficShaper = new TrafficShaper(10, new RateLimitMetrics(registry));
+        LocalRateLimitManager rateLimitManager = new LocalRateLimitManager();
+        rateLimitManager.bucket.consumeIgnoringRateLimits(10);
+
+        long start = System.nanoTime();
+        CompletableFuture<ConsumptionProbe> shaped = trafficShaper.shape(request(rateLimitManager));
+        assertThat(shaped).isNotDone();
+        assertThat(shaped.get(1, TimeUnit.SECONDS).isConsumed()).isTrue();
+        // one token of ten per second
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(90));
+        // the reserved token was owed by the bucket until now
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isLessThanOrEqualTo(1);
+    }
+
+    @Test
+    public void requestWaitingLongerThanTheMaxWaitIsRejectedRightAway() throws Exception {
+        trafficShaper = new TrafficShaper(10, new RateLimitMetrics(registry));
+        LocalRateLimitManager rateLimitManager = new LocalRateLimitManager();
+        // five tokens owed: the next one is available after 600ms
+        rateLimitManager.bucket.consumeIgnoringRateLimits(15);
+
+        ConsumptionProbe probe = trafficShaper.shape(request(rateLimitManager)).get(50, TimeUnit.MILLISECONDS);
+        assertThat(probe.isConsumed()).isFalse();
+        assertThat(probe.getNanosToWaitForRefill()).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(250));
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isEqualTo(-5);
+    }
+
+    @Test
+    public void requestIsRejectedWhenTheQueueIsFull() throws Exception {
+        trafficShaper = new TrafficShaper(0, new RateLimitMetrics(registry));
+        LocalRateLimitManager rateLimitManager = new LocalRateLimitManager();
+        rateLimitManager.bucket.consumeIgnoringRateLimits(10);
+
+        ConsumptionProbe probe = trafficShaper.shape(request(rateLimitManager)).get(50, TimeUnit.MILLISECONDS);
+        assertThat(probe.isConsumed()).isFalse();
+        assertThat(rateLimitManager.bucket.getAvailableTokens()).isZero();
+        assertThat(registry.get(RateLimitMetrics.SHAPING_OVERFLOWS).tag("limiter", "api").counter().count()).isEqualTo(1);
+        assertThat(registry.get(RateLimitMetrics.SHAPING_QUEUED).gauge().value()).isZero();
+    }
+}
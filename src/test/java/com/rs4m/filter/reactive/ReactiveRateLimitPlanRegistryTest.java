@@ -0,0 +1,156 @@
+package com.rs4m.filter.reactive;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.filter.RateLimitPlan;
+import com.rs4m.observer.RateLimitManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.result.method.annotation.RequestMappingHandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReactiveRateLimitPlanRegistryTest {
+    private GenericApplicationContext context;
+    private CountingHandlerMapping handlerMapping;
+    private ReactiveRateLimitPlanRegistry registry;
+
+    @Before
+    public void setUp() {
+        context = new GenericApplicationContext();
+        context.registerBean(RateLimiterProperties.class);
+        // the plans are only looked up, no token is consumed
+        context.registerBean("defaultRateLimitManager", RateLimitManager.class, () -> (clientKey, rateLimiter) -> {
+            throw new UnsupportedOperationException();
+        });
+        context.registerBean(OrdersController.class);
+        context.refresh();
+        handlerMapping = new CountingHandlerMapping();
+        handlerMapping.setApplicationContext(context);
+        handlerMapping.afterPropertiesSet();
+        registry = new ReactiveRateLimitPlanRegistry(handlerMapping, context);
+        registry.afterSingletonsInstantiated();
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    private static ServerWebExchange get(String path) {
+        return MockServerWebExchange.from(MockServerHttpRequest.get(path));
+    }
+
+    @Test
+    public void resolvesTheHandlerOfAPatternOnce() {
+        List<RateLimitPlan> plans = registry.lookup(get("/orders/7")).block();
+        assertThat(plans).extracting(RateLimitPlan::getProfile).containsExactly("orders");
+
+        ServerWebExchange next = get("/orders/7");
+        assertThat(registry.lookup(next).block()).isSameAs(plans);
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // the attributes the filter and the handler read are set from the cache
+        assertThat(next.getAttributes().get(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE).toString()).isEqualTo("/orders/{id}");
+        assertThat(next.getAttributes().get(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).isEqualTo(Collections.singletonMap("id", "7"));
+    }
+
+    @Test
+    public void cachesPatternsThatAreNotRateLimited() {
+        assertThat(registry.lookup(get("/health")).block()).isNull();
+        assertThat(registry.lookup(get("/health")).block()).isNull();
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // no mapping matches: nothing to key the cache by
+        assertThat(registry.lookup(get("/unknown")).block()).isNull();
+        assertThat(registry.lookup(get("/unknown")).block()).isNull();
+        assertThat(handlerMapping.lookups).isEqualTo(3);
+    }
+
+    @Test
+    public void keysTheCacheByPattern() {
+        List<RateLimitPlan> plans = registry.lookup(get("/orders/7")).block();
+        ServerWebExchange other = get("/orders/8");
+        assertThat(registry.lookup(other).block()).isSameAs(plans);
+        assertThat(handlerMapping.lookups).isEqualTo(1);
+        // the path variables are those of the request, not of the cached one
+        assertThat(other.getAttributes().get(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE)).isEqualTo(Collections.singletonMap("id", "8"));
+    }
+
+    @Test
+    public void literalPathsAreNotTakenForACachedPattern() {
+        registry.lookup(get("/orders/7")).block();
+        assertThat(registry.lookup(get("/orders/drafts")).block()).extracting(RateLimitPlan::getProfile).containsExactly("drafts");
+        assertThat(registry.lookup(get("/orders/drafts")).block()).extracting(RateLimitPlan::getProfile).containsExactly("drafts");
+        assertThat(handlerMapping.lookups).isEqualTo(2);
+    }
+
+    @Test
+    public void keysTheCacheByMethod() {
+        registry.lookup(get("/orders/7")).block();
+        assertThat(registry.lookup(MockServerWebExchange.from(MockServerHttpRequest.delete("/orders/7"))).onErrorResume(e -> Mono.empty()).block())
+                .isNull();
+        assertThat(handlerMapping.lookups).isEqualTo(2);
+    }
+
+    @Test
+    public void resolvesConditionalMappingsOnEveryRequest() {
+        // the handler of /search depends on the query
+        assertThat(registry.lookup(get("/search?q=rs4m")).block()).extracting(RateLimitPlan::getProfile).containsExactly("search");
+        assertThat(registry.lookup(get("/search")).block()).isNull();
+        assertThat(registry.lookup(get("/search?q=rs4m")).block()).extracting(RateLimitPlan::getProfile).containsExactly("search");
+        assertThat(handlerMapping.lookups).isEqualTo(3);
+    }
+
+    private static final class CountingHandlerMapping extends RequestMappingHandlerMapping {
+        private int lookups;
+
+        @Override
+        public Mono<Object> getHandler(ServerWebExchange exchange) {
+            lookups++;
+            return super.getHandler(exchange);
+        }
+    }
+
+    @RestController
+    static class OrdersController {
+        @RateLimiter("orders")
+        @GetMapping("/orders/{id}")
+        public String order(@PathVariable String id) {
+            return id;
+        }
+
+        @RateLimiter("drafts")
+        @GetMapping("/orders/drafts")
+        public String drafts() {
+            return "";
+        }
+
+        @GetMapping("/health")
+        public String health() {
+            return "UP";
+        }
+
+        @RateLimiter("search")
+        @GetMapping(path = "/search", params = "q")
+        public String search() {
+            return "";
+        }
+
+        @GetMapping("/search")
+        public String searchAll() {
+            return "";
+        }
+    }
+}
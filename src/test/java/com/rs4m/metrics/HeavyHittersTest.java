@@ -0,0 +1,108 @@
+package com.rs4m.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HeavyHittersTest {
+    private HeavyHitters heavyHitters;
+
+    @After
+    public void tearDown() {
+        if (heavyHitters != null) {
+            heavyHitters.shutdown();
+        }
+    }
+
+    private static long hash(int key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Test
+    public void countMinSketchNeverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(1024);
+        int[] counts = new int[5_000];
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            int key = random.nextInt(counts.length);
+            counts[key]++;
+            sketch.add(hash(key));
+        }
+        int withinBound = 0;
+        for (int key = 0; key < counts.length; key++) {
+            long estimate = sketch.estimate(hash(key));
+            assertThat(estimate).isGreaterThanOrEqualTo(counts[key]);
+            // e * total / width, with probability 1 - e^-4 per key
+            if (estimate - counts[key] <= Math.E * 100_000 / 1024) {
+                withinBound++;
+            }
+        }
+        assertThat(withinBound).isGreaterThan(counts.length * 95 / 100);
+    }
+
+    @Test
+    public void hyperLogLogEstimatesDistinctKeysWithinAFewPercent() {
+        for (int distinct : new int[]{100, 10_000, 1_000_000}) {
+            HyperLogLog hyperLogLog = new HyperLogLog();
+            for (int key = 0; key < distinct; key++) {
+                hyperLogLog.add(hash(key));
+                // repeated keys do not count
+                hyperLogLog.add(hash(key));
+            }
+            assertThat((double) hyperLogLog.estimate()).as("%d distinct keys", distinct)
+                    .isBetween(distinct * 0.94, distinct * 1.06);
+        }
+    }
+
+    @Test
+    public void reportsTheHeaviestKeysByOutcome() {
+        heavyHitters = new HeavyHitters(true, 3, 1024, 60_000, true);
+        for (int i = 0; i < 10_000; i++) {
+            heavyHitters.record("api", "tail-" + i, true);
+        }
+        for (int i = 0; i < 3_000; i++) {
+            heavyHitters.record("api", "heavy", true);
+            heavyHitters.record("api", "abuser", false);
+        }
+        for (int i = 0; i < 1_000; i++) {
+            heavyHitters.record("api", "medium", true);
+        }
+
+        HeavyHitters.LimiterReport report = heavyHitters.report("api").getCurrent().getLimiters().get("api");
+        assertThat(report.getAllowed()).isEqualTo(14_000);
+        assertThat(report.getRejected()).isEqualTo(3_000);
+        assertThat((double) report.getDistinctKeys()).isBetween(10_003 * 0.94, 10_003 * 1.06);
+        List<HeavyHitters.KeyCount> topAllowed = report.getTopAllowed();
+        assertThat(topAllowed).extracting(HeavyHitters.KeyCount::getKey).startsWith("heavy", "medium");
+        assertThat(topAllowed.get(0).getCount()).isGreaterThanOrEqualTo(3_000);
+        assertThat(report.getTopRejected()).extracting(HeavyHitters.KeyCount::getKey).containsExactly("abuser");
+        assertThat(heavyHitters.report("other").getCurrent().getLimiters()).isEmpty();
+    }
+
+    @Test
+    public void masksKeysUnlessExposed() {
+        heavyHitters = new HeavyHitters(true, 3, 1024, 60_000, false);
+        for (int i = 0; i < 100; i++) {
+            heavyHitters.record("api", "rs4m:{203.0.113.7}:api:/orders", true);
+        }
+        String reported = heavyHitters.report("api").getCurrent().getLimiters().get("api").getTopAllowed().get(0).getKey();
+        assertThat(reported).doesNotContain("203.0.113.7").hasSize(16);
+        // stable on the node, so a key can be followed across reports
+        assertThat(heavyHitters.report("api").getCurrent().getLimiters().get("api").getTopAllowed().get(0).getKey()).isEqualTo(reported);
+    }
+
+    @Test
+    public void disabledTrackerRecordsNothing() {
+        heavyHitters = new HeavyHitters(false, 3, 1024, 60_000, false);
+        heavyHitters.record("api", "client", true);
+        assertThat(heavyHitters.report(null).getCurrent().getLimiters()).isEmpty();
+    }
+}
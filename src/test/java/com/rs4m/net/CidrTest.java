@@ -0,0 +1,89 @@
+package com.rs4m.net;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CidrTest {
+
+    @Test
+    public void matchesIpv4Ranges() {
+        Cidr cidr = Cidr.parse("10.0.0.0/8");
+        assertThat(cidr.contains("10.0.0.1")).isTrue();
+        assertThat(cidr.contains("10.255.255.255")).isTrue();
+        assertThat(cidr.contains("11.0.0.0")).isFalse();
+        assertThat(Cidr.parse("192.168.1.7").contains("192.168.1.7")).isTrue();
+        assertThat(Cidr.parse("192.168.1.7").contains("192.168.1.8")).isFalse();
+        assertThat(Cidr.parse("0.0.0.0/0").contains("203.0.113.9")).isTrue();
+        assertThat(Cidr.parse("172.16.0.0/12").contains("172.31.255.1")).isTrue();
+        assertThat(Cidr.parse("172.16.0.0/12").contains("172.32.0.1")).isFalse();
+    }
+
+    @Test
+    public void matchesIpv6Ranges() {
+        Cidr cidr = Cidr.parse("2001:db8::/32");
+        assertThat(cidr.contains("2001:db8::1")).isTrue();
+        assertThat(cidr.contains("2001:DB8:ffff:ffff:ffff:ffff:ffff:ffff")).isTrue();
+        assertThat(cidr.contains("2001:db9::1")).isFalse();
+        assertThat(Cidr.parse("::1").contains("0:0:0:0:0:0:0:1")).isTrue();
+        assertThat(Cidr.parse("fc00::/7").contains("fd12:3456::1")).isTrue();
+        // an IPv4 range never contains an IPv6 address, and the other way round
+        assertThat(cidr.contains("10.0.0.1")).isFalse();
+        assertThat(Cidr.parse("10.0.0.0/8").contains("2001:db8::1")).isFalse();
+    }
+
+    @Test
+    public void matchesIpv4MappedAddressesAsIpv4() {
+        assertThat(Cidr.parse("10.0.0.0/8").contains("::ffff:10.1.2.3")).isTrue();
+        assertThat(Cidr.parse("10.0.0.0/8").contains("::ffff:a01:203")).isTrue();
+    }
+
+    @Test
+    public void matchesAddressWithinText() {
+        String header = "203.0.113.9, 10.0.0.2";
+        assertThat(Cidr.parse("10.0.0.0/8").contains(header, 13, header.length())).isTrue();
+        assertThat(Cidr.parse("10.0.0.0/8").contains(header, 0, 11)).isFalse();
+        String ipv6 = "x 2001:db8::5 y";
+        assertThat(Cidr.parse("2001:db8::/32").contains(ipv6, 2, 13)).isTrue();
+    }
+
+    @Test
+    public void parsesIpv6LiteralsLikeInetAddress() throws Exception {
+        String[] literals = {"::", "::1", "1::", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8", "2001:db8::ff00:42:8329",
+                "fe80::1:2", "0:0:0:0:0:0:0:0", "::1.2.3.4", "64:ff9b::192.0.2.33", "1:2:3:4:5:6:1.2.3.4", "::ffff:192.0.2.1",
+                "ABCD:EF01:2345:6789:abcd:ef01:2345:6789"};
+        for (String literal : literals) {
+            assertThat(Cidr.toBytes(literal)).as(literal).isEqualTo(InetAddress.getByName(literal).getAddress());
+        }
+    }
+
+    @Test
+    public void rejectsAnythingButAnAddressLiteral() {
+        String[] invalid = {"", ":", ":::", "1:::2", "1::2::3", ":1:2:3:4:5:6:7", "1:2:3:4:5:6:7:", "1:2:3:4:5:6:7:8:9",
+                "1:2:3:4:5:6:7", "1::2:3:4:5:6:7:8", "12345::", "g::1", "::1.2.3", "::1.2.3.256", "1:2:3:4:5:6:7:1.2.3.4",
+                "::1.2.3.4:5", "fe80::1%eth0", "[::1]", "[::1]:443", "example.com", "evil:example.com", "localhost",
+                "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.4:80", " 1.2.3.4"};
+        for (String text : invalid) {
+            assertThat(Cidr.toBytes(text)).as(text).isNull();
+            assertThat(Cidr.parse("::/0").contains(text)).as(text).isFalse();
+            assertThat(Cidr.parse("0.0.0.0/0").contains(text)).as(text).isFalse();
+        }
+    }
+
+    @Test
+    public void rejectsInvalidRanges() {
+        assertThatThrownBy(() -> Cidr.parse("10.0.0.0/33")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Cidr.parse("2001:db8::/129")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Cidr.parse("10.0.0.0/x")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Cidr.parse("proxy.internal/8")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void printsTheRange() {
+        assertThat(Cidr.parse(" 10.0.0.0/8 ")).hasToString("10.0.0.0/8");
+        assertThat(Cidr.parse("2001:db8::/32")).hasToString("2001:db8:0:0:0:0:0:0/32");
+    }
+}
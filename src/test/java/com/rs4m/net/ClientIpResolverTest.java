@@ -0,0 +1,64 @@
+package com.rs4m.net;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClientIpResolverTest {
+    private final ClientIpResolver resolver = new ClientIpResolver(Arrays.asList("10.0.0.0/8", "fd00::/8"));
+
+    private String resolve(String remoteAddress, String... forwardedFor) {
+        List<String> values = forwardedFor.length == 0 ? null : Arrays.asList(forwardedFor);
+        return resolver.resolve(remoteAddress, values, request -> request);
+    }
+
+    @Test
+    public void untrustedPeerIsTheClient() {
+        assertThat(resolve("203.0.113.9", "198.51.100.1")).isEqualTo("203.0.113.9");
+    }
+
+    @Test
+    public void trustedPeerWithoutForwardedForIsTheClient() {
+        assertThat(resolve("10.0.0.1")).isEqualTo("10.0.0.1");
+    }
+
+    @Test
+    public void firstUntrustedEntryFromTheRightIsTheClient() {
+        assertThat(resolve("10.0.0.1", "198.51.100.1, 203.0.113.9, 10.0.0.2")).isEqualTo("203.0.113.9");
+        assertThat(resolve("fd00::1", "2001:db8::7, fd00::2")).isEqualTo("2001:db8::7");
+    }
+
+    @Test
+    public void headerValuesAreWalkedFromTheLastOne() {
+        assertThat(resolve("10.0.0.1", "198.51.100.1", " 203.0.113.9 ,10.0.0.3 ")).isEqualTo("203.0.113.9");
+        assertThat(resolve("10.0.0.1", "198.51.100.1", "10.0.0.3")).isEqualTo("198.51.100.1");
+    }
+
+    @Test
+    public void leftmostEntryIsTheClientWhenEveryEntryIsTrusted() {
+        assertThat(resolve("10.0.0.1", "10.0.0.5, 10.0.0.6")).isEqualTo("10.0.0.5");
+    }
+
+    @Test
+    public void invalidEntryIsUntrusted() {
+        // a host name is never resolved, it is the client as far as the proxies can tell
+        assertThat(resolve("10.0.0.1", "10.0.0.5, evil:example.com, 10.0.0.6")).isEqualTo("evil:example.com");
+        assertThat(resolve("10.0.0.1", "unknown")).isEqualTo("unknown");
+    }
+
+    @Test
+    public void emptyEntriesAreSkipped() {
+        assertThat(resolve("10.0.0.1", "203.0.113.9, , ")).isEqualTo("203.0.113.9");
+        assertThat(resolve("10.0.0.1", "")).isEqualTo("10.0.0.1");
+    }
+
+    @Test
+    public void forwardedForIsIgnoredWithoutTrustedProxies() {
+        ClientIpResolver untrusting = new ClientIpResolver(Collections.emptyList());
+        assertThat(untrusting.resolve("10.0.0.1", Collections.singletonList("203.0.113.9"), request -> request)).isEqualTo("10.0.0.1");
+    }
+}
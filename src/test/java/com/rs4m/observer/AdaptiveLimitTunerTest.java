@@ -0,0 +1,145 @@
+package com.rs4m.observer;
+
+import com.rs4m.config.RateLimitProfileProperties;
+import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class AdaptiveLimitTunerTest {
+    private final RecordingPublisher events = new RecordingPublisher();
+    private final List<Map<String, BucketProfile>> tuned = new ArrayList<>();
+    private AdaptiveLimitTuner tuner;
+
+    @Before
+    public void setUp() {
+        RateLimitProfileProperties profiles = new RateLimitProfileProperties();
+        profiles.setBuckets(Collections.singletonMap("api", profile("1.0", true)));
+        tuner = new AdaptiveLimitTuner(events, profiles, tuned::add);
+        tuner.shutdown();
+    }
+
+    @After
+    public void tearDown() {
+        tuner.shutdown();
+    }
+
+    private static BucketProfile profile(String version, boolean adaptive) {
+        Bandwidth bandwidth = new Bandwidth();
+        bandwidth.setLimit(100);
+        BucketProfile profile = new BucketProfile();
+        profile.setEnable(true);
+        profile.setVersion(version);
+        profile.setBandwidths(Collections.singletonMap("b1", bandwidth));
+        profile.getAdaptive().setEnable(adaptive);
+        profile.getAdaptive().setIntervalMillis(0);
+        return profile;
+    }
+
+    private void serve(int requests, long latencyMillis) {
+        for (int i = 0; i < requests; i++) {
+            tuner.record("api", TimeUnit.MILLISECONDS.toNanos(latencyMillis), false);
+        }
+        tuner.tune();
+    }
+
+    private BucketProfile lastTuned() {
+        return tuned.get(tuned.size() - 1).get("api");
+    }
+
+    @Test
+    public void backsOffWhenSlowAndGrowsBackWhenHealthy() {
+        serve(20, 500);
+        assertThat(tuner.getRatio("api")).isCloseTo(0.9, within(1e-9));
+        serve(20, 500);
+        assertThat(tuner.getRatio("api")).isCloseTo(0.81, within(1e-9));
+        serve(20, 10);
+        assertThat(tuner.getRatio("api")).isCloseTo(0.86, within(1e-9));
+        assertThat(tuner.getRatio("other")).isEqualTo(1.0);
+    }
+
+    @Test
+    public void growsBackWithTooFewSamplesToTell() {
+        serve(20, 500);
+        // a profile cut down to a few admitted requests per interval still recovers
+        for (int i = 0; i < 3; i++) {
+            serve(1, 500);
+        }
+        assertThat(tuner.getRatio("api")).isEqualTo(1.0);
+    }
+
+    @Test
+    public void publishesTheTunedLimitsUntilTheyAreBackToTheConfiguredOnes() {
+        assertThat(tuned).isEmpty();
+        serve(20, 500);
+        assertThat(lastTuned().isEnable()).isTrue();
+        assertThat(lastTuned().getBandwidths().get("b1").getLimit()).isEqualTo(90);
+        serve(20, 500);
+        assertThat(lastTuned().getBandwidths().get("b1").getLimit()).isEqualTo(81);
+
+        for (int i = 0; i < 4; i++) {
+            serve(1, 10);
+        }
+        assertThat(tuner.getRatio("api")).isEqualTo(1.0);
+        assertThat(lastTuned().isEnable()).isFalse();
+        assertThat(tuned).hasSize(6);
+        // nothing is published to the other nodes
+        assertThat(events.published).isZero();
+    }
+
+    @Test
+    public void tuningIsKeptAcrossNewConfigurations() {
+        serve(20, 500);
+        tuner.update(Collections.singletonMap("api", profile("1.1", true)));
+        assertThat(tuner.getRatio("api")).isCloseTo(0.9, within(1e-9));
+        assertThat(lastTuned().getVersion()).isEqualTo("1.1");
+
+        tuner.update(Collections.singletonMap("api", profile("1.2", false)));
+        assertThat(tuner.getRatio("api")).isEqualTo(1.0);
+        assertThat(lastTuned().isEnable()).isFalse();
+    }
+
+    @Test
+    public void schedulesNothingWithoutAdaptiveProfiles() {
+        RateLimitProfileProperties profiles = new RateLimitProfileProperties();
+        profiles.setBuckets(Collections.singletonMap("api", profile("1.0", false)));
+        AdaptiveLimitTuner idle = new AdaptiveLimitTuner(events, profiles, tuned::add);
+        try {
+            assertThat(idle.isScheduled()).isFalse();
+            idle.update(Collections.singletonMap("api", profile("1.1", true)));
+            assertThat(idle.isScheduled()).isTrue();
+        } finally {
+            idle.shutdown();
+        }
+    }
+
+    /**
+     * Counts the profiles published, in place of the {@link EventManager}.
+     */
+    private static final class RecordingPublisher implements Publisher<Map<String, BucketProfile>> {
+        int published;
+
+        @Override
+        public void register(Subscriber<Map<String, BucketProfile>> subscriber) {
+        }
+
+        @Override
+        public void unregister(Subscriber<Map<String, BucketProfile>> subscriber) {
+        }
+
+        @Override
+        public void notify(Map<String, BucketProfile> event) {
+            published++;
+        }
+    }
+}
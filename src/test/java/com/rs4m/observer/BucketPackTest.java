@@ -0,0 +1,53 @@
+package com.rs4m.observer;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BucketPackTest {
+
+    @Test
+    public void blankVersionIsZero() {
+        assertThat(BucketPack.toConfigurationVersion(null)).isZero();
+        assertThat(BucketPack.toConfigurationVersion("")).isZero();
+        assertThat(BucketPack.toConfigurationVersion("  ")).isZero();
+    }
+
+    @Test
+    public void componentsArePackedIn16BitsEach() {
+        assertThat(BucketPack.toConfigurationVersion("1")).isEqualTo(1L << 48);
+        assertThat(BucketPack.toConfigurationVersion("0.1")).isEqualTo(1L << 32);
+        assertThat(BucketPack.toConfigurationVersion("1.2.3.4")).isEqualTo((1L << 48) | (2L << 32) | (3L << 16) | 4L);
+        assertThat(BucketPack.toConfigurationVersion(" 0.1 ")).isEqualTo(BucketPack.toConfigurationVersion("0.1"));
+    }
+
+    @Test
+    public void missingComponentsAreZero() {
+        assertThat(BucketPack.toConfigurationVersion("2.1")).isEqualTo(BucketPack.toConfigurationVersion("2.1.0.0"));
+    }
+
+    @Test
+    public void versionGrowsWithEachComponent() {
+        String[] ordered = {"0", "0.0.0.1", "0.0.0.65535", "0.0.1", "0.1", "0.9", "0.10", "0.65535.65535.65535", "1", "1.0.0.1", "32767.65535.65535.65535"};
+        for (int i = 1; i < ordered.length; i++) {
+            assertThat(BucketPack.toConfigurationVersion(ordered[i]))
+                    .as("%s > %s", ordered[i], ordered[i - 1])
+                    .isGreaterThan(BucketPack.toConfigurationVersion(ordered[i - 1]));
+        }
+    }
+
+    @Test
+    public void largestVersionStaysPositive() {
+        assertThat(BucketPack.toConfigurationVersion("32767.65535.65535.65535")).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void rejectsInvalidVersions() {
+        assertThatThrownBy(() -> BucketPack.toConfigurationVersion("1.2.3.4.5")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BucketPack.toConfigurationVersion("1.a")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BucketPack.toConfigurationVersion("32768")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BucketPack.toConfigurationVersion("0.65536")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BucketPack.toConfigurationVersion("-1")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
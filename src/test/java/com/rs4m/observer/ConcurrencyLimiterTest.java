@@ -0,0 +1,125 @@
+package com.rs4m.observer;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.proxy.EmbeddedRedis;
+import com.rs4m.proxy.RedisPermitStore;
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+    @ClassRule
+    public static final EmbeddedRedis REDIS = new EmbeddedRedis();
+
+    private ConcurrencyLimiter limiter;
+
+    @After
+    public void tearDown() {
+        if (limiter != null) {
+            limiter.shutdown();
+        }
+        REDIS.flushAll();
+    }
+
+    private static int inUse(String key) {
+        return REDIS.getClient().getScoredSortedSet(key + ":p", StringCodec.INSTANCE).size();
+    }
+
+    @Test
+    public void localPermitsAreLimitedPerKey() {
+        limiter = new ConcurrencyLimiter(null, 60_000, 0, 0);
+        ConcurrencyPermit first = limiter.tryAcquireAsync("a", 2).join();
+        ConcurrencyPermit second = limiter.tryAcquireAsync("a", 2).join();
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(limiter.tryAcquireAsync("a", 2).join()).isNull();
+        assertThat(limiter.tryAcquireAsync("b", 2).join()).isNotNull();
+
+        first.release();
+        assertThat(limiter.tryAcquireAsync("a", 2).join()).isNotNull();
+    }
+
+    @Test
+    public void defaultManagerLimitsRequestsInFlightLocally() throws Exception {
+        RateLimitManager manager = (clientKey, rateLimiter) -> {
+            throw new UnsupportedOperationException();
+        };
+        RateLimiter rateLimiter = Limited.class.getMethod("handler").getAnnotation(RateLimiter.class);
+        ConcurrencyPermit permit = manager.tryAcquirePermitAsync("default-manager", rateLimiter).join();
+        assertThat(permit).isNotNull();
+        assertThat(manager.tryAcquirePermitAsync("default-manager", rateLimiter).join()).isNull();
+        permit.release();
+        manager.tryAcquirePermitAsync("default-manager", rateLimiter).join().release();
+    }
+
+    @Test
+    public void distributedPermitsAreSharedThroughRedis() {
+        limiter = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 60_000, 0, 0);
+        ConcurrencyLimiter otherNode = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 60_000, 0, 0);
+        ConcurrencyPermit permit = limiter.tryAcquireAsync("client", 1).join();
+        assertThat(permit).isNotNull();
+        assertThat(otherNode.tryAcquireAsync("client", 1).join()).isNull();
+
+        permit.release();
+        assertThat(otherNode.tryAcquireAsync("client", 1).join()).isNotNull();
+    }
+
+    @Test
+    public void releasedPermitIsKeptAsSpareAndReused() throws Exception {
+        limiter = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 60_000, 1, 60_000);
+        limiter.tryAcquireAsync("client", 1).join().release();
+        // still counted against the key, ready for the next request of this node
+        assertThat(inUse("client")).isEqualTo(1);
+        ConcurrencyPermit reused = limiter.tryAcquireAsync("client", 1).join();
+        assertThat(reused).isNotNull();
+        assertThat(limiter.tryAcquireAsync("client", 1).join()).isNull();
+
+        reused.release();
+        limiter.shutdown();
+        for (int i = 0; i < 50 && inUse("client") > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(inUse("client")).isZero();
+    }
+
+    @Test
+    public void reusedPermitGetsAFullLease() throws Exception {
+        limiter = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 2_000, 1, 60_000);
+        limiter.tryAcquireAsync("client", 1).join().release();
+        Thread.sleep(500);
+
+        long reusedAt = System.currentTimeMillis();
+        ConcurrencyPermit reused = limiter.tryAcquireAsync("client", 1).join();
+        assertThat(reused).isNotNull();
+        // renewed before the request starts, a request slower than half of the lease keeps its permit
+        double expiresAt = REDIS.getClient().getScoredSortedSet("client:p", StringCodec.INSTANCE).entryRange(0, -1).iterator().next().getScore();
+        assertThat(expiresAt).isGreaterThanOrEqualTo(reusedAt + 2_000);
+        assertThat(inUse("client")).isEqualTo(1);
+        reused.release();
+    }
+
+    @Test
+    public void spareReclaimedMeanwhileIsNotUsedOverTheLimit() {
+        limiter = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 60_000, 1, 60_000);
+        ConcurrencyLimiter otherNode = new ConcurrencyLimiter(new RedisPermitStore(REDIS.getClient()), 60_000, 0, 0);
+        limiter.tryAcquireAsync("client", 1).join().release();
+        // reclaimed, e.g. by a node whose clock runs ahead, and taken by a request of another node
+        REDIS.getClient().getKeys().delete("client:p");
+        ConcurrencyPermit other = otherNode.tryAcquireAsync("client", 1).join();
+        assertThat(other).isNotNull();
+
+        assertThat(limiter.tryAcquireAsync("client", 1).join()).isNull();
+        assertThat(inUse("client")).isEqualTo(1);
+        other.release();
+        assertThat(limiter.tryAcquireAsync("client", 1).join()).isNotNull();
+    }
+
+    private static class Limited {
+        @RateLimiter(value = "limited", maxConcurrent = 1)
+        public void handler() {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.rs4m.observer;
+
+import com.rs4m.annotation.RateLimiter;
+import com.rs4m.config.RateLimitProfileProperties;
+import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import com.rs4m.config.RateLimitProfileProperties.Strategy;
+import com.rs4m.config.RateLimitProfileProperties.TimeUnit;
+import com.rs4m.config.RateLimiterProperties;
+import com.rs4m.metrics.RateLimitMetrics;
+import com.rs4m.proxy.EmbeddedRedis;
+import com.rs4m.proxy.ProfileExpirationStrategy;
+import com.rs4m.proxy.RedisScriptBucketStore;
+import io.github.bucket4j.ConsumptionProbe;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.redis.redisson.cas.RedissonBasedProxyManager;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.redisson.Redisson;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DefaultRateLimitManagerTest {
+    @ClassRule
+    public static final EmbeddedRedis REDIS = new EmbeddedRedis();
+
+    private static final String PER_IP = "rs4m_rl_{/orders}:per_ip:10.0.0.1";
+    private static final String PER_KEY = "rs4m_rl_{/orders}:per_key:key-1";
+
+    private ProfileExpirationStrategy expirationStrategy;
+
+    @Before
+    public void setUp() {
+        REDIS.flushAll();
+        expirationStrategy = new ProfileExpirationStrategy();
+    }
+
+    @RateLimiter("per_ip")
+    @RateLimiter("per_key")
+    private void composite() {
+    }
+
+    @RateLimiter("per_ip")
+    @RateLimiter("leased")
+    private void compositeLeased() {
+    }
+
+    private static List<RateLimiter> rateLimiters(String method) throws NoSuchMethodException {
+        return Arrays.asList(DefaultRateLimitManagerTest.class.getDeclaredMethod(method).getAnnotationsByType(RateLimiter.class));
+    }
+
+    private static BucketProfile perHour(int limit, Strategy strategy) {
+        Bandwidth bandwidth = new Bandwidth();
+        bandwidth.setLimit(limit);
+        bandwidth.setDuration(1);
+        bandwidth.setTimeUnit(TimeUnit.HOURS);
+        BucketProfile profile = new BucketProfile();
+        profile.setEnable(true);
+        profile.setVersion("1");
+        profile.setBandwidths(Collections.singletonMap("main", bandwidth));
+        profile.setStrategy(strategy);
+        return profile;
+    }
+
+    /**
+     * @return the tokens of the scripted bucket of a key, rounded down
+     */
+    private static long tokens(String key) {
+        Object tokens = REDIS.getClient().getMap(key + ":h", StringCodec.INSTANCE).get("t1");
+        return (long) Double.parseDouble(String.valueOf(tokens));
+    }
+
+    private DefaultRateLimitManager manager(boolean script) {
+        RedissonBasedProxyManager proxyManager = RedissonBasedProxyManager.builderFor(((Redisson) REDIS.getClient()).getCommandExecutor())
+                .withClientSideConfig(ClientSideConfig.getDefault().withExpirationAfterWriteStrategy(expirationStrategy))
+                .build();
+        RedisScriptBucketStore scriptBucketStore = script ? new RedisScriptBucketStore(REDIS.getClient(), expirationStrategy) : null;
+        DefaultRateLimitManager manager = new DefaultRateLimitManager(proxyManager, new RateLimitProfileProperties(), new RateLimiterProperties(),
+                new Provided<>(scriptBucketStore), new Provided<>(null), expirationStrategy, RateLimitMetrics.noop());
+        Map<String, BucketProfile> profiles = new HashMap<>();
+        profiles.put("per_ip", perHour(10, Strategy.EXACT));
+        profiles.put("per_key", perHour(2, Strategy.EXACT));
+        profiles.put("leased", perHour(10, Strategy.LEASED));
+        manager.update(profiles);
+        return manager;
+    }
+
+    @Test
+    public void compositeLimitsOfDifferentClientsAreConsumedByOneScript() throws Exception {
+        DefaultRateLimitManager manager = manager(true);
+        List<RateLimiter> rateLimiters = rateLimiters("composite");
+        manager.checkConsumeAll(rateLimiters);
+
+        ConsumptionProbe consumed = manager.tryConsumeAll(Arrays.asList(PER_IP, PER_KEY), rateLimiters, 2);
+        assertThat(consumed.isConsumed()).isTrue();
+        assertThat(consumed.getRemainingTokens()).isZero();
+        assertThat(tokens(PER_IP)).isEqualTo(8);
+
+        ConsumptionProbe rejected = manager.tryConsumeAll(Arrays.asList(PER_IP, PER_KEY), rateLimiters, 1);
+        assertThat(rejected.isConsumed()).isFalse();
+        // decided by the script: the bucket that allowed the request was never consumed
+        assertThat(tokens(PER_IP)).isEqualTo(8);
+        assertThat(tokens(PER_KEY)).isZero();
+    }
+
+    @Test
+    public void rejectsCompositeLimitsThatCannotBeConsumedAtomically() throws Exception {
+        assertThatThrownBy(() -> manager(true).checkConsumeAll(rateLimiters("compositeLeased")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("'leased' is LEASED");
+        assertThatThrownBy(() -> manager(false).checkConsumeAll(rateLimiters("composite")))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("rs4m.rate.script.enable");
+    }
+
+    @Test
+    public void bucketOfAScriptedProfileIsTheOneDecisionsAreTakenOn() throws Exception {
+        DefaultRateLimitManager manager = manager(true);
+        RateLimiter perIp = rateLimiters("composite").get(0);
+        manager.tryConsume(PER_IP, perIp, 3);
+        assertThat(manager.getBucket(PER_IP, perIp).getAvailableTokens()).isEqualTo(7);
+
+        manager.getBucket(PER_IP, perIp).reset();
+        assertThat(manager.tryConsume(PER_IP, perIp, 1).getRemainingTokens()).isEqualTo(9);
+    }
+
+    @Test
+    public void tunedLimitsGateTheSharedBucketOnThisNodeOnly() throws Exception {
+        DefaultRateLimitManager manager = manager(true);
+        RateLimiter perIp = rateLimiters("composite").get(0);
+        BucketProfile tuned = perHour(4, Strategy.EXACT);
+        manager.getTunedLimits().update(Collections.singletonMap("per_ip", tuned));
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(manager.tryConsume(PER_IP, perIp, 1).isConsumed()).isTrue();
+        }
+        assertThat(manager.tryConsume(PER_IP, perIp, 1).isConsumed()).isFalse();
+        // rejected on this node, the tokens the other nodes share are left alone
+        assertThat(tokens(PER_IP)).isEqualTo(6);
+
+        tuned.setEnable(false);
+        manager.getTunedLimits().update(Collections.singletonMap("per_ip", tuned));
+        assertThat(manager.tryConsume(PER_IP, perIp, 1).isConsumed()).isTrue();
+        assertThat(tokens(PER_IP)).isEqualTo(5);
+    }
+
+    @Test
+    public void costsAboveTheTunedCapacityAreNotRejectedForGood() throws Exception {
+        DefaultRateLimitManager manager = manager(true);
+        RateLimiter perIp = rateLimiters("composite").get(0);
+        manager.getTunedLimits().update(Collections.singletonMap("per_ip", perHour(4, Strategy.EXACT)));
+
+        ConsumptionProbe probe = manager.tryConsume(PER_IP, perIp, 8);
+        assertThat(probe.isConsumed()).isTrue();
+        assertThat(tokens(PER_IP)).isEqualTo(2);
+        // the tuned bucket is empty now
+        assertThat(manager.tryConsume(PER_IP, perIp, 1).isConsumed()).isFalse();
+    }
+
+    private static final class Provided<T> implements ObjectProvider<T> {
+        private final T object;
+
+        private Provided(T object) {
+            this.object = object;
+        }
+
+        @Override
+        public T getObject(Object... args) {
+            return object;
+        }
+
+        @Override
+        public T getIfAvailable() {
+            return object;
+        }
+
+        @Override
+        public T getIfUnique() {
+            return object;
+        }
+
+        @Override
+        public T getObject() {
+            return object;
+        }
+    }
+}
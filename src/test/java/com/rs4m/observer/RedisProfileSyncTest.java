@@ -0,0 +1,134 @@
+package com.rs4m.observer;
+
+import com.rs4m.config.RateLimitProfileProperties.Bandwidth;
+import com.rs4m.config.RateLimitProfileProperties.BucketProfile;
+import com.rs4m.proxy.EmbeddedRedis;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedisProfileSyncTest {
+    @ClassRule
+    public static final EmbeddedRedis REDIS = new EmbeddedRedis();
+
+    private final List<RedisProfileSync> nodes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        REDIS.flushAll();
+    }
+
+    @After
+    public void tearDown() {
+        nodes.forEach(RedisProfileSync::shutdown);
+    }
+
+    private RedisProfileSync start(RecordingPublisher events) {
+        RedisProfileSync node = new RedisProfileSync(REDIS.getClient(), events, "rs4m_profiles");
+        node.start();
+        nodes.add(node);
+        return node;
+    }
+
+    private static Map<String, BucketProfile> profile(String version, int limit) {
+        Bandwidth bandwidth = new Bandwidth();
+        bandwidth.setLimit(limit);
+        BucketProfile profile = new BucketProfile();
+        profile.setEnable(true);
+        profile.setVersion(version);
+        profile.setBandwidths(Collections.singletonMap("b1", bandwidth));
+        return Collections.singletonMap("api", profile);
+    }
+
+    private static Map<String, String> stored(String hash) {
+        return REDIS.getClient().<String, String>getMap("{rs4m_profiles}:" + hash, StringCodec.INSTANCE).readAllMap();
+    }
+
+    @Test
+    public void publishedProfileIsStoredAndAnnouncedToEveryNode() throws Exception {
+        RecordingPublisher publisherEvents = new RecordingPublisher();
+        RecordingPublisher otherEvents = new RecordingPublisher();
+        RedisProfileSync publisher = start(publisherEvents);
+        start(otherEvents);
+
+        assertThat(publisher.publish(profile("0.2", 50))).isEmpty();
+
+        BucketProfile announced = otherEvents.next().get("api");
+        assertThat(announced.getVersion()).isEqualTo("0.2");
+        assertThat(announced.getBandwidths().get("b1").getLimit()).isEqualTo(50);
+        assertThat(publisherEvents.next()).containsKey("api");
+        assertThat(stored("versions")).containsEntry("api", String.format("%016x", BucketPack.toConfigurationVersion("0.2")));
+        assertThat(stored("profiles")).containsKey("api");
+    }
+
+    @Test
+    public void staleVersionIsNeitherStoredNorAnnounced() throws Exception {
+        RedisProfileSync publisher = start(new RecordingPublisher());
+        assertThat(publisher.publish(profile("0.10", 50))).isEmpty();
+
+        RecordingPublisher otherEvents = new RecordingPublisher();
+        start(otherEvents);
+        // the stored profile, applied on start
+        assertThat(otherEvents.next().get("api").getVersion()).isEqualTo("0.10");
+
+        // versions compare by component, 0.9 is older than 0.10
+        assertThat(publisher.publish(profile("0.9", 10))).containsExactly("api");
+        assertThat(publisher.publish(profile("0.10", 10))).containsExactly("api");
+
+        // the stored profile may be applied again once subscribed, the stale ones never are
+        Map<String, BucketProfile> event;
+        while ((event = otherEvents.events.poll(500, TimeUnit.MILLISECONDS)) != null) {
+            assertThat(event.get("api").getBandwidths().get("b1").getLimit()).isEqualTo(50);
+        }
+        assertThat(stored("versions")).containsEntry("api", String.format("%016x", BucketPack.toConfigurationVersion("0.10")));
+        assertThat(stored("profiles").get("api")).contains("\"limit\":50");
+    }
+
+    @Test
+    public void startingNodeAppliesTheStoredProfiles() throws Exception {
+        start(new RecordingPublisher()).publish(profile("1.0", 30));
+
+        RecordingPublisher lateEvents = new RecordingPublisher();
+        start(lateEvents);
+
+        assertThat(lateEvents.next().get("api").getBandwidths().get("b1").getLimit()).isEqualTo(30);
+    }
+
+    /**
+     * Records the profiles a node applies, in place of the {@link EventManager}.
+     */
+    private static final class RecordingPublisher implements Publisher<Map<String, BucketProfile>> {
+        final BlockingQueue<Map<String, BucketProfile>> events = new LinkedBlockingQueue<>();
+
+        Map<String, BucketProfile> next() throws InterruptedException {
+            Map<String, BucketProfile> event = events.poll(5, TimeUnit.SECONDS);
+            assertThat(event).as("profiles applied").isNotNull();
+            return event;
+        }
+
+        @Override
+        public void register(Subscriber<Map<String, BucketProfile>> subscriber) {
+        }
+
+        @Override
+        public void unregister(Subscriber<Map<String, BucketProfile>> subscriber) {
+        }
+
+        @Override
+        public void notify(Map<String, BucketProfile> event) {
+            events.add(event);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.BucketState;
+import io.github.bucket4j.MathType;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import io.github.bucket4j.distributed.remote.RemoteStat;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CompactBucketStateCodecTest {
+    private final CompactBucketStateCodec codec = new CompactBucketStateCodec();
+
+    private static RemoteBucketState state(Long configurationVersion) {
+        BucketConfiguration configuration = BucketConfiguration.builder()
+                .addLimit(limit -> limit.capacity(100).refillGreedy(100, Duration.ofMinutes(1)))
+                .addLimit(limit -> limit.capacity(1_000).refillGreedy(1_000, Duration.ofHours(1)))
+                .build();
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        RemoteBucketState state = new RemoteBucketState(BucketState.createInitialState(configuration, MathType.INTEGER_64_BITS, now),
+                new RemoteStat(Duration.ofMinutes(1).toNanos()), configurationVersion);
+        state.consume(42);
+        return state;
+    }
+
+    @Test
+    public void roundTrip() {
+        RemoteBucketState state = state(0x0001_0002_0000_0000L);
+        RemoteBucketState decoded = codec.decode(codec.encode(state));
+        assertThat(decoded.equalsByContent(state)).isTrue();
+        assertThat(decoded.getAvailableTokens()).isEqualTo(58);
+        assertThat(decoded.getConfigurationVersion()).isEqualTo(0x0001_0002_0000_0000L);
+    }
+
+    @Test
+    public void roundTripWithoutConfigurationVersion() {
+        RemoteBucketState state = state(null);
+        RemoteBucketState decoded = codec.decode(codec.encode(state));
+        assertThat(decoded.equalsByContent(state)).isTrue();
+        assertThat(decoded.getConfigurationVersion()).isNull();
+    }
+
+    @Test
+    public void roundTripOfNegativeBucket() {
+        RemoteBucketState state = state(null);
+        state.consume(500);
+        RemoteBucketState decoded = codec.decode(codec.encode(state));
+        assertThat(decoded.equalsByContent(state)).isTrue();
+        assertThat(decoded.getAvailableTokens()).isEqualTo(-442);
+    }
+
+    @Test
+    public void compactFormatIsSmallerThanBucket4jFormat() {
+        RemoteBucketState state = state(1L);
+        byte[] compact = codec.encode(state);
+        assertThat(compact[0]).isEqualTo((byte) 1);
+        assertThat(compact.length).isLessThan(BucketStateCodec.BUCKET4J.encode(state).length);
+    }
+
+    @Test
+    public void readsBucket4jFormat() {
+        RemoteBucketState state = state(7L);
+        byte[] legacy = BucketStateCodec.BUCKET4J.encode(state);
+        assertThat(legacy[0]).isZero();
+        RemoteBucketState decoded = codec.decode(legacy);
+        assertThat(decoded.equalsByContent(state)).isTrue();
+        assertThat(decoded.getConfigurationVersion()).isEqualTo(7L);
+    }
+
+    @Test
+    public void rejectsUnknownOrCorruptedData() {
+        assertThatThrownBy(() -> codec.decode(new byte[0])).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> codec.decode(new byte[]{9, 1, 2})).isInstanceOf(IllegalStateException.class);
+        byte[] encoded = codec.encode(state(null));
+        assertThatThrownBy(() -> codec.decode(Arrays.copyOf(encoded, encoded.length / 2))).isInstanceOf(IllegalStateException.class);
+    }
+}
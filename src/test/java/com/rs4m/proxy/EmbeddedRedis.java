@@ -0,0 +1,60 @@
+package com.rs4m.proxy;
+
+import org.junit.rules.ExternalResource;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * A Redis server started on a free port for the tests of a class, with a Redisson client connected to it.
+ * The data of the previous test is flushed by {@link #flushAll()}.
+ */
+public class EmbeddedRedis extends ExternalResource {
+    private RedisServer server;
+    private RedissonClient client;
+
+    @Override
+    protected void before() throws Throwable {
+        int port = freePort();
+        server = new RedisServer(port);
+        server.start();
+        Config config = new Config();
+        config.useSingleServer()
+                .setAddress("redis://127.0.0.1:" + port)
+                .setConnectionMinimumIdleSize(1)
+                .setConnectionPoolSize(2);
+        client = Redisson.create(config);
+    }
+
+    @Override
+    protected void after() {
+        if (client != null) {
+            client.shutdown();
+        }
+        if (server != null) {
+            try {
+                server.stop();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public RedissonClient getClient() {
+        return client;
+    }
+
+    public void flushAll() {
+        client.getKeys().flushall();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.rs4m.proxy;
+
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InMemoryProxyManagerTest {
+    private final InMemoryProxyManager proxyManager = new InMemoryProxyManager(100, TimeUnit.HOURS.toMillis(1));
+
+    private static BucketConfiguration perHour(long tokens) {
+        return BucketConfiguration.builder()
+                .addLimit(limit -> limit.capacity(tokens).refillGreedy(tokens, Duration.ofHours(1)))
+                .build();
+    }
+
+    @Test
+    public void admitsExactlyTheCapacityOfConcurrentRequests() throws Exception {
+        Bucket bucket = proxyManager.builder().build("client", () -> perHour(1000));
+        AtomicInteger consumed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        if (bucket.tryConsume(1)) {
+                            consumed.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(consumed.get()).isEqualTo(1000);
+        assertThat(bucket.getAvailableTokens()).isZero();
+    }
+
+    @Test
+    public void keepsTheTokensOfABucketAcrossVersions() {
+        proxyManager.builder().build("client", () -> perHour(10)).tryConsume(4);
+        Bucket replaced = proxyManager.builder()
+                .withImplicitConfigurationReplacement(2, TokensInheritanceStrategy.AS_IS)
+                .build("client", () -> perHour(20));
+        assertThat(replaced.getAvailableTokens()).isEqualTo(6);
+
+        proxyManager.removeProxy("client");
+        assertThat(proxyManager.builder().build("client", () -> perHour(10)).getAvailableTokens()).isEqualTo(10);
+        assertThat(proxyManager.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,76 @@
+package com.rs4m.proxy;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedisPermitStoreTest {
+    @ClassRule
+    public static final EmbeddedRedis REDIS = new EmbeddedRedis();
+
+    private RedisPermitStore store;
+
+    @Before
+    public void setUp() {
+        REDIS.flushAll();
+        store = new RedisPermitStore(REDIS.getClient());
+    }
+
+    private boolean acquire(String permitId, long leaseMillis, int maxPermits) {
+        return store.tryAcquireAsync("client", permitId, System.currentTimeMillis() + leaseMillis, maxPermits).join();
+    }
+
+    private static int inUse() {
+        return REDIS.getClient().getScoredSortedSet("client:p", StringCodec.INSTANCE).size();
+    }
+
+    @Test
+    public void takesPermitsUpToTheMaximum() {
+        assertThat(acquire("a", 60_000, 2)).isTrue();
+        assertThat(acquire("b", 60_000, 2)).isTrue();
+        assertThat(acquire("c", 60_000, 2)).isFalse();
+        assertThat(inUse()).isEqualTo(2);
+    }
+
+    @Test
+    public void releasedPermitCanBeTakenAgain() {
+        assertThat(acquire("a", 60_000, 1)).isTrue();
+        store.releaseAsync("client", "a").join();
+        assertThat(acquire("b", 60_000, 1)).isTrue();
+    }
+
+    @Test
+    public void expiredLeaseIsReclaimed() throws Exception {
+        assertThat(acquire("crashed", 50, 1)).isTrue();
+        assertThat(acquire("b", 60_000, 1)).isFalse();
+        Thread.sleep(100);
+        assertThat(acquire("b", 60_000, 1)).isTrue();
+        assertThat(inUse()).isEqualTo(1);
+    }
+
+    @Test
+    public void newMaximumAppliesRightAway() {
+        assertThat(acquire("a", 60_000, 1)).isTrue();
+        assertThat(acquire("b", 60_000, 1)).isFalse();
+        assertThat(acquire("b", 60_000, 2)).isTrue();
+    }
+
+    @Test
+    public void takingAHeldPermitRenewsItsLease() {
+        assertThat(acquire("a", 5_000, 1)).isTrue();
+        // counted once, even with all permits in use
+        assertThat(acquire("a", 30_000, 1)).isTrue();
+        assertThat(inUse()).isEqualTo(1);
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:p")).isBetween(29_000L, 30_000L);
+    }
+
+    @Test
+    public void permitsExpireWithTheirLastLease() {
+        assertThat(acquire("a", 5_000, 2)).isTrue();
+        assertThat(acquire("b", 30_000, 2)).isTrue();
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:p")).isBetween(29_000L, 30_000L);
+    }
+}
@@ -0,0 +1,235 @@
+package com.rs4m.proxy;
+
+import com.rs4m.config.RateLimitProfileProperties.Expiration;
+import com.rs4m.config.RateLimitProfileProperties.ExpirationPolicy;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.ConsumptionProbe;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.redisson.api.RMap;
+import org.redisson.client.codec.StringCodec;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedisScriptBucketStoreTest {
+    @ClassRule
+    public static final EmbeddedRedis REDIS = new EmbeddedRedis();
+
+    private ProfileExpirationStrategy expirationStrategy;
+    private RedisScriptBucketStore store;
+
+    @Before
+    public void setUp() {
+        REDIS.flushAll();
+        expirationStrategy = new ProfileExpirationStrategy();
+        store = new RedisScriptBucketStore(REDIS.getClient(), expirationStrategy);
+    }
+
+    private static BucketConfiguration perHour(long tokens) {
+        return BucketConfiguration.builder()
+                .addLimit(limit -> limit.capacity(tokens).refillGreedy(tokens, Duration.ofHours(1)))
+                .build();
+    }
+
+    private static BucketConfiguration perSecond(long tokens) {
+        return BucketConfiguration.builder()
+                .addLimit(limit -> limit.capacity(tokens).refillGreedy(tokens, Duration.ofSeconds(1)))
+                .build();
+    }
+
+    @Test
+    public void consumesUpToCapacityThenRejects() {
+        for (int i = 1; i <= 10; i++) {
+            ConsumptionProbe probe = store.tryConsume("client", perHour(10), 1);
+            assertThat(probe.isConsumed()).isTrue();
+            assertThat(probe.getRemainingTokens()).isEqualTo(10 - i);
+        }
+        ConsumptionProbe rejected = store.tryConsume("client", perHour(10), 1);
+        assertThat(rejected.isConsumed()).isFalse();
+        assertThat(rejected.getRemainingTokens()).isZero();
+        // one token of ten per hour
+        assertThat(rejected.getNanosToWaitForRefill()).isBetween(TimeUnit.SECONDS.toNanos(350), TimeUnit.SECONDS.toNanos(360));
+    }
+
+    @Test
+    public void requestLargerThanCapacityIsNeverRefilled() {
+        ConsumptionProbe probe = store.tryConsume("client", perHour(10), 11);
+        assertThat(probe.isConsumed()).isFalse();
+        assertThat(probe.getNanosToWaitForRefill()).isEqualTo(Long.MAX_VALUE);
+        assertThat(store.tryConsume("client", perHour(10), 10).isConsumed()).isTrue();
+    }
+
+    @Test
+    public void compositeConsumesEveryBucketOrNone() {
+        ConsumptionProbe rejected = store.tryConsume(Arrays.asList("wide", "narrow"), Arrays.asList(perHour(10), perHour(2)), 3);
+        assertThat(rejected.isConsumed()).isFalse();
+        assertThat(store.tryConsume("wide", perHour(10), 1).getRemainingTokens()).isEqualTo(9);
+
+        ConsumptionProbe consumed = store.tryConsume(Arrays.asList("wide", "narrow"), Arrays.asList(perHour(10), perHour(2)), 2);
+        assertThat(consumed.isConsumed()).isTrue();
+        // the smallest remaining tokens of all buckets
+        assertThat(consumed.getRemainingTokens()).isZero();
+        assertThat(store.tryConsume("wide", perHour(10), 1).getRemainingTokens()).isEqualTo(6);
+    }
+
+    @Test
+    public void keysOfDifferentClientsAreConsumedTogetherOnASingleNode() {
+        // a single node has one slot; in a cluster the keys of composite limits share the tag of their handler
+        assertThat(store.isSameSlot(Arrays.asList("rs4m_rl_{10.0.0.1}:per_ip:/orders", "rs4m_rl_{key-1}:per_api_key:/orders"))).isTrue();
+    }
+
+    @Test
+    public void reservesTokensAheadOfTheRefillWithinMaxWait() throws Exception {
+        assertThat(store.tryConsume("client", perSecond(10), 10).isConsumed()).isTrue();
+        long maxWait = TimeUnit.MILLISECONDS.toNanos(250);
+
+        long first = store.reserveAsync("client", perSecond(10), 1, maxWait).get();
+        assertThat(first).isBetween(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100));
+        long second = store.reserveAsync("client", perSecond(10), 1, maxWait).get();
+        assertThat(second).isBetween(first, TimeUnit.MILLISECONDS.toNanos(200));
+        // a third token would only be available after 300ms
+        assertThat(store.reserveAsync("client", perSecond(10), 1, maxWait).get()).isEqualTo(-1L);
+
+        // two tokens are owed, the next one is refilled after the reserved ones
+        ConsumptionProbe probe = store.tryConsume("client", perSecond(10), 1);
+        assertThat(probe.isConsumed()).isFalse();
+        assertThat(probe.getNanosToWaitForRefill()).isBetween(TimeUnit.MILLISECONDS.toNanos(200), TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void reserveConsumesAvailableTokensWithoutWaiting() throws Exception {
+        assertThat(store.reserveAsync("client", perSecond(10), 1, TimeUnit.MILLISECONDS.toNanos(250)).get()).isZero();
+    }
+
+    @Test
+    public void consumeOrReserveDecidesInOneCall() throws Exception {
+        long maxWait = TimeUnit.MILLISECONDS.toNanos(250);
+        Reservation available = store.tryConsumeOrReserveAsync("client", perSecond(10), 9, maxWait).get();
+        assertThat(available.getProbe().isConsumed()).isTrue();
+        assertThat(available.getProbe().getRemainingTokens()).isEqualTo(1);
+        assertThat(available.getWaitNanos()).isZero();
+
+        // one token left, the second one is refilled within 100ms
+        Reservation reserved = store.tryConsumeOrReserveAsync("client", perSecond(10), 2, maxWait).get();
+        assertThat(reserved.getProbe().isConsumed()).isTrue();
+        assertThat(reserved.getWaitNanos()).isBetween(TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100));
+
+        // three more tokens would only be available after 300ms: rejected, with the wait of the rejection
+        Reservation rejected = store.tryConsumeOrReserveAsync("client", perSecond(10), 3, maxWait).get();
+        assertThat(rejected.getProbe().isConsumed()).isFalse();
+        assertThat(rejected.getWaitNanos()).isZero();
+        assertThat(rejected.getProbe().getNanosToWaitForRefill()).isBetween(TimeUnit.MILLISECONDS.toNanos(250), TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void compositeReservationWaitsForTheSlowestBucket() throws Exception {
+        assertThat(store.tryConsume("narrow", perSecond(2), 2).isConsumed()).isTrue();
+        Reservation reserved = store.tryConsumeOrReserveAsync(Arrays.asList("wide", "narrow"), Arrays.asList(perSecond(10), perSecond(2)), 1,
+                TimeUnit.MILLISECONDS.toNanos(600)).get();
+        assertThat(reserved.getProbe().isConsumed()).isTrue();
+        // one token of two per second
+        assertThat(reserved.getWaitNanos()).isBetween(TimeUnit.MILLISECONDS.toNanos(450), TimeUnit.MILLISECONDS.toNanos(500));
+        assertThat(store.tryConsume("wide", perSecond(10), 1).getRemainingTokens()).isEqualTo(8);
+    }
+
+    @Test
+    public void addedTokensAreCappedToCapacity() throws Exception {
+        assertThat(store.tryConsume("client", perHour(10), 5).isConsumed()).isTrue();
+        store.addTokensAsync("client", perHour(10), 3).get();
+        assertThat(store.tryConsume("client", perHour(10), 1).getRemainingTokens()).isEqualTo(7);
+        store.addTokensAsync("client", perHour(10), 100).get();
+        assertThat(store.tryConsume("client", perHour(10), 1).getRemainingTokens()).isEqualTo(9);
+    }
+
+    @Test
+    public void chargedTokensMayLeaveTheBucketNegative() throws Exception {
+        store.chargeTokensAsync("client", perHour(10), 15).get();
+        ConsumptionProbe probe = store.tryConsume("client", perHour(10), 1);
+        assertThat(probe.isConsumed()).isFalse();
+        // six tokens of ten per hour: the five owed and the one requested
+        assertThat(probe.getNanosToWaitForRefill()).isBetween(TimeUnit.SECONDS.toNanos(2150), TimeUnit.SECONDS.toNanos(2160));
+    }
+
+    @Test
+    public void refillsByTheClockOfRedis() throws Exception {
+        assertThat(store.tryConsume("client", perSecond(10), 10).isConsumed()).isTrue();
+        assertThat(store.tryConsume("client", perSecond(10), 1).isConsumed()).isFalse();
+        Thread.sleep(150);
+        assertThat(store.tryConsume("client", perSecond(10), 1).isConsumed()).isTrue();
+    }
+
+    @Test
+    public void lastRefillAheadOfTheClockNeitherRefillsNorMovesBack() {
+        store.tryConsume("client", perSecond(10), 10);
+        // as left by a primary whose clock ran ahead of the replica promoted in its place
+        RMap<String, String> bucket = REDIS.getClient().getMap("client:h", StringCodec.INSTANCE);
+        String ahead = String.valueOf(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() + 60_000));
+        bucket.put("ts", ahead);
+        assertThat(store.tryConsume("client", perSecond(10), 1).isConsumed()).isFalse();
+        assertThat(bucket.get("ts")).isEqualTo(ahead);
+    }
+
+    @Test
+    public void scriptedBucketReadsAndResetsTheStateTheScriptDecidesOn() {
+        Bucket bucket = store.getBucket("client", perHour(10));
+        assertThat(bucket.getAvailableTokens()).isEqualTo(10);
+        store.tryConsume("client", perHour(10), 4);
+        assertThat(bucket.getAvailableTokens()).isEqualTo(6);
+        bucket.addTokens(2);
+        assertThat(store.tryConsume("client", perHour(10), 1).getRemainingTokens()).isEqualTo(7);
+        assertThat(bucket.consumeIgnoringRateLimits(9)).isPositive();
+        assertThat(bucket.tryConsume(1)).isFalse();
+        bucket.reset();
+        assertThat(store.tryConsume("client", perHour(10), 1).getRemainingTokens()).isEqualTo(9);
+    }
+
+    @Test
+    public void smallerCapacityCapsStoredTokens() {
+        assertThat(store.tryConsume("client", perHour(10), 1).getRemainingTokens()).isEqualTo(9);
+        assertThat(store.tryConsume("client", perHour(5), 1).getRemainingTokens()).isEqualTo(4);
+    }
+
+    @Test
+    public void bucketExpiresOnceRefilled() {
+        store.tryConsume("client", perSecond(10), 5);
+        long ttl = REDIS.getClient().getKeys().remainTimeToLive("client:h");
+        assertThat(ttl).isBetween(1L, 501L);
+    }
+
+    @Test
+    public void bucketIsKeptAfterRefillAsSetByTheProfile() {
+        Expiration expiration = new Expiration();
+        expiration.setKeepAfterRefillMillis(10_000);
+        expirationStrategy.register(perSecond(10), expiration);
+        store.tryConsume("client", perSecond(10), 5);
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:h")).isBetween(10_000L, 10_501L);
+    }
+
+    @Test
+    public void bucketExpiresAFixedTimeAfterTheLastWrite() {
+        Expiration expiration = new Expiration();
+        expiration.setPolicy(ExpirationPolicy.FIXED);
+        expiration.setTtlMillis(60_000);
+        expirationStrategy.register(perHour(10), expiration);
+        store.tryConsume("client", perHour(10), 5);
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:h")).isBetween(59_000L, 60_000L);
+    }
+
+    @Test
+    public void bucketNeverExpiresWithoutPolicy() {
+        store.tryConsume("client", perHour(10), 5);
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:h")).isPositive();
+
+        Expiration expiration = new Expiration();
+        expiration.setPolicy(ExpirationPolicy.NONE);
+        expirationStrategy.register(perHour(10), expiration);
+        store.tryConsume("client", perHour(10), 1);
+        assertThat(REDIS.getClient().getKeys().remainTimeToLive("client:h")).isEqualTo(-1L);
+    }
+}
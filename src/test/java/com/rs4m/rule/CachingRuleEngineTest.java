@@ -0,0 +1,143 @@
+package com.rs4m.rule;
+
+import com.rs4m.net.ClientIpResolver;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachingRuleEngineTest {
+
+    private static CachingRuleEngine caching(RuleEngine delegate) {
+        return new CachingRuleEngine(delegate, new ClientIpResolver(Collections.emptyList()), 100, 60_000);
+    }
+
+    private static MockHttpServletRequest request(String path, String apiKey) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        if (apiKey != null) {
+            request.addHeader("X-Api-Key", apiKey);
+        }
+        return request;
+    }
+
+    @Test
+    public void reusesResultsOfRequestsAgreeingOnTheDeclaredAttributes() throws Exception {
+        CountingEngine delegate = new CountingEngine(attributes("header:X-Api-Key"));
+        CachingRuleEngine engine = caching(delegate);
+
+        assertThat(engine.evaluate(request("/orders", "key-1")).getKey()).isEqualTo("key-1");
+        // the path is not read by the rules
+        assertThat(engine.evaluate(request("/invoices", "key-1")).getKey()).isEqualTo("key-1");
+        assertThat(delegate.evaluations).isEqualTo(1);
+    }
+
+    @Test
+    public void evaluatesAgainWhenADeclaredAttributeDiffers() throws Exception {
+        CountingEngine delegate = new CountingEngine(attributes("path", "header:X-Api-Key"));
+        CachingRuleEngine engine = caching(delegate);
+
+        assertThat(engine.evaluate(request("/orders", "key-1")).getKey()).isEqualTo("key-1");
+        assertThat(engine.evaluate(request("/orders", "key-2")).getKey()).isEqualTo("key-2");
+        assertThat(engine.evaluate(request("/invoices", "key-2")).getKey()).isEqualTo("key-2");
+        assertThat(delegate.evaluations).isEqualTo(3);
+    }
+
+    @Test
+    public void cachesRequestsMatchingNoRule() throws Exception {
+        CountingEngine delegate = new CountingEngine(attributes("header:X-Api-Key"));
+        CachingRuleEngine engine = caching(delegate);
+
+        assertThat(engine.evaluate(request("/orders", null))).isNull();
+        assertThat(engine.evaluate(request("/orders", null))).isNull();
+        assertThat(delegate.evaluations).isEqualTo(1);
+    }
+
+    @Test
+    public void loadingRulesDropsTheResultsOfThePreviousRules() throws Exception {
+        CountingEngine delegate = new CountingEngine(attributes("header:X-Api-Key"));
+        CachingRuleEngine engine = caching(delegate);
+        engine.evaluate(request("/orders", "key-1"));
+
+        engine.loadRules(new RuleSource("string", "tenant-"));
+        assertThat(engine.evaluate(request("/orders", "key-1")).getKey()).isEqualTo("tenant-key-1");
+        assertThat(delegate.evaluations).isEqualTo(2);
+
+        // rules loaded on the engine itself, e.g. by its manager, are noticed as well
+        delegate.loadRules(new RuleSource("string", "user-"));
+        assertThat(engine.evaluate(request("/orders", "key-1")).getKey()).isEqualTo("user-key-1");
+        assertThat(engine.evaluate(request("/orders", "key-1")).getKey()).isEqualTo("user-key-1");
+        assertThat(delegate.evaluations).isEqualTo(3);
+    }
+
+    @Test
+    public void neverCachesEnginesWithoutDeclaredAttributes() throws Exception {
+        CountingEngine delegate = new CountingEngine(null);
+        CachingRuleEngine engine = caching(delegate);
+
+        engine.evaluate(request("/orders", "key-1"));
+        engine.evaluate(request("/orders", "key-1"));
+        assertThat(delegate.evaluations).isEqualTo(2);
+    }
+
+    @Test
+    public void neverCachesUnknownAttributes() throws Exception {
+        CountingEngine delegate = new CountingEngine(attributes("header:X-Api-Key", "cookie:session"));
+        CachingRuleEngine engine = caching(delegate);
+
+        engine.evaluate(request("/orders", "key-1"));
+        engine.evaluate(request("/orders", "key-1"));
+        assertThat(delegate.evaluations).isEqualTo(2);
+    }
+
+    private static Set<String> attributes(String... attributes) {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(attributes)));
+    }
+
+    /**
+     * Keys requests by their API key, with the loaded rules as prefix; a new set of attributes on every load, like decision tables
+     */
+    private static final class CountingEngine implements RuleEngine {
+        private final Set<String> declared;
+        private volatile Set<String> attributes;
+        private volatile String prefix = "";
+        private int evaluations;
+
+        CountingEngine(Set<String> attributes) {
+            this.declared = attributes;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public void loadRules(RuleSource ruleSource) {
+            prefix = ruleSource.getContent();
+            attributes = declared != null ? new LinkedHashSet<>(declared) : null;
+        }
+
+        @Override
+        public RuleResult evaluate(Object fact) {
+            evaluations++;
+            String apiKey = ((MockHttpServletRequest) fact).getHeader("X-Api-Key");
+            return apiKey != null ? new RuleResult(prefix + apiKey, null) : null;
+        }
+
+        @Override
+        public void fireRules(Object fact) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <T> T getResult(Class<T> resultType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<String> getFactAttributes() {
+            return attributes;
+        }
+    }
+}
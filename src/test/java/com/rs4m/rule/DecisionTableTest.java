@@ -0,0 +1,168 @@
+package com.rs4m.rule;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DecisionTableTest {
+
+    private static DecisionTableRuleEngine engine(String rules) throws RuleEngineException {
+        DecisionTableRuleEngine engine = new DecisionTableRuleEngine();
+        engine.loadRules(new RuleSource("string", rules));
+        return engine;
+    }
+
+    private static MockHttpServletRequest request(String method, String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setRemoteAddr("203.0.113.9");
+        return request;
+    }
+
+    private static String key(DecisionTableRuleEngine engine, MockHttpServletRequest request) throws RuleEngineException {
+        RuleResult result = engine.evaluate(request);
+        return result != null ? result.getKey() : null;
+    }
+
+    @Test
+    public void reportsTheLineOfAnInvalidRule() {
+        assertThatThrownBy(() -> DecisionTable.parse("# tenants\n* => ip\n\nmethod=GET header:X-Api-Key"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageStartingWith("Invalid rule at line 4: missing '=>'");
+        assertThatThrownBy(() -> DecisionTable.parse("* => ip\nquery=x => ip"))
+                .hasMessageContaining("line 2").hasMessageContaining("unknown condition 'query=x'");
+        assertThatThrownBy(() -> DecisionTable.parse("* => cookie:session")).hasMessageContaining("unknown key 'cookie:session'");
+        assertThatThrownBy(() -> DecisionTable.parse("* => ip profile=a profile=b")).hasMessageContaining("unexpected 'profile=b'");
+        assertThatThrownBy(() -> DecisionTable.parse("path=/api/*/orders => ip")).hasMessageContaining("end with '/**'");
+        assertThatThrownBy(() -> DecisionTable.parse("method=GET| => ip")).hasMessageContaining("empty value");
+        assertThatThrownBy(() -> DecisionTable.parse("ip=10.0.0.0/33 => ip")).hasMessageContaining("line 1");
+    }
+
+    @Test
+    public void engineWrapsParseErrors() {
+        assertThatThrownBy(() -> engine("* =>")).isInstanceOf(RuleEngineException.class).hasMessageContaining("missing key");
+    }
+
+    @Test
+    public void firstMatchingRuleGivesTheKeyAndProfile() throws Exception {
+        DecisionTableRuleEngine engine = engine(
+                "method=POST path=/api/orders/** => header:X-Api-Key profile=orders\n" +
+                "*                                => const:anonymous");
+        MockHttpServletRequest post = request("POST", "/api/orders/7");
+        post.addHeader("X-Api-Key", "key-1");
+
+        RuleResult result = engine.evaluate(post);
+        assertThat(result.getKey()).isEqualTo("key-1");
+        assertThat(result.getProfile()).isEqualTo("orders");
+
+        RuleResult fallback = engine.evaluate(request("GET", "/api/orders/7"));
+        assertThat(fallback.getKey()).isEqualTo("anonymous");
+        assertThat(fallback.getProfile()).isNull();
+    }
+
+    @Test
+    public void negatesConditions() throws Exception {
+        DecisionTableRuleEngine engine = engine(
+                "!header:X-Api-Key => ip\n" +
+                "!method=GET|HEAD  => const:writes\n" +
+                "*                 => header:X-Api-Key");
+        assertThat(key(engine, request("GET", "/"))).isEqualTo("203.0.113.9");
+
+        MockHttpServletRequest write = request("DELETE", "/");
+        write.addHeader("X-Api-Key", "key-1");
+        assertThat(key(engine, write)).isEqualTo("writes");
+
+        MockHttpServletRequest read = request("GET", "/");
+        read.addHeader("X-Api-Key", "key-1");
+        assertThat(key(engine, read)).isEqualTo("key-1");
+    }
+
+    @Test
+    public void pathPrefixStopsAtSegmentBoundaries() throws Exception {
+        DecisionTableRuleEngine engine = engine("path=/api/**|/health => const:api");
+        assertThat(key(engine, request("GET", "/api"))).isEqualTo("api");
+        assertThat(key(engine, request("GET", "/api/"))).isEqualTo("api");
+        assertThat(key(engine, request("GET", "/api/orders/7"))).isEqualTo("api");
+        assertThat(key(engine, request("GET", "/health"))).isEqualTo("api");
+        assertThat(key(engine, request("GET", "/apis"))).isNull();
+        assertThat(key(engine, request("GET", "/apis/orders"))).isNull();
+        assertThat(key(engine, request("GET", "/health/live"))).isNull();
+    }
+
+    @Test
+    public void matchesClientAddressRanges() throws Exception {
+        DecisionTableRuleEngine engine = engine(
+                "ip=10.0.0.0/8|2001:db8::/32 => const:internal profile=internal\n" +
+                "*                           => ip");
+        MockHttpServletRequest ipv4 = request("GET", "/");
+        ipv4.setRemoteAddr("10.1.2.3");
+        assertThat(engine.evaluate(ipv4).getProfile()).isEqualTo("internal");
+
+        MockHttpServletRequest ipv6 = request("GET", "/");
+        ipv6.setRemoteAddr("2001:db8::1");
+        assertThat(key(engine, ipv6)).isEqualTo("internal");
+
+        MockHttpServletRequest outside = request("GET", "/");
+        outside.setRemoteAddr("11.0.0.1");
+        RuleResult result = engine.evaluate(outside);
+        assertThat(result.getKey()).isEqualTo("11.0.0.1");
+        assertThat(result.getProfile()).isNull();
+    }
+
+    @Test
+    public void ruleWithAnAbsentKeyIsSkipped() throws Exception {
+        DecisionTableRuleEngine engine = engine(
+                "*                  => header:X-Tenant profile=tenants\n" +
+                "header:X-Api-Key   => ip\n" +
+                "*                  => const:anonymous");
+        MockHttpServletRequest tenant = request("GET", "/");
+        tenant.addHeader("X-Tenant", "acme");
+        assertThat(engine.evaluate(tenant).getProfile()).isEqualTo("tenants");
+
+        // the first rule matches every request, but has no key without the header
+        MockHttpServletRequest apiKey = request("GET", "/");
+        apiKey.addHeader("X-Api-Key", "key-1");
+        RuleResult result = engine.evaluate(apiKey);
+        assertThat(result.getKey()).isEqualTo("203.0.113.9");
+        assertThat(result.getProfile()).isNull();
+
+        MockHttpServletRequest emptyTenant = request("GET", "/");
+        emptyTenant.addHeader("X-Tenant", "");
+        assertThat(key(engine, emptyTenant)).isEqualTo("anonymous");
+    }
+
+    @Test
+    public void hashStartsACommentOnlyAtTheStartOfALineOrAfterASpace() throws Exception {
+        DecisionTableRuleEngine engine = engine(
+                "# tiers\n" +
+                "header:X-Tier=a#b => const:hash # not part of the key\n" +
+                "*                 => const:other");
+        MockHttpServletRequest hash = request("GET", "/");
+        hash.addHeader("X-Tier", "a#b");
+        assertThat(key(engine, hash)).isEqualTo("hash");
+
+        MockHttpServletRequest truncated = request("GET", "/");
+        truncated.addHeader("X-Tier", "a");
+        assertThat(key(engine, truncated)).isEqualTo("other");
+    }
+
+    @Test
+    public void declaresTheAttributesTheRulesRead() {
+        DecisionTable table = DecisionTable.parse(
+                "method=POST !header:X-Api-Key => ip\n" +
+                "path=/api/**                  => header:X-Tenant\n" +
+                "*                             => const:anonymous");
+        assertThat(table.attributes()).containsExactly("method", "header:X-Api-Key", "ip", "path", "header:X-Tenant");
+        assertThat(table.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void resultOfTheTwoStepApiIsReadOnce() throws Exception {
+        DecisionTableRuleEngine engine = engine("* => const:anonymous");
+        engine.fireRules(request("GET", "/"));
+        assertThat(engine.getResult(String.class)).isEqualTo("anonymous");
+        // nothing is left on the thread for the next request
+        assertThat(engine.getResult(String.class)).isNull();
+    }
+}